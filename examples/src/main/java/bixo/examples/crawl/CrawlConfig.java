@@ -24,6 +24,8 @@ public class CrawlConfig {
     public static final String CONTENT_SUBDIR_NAME = "content";
     public static final String STATUS_SUBDIR_NAME = "status";
     public static final String PARSE_SUBDIR_NAME = "parse";
+    public static final String ROBOTS_SUBDIR_NAME = "robots";
+    public static final String SEEN_URLS_SUBDIR_NAME = "seen-urls";
 
     public static final String MAHOUT_SUBDIR_NAME = "mahout";
 
@@ -46,6 +48,10 @@ public class CrawlConfig {
     public static final int SOCKET_TIMEOUT = 10 * 1000;
     public static final int CONNECTION_TIMEOUT = 10 * 1000;
 
+    // Seen URL filter constants. The number of partitions can't change between loops.
+    public static final int SEEN_URLS_PARTITIONS = 64;
+    public static final long SEEN_URLS_EXPECTED = 10 * 1000 * 1000L;
+
     // Misc
     public static final long MILLISECONDS_PER_MINUTE = 60 * 1000L;
     
@@ -54,6 +60,18 @@ public class CrawlConfig {
     public static final String WRITABLE_SEQ_FILE_VALUE_FN = "parsedText";
 
     
+    /**
+     * @return true if <status> means we have the current content of the URL. A NOT_MODIFIED
+     * result from a conditional re-fetch counts the same as FETCHED.
+     */
+    public static boolean isFetchedStatus(UrlStatus status) {
+        return (status == UrlStatus.FETCHED) || (status == UrlStatus.NOT_MODIFIED);
+    }
+    
+    /**
+     * @return true if <status> means we should (re)try fetching the URL. This is never the
+     * case for a fetched (including NOT_MODIFIED) URL.
+     */
     public static boolean isUnfetchedStatus(UrlStatus status) {
         if (status == UrlStatus.UNFETCHED
             || status == UrlStatus.SKIPPED_DEFERRED
@@ -20,6 +20,7 @@ import org.apache.log4j.Logger;
 
 import bixo.datum.UrlDatum;
 import bixo.datum.UrlStatus;
+import bixo.fetcher.BaseFetcher;
 import cascading.flow.FlowProcess;
 import cascading.operation.BaseOperation;
 import cascading.operation.Function;
@@ -58,7 +59,8 @@ public class CreateCrawlDbDatumFromUrlFunction extends BaseOperation<NullContext
         UrlStatus status = UrlStatus.valueOf((String) (datum.getPayloadValue(CrawlDbDatum.LAST_STATUS_FIELD)));
         Integer crawlDepth = (Integer) datum.getPayloadValue(CrawlDbDatum.CRAWL_DEPTH);
 
-        CrawlDbDatum crawldbDatum = new CrawlDbDatum(datum.getUrl(), lastFetched, lastUpdated, status, crawlDepth);
+        CrawlDbDatum crawldbDatum = new CrawlDbDatum(datum.getUrl(), lastFetched, lastUpdated, status, crawlDepth,
+                        BaseFetcher.getLastModified(datum), BaseFetcher.getETag(datum));
 
         funcCall.getOutputCollector().add(crawldbDatum.getTuple());
         _numCreated++;
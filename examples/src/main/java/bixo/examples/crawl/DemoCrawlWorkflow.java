@@ -37,6 +37,7 @@ import bixo.config.UserAgent;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ParsedDatum;
 import bixo.datum.UrlDatum;
+import bixo.fetcher.BaseFetcher;
 import bixo.fetcher.SimpleHttpFetcher;
 import bixo.operations.BaseScoreGenerator;
 import bixo.operations.FixedScoreGenerator;
@@ -48,9 +49,12 @@ import bixo.parser.SimpleLinkExtractor;
 import bixo.parser.SimpleParser;
 import bixo.pipes.FetchPipe;
 import bixo.pipes.ParsePipe;
+import bixo.pipes.SeenUrlsPipe;
+import bixo.robots.RobotRulesStore;
 import bixo.urls.BaseUrlFilter;
 import bixo.urls.SimpleUrlNormalizer;
 import bixo.urls.SimpleUrlValidator;
+import bixo.utils.SeenUrlsStore;
 import cascading.flow.Flow;
 import cascading.flow.FlowConnector;
 import cascading.flow.FlowProcess;
@@ -126,6 +130,8 @@ public class DemoCrawlWorkflow {
             urlDatum.setPayloadValue(CrawlDbDatum.LAST_UPDATED_FIELD, datum.getLastUpdated());
             urlDatum.setPayloadValue(CrawlDbDatum.LAST_STATUS_FIELD, datum.getLastStatus().name());
             urlDatum.setPayloadValue(CrawlDbDatum.CRAWL_DEPTH, datum.getCrawlDepth());
+            // So a re-fetch of the URL can be conditional.
+            BaseFetcher.setValidators(urlDatum, datum.getLastModified(), datum.getETag());
             
             funcCall.getOutputCollector().add(urlDatum.getTuple());
         }
@@ -196,6 +202,12 @@ public class DemoCrawlWorkflow {
         BaseScoreGenerator scorer = new FixedScoreGenerator();
 
         FetchPipe fetchPipe = new FetchPipe(urlsToFetchPipe, scorer, fetcher, numReducers);
+        
+        // Reuse robot rules from the previous loop (which is where the crawldb came from), and
+        // save them (including any that got re-fetched) for the next loop.
+        Path prevRobotsPath = new Path(crawlDbPath.getParent(), CrawlConfig.ROBOTS_SUBDIR_NAME);
+        Path robotsPath = new Path(curWorkingDirPath, CrawlConfig.ROBOTS_SUBDIR_NAME);
+        fetchPipe.setRobotRulesStore(new RobotRulesStore(prevRobotsPath.toString(), robotsPath.toString()));
         Pipe statusPipe = new Pipe("status pipe", fetchPipe.getStatusTailPipe());
         Pipe contentPipe = new Pipe("content pipe", fetchPipe.getContentTailPipe());
         contentPipe = TupleLogger.makePipe(contentPipe, true);
@@ -248,6 +260,14 @@ public class DemoCrawlWorkflow {
         
         urlFromOutlinksPipe = new Each(urlFromOutlinksPipe, new NormalizeUrlFunction(new SimpleUrlNormalizer()));
         urlFromOutlinksPipe = TupleLogger.makePipe(urlFromOutlinksPipe, true);
+        
+        // Drop outlinks that we've (probably) seen in an earlier loop, since they're already
+        // in the crawldb, so that they don't have to be grouped with it below.
+        Path prevSeenUrlsPath = new Path(crawlDbPath.getParent(), CrawlConfig.SEEN_URLS_SUBDIR_NAME);
+        Path seenUrlsPath = new Path(curWorkingDirPath, CrawlConfig.SEEN_URLS_SUBDIR_NAME);
+        SeenUrlsStore seenUrlsStore = new SeenUrlsStore(prevSeenUrlsPath.toString(), seenUrlsPath.toString(),
+                        CrawlConfig.SEEN_URLS_PARTITIONS, CrawlConfig.SEEN_URLS_EXPECTED);
+        urlFromOutlinksPipe = new SeenUrlsPipe(urlFromOutlinksPipe, seenUrlsStore).getTailPipe();
 
         // Take status and output urls from it  
         Pipe urlFromFetchPipe = new Pipe("url from fetch", statusPipe);
@@ -84,7 +84,9 @@ public class DemoStatusTool {
         iter = crawldbTap.openForRead(conf);
         totalEntries = 0;
         int fetchedUrls = 0;
+        int notModifiedUrls = 0;
         int unfetchedUrls = 0;
+        int otherUrls = 0;
  
         LOGGER.info("Analyzing: " +  CrawlConfig.CRAWLDB_SUBDIR_NAME);
 
@@ -96,15 +98,22 @@ public class DemoStatusTool {
             if (exportDb) {
                 LOGGER.info(datum.toString());
             }
-            if (datum.getLastFetched() == 0) {
+            UrlStatus status = datum.getLastStatus();
+            if (CrawlConfig.isFetchedStatus(status)) {
+            	fetchedUrls += 1;
+            	if (status == UrlStatus.NOT_MODIFIED) {
+            	    notModifiedUrls += 1;
+            	}
+            } else if (datum.getLastFetched() == 0) {
             	unfetchedUrls += 1;
             } else {
-            	fetchedUrls += 1;
+            	otherUrls += 1;
             }
         }
         if (!exportDb) {
-            LOGGER.info(String.format("%d fetched URLs", fetchedUrls));
+            LOGGER.info(String.format("%d fetched URLs (%d not modified)", fetchedUrls, notModifiedUrls));
             LOGGER.info(String.format("%d unfetched URLs", unfetchedUrls));
+            LOGGER.info(String.format("%d skipped or failed URLs", otherUrls));
             LOGGER.info("Total URLs: " + totalEntries);
             LOGGER.info("");
         }
@@ -39,6 +39,7 @@ import bixo.operations.UrlFilter;
 import bixo.parser.SimpleParser;
 import bixo.pipes.FetchPipe;
 import bixo.pipes.ParsePipe;
+import bixo.robots.RobotRulesStore;
 import bixo.urls.BaseUrlFilter;
 import bixo.urls.SimpleUrlNormalizer;
 import bixo.urls.SimpleUrlValidator;
@@ -105,6 +106,7 @@ public class JDBCCrawlWorkflow {
                 urlDatum.setPayloadValue(CrawlDbDatum.LAST_UPDATED_FIELD, bestDatum.getLastUpdated());
                 urlDatum.setPayloadValue(CrawlDbDatum.LAST_STATUS_FIELD, bestDatum.getLastStatus().name());
                 urlDatum.setPayloadValue(CrawlDbDatum.CRAWL_DEPTH, bestDatum.getCrawlDepth());
+                BaseFetcher.setValidators(urlDatum, bestDatum.getLastModified(), bestDatum.getETag());
                 
                 bufferCall.getOutputCollector().add(urlDatum.getTuple());
                 _numSelected++;
@@ -152,6 +154,11 @@ public class JDBCCrawlWorkflow {
         BaseFetcher fetcher = new SimpleHttpFetcher(maxThreads, fetcherPolicy, userAgent);
         BaseScoreGenerator scorer = new FixedScoreGenerator();
         FetchPipe fetchPipe = new FetchPipe(importPipe, scorer, fetcher, numReducers);
+        
+        // Reuse robot rules from the previous loop, and save them for the next loop.
+        Path prevRobotsPath = new Path(inputDir, CrawlConfig.ROBOTS_SUBDIR_NAME);
+        Path robotsPath = new Path(curLoopDirPath, CrawlConfig.ROBOTS_SUBDIR_NAME);
+        fetchPipe.setRobotRulesStore(new RobotRulesStore(prevRobotsPath.toString(), robotsPath.toString()));
 
         Pipe statusPipe = new Pipe("status pipe", fetchPipe.getStatusTailPipe());
 
@@ -43,8 +43,8 @@ public class JDBCTapFactory {
     private static final String JDBC_SERVER_SUFFIX = "/" + DB_NAME + ";shutdown=true";
         
     private static final String JDBC_DRIVER = "org.hsqldb.jdbcDriver";
-    private static final String[] _urlsSinkColumnNames = {"url", "lastFetched", "lastUpdated", "lastStatus", "crawlDepth"};
-    private static final String[] _urlsSinkColumnDefs = {"VARCHAR(255)", "BIGINT", "BIGINT", "VARCHAR(32)", "INTEGER"};
+    private static final String[] _urlsSinkColumnNames = {"url", "lastFetched", "lastUpdated", "lastStatus", "crawlDepth", "lastModified", "etag"};
+    private static final String[] _urlsSinkColumnDefs = {"VARCHAR(255)", "BIGINT", "BIGINT", "VARCHAR(32)", "INTEGER", "VARCHAR(64)", "VARCHAR(255)"};
 
     private static String _jdbcUrl;
     private static Server _server;
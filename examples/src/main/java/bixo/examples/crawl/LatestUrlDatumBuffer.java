@@ -21,6 +21,7 @@ import java.util.Iterator;
 import org.apache.log4j.Logger;
 
 import bixo.datum.UrlDatum;
+import bixo.fetcher.BaseFetcher;
 import cascading.flow.FlowProcess;
 import cascading.operation.BaseOperation;
 import cascading.operation.Buffer;
@@ -77,8 +78,16 @@ public class LatestUrlDatumBuffer extends BaseOperation<NullContext> implements
                     LOGGER.warn("Using URL with later fetch time: " + datum.getUrl());
                 }
 
+                // Keep the validators we already have if the later datum doesn't have any, the
+                // same as a 304 response that doesn't repeat them.
+                String lastModified = BaseFetcher.getLastModified(bestDatum);
+                String etag = BaseFetcher.getETag(bestDatum);
+                
                 bestDatum.setUrl(datum.getUrl());   // There's really no need to set the url since it should be same
                 bestDatum.setPayload(datum.getPayload());
+                if ((BaseFetcher.getLastModified(bestDatum) == null) && (BaseFetcher.getETag(bestDatum) == null)) {
+                    BaseFetcher.setValidators(bestDatum, lastModified, etag);
+                }
                 bestFetched = (Long) bestDatum.getPayloadValue(CrawlDbDatum.LAST_FETCHED_FIELD);
             } else {
                 ignoredUrls += 1;
@@ -20,6 +20,7 @@ import java.util.Iterator;
 
 import bixo.datum.StatusDatum;
 import bixo.datum.UrlStatus;
+import bixo.fetcher.BaseFetcher;
 import cascading.flow.FlowProcess;
 import cascading.flow.hadoop.HadoopFlowProcess;
 import cascading.operation.BaseOperation;
@@ -107,28 +108,38 @@ public class UpdateCrawlDbBuffer extends BaseOperation<NullContext> implements B
         
 
         long lastFetched = 0;
+        String lastModified = null;
+        String etag = null;
         if (crawlDbDatum != null) {
             status = crawlDbDatum.getLastStatus();
             pageScore = crawlDbDatum.getPageScore();
             linkScore += crawlDbDatum.getLinksScore();
             lastFetched = crawlDbDatum.getLastFetched();
+            lastModified = crawlDbDatum.getLastModified();
+            etag = crawlDbDatum.getETag();
         } else if (statusDatum != null) {
             status = statusDatum.getStatus();
-            if (status != UrlStatus.FETCHED ) {
-                pageScore = 0; // if we didn't fetch the page, then we can't have a page score
-                linkScore += (Float)statusDatum.getPayloadValue(CustomFields.LINKS_SCORE_FN);
-            } else {
+            if (status == UrlStatus.FETCHED) {
                 if (analyzedDatum != null) {
                     pageScore = analyzedDatum.getPageScore();
                 }
+            } else if (status == UrlStatus.NOT_MODIFIED) {
+                // Same content as last time, which we didn't analyze again, so keep its page score.
+                pageScore = (Float)statusDatum.getPayloadValue(CustomFields.PAGE_SCORE_FN);
+            } else {
+                pageScore = 0; // if we didn't fetch the page, then we can't have a page score
+                linkScore += (Float)statusDatum.getPayloadValue(CustomFields.LINKS_SCORE_FN);
             }
             lastFetched = statusDatum.getStatusTime();
+            // The FetchPipe has updated these from the response for FETCHED and NOT_MODIFIED.
+            lastModified = BaseFetcher.getLastModified(statusDatum);
+            etag = BaseFetcher.getETag(statusDatum);
         } else {
             status = UrlStatus.UNFETCHED;
         }
             
 
-        CrawlDbDatum updatedDatum = new CrawlDbDatum(url, lastFetched, status, pageScore, linkScore);
+        CrawlDbDatum updatedDatum = new CrawlDbDatum(url, lastFetched, status, pageScore, linkScore, lastModified, etag);
         bufferCall.getOutputCollector().add(updatedDatum.getTuple());
    }
 
@@ -30,16 +30,20 @@ public class CrawlDbDatum extends BaseDatum {
     public static final String LAST_STATUS_FIELD = fieldName(CrawlDbDatum.class, "lastStatus");
     public static final String LINKS_SCORE_FIELD = fieldName(CrawlDbDatum.class, "linksScore");
     public static final String PAGE_SCORE_FIELD = fieldName(CrawlDbDatum.class, "pageScore");
+    public static final String LAST_MODIFIED_FIELD = fieldName(CrawlDbDatum.class, "lastModified");
+    public static final String ETAG_FIELD = fieldName(CrawlDbDatum.class, "etag");
     
     
     public static final Fields FIELDS = new Fields(URL_FIELD,
                     LAST_FETCHED_FIELD, LAST_STATUS_FIELD,
-                    LINKS_SCORE_FIELD, PAGE_SCORE_FIELD);
+                    LINKS_SCORE_FIELD, PAGE_SCORE_FIELD,
+                    LAST_MODIFIED_FIELD, ETAG_FIELD);
 
     @SuppressWarnings("rawtypes")
     public static Class[] TYPES = {String.class, 
                             Long.class, String.class,
-                            Float.class, Float.class};
+                            Float.class, Float.class,
+                            String.class, String.class};
     
     public CrawlDbDatum() {
         super(FIELDS);
@@ -59,6 +63,10 @@ public class CrawlDbDatum extends BaseDatum {
     }
     
     public CrawlDbDatum(String url, long lastFetched, UrlStatus lastStatus, float linksScore, float pageScore) {
+        this(url, lastFetched, lastStatus, linksScore, pageScore, null, null);
+    }
+    
+    public CrawlDbDatum(String url, long lastFetched, UrlStatus lastStatus, float linksScore, float pageScore, String lastModified, String etag) {
         super(FIELDS);
         
         setUrl(url);
@@ -66,6 +74,8 @@ public class CrawlDbDatum extends BaseDatum {
         setLastStatus(lastStatus);
         setLinksScore(linksScore);
         setPageScore(pageScore);
+        setLastModified(lastModified);
+        setETag(etag);
        }
 
     public String getUrl() {
@@ -108,6 +118,30 @@ public class CrawlDbDatum extends BaseDatum {
         _tupleEntry.set(PAGE_SCORE_FIELD, pageScore);
     }
     
+    /**
+     * @return Last-Modified value from the last fetch, or null (or empty, once
+     * written out as text).
+     */
+    public String getLastModified() {
+        return _tupleEntry.getString(LAST_MODIFIED_FIELD);
+    }
+
+    public void setLastModified(String lastModified) {
+        _tupleEntry.set(LAST_MODIFIED_FIELD, lastModified);
+    }
+
+    /**
+     * @return ETag value from the last fetch, or null (or empty, once written
+     * out as text).
+     */
+    public String getETag() {
+        return _tupleEntry.getString(ETAG_FIELD);
+    }
+
+    public void setETag(String etag) {
+        _tupleEntry.set(ETAG_FIELD, etag);
+    }
+    
     public String toString() {
         return String.format("Page %s: last status %s, links score %.4f, page score %.4f",
                         getUrl(),
@@ -23,6 +23,7 @@ import bixo.datum.FetchedDatum;
 import bixo.datum.StatusDatum;
 import bixo.datum.UrlDatum;
 import bixo.datum.UrlStatus;
+import bixo.fetcher.BaseFetcher;
 import bixo.fetcher.SimpleHttpFetcher;
 import bixo.operations.BaseScoreGenerator;
 import bixo.operations.FixedScoreGenerator;
@@ -151,6 +152,8 @@ public class MinerWorkflow {
             urlDatum.setPayloadValue(CustomFields.LINKS_SCORE_FN, datum.getLinksScore());
             urlDatum.setPayloadValue(CustomFields.STATUS_FN, datum.getLastStatus().toString());
             urlDatum.setPayloadValue(CustomFields.SKIP_BY_LIMIT_FN, funcCall.getContext().increment());
+            // So a re-fetch of the URL can be conditional.
+            BaseFetcher.setValidators(urlDatum, datum.getLastModified(), datum.getETag());
 
             funcCall.getOutputCollector().add(urlDatum.getTuple());
         }
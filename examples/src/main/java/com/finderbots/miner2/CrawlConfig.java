@@ -55,6 +55,18 @@ public class CrawlConfig {
     public static final String WRITABLE_SEQ_FILE_VALUE_FN = "parsedText";
 
     
+    /**
+     * @return true if <status> means we have the current content of the URL. A NOT_MODIFIED
+     * result from a conditional re-fetch counts the same as FETCHED.
+     */
+    public static boolean isFetchedStatus(UrlStatus status) {
+        return (status == UrlStatus.FETCHED) || (status == UrlStatus.NOT_MODIFIED);
+    }
+    
+    /**
+     * @return true if <status> means we should (re)try fetching the URL. This is never the
+     * case for a fetched (including NOT_MODIFIED) URL.
+     */
     public static boolean isUnfetchedStatus(UrlStatus status) {
         if (status == UrlStatus.UNFETCHED
             || status == UrlStatus.SKIPPED_DEFERRED
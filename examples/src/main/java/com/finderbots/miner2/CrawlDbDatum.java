@@ -30,9 +30,12 @@ public class CrawlDbDatum extends BaseDatum {
     public static final String LAST_UPDATED_FIELD = fieldName(CrawlDbDatum.class, "lastUpdated");
     public static final String LAST_STATUS_FIELD = fieldName(CrawlDbDatum.class, "lastStatus");
     public static final String CRAWL_DEPTH = fieldName(CrawlDbDatum.class, "crawlDepth");
+    public static final String LAST_MODIFIED_FIELD = fieldName(CrawlDbDatum.class, "lastModified");
+    public static final String ETAG_FIELD = fieldName(CrawlDbDatum.class, "etag");
     
     
-    public static final Fields FIELDS = new Fields(URL_FIELD, LAST_FETCHED_FIELD, LAST_UPDATED_FIELD, LAST_STATUS_FIELD, CRAWL_DEPTH);
+    public static final Fields FIELDS = new Fields(URL_FIELD, LAST_FETCHED_FIELD, LAST_UPDATED_FIELD, LAST_STATUS_FIELD, CRAWL_DEPTH,
+                    LAST_MODIFIED_FIELD, ETAG_FIELD);
 
     public CrawlDbDatum () {
         super(FIELDS);
@@ -44,12 +47,18 @@ public class CrawlDbDatum extends BaseDatum {
     }
     
     public CrawlDbDatum(String url, long lastFetched, long lastUpdated, UrlStatus lastStatus, int crawlDepth) {
+        this(url, lastFetched, lastUpdated, lastStatus, crawlDepth, null, null);
+    }
+
+    public CrawlDbDatum(String url, long lastFetched, long lastUpdated, UrlStatus lastStatus, int crawlDepth, String lastModified, String etag) {
         super(FIELDS);
         setUrl(url);
         setLastFetched(lastFetched);
         setLastUpdated(lastUpdated);
         setLastStatus(lastStatus);
         setCrawlDepth(crawlDepth);
+        setLastModified(lastModified);
+        setETag(etag);
        }
 
     public String getUrl() {
@@ -92,6 +101,28 @@ public class CrawlDbDatum extends BaseDatum {
         _tupleEntry.set(CRAWL_DEPTH, crawlDepth);
     }
     
+    /**
+     * @return Last-Modified value from the last fetch, or null.
+     */
+    public String getLastModified() {
+        return _tupleEntry.getString(LAST_MODIFIED_FIELD);
+    }
+
+    public void setLastModified(String lastModified) {
+        _tupleEntry.set(LAST_MODIFIED_FIELD, lastModified);
+    }
+
+    /**
+     * @return ETag value from the last fetch, or null.
+     */
+    public String getETag() {
+        return _tupleEntry.getString(ETAG_FIELD);
+    }
+
+    public void setETag(String etag) {
+        _tupleEntry.set(ETAG_FIELD, etag);
+    }
+    
 
     public String toString() {
         return getUrl() + "\t" + getLastFetched() + "\t" + getLastUpdated() + "\t" + getLastStatus() + "\t" + getCrawlDepth();
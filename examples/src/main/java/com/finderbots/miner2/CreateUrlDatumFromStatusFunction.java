@@ -19,6 +19,7 @@ package com.finderbots.miner2;
 import bixo.datum.StatusDatum;
 import bixo.datum.UrlDatum;
 import bixo.datum.UrlStatus;
+import bixo.fetcher.BaseFetcher;
 import cascading.flow.FlowProcess;
 import cascading.operation.BaseOperation;
 import cascading.operation.Function;
@@ -72,6 +73,9 @@ public class CreateUrlDatumFromStatusFunction extends BaseOperation<NullContext>
         // Don't change the crawl depth here - we do that only in the case of a
         // successful parse
         urlDatum.setPayloadValue(CrawlDbDatum.CRAWL_DEPTH, datum.getPayloadValue(CrawlDbDatum.CRAWL_DEPTH));
+        // The FetchPipe has already updated these from the response (for FETCHED and NOT_MODIFIED),
+        // otherwise they're the values we sent, which are still good for the next try.
+        BaseFetcher.setValidators(urlDatum, BaseFetcher.getLastModified(datum), BaseFetcher.getETag(datum));
 
         funcCall.getOutputCollector().add(urlDatum.getTuple());
     }
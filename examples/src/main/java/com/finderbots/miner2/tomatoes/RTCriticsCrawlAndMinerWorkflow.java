@@ -22,6 +22,7 @@ import bixo.config.UserAgent;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ParsedDatum;
 import bixo.datum.UrlDatum;
+import bixo.fetcher.BaseFetcher;
 import bixo.fetcher.SimpleHttpFetcher;
 import bixo.operations.BaseScoreGenerator;
 import bixo.operations.FixedScoreGenerator;
@@ -111,6 +112,8 @@ public class RTCriticsCrawlAndMinerWorkflow {
             urlDatum.setPayloadValue(CrawlDbDatum.LAST_UPDATED_FIELD, datum.getLastUpdated());
             urlDatum.setPayloadValue(CrawlDbDatum.LAST_STATUS_FIELD, datum.getLastStatus().name());
             urlDatum.setPayloadValue(CrawlDbDatum.CRAWL_DEPTH, datum.getCrawlDepth());
+            // So a re-fetch of the URL can be conditional.
+            BaseFetcher.setValidators(urlDatum, datum.getLastModified(), datum.getETag());
 
             funcCall.getOutputCollector().add(urlDatum.getTuple());
         }
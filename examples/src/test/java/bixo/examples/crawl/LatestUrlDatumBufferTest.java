@@ -33,6 +33,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import bixo.datum.UrlDatum;
+import bixo.fetcher.BaseFetcher;
 import cascading.flow.Flow;
 import cascading.flow.FlowConnector;
 import cascading.pipe.Every;
@@ -144,6 +145,7 @@ public class LatestUrlDatumBufferTest {
         ArrayList<UrlDatum> fetchedDatums = new ArrayList<UrlDatum>();
         UrlDatum fetchedDatum1 = new UrlDatum("http://foo.com");
         fetchedDatum1.setPayloadValue(CrawlDbDatum.LAST_FETCHED_FIELD, 2L);
+        BaseFetcher.setValidators(fetchedDatum1, null, "\"v2\"");
         fetchedDatums.add(fetchedDatum1);
         createDataFile(fetchedDatumsPath.toString(), fetchedDatums);
         
@@ -152,6 +154,7 @@ public class LatestUrlDatumBufferTest {
         ArrayList<UrlDatum> unfetchedDatums = new ArrayList<UrlDatum>();
         UrlDatum unfetchedDatum1 = new UrlDatum("http://foo.com");
         unfetchedDatum1.setPayloadValue(CrawlDbDatum.LAST_FETCHED_FIELD, 0L);
+        BaseFetcher.setValidators(unfetchedDatum1, null, "\"v1\"");
         unfetchedDatums.add(unfetchedDatum1);
         UrlDatum unfetchedDatum2 = new UrlDatum("http://foo.com");
         unfetchedDatum2.setPayloadValue(CrawlDbDatum.LAST_FETCHED_FIELD, 0L);
@@ -189,15 +192,18 @@ public class LatestUrlDatumBufferTest {
         TupleEntryIterator reader = testSink.openForRead(_conf);
         int count = 0;
         long latest = 0;
+        String etag = null;
         while (reader.hasNext()) {
             TupleEntry next = reader.next();
             UrlDatum datum = new UrlDatum(next);
             latest = (Long) datum.getPayloadValue(CrawlDbDatum.LAST_FETCHED_FIELD);
+            etag = BaseFetcher.getETag(datum);
             count++;
         }
         
         assertEquals(1, count);
         assertEquals(2, latest);
+        assertEquals("\"v2\"", etag);
 
         
         
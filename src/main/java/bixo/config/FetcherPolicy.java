@@ -18,7 +18,9 @@ package bixo.config;
 
 import java.io.Serializable;
 import java.security.InvalidParameterException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -36,6 +38,8 @@ public class FetcherPolicy implements Serializable {
     public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
     public static final int DEFAULT_MAX_REDIRECTS = 20;
     public static final String DEFAULT_ACCEPT_LANGUAGE = "en-us,en-gb,en;q=0.7,*;q=0.3";
+    public static final long DEFAULT_MAX_RETRY_DELAY = 10 * 60 * 1000L;
+    public static final long NO_RETRY_DELAY = 0;
     
     // How long to wait before a fetch request gets rejected.
     // TODO KKr - calculate this based on the fetcher policy's max URLs/request
@@ -89,9 +93,12 @@ public class FetcherPolicy implements Serializable {
     private int _maxContentSize;        // Max # of bytes to use.
     private int _maxRedirects;
     private int _maxConnectionsPerHost; // 
+    private Map<String, Integer> _hostMaxConnections;   // Per-host overrides of _maxConnectionsPerHost
     private String _acceptLanguage;    // What to pass for the Accept-Language request header
     private Set<String> _validMimeTypes;    // Set of mime-types that we'll accept.
     private long _requestTimeout;           // Max time for any given set of URLs (termination timeout is based on this)
+    private boolean _adaptiveConcurrency;   // Adjust per-host parallelism & delay based on responses?
+    private long _maxRetryDelay;            // Max time we'll wait to retry URLs after a 429/503 response
 
     public FetcherPolicy() {
         this(DEFAULT_MIN_RESPONSE_RATE, DEFAULT_MAX_CONTENT_SIZE, DEFAULT_CRAWL_END_TIME, DEFAULT_CRAWL_DELAY, DEFAULT_MAX_REDIRECTS);
@@ -117,11 +124,14 @@ public class FetcherPolicy implements Serializable {
         _acceptLanguage = DEFAULT_ACCEPT_LANGUAGE;
         _validMimeTypes = new HashSet<String>();
         _maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        _hostMaxConnections = new HashMap<String, Integer>();
         _maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
         _fetcherMode = FetcherMode.COMPLETE;
         _redirectMode = _maxRedirects > 0 ? RedirectMode.FOLLOW_ALL : RedirectMode.FOLLOW_NONE;
         
         _requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+        _adaptiveConcurrency = false;
+        _maxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
     }
 
     public long getDefaultCrawlDelay() {
@@ -143,6 +153,23 @@ public class FetcherPolicy implements Serializable {
     public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
         _maxConnectionsPerHost = maxConnectionsPerHost;
     }
+
+    /**
+     * Return the max number of connections to <host>, which is the default from
+     * getMaxConnectionsPerHost() unless it's been overridden for that host.
+     */
+    public int getMaxConnectionsPerHost(String host) {
+        Integer result = _hostMaxConnections.get(host.toLowerCase());
+        return result == null ? _maxConnectionsPerHost : result;
+    }
+    
+    /**
+     * Override the max number of connections for one host, e.g. for a partner
+     * crawl of a server that can handle a lot more than the default.
+     */
+    public void setMaxConnectionsPerHost(String host, int maxConnections) {
+        _hostMaxConnections.put(host.toLowerCase(), maxConnections);
+    }
     
     public int getMaxRequestsPerConnection() {
         return _maxRequestsPerConnection;
@@ -231,6 +258,37 @@ public class FetcherPolicy implements Serializable {
         _requestTimeout = requestTimeout;
     }
     
+    public boolean isAdaptiveConcurrency() {
+        return _adaptiveConcurrency;
+    }
+    
+    /**
+     * If true, FetchBuffer will adjust how many fetch sets can be active for one
+     * server (up to getMaxConnectionsPerHost()), and the delay between sets, based on
+     * response times and errors. A crawl delay from robots.txt is still a hard limit.
+     * 
+     * @param adaptiveConcurrency
+     */
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        _adaptiveConcurrency = adaptiveConcurrency;
+    }
+    
+    public long getMaxRetryDelay() {
+        return _maxRetryDelay;
+    }
+    
+    /**
+     * When a server responds with 429 (too many requests) or 503 (service unavailable),
+     * FetchBuffer pauses fetching from that server and re-queues the URLs it didn't get,
+     * as long as the server's Retry-After (or our own backoff) isn't longer than this.
+     * 
+     * @param maxRetryDelay max delay in milliseconds, or NO_RETRY_DELAY to just fail
+     *        those URLs.
+     */
+    public void setMaxRetryDelay(long maxRetryDelay) {
+        _maxRetryDelay = maxRetryDelay;
+    }
+    
     // TODO Move these into a CrawlPolicy
     public FetcherMode getFetcherMode() {
         return _fetcherMode;
@@ -281,13 +339,16 @@ public class FetcherPolicy implements Serializable {
         final int prime = 31;
         int result = 1;
         result = prime * result + ((_acceptLanguage == null) ? 0 : _acceptLanguage.hashCode());
+        result = prime * result + (_adaptiveConcurrency ? 1231 : 1237);
         result = prime * result + (int) (_crawlDelay ^ (_crawlDelay >>> 32));
         result = prime * result + (int) (_crawlEndTime ^ (_crawlEndTime >>> 32));
         result = prime * result + ((_fetcherMode == null) ? 0 : _fetcherMode.hashCode());
+        result = prime * result + ((_hostMaxConnections == null) ? 0 : _hostMaxConnections.hashCode());
         result = prime * result + _maxConnectionsPerHost;
         result = prime * result + _maxContentSize;
         result = prime * result + _maxRedirects;
         result = prime * result + _maxRequestsPerConnection;
+        result = prime * result + (int) (_maxRetryDelay ^ (_maxRetryDelay >>> 32));
         result = prime * result + _minResponseRate;
         result = prime * result + ((_redirectMode == null) ? 0 : _redirectMode.hashCode());
         result = prime * result + (int) (_requestTimeout ^ (_requestTimeout >>> 32));
@@ -309,6 +370,8 @@ public class FetcherPolicy implements Serializable {
                 return false;
         } else if (!_acceptLanguage.equals(other._acceptLanguage))
             return false;
+        if (_adaptiveConcurrency != other._adaptiveConcurrency)
+            return false;
         if (_crawlDelay != other._crawlDelay)
             return false;
         if (_crawlEndTime != other._crawlEndTime)
@@ -318,6 +381,11 @@ public class FetcherPolicy implements Serializable {
                 return false;
         } else if (!_fetcherMode.equals(other._fetcherMode))
             return false;
+        if (_hostMaxConnections == null) {
+            if (other._hostMaxConnections != null)
+                return false;
+        } else if (!_hostMaxConnections.equals(other._hostMaxConnections))
+            return false;
         if (_maxConnectionsPerHost != other._maxConnectionsPerHost)
             return false;
         if (_maxContentSize != other._maxContentSize)
@@ -326,6 +394,8 @@ public class FetcherPolicy implements Serializable {
             return false;
         if (_maxRequestsPerConnection != other._maxRequestsPerConnection)
             return false;
+        if (_maxRetryDelay != other._maxRetryDelay)
+            return false;
         if (_minResponseRate != other._minResponseRate)
             return false;
         if (_redirectMode == null) {
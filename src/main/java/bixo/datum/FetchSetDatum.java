@@ -81,6 +81,13 @@ public class FetchSetDatum extends BaseDatum {
         return result;
     }
     
+    /**
+     * @return number of URLs, without the cost of creating the ScoredUrlDatums.
+     */
+    public int getNumUrls() {
+        return ((Tuple)_tupleEntry.get(URLS_FN)).size();
+    }
+    
     public void setUrls(List<ScoredUrlDatum> urls) {
         Tuple result = new Tuple();
         for (ScoredUrlDatum datum : urls) {
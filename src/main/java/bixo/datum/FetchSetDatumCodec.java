@@ -0,0 +1,42 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.datum;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import bixo.utils.DiskQueue;
+import bixo.utils.TupleCodec;
+
+/**
+ * Codec for spilling FetchSetDatums to a DiskQueue backing store. All of the URLs
+ * in a set share the same grouping key, status, etc. and typically the same host,
+ * so TupleCodec's string table and prefix encoding pay off here.
+ */
+public class FetchSetDatumCodec implements DiskQueue.ElementCodec<FetchSetDatum> {
+
+    @Override
+    public void write(FetchSetDatum element, DataOutput out) throws IOException {
+        TupleCodec.write(element.getTuple(), out);
+    }
+
+    @Override
+    public FetchSetDatum read(DataInput in) throws IOException {
+        return new FetchSetDatum(TupleCodec.read(in));
+    }
+}
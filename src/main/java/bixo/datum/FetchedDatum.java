@@ -39,11 +39,12 @@ public class FetchedDatum extends PayloadDatum implements Serializable {
     public static final String NUM_REDIRECTS_FN = fieldName(FetchedDatum.class, "numRedirects");
     public static final String HOST_ADDRESS_FN = fieldName(FetchedDatum.class, "hostAddress");
     public static final String HTTP_HEADERS_FN = fieldName(FetchedDatum.class, "httpHeaders");
+    public static final String NOT_MODIFIED_FN = fieldName(FetchedDatum.class, "notModified");
 
     public static final Fields FIELDS = new Fields(URL_FN, NEW_BASE_URL_FN,
                     FETCHED_URL_FN, FETCH_TIME_FN, CONTENT_FN, CONTENT_TYPE_FN,
                     RESPONSE_RATE_FN, NUM_REDIRECTS_FN, HOST_ADDRESS_FN,
-                    HTTP_HEADERS_FN).append(getSuperFields(FetchedDatum.class));
+                    HTTP_HEADERS_FN, NOT_MODIFIED_FN).append(getSuperFields(FetchedDatum.class));
 
     public FetchedDatum(Tuple tuple) {
         super(FIELDS, tuple);
@@ -68,6 +69,7 @@ public class FetchedDatum extends PayloadDatum implements Serializable {
         
         setNumRedirects(0);
         setNewBaseUrl(null);
+        setNotModified(false);
     }
 
     /**
@@ -206,6 +208,18 @@ public class FetchedDatum extends PayloadDatum implements Serializable {
         _tupleEntry.set(HTTP_HEADERS_FN, headers.toTuple());
     }
 
+    /**
+     * @return true if this was a conditional fetch, and the server told us (via a 304)
+     *         that the content hasn't changed. In that case there's no content.
+     */
+    public boolean isNotModified() {
+        return _tupleEntry.getBoolean(NOT_MODIFIED_FN);
+    }
+
+    public void setNotModified(boolean notModified) {
+        _tupleEntry.set(NOT_MODIFIED_FN, notModified);
+    }
+
     @Override
     public String toString() {
         StringBuilder result = new StringBuilder("[base URL] ");
@@ -53,6 +53,7 @@ public enum UrlStatus {
     ERROR_INVALID_URL,
     ERROR_IOEXCEPTION,
     
-    FETCHED;    // Successfully fetched
+    FETCHED,    // Successfully fetched
+    NOT_MODIFIED;   // Conditional fetch, and content hasn't changed since last time (304)
 
 }
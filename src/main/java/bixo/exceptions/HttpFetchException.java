@@ -22,15 +22,24 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.log4j.Logger;
 
 import bixo.datum.HttpHeaders;
 import bixo.datum.UrlStatus;
+import bixo.fetcher.HttpHeaderNames;
 
 @SuppressWarnings({ "serial" })
 public class HttpFetchException extends BaseFetchException implements WritableComparable<HttpFetchException> {
     private static final Logger LOGGER = Logger.getLogger(HttpFetchException.class);
     
+    // Returned by getRetryAfter() when the server didn't tell us when to come back.
+    public static final long NO_RETRY_AFTER = -1;
+    
+    // Too Many Requests (RFC 6585), which HttpStatus doesn't know about.
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+    
     private int _httpStatus;
     private HttpHeaders _httpHeaders;
     
@@ -52,6 +61,44 @@ public class HttpFetchException extends BaseFetchException implements WritableCo
         return _httpHeaders;
     }
 
+    /**
+     * @return true if the server is telling us to back off and try again later,
+     * versus the URL being bad.
+     */
+    public boolean isRetryLater() {
+        return (_httpStatus == SC_TOO_MANY_REQUESTS) || (_httpStatus == HttpStatus.SC_SERVICE_UNAVAILABLE);
+    }
+    
+    /**
+     * Return how long (in milliseconds, relative to <now>) the server wants us to wait
+     * before trying again, from the Retry-After header. This can be either a number of
+     * seconds or an HTTP date.
+     * 
+     * @param now current time
+     * @return delay in milliseconds, or NO_RETRY_AFTER if we don't have a valid header.
+     */
+    public long getRetryAfter(long now) {
+        String retryAfter = (_httpHeaders == null) ? null : _httpHeaders.getFirst(HttpHeaderNames.RETRY_AFTER);
+        if (retryAfter == null) {
+            return NO_RETRY_AFTER;
+        }
+        
+        retryAfter = retryAfter.trim();
+        try {
+            long seconds = Long.parseLong(retryAfter);
+            return (seconds < 0) ? NO_RETRY_AFTER : seconds * 1000L;
+        } catch (NumberFormatException e) {
+            // Not delta-seconds, so see if it's a date.
+        }
+        
+        try {
+            return Math.max(0, DateUtils.parseDate(retryAfter).getTime() - now);
+        } catch (DateParseException e) {
+            LOGGER.debug("Invalid Retry-After header: " + retryAfter);
+            return NO_RETRY_AFTER;
+        }
+    }
+
     private static String buildMessage(String msg, int httpStatus, HttpHeaders httpHeaders) {
         StringBuilder result = new StringBuilder(msg);
         result.append(" (");
@@ -91,6 +138,9 @@ public class HttpFetchException extends BaseFetchException implements WritableCo
         case HttpStatus.SC_MOVED_PERMANENTLY:
             return UrlStatus.HTTP_MOVED_PERMANENTLY;
             
+        case HttpStatus.SC_NOT_MODIFIED:
+            return UrlStatus.NOT_MODIFIED;
+            
         default:
             if (_httpStatus < 300) {
                 LOGGER.warn("Invalid HTTP status for exception: " + _httpStatus);
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.HttpStatus;
+
+import bixo.config.BaseFetchJobPolicy;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.utils.GroupingKey;
+
+/**
+ * Additive-increase/multiplicative-decrease (AIMD) control of how hard we hit each
+ * server (grouping ref), based on what we see while fetching.
+ *
+ * Each ref starts with one active fetch set at a time, and the fetch delay it was
+ * given by the fetch job policy. Every time we see <max active> good responses in
+ * a row, we allow one more parallel fetch set (up to <maxParallel>), and we shave a
+ * bit off the delay. If we get a 5xx/429 response, a response rate abort, or the
+ * response time/rate gets a lot worse than the best we've seen from that server,
+ * then we halve the parallelism and double the delay.
+ *
+ * If robots.txt specified a crawl delay (it's encoded in the grouping ref), then that
+ * is a hard floor - we never fetch more than one set at a time, and never use a
+ * delay that's less than crawl delay * number of URLs in the set.
+ */
+public class AdaptiveHostController {
+
+    // Range for the multiplier we apply to the fetch delay from the fetch job policy.
+    public static final double MIN_DELAY_FACTOR = 0.25;
+    public static final double MAX_DELAY_FACTOR = 16.0;
+
+    // How much we reduce the delay factor for each good response.
+    private static final double DELAY_FACTOR_STEP = 0.05;
+
+    // How much worse than the best-seen response time (or rate) we allow, before
+    // deciding the server is getting overloaded.
+    private static final double LATENCY_RATIO = 2.0;
+    private static final double RESPONSE_RATE_RATIO = 0.5;
+
+    // Ignore response time changes below this, as they're just noise.
+    private static final long MIN_LATENCY_DELTA = 200;
+
+    // Weight of the new sample in our moving averages.
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private static class HostState {
+        private int _maxActive = 1;
+        private double _delayFactor = 1.0;
+        private int _goodResponses = 0;
+
+        private double _avgLatency = 0;
+        private double _minAvgLatency = Double.MAX_VALUE;
+        private double _avgResponseRate = 0;
+        private double _maxAvgResponseRate = 0;
+    }
+
+    private int _maxParallel;
+    private ConcurrentHashMap<String, HostState> _hosts;
+
+    /**
+     * @param maxParallel max number of fetch sets for one ref that can be active at
+     *        the same time. Typically FetcherPolicy.getMaxConnectionsPerHost().
+     */
+    public AdaptiveHostController(int maxParallel) {
+        _maxParallel = Math.max(1, maxParallel);
+        _hosts = new ConcurrentHashMap<String, HostState>();
+    }
+
+    /**
+     * Return the crawl delay from robots.txt for <ref>, or UNSET_CRAWL_DELAY
+     * if there wasn't one (or the ref isn't a grouping key).
+     */
+    public static long getRobotsCrawlDelay(String ref) {
+        try {
+            return GroupingKey.getCrawlDelayFromKey(ref);
+        } catch (RuntimeException e) {
+            return BaseFetchJobPolicy.UNSET_CRAWL_DELAY;
+        }
+    }
+
+    private HostState getState(String ref) {
+        HostState result = _hosts.get(ref);
+        if (result == null) {
+            result = new HostState();
+            HostState existing = _hosts.putIfAbsent(ref, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return max number of fetch sets for <ref> that can be active at the same time.
+     */
+    public int getMaxActive(String ref) {
+        if (getRobotsCrawlDelay(ref) > 0) {
+            return 1;
+        }
+
+        HostState state = getState(ref);
+        synchronized (state) {
+            return state._maxActive;
+        }
+    }
+
+    /**
+     * Return the delay to use after fetching a set of <numUrls> for <ref>, given the
+     * <baseDelay> calculated by the fetch job policy.
+     */
+    public long getFetchDelay(String ref, long baseDelay, int numUrls) {
+        HostState state = getState(ref);
+        double delayFactor;
+        synchronized (state) {
+            delayFactor = state._delayFactor;
+        }
+
+        long result = (long)(baseDelay * delayFactor);
+
+        long robotsDelay = getRobotsCrawlDelay(ref);
+        if (robotsDelay != BaseFetchJobPolicy.UNSET_CRAWL_DELAY) {
+            result = Math.max(result, robotsDelay * numUrls);
+        }
+
+        return result;
+    }
+
+    /**
+     * Record a successful fetch from <ref>.
+     *
+     * @return true if we throttled <ref> back as a result.
+     */
+    public boolean fetched(String ref, long responseTime, int responseRate) {
+        HostState state = getState(ref);
+        synchronized (state) {
+            state._avgLatency = ewma(state._avgLatency, responseTime);
+            state._minAvgLatency = Math.min(state._minAvgLatency, state._avgLatency);
+            state._avgResponseRate = ewma(state._avgResponseRate, responseRate);
+            state._maxAvgResponseRate = Math.max(state._maxAvgResponseRate, state._avgResponseRate);
+
+            boolean slowResponse = (state._avgLatency > state._minAvgLatency * LATENCY_RATIO)
+                            && (state._avgLatency - state._minAvgLatency > MIN_LATENCY_DELTA);
+            boolean slowRate = (responseRate > 0) && (state._avgResponseRate < state._maxAvgResponseRate * RESPONSE_RATE_RATIO);
+            if (slowResponse || slowRate) {
+                throttle(state);
+                return true;
+            }
+
+            state._delayFactor = Math.max(MIN_DELAY_FACTOR, state._delayFactor - DELAY_FACTOR_STEP);
+            state._goodResponses += 1;
+            if (state._goodResponses >= state._maxActive) {
+                state._goodResponses = 0;
+                state._maxActive = Math.min(_maxParallel, state._maxActive + 1);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Record a failed fetch from <ref>. Only failures that indicate the server is
+     * overloaded cause us to back off.
+     *
+     * @return true if we throttled <ref> back as a result.
+     */
+    public boolean failed(String ref, BaseFetchException e) {
+        if (!isOverloaded(e)) {
+            return false;
+        }
+
+        HostState state = getState(ref);
+        synchronized (state) {
+            throttle(state);
+            return true;
+        }
+    }
+
+    public static boolean isOverloaded(BaseFetchException e) {
+        if (e instanceof HttpFetchException) {
+            int httpStatus = ((HttpFetchException)e).getHttpStatus();
+            return (httpStatus == HttpFetchException.SC_TOO_MANY_REQUESTS) || (httpStatus >= HttpStatus.SC_INTERNAL_SERVER_ERROR);
+        } else if (e instanceof AbortedFetchException) {
+            return ((AbortedFetchException)e).getAbortReason() == AbortedFetchReason.SLOW_RESPONSE_RATE;
+        } else {
+            return false;
+        }
+    }
+
+    private void throttle(HostState state) {
+        state._goodResponses = 0;
+        state._maxActive = Math.max(1, state._maxActive / 2);
+        state._delayFactor = Math.min(MAX_DELAY_FACTOR, state._delayFactor * 2);
+
+        // Start over with what we consider to be "normal" for this server, since it's
+        // changed, and otherwise we'd keep throttling forever.
+        state._minAvgLatency = state._avgLatency;
+        state._maxAvgResponseRate = state._avgResponseRate;
+    }
+
+    private static double ewma(double avg, double sample) {
+        if (avg == 0) {
+            return sample;
+        } else {
+            return (avg * (1.0 - EWMA_WEIGHT)) + (sample * EWMA_WEIGHT);
+        }
+    }
+}
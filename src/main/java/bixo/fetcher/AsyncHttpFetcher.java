@@ -0,0 +1,1349 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.nio.DefaultClientIOEventDispatch;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.ssl.SSLClientIOEventDispatch;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.NHttpConnection;
+import org.apache.http.nio.entity.ConsumingNHttpEntity;
+import org.apache.http.nio.entity.ConsumingNHttpEntityTemplate;
+import org.apache.http.nio.entity.ContentListener;
+import org.apache.http.nio.protocol.AsyncNHttpClientHandler;
+import org.apache.http.nio.protocol.EventListener;
+import org.apache.http.nio.protocol.NHttpRequestExecutionHandler;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.reactor.IOReactorExceptionHandler;
+import org.apache.http.nio.reactor.SessionRequest;
+import org.apache.http.nio.reactor.SessionRequestCallback;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.RequestContent;
+import org.apache.http.protocol.RequestTargetHost;
+import org.apache.http.protocol.RequestUserAgent;
+import org.apache.log4j.Logger;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.RedirectMode;
+import bixo.config.UserAgent;
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.IOFetchException;
+import bixo.exceptions.RedirectFetchException;
+import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
+import bixo.exceptions.UrlFetchException;
+import bixo.utils.EncodingUtils;
+import bixo.utils.EncodingUtils.ExpandedResult;
+import bixo.utils.HttpUtils;
+
+/**
+ * Fetcher that uses non-blocking (selector-based) I/O via HttpCore NIO, so that a small
+ * number of I/O threads service every open connection.
+ *
+ * The callback version of get() never blocks the calling thread. It returns as soon as the
+ * request has been queued up, and the result is reported from one of our completion threads,
+ * which also do the parts of a fetch that we don't want to do on an I/O thread (DNS lookups,
+ * following redirects, uncompressing content). So when FetchBuffer uses this fetcher, no
+ * thread waits on an in-flight request, and getMaxThreads() is just the max number of
+ * requests in flight. The other get() methods block until the fetch is done, so this can
+ * still be used as a drop-in replacement for SimpleHttpFetcher.
+ *
+ * The request timeout from the FetcherPolicy is for the entire fetch, including every
+ * redirect hop. Each hop uses its own connection, which is closed after the response
+ * has been read.
+ */
+@SuppressWarnings("serial")
+public class AsyncHttpFetcher extends BaseFetcher {
+    private static Logger LOGGER = Logger.getLogger(AsyncHttpFetcher.class);
+
+    private static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000;
+    private static final int DEFAULT_CONNECTION_TIMEOUT = 30 * 1000;
+
+    private static final int DEFAULT_MAX_THREADS = 1;
+    private static final int DEFAULT_IO_THREADS = 2;
+    private static final int DEFAULT_COMPLETION_THREADS = 4;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
+
+    // Same values as SimpleHttpFetcher.
+    private static final String DEFAULT_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
+    private static final String DEFAULT_ACCEPT_CHARSET = "utf-8,ISO-8859-1;q=0.7,*;q=0.7";
+    private static final String DEFAULT_ACCEPT_ENCODING = "x-gzip, gzip";
+
+    // Key used to access the AsyncFetch in the connection's context.
+    private static final String FETCH_CONTEXT_KEY = "bixo-fetch";
+
+    private static final String SSL_CONTEXT_NAMES[] = {
+        "TLS",
+        "Default",
+        "SSL",
+    };
+
+    private int _socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private int _connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+    private int _ioThreads = DEFAULT_IO_THREADS;
+    private int _completionThreads = DEFAULT_COMPLETION_THREADS;
+    private String _acceptEncoding = DEFAULT_ACCEPT_ENCODING;
+
+    transient private ConnectingIOReactor _plainReactor;
+    transient private ConnectingIOReactor _sslReactor;
+    transient private ExecutorService _completionExecutor;
+    transient private ScheduledExecutorService _timer;
+    transient private Set<AsyncRequest> _activeRequests;
+
+    /**
+     * State for one call to get(), which can span several redirect hops. Everything that
+     * happens between hops runs on a completion thread, and the request is done (exactly
+     * once) when it's reported to the callback, or it times out, or it's aborted.
+     */
+    private class AsyncRequest implements Runnable {
+        private final ScoredUrlDatum _scoredUrl;
+        private final String _lastModified;
+        private final String _etag;
+        private final IFetchCallback _callback;
+        private final Set<URI> _visited;
+
+        private int _numRedirects;
+        private String _newBaseUrl;
+        private AsyncFetch _fetch;
+        private ScheduledFuture<?> _timeout;
+        private boolean _done;
+
+        public AsyncRequest(ScoredUrlDatum scoredUrl, String lastModified, String etag, IFetchCallback callback) {
+            _scoredUrl = scoredUrl;
+            _lastModified = lastModified;
+            _etag = etag;
+            _callback = callback;
+            _visited = new HashSet<URI>();
+
+            _numRedirects = 0;
+            _newBaseUrl = null;
+            _fetch = null;
+            _timeout = null;
+            _done = false;
+        }
+
+        public String getUrl() {
+            return _scoredUrl.getUrl();
+        }
+
+        public String getLastModified() {
+            return _lastModified;
+        }
+
+        public String getETag() {
+            return _etag;
+        }
+
+        public boolean isConditional() {
+            return (_lastModified != null) || (_etag != null);
+        }
+
+        public synchronized void setTimeout(ScheduledFuture<?> timeout) {
+            _timeout = timeout;
+            if (_done) {
+                timeout.cancel(false);
+            }
+        }
+
+        /**
+         * Start the first hop. This runs on a completion thread, since it can block
+         * doing a DNS lookup.
+         */
+        @Override
+        public void run() {
+            try {
+                URI uri;
+                try {
+                    uri = new URI(getUrl());
+                } catch (URISyntaxException e) {
+                    throw new UrlFetchException(getUrl(), e.getMessage());
+                }
+
+                startHop(uri);
+            } catch (BaseFetchException e) {
+                if (setDone()) {
+                    report(null, e);
+                }
+            }
+        }
+
+        private void startHop(URI uri) throws BaseFetchException {
+            _visited.add(uri);
+            AsyncFetch fetch = startRequest(this, uri);
+
+            boolean aborted;
+            synchronized (this) {
+                _fetch = fetch;
+                aborted = _done;
+            }
+
+            // We timed out (or were aborted) while starting the hop.
+            if (aborted) {
+                fetch.abort(new AbortedFetchException(getUrl(), AbortedFetchReason.INTERRUPTED));
+            }
+        }
+
+        /**
+         * Called (on a completion thread) once <fetch> is done. Either start the next
+         * redirect hop, or report the result.
+         */
+        public void hopDone(AsyncFetch fetch) {
+            synchronized (this) {
+                if (_done) {
+                    return;
+                }
+            }
+
+            FetchedResult result = null;
+            BaseFetchException exception = null;
+            try {
+                URI redirectUri = processHop(fetch);
+                if (redirectUri != null) {
+                    startHop(redirectUri);
+                    return;
+                }
+
+                result = makeResult(fetch);
+            } catch (BaseFetchException e) {
+                exception = e;
+            }
+
+            if (setDone()) {
+                report(result, exception);
+            }
+        }
+
+        /**
+         * Fail the request, and tear down the current hop (if any).
+         */
+        public void abort(BaseFetchException e) {
+            if (setDone()) {
+                AsyncFetch fetch;
+                synchronized (this) {
+                    fetch = _fetch;
+                }
+
+                if (fetch != null) {
+                    fetch.abort(e);
+                }
+
+                report(null, e);
+            }
+        }
+
+        /**
+         * Mark the request as done, unless somebody else beat us to it.
+         *
+         * @return true if we're the one who gets to report the result.
+         */
+        private boolean setDone() {
+            ScheduledFuture<?> timeout;
+            synchronized (this) {
+                if (_done) {
+                    return false;
+                }
+
+                _done = true;
+                timeout = _timeout;
+            }
+
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+
+            _activeRequests.remove(this);
+            return true;
+        }
+
+        private void report(FetchedResult result, BaseFetchException e) {
+            try {
+                if (e == null) {
+                    _callback.fetched(convert(result));
+                } else {
+                    logException(getUrl(), e);
+                    _callback.failed(e);
+                }
+            } catch (RuntimeException re) {
+                LOGGER.error("Unexpected exception from fetch callback for " + getUrl(), re);
+            }
+        }
+
+        /**
+         * Decide what to do with the response to one hop.
+         *
+         * @return URI for the next hop, or null if we're done.
+         */
+        private URI processHop(AsyncFetch fetch) throws BaseFetchException {
+            fetch.checkException();
+
+            String url = getUrl();
+            int httpStatus = fetch.getHttpStatus();
+            URI redirectUri = getRedirectUri(fetch);
+            if (redirectUri == null) {
+                if (!isNotModified(fetch) && ((httpStatus < 200) || (httpStatus >= 300))) {
+                    // We can't just check against SC_OK, as some wackos return 201, 202, etc
+                    throw new HttpFetchException(url, "Error fetching " + url, httpStatus, fetch.getHeaders());
+                }
+
+                return null;
+            }
+
+            // Based on the redirect mode, decide how we want to handle this.
+            String redirectUrl = toExternalForm(url, redirectUri);
+            boolean isPermRedirect = httpStatus == HttpStatus.SC_MOVED_PERMANENTLY;
+            RedirectMode redirectMode = _fetcherPolicy.getRedirectMode();
+            if ((redirectMode == RedirectMode.FOLLOW_NONE) ||
+                ((redirectMode == RedirectMode.FOLLOW_TEMP) && isPermRedirect)) {
+                RedirectExceptionReason reason = isPermRedirect ? RedirectExceptionReason.PERM_REDIRECT_DISALLOWED :
+                    RedirectExceptionReason.TEMP_REDIRECT_DISALLOWED;
+                throw new RedirectFetchException(url, redirectUrl, reason);
+            }
+
+            if ((_numRedirects >= _fetcherPolicy.getMaxRedirects()) || _visited.contains(redirectUri)) {
+                throw new RedirectFetchException(url, toExternalForm(url, fetch.getUri()), RedirectExceptionReason.TOO_MANY_REDIRECTS);
+            }
+
+            _numRedirects += 1;
+            if (isPermRedirect) {
+                _newBaseUrl = redirectUrl;
+            }
+
+            return redirectUri;
+        }
+
+        /**
+         * A 304 in response to a conditional request isn't an error, it just means that
+         * the validators we sent still match, so there's no content.
+         */
+        private boolean isNotModified(AsyncFetch fetch) {
+            return (fetch.getHttpStatus() == HttpStatus.SC_NOT_MODIFIED) && isConditional();
+        }
+
+        private FetchedResult makeResult(AsyncFetch fetch) throws BaseFetchException {
+            String url = getUrl();
+            String mimeType = fetch.getMimeType();
+            boolean truncated = fetch.isTruncated();
+            byte[] content = fetch.getContent();
+            HttpHeaders headerMap = fetch.getHeaders();
+
+            // Toss truncated image content.
+            if ((truncated) && (!SimpleHttpFetcher.isTextMimeType(mimeType))) {
+                throw new AbortedFetchException(url, "Truncated image", AbortedFetchReason.CONTENT_SIZE);
+            }
+
+            // Now see if we need to uncompress the content. We do this here versus in the
+            // I/O thread, so that one big page doesn't stall every other connection.
+            String contentEncoding = headerMap.getFirst(HttpHeaderNames.CONTENT_ENCODING);
+            if ((content.length > 0) && ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding))) {
+                if (truncated) {
+                    throw new AbortedFetchException(url, "Truncated compressed data", AbortedFetchReason.CONTENT_SIZE);
+                }
+
+                try {
+                    ExpandedResult expandedResult = EncodingUtils.processGzipEncoded(content, getMaxContentSize(mimeType));
+                    if ((expandedResult.isTruncated()) && (!SimpleHttpFetcher.isTextMimeType(mimeType))) {
+                        throw new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE);
+                    }
+
+                    content = expandedResult.getExpanded();
+                } catch (IOException e) {
+                    throw new IOFetchException(url, e);
+                }
+            }
+
+            FetchedResult result = new FetchedResult(   url,
+                                                        toExternalForm(url, fetch.getUri()),
+                                                        System.currentTimeMillis(),
+                                                        headerMap,
+                                                        content,
+                                                        fetch.getContentType(),
+                                                        (int)fetch.getReadRate(),
+                                                        _scoredUrl.getPayload(),
+                                                        _newBaseUrl,
+                                                        _numRedirects,
+                                                        fetch.getHostAddress());
+            result.setNotModified(isNotModified(fetch));
+            return result;
+        }
+    }
+
+    /**
+     * Callback used by the blocking versions of get(), to wait for the result.
+     */
+    private static class BlockingCallback implements IFetchCallback {
+        private final CountDownLatch _done = new CountDownLatch(1);
+        private FetchedDatum _result;
+        private BaseFetchException _exception;
+
+        @Override
+        public void fetched(FetchedDatum result) {
+            _result = result;
+            _done.countDown();
+        }
+
+        @Override
+        public void failed(BaseFetchException e) {
+            _exception = e;
+            _done.countDown();
+        }
+
+        /**
+         * Wait for <request> to be done. We don't need a timeout here, since the request
+         * has its own, but if we're interrupted then we abort the request.
+         */
+        public FetchedDatum await(AsyncRequest request) throws BaseFetchException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    _done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    request.abort(new AbortedFetchException(request.getUrl(), AbortedFetchReason.INTERRUPTED));
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (_exception != null) {
+                throw _exception;
+            }
+
+            return _result;
+        }
+    }
+
+    /**
+     * State for one hop of a request. The I/O threads write to this as the response
+     * arrives, and once it's done the request takes over on a completion thread.
+     */
+    private class AsyncFetch {
+        private final AsyncRequest _request;
+        private final String _url;
+        private final URI _uri;
+        private final String _hostAddress;
+        private long _readStartTime;
+        private boolean _done;
+
+        private BaseFetchException _exception;
+        private SessionRequest _sessionRequest;
+        private NHttpConnection _connection;
+
+        private int _httpStatus;
+        private HttpHeaders _headers;
+        private String _contentType;
+        private String _mimeType;
+        private boolean _gotResponse;
+
+        private int _targetLength;
+        private boolean _truncated;
+        private ByteBuffer _readBuffer;
+        private byte[] _content;
+        private int _totalRead;
+        private int _readRequests;
+        private long _readRate;
+
+        public AsyncFetch(AsyncRequest request, URI uri, String hostAddress) {
+            _request = request;
+            _url = request.getUrl();
+            _uri = uri;
+            _hostAddress = hostAddress;
+            _readStartTime = 0;
+            _done = false;
+
+            _headers = new HttpHeaders();
+            _contentType = "";
+            _mimeType = "";
+            _content = new byte[0];
+        }
+
+        public synchronized boolean isDone() {
+            return _done;
+        }
+
+        public synchronized void setSessionRequest(SessionRequest sessionRequest) {
+            _sessionRequest = sessionRequest;
+        }
+
+        public synchronized void setConnection(NHttpConnection connection) {
+            _connection = connection;
+        }
+
+        public synchronized void succeed() {
+            if (!_done) {
+                _done = true;
+                hopDone();
+            }
+        }
+
+        public synchronized void fail(BaseFetchException e) {
+            if (!_done) {
+                _exception = e;
+                _done = true;
+                hopDone();
+            }
+        }
+
+        private void hopDone() {
+            execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    _request.hopDone(AsyncFetch.this);
+                }
+            });
+        }
+
+        /**
+         * Fail the fetch, and tear down any connection (or pending connection) that it's using.
+         */
+        public void abort(BaseFetchException e) {
+            SessionRequest sessionRequest;
+            NHttpConnection connection;
+
+            synchronized (this) {
+                fail(e);
+                sessionRequest = _sessionRequest;
+                connection = _connection;
+            }
+
+            if (sessionRequest != null) {
+                sessionRequest.cancel();
+            }
+
+            if (connection != null) {
+                try {
+                    connection.shutdown();
+                } catch (IOException e2) {
+                    // Ignore any errors
+                }
+            }
+        }
+
+        public synchronized void checkException() throws BaseFetchException {
+            if (_exception != null) {
+                throw _exception;
+            }
+        }
+
+        public AsyncRequest getRequest() {
+            return _request;
+        }
+
+        /**
+         * Process the status line and headers from the response. If this isn't a response
+         * that we want to read (not 2xx, or an invalid mime-type) then we're done, and
+         * the request decides what to do (follow a redirect, throw an exception).
+         *
+         * @return true if we should read the response body.
+         */
+        public synchronized boolean processResponse(HttpResponse response) {
+            if (_gotResponse) {
+                return !isDone();
+            }
+
+            _gotResponse = true;
+            _httpStatus = response.getStatusLine().getStatusCode();
+            for (Header header : response.getAllHeaders()) {
+                _headers.add(header.getName(), header.getValue());
+            }
+
+            if ((_httpStatus < 200) || (_httpStatus >= 300)) {
+                succeed();
+                return false;
+            }
+
+            String contentType = _headers.getFirst(HttpHeaderNames.CONTENT_TYPE);
+            if (contentType != null) {
+                _contentType = contentType;
+            }
+
+            // Check if we should abort due to mime-type filtering. See the comments in
+            // SimpleHttpFetcher for why a missing mime-type fails this check.
+            _mimeType = HttpUtils.getMimeTypeFromContentType(_contentType);
+            Set<String> mimeTypes = _fetcherPolicy.getValidMimeTypes();
+            if ((mimeTypes != null) && (mimeTypes.size() > 0)) {
+                if (!mimeTypes.contains(_mimeType)) {
+                    fail(new AbortedFetchException(_url, "Invalid mime-type: " + _mimeType, AbortedFetchReason.INVALID_MIMETYPE));
+                    return false;
+                }
+            }
+
+            // Figure out how much data we want to try to fetch.
+            _targetLength = getMaxContentSize(_mimeType);
+            String contentLengthStr = _headers.getFirst(HttpHeaderNames.CONTENT_LENGTH);
+            if (contentLengthStr != null) {
+                try {
+                    int contentLength = Integer.parseInt(contentLengthStr);
+                    if (contentLength > _targetLength) {
+                        _truncated = true;
+                    } else {
+                        _targetLength = contentLength;
+                    }
+                } catch (NumberFormatException e) {
+                    // Ignore (and log) invalid content length values.
+                    LOGGER.warn("Invalid content length in header: " + contentLengthStr);
+                }
+            }
+
+            _content = new byte[Math.min(_targetLength, DEFAULT_BYTEARRAY_SIZE)];
+            return true;
+        }
+
+        /**
+         * Read whatever is available from <decoder>, enforcing the max content size and
+         * min response rate.
+         *
+         * @return true if we want more data, false if the connection can be shut down.
+         */
+        public synchronized boolean readContent(ContentDecoder decoder) throws IOException {
+            if (isDone()) {
+                return false;
+            }
+
+            if (_readBuffer == null) {
+                _readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+                
+                // The response rate is for the body, so the clock starts once that begins
+                // arriving, versus when we started connecting.
+                _readStartTime = System.currentTimeMillis();
+            }
+
+            int bytesRead;
+            while ((_totalRead < _targetLength) && ((bytesRead = decoder.read(_readBuffer)) > 0)) {
+                _readBuffer.flip();
+                int bytesToCopy = Math.min(bytesRead, _targetLength - _totalRead);
+                if (_totalRead + bytesToCopy > _content.length) {
+                    byte[] newContent = new byte[Math.min(_targetLength, Math.max(_content.length * 2, _totalRead + bytesToCopy))];
+                    System.arraycopy(_content, 0, newContent, 0, _totalRead);
+                    _content = newContent;
+                }
+
+                _readBuffer.get(_content, _totalRead, bytesToCopy);
+                _readBuffer.clear();
+                _totalRead += bytesToCopy;
+                _readRequests += 1;
+
+                // Assume read time is at least one millisecond, to avoid DBZ exception.
+                long totalReadTime = Math.max(1, System.currentTimeMillis() - _readStartTime);
+                _readRate = (_totalRead * 1000L) / totalReadTime;
+
+                // Don't bail on the first read cycle, as we can get a hiccup starting out.
+                // Also don't bail if we've read everything we need.
+                if ((_readRequests > 1) && (_totalRead < _targetLength) && (_readRate < _fetcherPolicy.getMinResponseRate())) {
+                    fail(new AbortedFetchException(_url, "Slow response rate of " + _readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE));
+                    return false;
+                }
+            }
+
+            if (_totalRead >= _targetLength) {
+                succeed();
+                return decoder.isCompleted();
+            }
+
+            return true;
+        }
+
+        public String getUrl() {
+            return _url;
+        }
+
+        public synchronized URI getUri() {
+            return _uri;
+        }
+
+        public synchronized String getHostAddress() {
+            return _hostAddress;
+        }
+
+        public synchronized int getHttpStatus() {
+            return _httpStatus;
+        }
+
+        public synchronized HttpHeaders getHeaders() {
+            return _headers;
+        }
+
+        public synchronized String getContentType() {
+            return _contentType;
+        }
+
+        public synchronized String getMimeType() {
+            return _mimeType;
+        }
+
+        public synchronized boolean isTruncated() {
+            return _truncated;
+        }
+
+        public synchronized byte[] getContent() {
+            if (_content.length == _totalRead) {
+                return _content;
+            }
+
+            byte[] result = new byte[_totalRead];
+            System.arraycopy(_content, 0, result, 0, _totalRead);
+            return result;
+        }
+
+        public synchronized long getReadRate() {
+            return _readRate;
+        }
+    }
+
+    /**
+     * Bridge between the HttpCore NIO client handler and our AsyncFetch state.
+     */
+    private class MyRequestExecutionHandler implements NHttpRequestExecutionHandler {
+
+        @Override
+        public void initalizeContext(HttpContext context, Object attachment) {
+            AsyncFetch fetch = (AsyncFetch)attachment;
+            URI uri = fetch.getUri();
+            context.setAttribute(FETCH_CONTEXT_KEY, fetch);
+            context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme()));
+
+            NHttpConnection connection = (NHttpConnection)context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+            fetch.setConnection(connection);
+            if (fetch.isDone()) {
+                // We were aborted while the connection was being established.
+                fetch.abort(new AbortedFetchException(fetch.getUrl(), AbortedFetchReason.INTERRUPTED));
+            }
+        }
+
+        @Override
+        public HttpRequest submitRequest(HttpContext context) {
+            AsyncFetch fetch = (AsyncFetch)context.getAttribute(FETCH_CONTEXT_KEY);
+
+            // We only ever send one request per connection.
+            if ((fetch == null) || (context.getAttribute(ExecutionContext.HTTP_REQUEST) != null)) {
+                return null;
+            }
+
+            URI uri = fetch.getUri();
+            String path = uri.getRawPath();
+            if ((path == null) || (path.length() == 0)) {
+                path = "/";
+            }
+
+            if (uri.getRawQuery() != null) {
+                path = path + "?" + uri.getRawQuery();
+            }
+
+            HttpRequest request = new BasicHttpRequest("GET", path, HttpVersion.HTTP_1_1);
+            request.addHeader(HttpHeaderNames.ACCEPT_LANGUAGE, _fetcherPolicy.getAcceptLanguage());
+            request.addHeader(HttpHeaderNames.ACCEPT_CHARSET, DEFAULT_ACCEPT_CHARSET);
+            request.addHeader(HttpHeaderNames.ACCEPT_ENCODING, _acceptEncoding);
+            request.addHeader(HttpHeaderNames.ACCEPT, DEFAULT_ACCEPT);
+            request.addHeader("Connection", "close");
+
+            AsyncRequest asyncRequest = fetch.getRequest();
+            if (asyncRequest.getLastModified() != null) {
+                request.addHeader(HttpHeaderNames.IF_MODIFIED_SINCE, asyncRequest.getLastModified());
+            }
+
+            if (asyncRequest.getETag() != null) {
+                request.addHeader(HttpHeaderNames.IF_NONE_MATCH, asyncRequest.getETag());
+            }
+
+            context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+            return request;
+        }
+
+        @Override
+        public ConsumingNHttpEntity responseEntity(HttpResponse response, HttpContext context) throws IOException {
+            final AsyncFetch fetch = (AsyncFetch)context.getAttribute(FETCH_CONTEXT_KEY);
+            final boolean readContent = fetch.processResponse(response);
+
+            return new ConsumingNHttpEntityTemplate(response.getEntity(), new ContentListener() {
+
+                @Override
+                public void contentAvailable(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+                    if (!readContent || !fetch.readContent(decoder)) {
+                        ioctrl.shutdown();
+                    }
+                }
+
+                @Override
+                public void finished() {
+                }
+            });
+        }
+
+        @Override
+        public void handleResponse(HttpResponse response, HttpContext context) throws IOException {
+            AsyncFetch fetch = (AsyncFetch)context.getAttribute(FETCH_CONTEXT_KEY);
+            fetch.processResponse(response);
+            fetch.succeed();
+        }
+
+        @Override
+        public void finalizeContext(HttpContext context) {
+            AsyncFetch fetch = (AsyncFetch)context.getAttribute(FETCH_CONTEXT_KEY);
+            if (fetch != null) {
+                fetch.fail(new IOFetchException(fetch.getUrl(), new IOException("Connection closed before response was complete")));
+            }
+        }
+    }
+
+    private static class MyEventListener implements EventListener {
+
+        private AsyncFetch getFetch(NHttpConnection conn) {
+            return (AsyncFetch)conn.getContext().getAttribute(FETCH_CONTEXT_KEY);
+        }
+
+        @Override
+        public void fatalIOException(IOException e, NHttpConnection conn) {
+            AsyncFetch fetch = getFetch(conn);
+            if (fetch != null) {
+                fetch.fail(new IOFetchException(fetch.getUrl(), e));
+            }
+        }
+
+        @Override
+        public void fatalProtocolException(HttpException e, NHttpConnection conn) {
+            AsyncFetch fetch = getFetch(conn);
+            if (fetch != null) {
+                fetch.fail(new IOFetchException(fetch.getUrl(), new IOException(e)));
+            }
+        }
+
+        @Override
+        public void connectionTimeout(NHttpConnection conn) {
+            AsyncFetch fetch = getFetch(conn);
+            if (fetch != null) {
+                fetch.fail(new IOFetchException(fetch.getUrl(), new SocketTimeoutException("Read timed out")));
+            }
+        }
+
+        @Override
+        public void connectionOpen(NHttpConnection conn) {
+        }
+
+        @Override
+        public void connectionClosed(NHttpConnection conn) {
+        }
+    }
+
+    private static class MySessionRequestCallback implements SessionRequestCallback {
+
+        @Override
+        public void completed(SessionRequest request) {
+        }
+
+        @Override
+        public void failed(SessionRequest request) {
+            AsyncFetch fetch = (AsyncFetch)request.getAttachment();
+            IOException e = request.getException();
+            fetch.fail(new IOFetchException(fetch.getUrl(), e != null ? e : new IOException("Connection failed")));
+        }
+
+        @Override
+        public void timeout(SessionRequest request) {
+            AsyncFetch fetch = (AsyncFetch)request.getAttachment();
+            fetch.fail(new IOFetchException(fetch.getUrl(), new SocketTimeoutException("Connect timed out")));
+        }
+
+        @Override
+        public void cancelled(SessionRequest request) {
+            AsyncFetch fetch = (AsyncFetch)request.getAttachment();
+            fetch.fail(new AbortedFetchException(fetch.getUrl(), AbortedFetchReason.INTERRUPTED));
+        }
+    }
+
+    /**
+     * Create daemon threads, so that an idle fetcher doesn't keep the JVM alive.
+     */
+    private static class MyThreadFactory implements ThreadFactory {
+        private final String _name;
+        private int _count = 0;
+
+        public MyThreadFactory(String name) {
+            _name = name;
+        }
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            _count += 1;
+            Thread result = new Thread(r, AsyncHttpFetcher.class.getSimpleName() + "-" + _name + "-" + _count);
+            result.setDaemon(true);
+            return result;
+        }
+    }
+
+    /**
+     * Keep the reactor running if one connection has a problem, since the reactor is
+     * shared by every in-flight request.
+     */
+    private static class MyIOReactorExceptionHandler implements IOReactorExceptionHandler {
+
+        @Override
+        public boolean handle(IOException e) {
+            LOGGER.warn("I/O exception in fetch reactor", e);
+            return true;
+        }
+
+        @Override
+        public boolean handle(RuntimeException e) {
+            LOGGER.error("Unexpected exception in fetch reactor", e);
+            return true;
+        }
+    }
+
+    public AsyncHttpFetcher(UserAgent userAgent) {
+        this(DEFAULT_MAX_THREADS, userAgent);
+    }
+
+    public AsyncHttpFetcher(int maxThreads, UserAgent userAgent) {
+        this(maxThreads, new FetcherPolicy(), userAgent);
+    }
+
+    public AsyncHttpFetcher(int maxThreads, FetcherPolicy fetcherPolicy, UserAgent userAgent) {
+        super(maxThreads, fetcherPolicy, userAgent);
+
+        // We rely on lazy initialization of the reactors so that we don't have to
+        // worry about serializing them.
+        _plainReactor = null;
+        _sslReactor = null;
+    }
+
+    public int getSocketTimeout() {
+        return _socketTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeoutInMs) {
+        if (_plainReactor == null) {
+            _socketTimeout = socketTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change socket timeout after reactor has been initialized");
+        }
+    }
+
+    public int getConnectionTimeout() {
+        return _connectionTimeout;
+    }
+
+    public void setConnectionTimeout(int connectionTimeoutInMs) {
+        if (_plainReactor == null) {
+            _connectionTimeout = connectionTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change connection timeout after reactor has been initialized");
+        }
+    }
+
+    /**
+     * Return the number of I/O (selector) threads used for each of http and https.
+     *
+     * @return number of threads
+     */
+    public int getIoThreads() {
+        return _ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        if (_plainReactor == null) {
+            _ioThreads = ioThreads;
+        } else {
+            throw new IllegalStateException("Can't change I/O thread count after reactor has been initialized");
+        }
+    }
+
+    /**
+     * Return the number of threads used for DNS lookups, redirects and uncompressing
+     * content, and for calling back with results.
+     *
+     * @return number of threads
+     */
+    public int getCompletionThreads() {
+        return _completionThreads;
+    }
+
+    public void setCompletionThreads(int completionThreads) {
+        if (_plainReactor == null) {
+            _completionThreads = completionThreads;
+        } else {
+            throw new IllegalStateException("Can't change completion thread count after reactor has been initialized");
+        }
+    }
+
+    public String getAcceptEncoding() {
+        return _acceptEncoding;
+    }
+
+    public void setAcceptEncoding(String acceptEncoding) {
+        if (_plainReactor == null) {
+            _acceptEncoding = acceptEncoding;
+        } else {
+            throw new IllegalStateException("Can't change accept encoding after reactor has been initialized");
+        }
+    }
+
+    @Override
+    public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
+        return get(scoredUrl, null, null);
+    }
+
+    @Override
+    public FetchedDatum get(ScoredUrlDatum scoredUrl, boolean keepAlive) throws BaseFetchException {
+        // We never keep connections alive, so all we care about is the validators (if any).
+        return get(scoredUrl, getLastModified(scoredUrl), getETag(scoredUrl));
+    }
+
+    @Override
+    public FetchedDatum get(ScoredUrlDatum scoredUrl, String lastModified, String etag) throws BaseFetchException {
+        BlockingCallback callback = new BlockingCallback();
+        AsyncRequest request = start(scoredUrl, lastModified, etag, callback);
+        return callback.await(request);
+    }
+
+    @Override
+    public void get(ScoredUrlDatum scoredUrl, boolean keepAlive, IFetchCallback callback) {
+        try {
+            start(scoredUrl, getLastModified(scoredUrl), getETag(scoredUrl), callback);
+        } catch (BaseFetchException e) {
+            callback.failed(e);
+        }
+    }
+
+    @Override
+    public boolean isNonBlocking() {
+        return true;
+    }
+
+    private AsyncRequest start(ScoredUrlDatum scoredUrl, String lastModified, String etag, IFetchCallback callback) throws BaseFetchException {
+        init();
+
+        final String url = scoredUrl.getUrl();
+        LOGGER.trace("Fetching " + url);
+
+        final AsyncRequest request = new AsyncRequest(scoredUrl, lastModified, etag, callback);
+        _activeRequests.add(request);
+
+        // One deadline for the whole request, no matter how many redirects we follow.
+        final long timeout = _fetcherPolicy.getRequestTimeout();
+        request.setTimeout(_timer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                request.abort(new IOFetchException(url, new SocketTimeoutException("Fetch took longer than " + timeout + "ms")));
+            }
+        }, timeout, TimeUnit.MILLISECONDS));
+
+        execute(request);
+        return request;
+    }
+
+    private void execute(Runnable task) {
+        ExecutorService executor = _completionExecutor;
+        if (executor == null) {
+            LOGGER.debug("Completion task dropped, fetcher has been shut down");
+            return;
+        }
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // We've been shut down, and every active request has already been aborted.
+            LOGGER.debug("Completion task rejected, fetcher has been shut down");
+        }
+    }
+
+    private static void logException(String url, BaseFetchException e) {
+        if (e instanceof HttpFetchException) {
+            // Don't bother generating a trace for a 404 (not found)
+            if (LOGGER.isTraceEnabled() && (((HttpFetchException)e).getHttpStatus() != HttpStatus.SC_NOT_FOUND)) {
+                LOGGER.trace(String.format("Exception fetching %s (%s)", url, e.getMessage()));
+            }
+        } else if (e instanceof AbortedFetchException) {
+            // Don't bother reporting that we bailed because the mime-type wasn't one that we wanted.
+            if (((AbortedFetchException)e).getAbortReason() != AbortedFetchReason.INVALID_MIMETYPE) {
+                LOGGER.debug(String.format("Exception fetching %s (%s)", url, e.getMessage()));
+            }
+        } else {
+            LOGGER.debug(String.format("Exception fetching %s (%s)", url, e.getMessage()));
+        }
+    }
+
+    private static FetchedDatum convert(FetchedResult result) {
+        FetchedDatum datum = new FetchedDatum(result.getBaseUrl(), result.getFetchedUrl(), result.getFetchTime(),
+                        result.getHeaders(), new ContentBytes(result.getContent()), result.getContentType(),
+                        result.getResponseRate());
+        datum.setNewBaseUrl(result.getNewBaseUrl());
+        datum.setNumRedirects(result.getNumRedirects());
+        datum.setHostAddress(result.getHostAddress());
+        datum.setPayload(result.getPayload());
+        datum.setNotModified(result.isNotModified());
+        return datum;
+    }
+
+    private AsyncFetch startRequest(AsyncRequest request, URI uri) throws BaseFetchException {
+        String url = request.getUrl();
+        String scheme = uri.getScheme();
+        String host = uri.getHost();
+        if ((scheme == null) || (host == null)) {
+            throw new UrlFetchException(url, "Invalid URI: " + uri);
+        }
+
+        ConnectingIOReactor reactor;
+        int port = uri.getPort();
+        if (scheme.equalsIgnoreCase("http")) {
+            reactor = _plainReactor;
+            port = (port == -1) ? 80 : port;
+        } else if (scheme.equalsIgnoreCase("https") && (_sslReactor != null)) {
+            reactor = _sslReactor;
+            port = (port == -1) ? 443 : port;
+        } else {
+            throw new UrlFetchException(url, "Unsupported scheme: " + scheme);
+        }
+
+        // Resolve the address here, so that DNS lookups happen in a completion thread
+        // versus blocking one of the I/O threads.
+        InetSocketAddress address;
+        try {
+            address = new InetSocketAddress(getDnsResolver().resolve(host)[0], port);
+        } catch (UnknownHostException e) {
+            throw new IOFetchException(url, e);
+        }
+
+        AsyncFetch fetch = new AsyncFetch(request, uri, address.getAddress().getHostAddress());
+        SessionRequest sessionRequest = reactor.connect(address, null, fetch, new MySessionRequestCallback());
+        sessionRequest.setConnectTimeout(_connectionTimeout);
+        fetch.setSessionRequest(sessionRequest);
+        return fetch;
+    }
+
+    /**
+     * Return the URI we should redirect to, or null if the response wasn't a redirect
+     * that we handle.
+     */
+    private URI getRedirectUri(AsyncFetch fetch) throws BaseFetchException {
+        int httpStatus = fetch.getHttpStatus();
+        if ((_fetcherPolicy.getMaxRedirects() == 0) ||
+            ((httpStatus != HttpStatus.SC_MOVED_PERMANENTLY) &&
+             (httpStatus != HttpStatus.SC_MOVED_TEMPORARILY) &&
+             (httpStatus != HttpStatus.SC_SEE_OTHER) &&
+             (httpStatus != HttpStatus.SC_TEMPORARY_REDIRECT))) {
+            return null;
+        }
+
+        String location = fetch.getHeaders().getFirst(HttpHeaderNames.LOCATION);
+        if (location == null) {
+            return null;
+        }
+
+        try {
+            URI result = fetch.getUri().resolve(new URI(location.trim()));
+
+            // Same hack as SimpleHttpFetcher, to avoid circular redirects when a site uses
+            // an explicit default port.
+            if (result.getScheme().equalsIgnoreCase("http") && (result.getPort() == 80)) {
+                result = new URI(result.getScheme(), result.getUserInfo(), result.getHost(), -1, result.getPath(), result.getQuery(), result.getFragment());
+            }
+
+            return result;
+        } catch (URISyntaxException e) {
+            throw new UrlFetchException(fetch.getUrl(), "Invalid redirect location: " + location);
+        }
+    }
+
+    private static String toExternalForm(String url, URI uri) {
+        try {
+            return uri.toURL().toExternalForm();
+        } catch (MalformedURLException e) {
+            LOGGER.warn("Invalid URI used during fetch: " + uri);
+            return url;
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Invalid URI used during fetch: " + uri);
+            return url;
+        }
+    }
+
+    private synchronized void init() throws BaseFetchException {
+        if (_plainReactor == null) {
+            HttpParams params = new BasicHttpParams();
+            params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, _socketTimeout);
+            params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, _connectionTimeout);
+            params.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, BUFFER_SIZE);
+            params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true);
+
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setUserAgent(params, _userAgent.getUserAgentString());
+            HttpProtocolParams.setHttpElementCharset(params, "UTF-8");
+
+            BasicHttpProcessor httpProc = new BasicHttpProcessor();
+            httpProc.addInterceptor(new RequestContent());
+            httpProc.addInterceptor(new RequestTargetHost());
+            httpProc.addInterceptor(new RequestUserAgent());
+
+            // We close every connection after one request, so that the I/O threads never
+            // have to worry about which connection belongs to which fetch.
+            AsyncNHttpClientHandler handler = new AsyncNHttpClientHandler(httpProc, new MyRequestExecutionHandler(),
+                            new NoConnectionReuseStrategy(), params);
+            handler.setEventListener(new MyEventListener());
+
+            _activeRequests = Collections.newSetFromMap(new ConcurrentHashMap<AsyncRequest, Boolean>());
+            _completionExecutor = Executors.newFixedThreadPool(_completionThreads, new MyThreadFactory("completion"));
+            _timer = Executors.newSingleThreadScheduledExecutor(new MyThreadFactory("timer"));
+
+            try {
+                _plainReactor = startReactor(new DefaultClientIOEventDispatch(handler, params), params, "plain");
+
+                SSLContext sslContext = null;
+                for (String contextName : SSL_CONTEXT_NAMES) {
+                    try {
+                        sslContext = SSLContext.getInstance(contextName);
+                        sslContext.init(null, new TrustManager[] { new DummyX509TrustManager(null) }, null);
+                        break;
+                    } catch (NoSuchAlgorithmException e) {
+                        LOGGER.debug("SSLContext algorithm not available: " + contextName);
+                        sslContext = null;
+                    } catch (Exception e) {
+                        LOGGER.debug("SSLContext can't be initialized: " + contextName, e);
+                        sslContext = null;
+                    }
+                }
+
+                if (sslContext != null) {
+                    _sslReactor = startReactor(new SSLClientIOEventDispatch(handler, sslContext, params), params, "ssl");
+                } else {
+                    LOGGER.warn("No valid SSLContext found for https");
+                }
+            } catch (IOReactorException e) {
+                _plainReactor = null;
+                throw new IOFetchException("", e);
+            }
+        }
+    }
+
+    private ConnectingIOReactor startReactor(final IOEventDispatch dispatch, HttpParams params, String name) throws IOReactorException {
+        final DefaultConnectingIOReactor reactor = new DefaultConnectingIOReactor(_ioThreads, params);
+        reactor.setExceptionHandler(new MyIOReactorExceptionHandler());
+
+        Thread reactorThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    reactor.execute(dispatch);
+                } catch (InterruptedIOException e) {
+                    LOGGER.debug("Fetch reactor interrupted");
+                } catch (IOException e) {
+                    LOGGER.error("Fetch reactor terminated", e);
+                }
+            }
+        }, AsyncHttpFetcher.class.getSimpleName() + "-" + name);
+
+        reactorThread.setDaemon(true);
+        reactorThread.start();
+        return reactor;
+    }
+
+    @Override
+    public void abort() {
+        if (_activeRequests != null) {
+            for (AsyncRequest request : _activeRequests) {
+                request.abort(new AbortedFetchException(request.getUrl(), AbortedFetchReason.INTERRUPTED));
+            }
+        }
+    }
+
+    /**
+     * Shut down the I/O reactors. Any in-flight requests will fail.
+     */
+    public synchronized void shutdown() {
+        abort();
+
+        shutdown(_plainReactor);
+        _plainReactor = null;
+        shutdown(_sslReactor);
+        _sslReactor = null;
+
+        if (_completionExecutor != null) {
+            _completionExecutor.shutdown();
+            _completionExecutor = null;
+        }
+
+        if (_timer != null) {
+            _timer.shutdown();
+            _timer = null;
+        }
+    }
+
+    private static void shutdown(ConnectingIOReactor reactor) {
+        if (reactor != null) {
+            try {
+                reactor.shutdown();
+            } catch (IOException e) {
+                LOGGER.warn("Exception shutting down fetch reactor", e);
+            }
+        }
+    }
+}
@@ -24,16 +24,29 @@ import java.util.Map;
 import bixo.config.FetcherPolicy;
 import bixo.config.UserAgent;
 import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
 import bixo.datum.ScoredUrlDatum;
 import bixo.exceptions.BaseFetchException;
+import bixo.utils.BaseDnsResolver;
+import bixo.utils.CachingDnsResolver;
+
+import com.bixolabs.cascading.PayloadDatum;
 
 @SuppressWarnings("serial")
 public abstract class BaseFetcher implements Serializable {
     
+    // Payload keys for the Last-Modified and ETag values from the previous fetch of a URL.
+    // If a ScoredUrlDatum's payload has either one, fetchers that support it will do a
+    // conditional GET.
+    public static final String LAST_MODIFIED_PAYLOAD_KEY = "bixo-last-modified";
+    public static final String ETAG_PAYLOAD_KEY = "bixo-etag";
+    
     protected int _maxThreads;
     protected FetcherPolicy _fetcherPolicy;
     protected UserAgent _userAgent;
     protected Map<String, Integer> _maxContentSizes;
+    protected boolean _useVirtualThreads = false;
+    protected BaseDnsResolver _dnsResolver = null;
     
     public BaseFetcher(int maxThreads, FetcherPolicy fetcherPolicy, UserAgent userAgent) {
         _maxThreads = maxThreads;
@@ -46,6 +59,40 @@ public abstract class BaseFetcher implements Serializable {
         return _maxThreads;
     }
 
+    /**
+     * Run the tasks that call this fetcher (fetching, robots processing) on
+     * virtual threads, if the JVM supports them. This lets <maxThreads> be much
+     * larger, since it's then only a concurrency limit.
+     * 
+     * @param useVirtualThreads
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        _useVirtualThreads = useVirtualThreads;
+    }
+    
+    public boolean isUseVirtualThreads() {
+        return _useVirtualThreads;
+    }
+
+    /**
+     * Set the resolver used to look up host names, both by this fetcher and
+     * by robots processing that uses this fetcher. If not set, we use the
+     * JVM-wide shared CachingDnsResolver.
+     * 
+     * @param dnsResolver
+     */
+    public void setDnsResolver(BaseDnsResolver dnsResolver) {
+        _dnsResolver = dnsResolver;
+    }
+    
+    public BaseDnsResolver getDnsResolver() {
+        if (_dnsResolver == null) {
+            return CachingDnsResolver.getSharedResolver();
+        } else {
+            return _dnsResolver;
+        }
+    }
+
     public FetcherPolicy getFetcherPolicy() {
         return _fetcherPolicy;
     }
@@ -86,5 +133,121 @@ public abstract class BaseFetcher implements Serializable {
     // Return results of HTTP GET request
     public abstract FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException;
     
+    /**
+     * Return results of HTTP GET request. If <keepAlive> is false then this is the last
+     * request to the server for a while, so fetchers that keep connections alive can let
+     * the server know it doesn't need to keep the connection open. Fetchers that don't
+     * manage connections just do a regular GET.
+     * 
+     * Fetchers that support conditional requests also use the validators (if any) from
+     * the payload of <scoredUrl>, the same as get(scoredUrl, lastModified, etag).
+     */
+    public FetchedDatum get(ScoredUrlDatum scoredUrl, boolean keepAlive) throws BaseFetchException {
+        return get(scoredUrl);
+    }
+    
+    /**
+     * Fetch <scoredUrl> (the same as get(scoredUrl, keepAlive)), and report the result
+     * to <callback>. Fetchers where isNonBlocking() is true start the request and return
+     * right away, and call <callback> from one of their own threads. Everybody else just
+     * does the fetch in the calling thread.
+     */
+    public void get(ScoredUrlDatum scoredUrl, boolean keepAlive, IFetchCallback callback) {
+        FetchedDatum result;
+        try {
+            result = get(scoredUrl, keepAlive);
+        } catch (BaseFetchException e) {
+            callback.failed(e);
+            return;
+        }
+        
+        callback.fetched(result);
+    }
+    
+    /**
+     * @return true if get(scoredUrl, keepAlive, callback) doesn't tie up the calling
+     * thread while fetching. In that case getMaxThreads() is the max number of requests
+     * in flight, versus a number of threads.
+     */
+    public boolean isNonBlocking() {
+        return false;
+    }
+    
+    /**
+     * Return results of a conditional HTTP GET request, using the Last-Modified and ETag
+     * values (either can be null) from a previous fetch of the same URL. If the content
+     * hasn't changed, the result has no content, and isNotModified() returns true.
+     * 
+     * Fetchers that don't support conditional requests just do a regular GET.
+     */
+    public FetchedDatum get(ScoredUrlDatum scoredUrl, String lastModified, String etag) throws BaseFetchException {
+        return get(scoredUrl);
+    }
+    
+    /**
+     * @return Last-Modified value saved in the payload of <datum>, or null.
+     */
+    public static String getLastModified(PayloadDatum datum) {
+        return (String)datum.getPayloadValue(LAST_MODIFIED_PAYLOAD_KEY);
+    }
+    
+    /**
+     * @return ETag value saved in the payload of <datum>, or null.
+     */
+    public static String getETag(PayloadDatum datum) {
+        return (String)datum.getPayloadValue(ETAG_PAYLOAD_KEY);
+    }
+    
+    /**
+     * Save the Last-Modified and ETag values from <headers> in the payload of <datum>,
+     * so that the next fetch of the same URL can be conditional. Values that aren't in
+     * <headers> are left alone, as a 304 response doesn't have to repeat them.
+     */
+    public static void setValidators(PayloadDatum datum, HttpHeaders headers) {
+        setValidators(datum, headers.getFirst(HttpHeaderNames.LAST_MODIFIED), headers.getFirst(HttpHeaderNames.ETAG));
+    }
+    
+    /**
+     * Save <lastModified> and <etag> (e.g. from a crawl DB) in the payload of <datum>.
+     * Null or empty values are left alone.
+     */
+    public static void setValidators(PayloadDatum datum, String lastModified, String etag) {
+        if ((lastModified != null) && (lastModified.length() > 0)) {
+            datum.setPayloadValue(LAST_MODIFIED_PAYLOAD_KEY, lastModified);
+        }
+        
+        if ((etag != null) && (etag.length() > 0)) {
+            datum.setPayloadValue(ETAG_PAYLOAD_KEY, etag);
+        }
+    }
+    
+    /**
+     * @return number of requests that had to open a new connection to the server.
+     */
+    public long getNewConnectionCount() {
+        return 0;
+    }
+    
+    /**
+     * @return number of requests that reused a kept-alive connection to the server.
+     */
+    public long getReusedConnectionCount() {
+        return 0;
+    }
+    
+    /**
+     * @return number of TLS handshakes that had to negotiate a new session.
+     */
+    public long getFullHandshakeCount() {
+        return 0;
+    }
+    
+    /**
+     * @return number of TLS handshakes that resumed a session from an earlier connection.
+     */
+    public long getResumedHandshakeCount() {
+        return 0;
+    }
+    
     public abstract void abort();
 }
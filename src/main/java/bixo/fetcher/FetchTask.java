@@ -17,18 +17,26 @@
 package bixo.fetcher;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import bixo.datum.FetchSetDatum;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.datum.UrlStatus;
 import bixo.exceptions.AbortedFetchException;
 import bixo.exceptions.AbortedFetchReason;
 import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
 import bixo.exceptions.IOFetchException;
 import bixo.hadoop.FetchCounters;
 import cascading.tuple.Tuple;
@@ -37,6 +45,7 @@ import com.bixolabs.cascading.LoggingFlowProcess;
 
 /**
  * Runnable instance for fetching a set of URLs from the same server, using keep-alive.
+ * With a non-blocking fetcher, start() can be used instead of run().
  *
  */
 public class FetchTask implements Runnable {
@@ -45,111 +54,311 @@ public class FetchTask implements Runnable {
     // Min duration (in milliseconds) between page fetches in a single fetch set.
     private static final long MIN_PAGE_FETCH_INTERVAL = 1000L;
     
+    // Starts the next fetch of a set once its delay is up, when we're fetching with start(),
+    // so that no thread (and especially no I/O callback thread) sleeps. Starting a fetch
+    // doesn't block, so one thread is plenty.
+    private static final ScheduledExecutorService PACER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread result = new Thread(r, "FetchTask pacer");
+            result.setDaemon(true);
+            return result;
+        }
+    });
+    
     private IFetchMgr _fetchMgr;
     private BaseFetcher _httpFetcher;
     private List<ScoredUrlDatum> _items;
     private String _ref;
+    private FetchSetDatum _fetchSet;
+    private boolean _lastSet;
+    private Iterator<ScoredUrlDatum> _iter;
     
     public FetchTask(IFetchMgr fetchMgr, BaseFetcher httpFetcher, List<ScoredUrlDatum> items, String ref) {
         _fetchMgr = fetchMgr;
         _httpFetcher = httpFetcher;
         _items = items;
         _ref = ref;
+        _fetchSet = null;
+        _lastSet = false;
+    }
+    
+    /**
+     * Fetch the URLs in <fetchSet>. If it's the last set of URLs we'll be fetching for
+     * its ref, we don't need to keep the connection alive after the last one. If the
+     * server tells us to back off, the URLs we haven't fetched are handed back to
+     * <fetchMgr> along with <fetchSet>.
+     */
+    public FetchTask(IFetchMgr fetchMgr, BaseFetcher httpFetcher, FetchSetDatum fetchSet) {
+        this(fetchMgr, httpFetcher, fetchSet.getUrls(), fetchSet.getGroupingRef());
+        _fetchSet = fetchSet;
+        _lastSet = fetchSet.isLastList();
     }
 
-    @SuppressWarnings("rawtypes")
     @Override
     public void run() {
         LoggingFlowProcess process = _fetchMgr.getProcess();
         process.increment(FetchCounters.DOMAINS_PROCESSING, 1);
 
         try {
-            // TODO KKr - when fetching the last item, send a Connection: close
-            // header to let the server know it doesn't need to keep the socket open.
-            Iterator<ScoredUrlDatum> iter = _items.iterator();
-            while (!Thread.interrupted() && iter.hasNext()) {
-                ScoredUrlDatum item = iter.next();
-                FetchedDatum result = new FetchedDatum(item);
-                
-                // We use status as an extra field on the end of of FetchedDatum that lets
-                // us generate a full status pipe, and also a content pipe that only has
-                // entries which were fetched. By keying off the type (string == OK,
-                // BaseFetchException == bad) the FetchPipe can do this magic.
-                Comparable status = null;
-
+            _iter = _items.iterator();
+            while (!Thread.interrupted() && _iter.hasNext()) {
+                ScoredUrlDatum item = _iter.next();
+                FetchedDatum result = null;
+                Exception exception = null;
                 long fetchStartTime = System.currentTimeMillis();
                 
                 try {
                     process.increment(FetchCounters.URLS_FETCHING, 1);
-                    result = _httpFetcher.get(item);
-                    long deltaTime = System.currentTimeMillis() - fetchStartTime;
-
-                    process.increment(FetchCounters.FETCHED_TIME, (int)deltaTime);
-                    process.increment(FetchCounters.URLS_FETCHED, 1);
-                    process.increment(FetchCounters.FETCHED_BYTES, result.getContentLength());
-                    process.setStatus(Level.TRACE, "Fetched " + result);
-
-                    status = UrlStatus.FETCHED.toString();
-                    
-                    // TODO - check keep-alive response (if present), and close the connection/delay
-                    // for some amount of time if we exceed this limit.
-                } catch (BaseFetchException e) {
-                    // TODO KKr - we'd have to do something special here for AbortedFetchException with
-                    // the reason == INTERRUPTED, as we'd want to (a) increment URLS_SKIPPED, not failed,
-                    // and we'd want to bail out of this loop (or set the interrupted flag)
-                    LOGGER.info("Fetch exception while fetching " + item.getUrl(), e);
-                    process.increment(FetchCounters.URLS_FAILED, 1);
-
-                    // We can do this because each of the concrete subclasses of BaseFetchException implements
-                    // WritableComparable
-                    status = (Comparable)e;
+                    result = _httpFetcher.get(item, isKeepAlive());
                 } catch (Exception e) {
-                    LOGGER.warn("Unexpected exception while fetching " + item.getUrl(), e);
-
-                    process.increment(FetchCounters.URLS_FAILED, 1);
-                    status = new IOFetchException(item.getUrl(), new IOException(e));
+                    exception = e;
                 } finally {
                     process.decrement(FetchCounters.URLS_FETCHING, 1);
+                }
+                
+                // If we handed the rest of the set back to the fetch manager, then we're done.
+                if (!processResult(item, fetchStartTime, result, exception)) {
+                    break;
+                }
+
+                // We want to avoid fetching faster than a max acceptable rate. There's no
+                // need to wait after the last page, and finishing sooner frees up the ref.
+                long delay = getPageFetchDelay(fetchStartTime);
+                if ((delay > 0) && _iter.hasNext()) {
+                    LOGGER.trace(String.format("FetchTask: sleeping for %dms", delay));
 
-                    Tuple tuple = result.getTuple();
-                    tuple.add(status);
-                   _fetchMgr.collect(tuple);
-                   
-                   // Figure out how long it's been since the start of the request.
-                   long fetchInterval = System.currentTimeMillis() - fetchStartTime;
-                   long delay = Math.min(0, MIN_PAGE_FETCH_INTERVAL - fetchInterval);
-                   
-                   // We want to avoid fetching faster than a max acceptable rate.
-                   if (delay > 0) {
-                       LOGGER.trace(String.format("FetchTask: sleeping for %dms", delay));
-                       
-                       try {
-                           Thread.sleep(delay);
-                       } catch (InterruptedException e) {
-                           LOGGER.warn("FetchTask interrupted!");
-                           Thread.currentThread().interrupt();
-                           continue;
-                       }
-                   }
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        LOGGER.warn("FetchTask interrupted!");
+                        Thread.currentThread().interrupt();
+                    }
                 }
             }
             
-            // While we still have entries, we need to write them out to avoid losing them.
-            while (iter.hasNext()) {
-                ScoredUrlDatum item = iter.next();
-                FetchedDatum result = new FetchedDatum(item);
-                process.increment(FetchCounters.URLS_SKIPPED, 1);
-                AbortedFetchException status = new AbortedFetchException(item.getUrl(), AbortedFetchReason.INTERRUPTED);
+            skipRemaining();
+        } catch (Throwable t) {
+            LOGGER.error("Exception while fetching", t);
+        } finally {
+            _fetchMgr.finished(_ref);
+            process.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
+        }
+    }
+
+    /**
+     * Start fetching the set, and return without waiting for any of the fetches. This is
+     * for non-blocking fetchers (see BaseFetcher.isNonBlocking()), where the callback for
+     * each fetch starts the next one, so no thread waits while the set is being fetched.
+     * The fetch manager's finished() is called once the whole set is done.
+     */
+    public void start() {
+        _fetchMgr.getProcess().increment(FetchCounters.DOMAINS_PROCESSING, 1);
+        _iter = _items.iterator();
+        fetchNext();
+    }
+    
+    private void fetchNext() {
+        if (!_iter.hasNext()) {
+            done();
+            return;
+        }
+        
+        final ScoredUrlDatum item = _iter.next();
+        final long fetchStartTime = System.currentTimeMillis();
+        final LoggingFlowProcess process = _fetchMgr.getProcess();
+        process.increment(FetchCounters.URLS_FETCHING, 1);
+        
+        try {
+            _httpFetcher.get(item, isKeepAlive(), new IFetchCallback() {
+                
+                @Override
+                public void fetched(FetchedDatum result) {
+                    process.decrement(FetchCounters.URLS_FETCHING, 1);
+                    fetchDone(item, fetchStartTime, result, null);
+                }
                 
-                Tuple tuple = result.getTuple();
-                tuple.add(status);
-               _fetchMgr.collect(tuple);
+                @Override
+                public void failed(BaseFetchException e) {
+                    process.decrement(FetchCounters.URLS_FETCHING, 1);
+                    fetchDone(item, fetchStartTime, null, e);
+                }
+            });
+        } catch (Throwable t) {
+            LOGGER.error("Exception while fetching", t);
+            process.decrement(FetchCounters.URLS_FETCHING, 1);
+            done();
+        }
+    }
+    
+    private void fetchDone(ScoredUrlDatum item, long fetchStartTime, FetchedDatum result, BaseFetchException exception) {
+        boolean keepGoing;
+        try {
+            keepGoing = processResult(item, fetchStartTime, result, exception);
+            
+            // An interrupted fetch means we're being shut down, which is what the
+            // Thread.interrupted() check does for run().
+            if ((exception instanceof AbortedFetchException)
+                && (((AbortedFetchException)exception).getAbortReason() == AbortedFetchReason.INTERRUPTED)) {
+                keepGoing = false;
             }
+        } catch (Throwable t) {
+            LOGGER.error("Exception while fetching", t);
+            keepGoing = false;
+        }
+        
+        if (!keepGoing) {
+            done();
+            return;
+        }
+        
+        // Same pacing as run(), but we schedule the next fetch versus sleeping here, since
+        // we're being called by the fetcher's I/O thread.
+        long delay = getPageFetchDelay(fetchStartTime);
+        if ((delay <= 0) || !_iter.hasNext()) {
+            fetchNext();
+            return;
+        }
+        
+        LOGGER.trace(String.format("FetchTask: next fetch in %dms", delay));
+        try {
+            PACER.schedule(new Runnable() {
+                
+                @Override
+                public void run() {
+                    fetchNext();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            fetchNext();
+        }
+    }
+    
+    /**
+     * @param fetchStartTime when the request for the previous page was started
+     * @return how long to wait before fetching the next page in the set.
+     */
+    private static long getPageFetchDelay(long fetchStartTime) {
+        long fetchInterval = System.currentTimeMillis() - fetchStartTime;
+        return MIN_PAGE_FETCH_INTERVAL - fetchInterval;
+    }
+    
+    private void done() {
+        try {
+            skipRemaining();
         } catch (Throwable t) {
             LOGGER.error("Exception while fetching", t);
         } finally {
             _fetchMgr.finished(_ref);
-            process.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
+            _fetchMgr.getProcess().decrement(FetchCounters.DOMAINS_PROCESSING, 1);
+        }
+    }
+    
+    /**
+     * When fetching the last item of the last set, we send a Connection: close header to
+     * let the server know it doesn't need to keep the socket open. Otherwise the connection
+     * stays in the pool, so the next set for this ref can reuse it.
+     */
+    private boolean isKeepAlive() {
+        return !_lastSet || _iter.hasNext();
+    }
+    
+    /**
+     * Handle the result of fetching <item>, which is either <result> or <exception>.
+     * 
+     * @return false if we handed the rest of the set back to the fetch manager.
+     */
+    @SuppressWarnings("rawtypes")
+    private boolean processResult(ScoredUrlDatum item, long fetchStartTime, FetchedDatum result, Exception exception) {
+        LoggingFlowProcess process = _fetchMgr.getProcess();
+        
+        // We use status as an extra field on the end of of FetchedDatum that lets
+        // us generate a full status pipe, and also a content pipe that only has
+        // entries which were fetched. By keying off the type (string == OK,
+        // BaseFetchException == bad) the FetchPipe can do this magic.
+        Comparable status = null;
+        
+        if (exception == null) {
+            long deltaTime = System.currentTimeMillis() - fetchStartTime;
+
+            process.increment(FetchCounters.FETCHED_TIME, (int)deltaTime);
+            process.increment(FetchCounters.URLS_FETCHED, 1);
+            process.increment(FetchCounters.FETCHED_BYTES, result.getContentLength());
+            process.setStatus(Level.TRACE, "Fetched " + result);
+            _fetchMgr.fetched(_ref, deltaTime, result.getResponseRate());
+
+            // A conditional fetch where the content hasn't changed gets its own status,
+            // so that it winds up in the status pipe, but not the content pipe.
+            if (result.isNotModified()) {
+                process.increment(FetchCounters.URLS_NOT_MODIFIED, 1);
+                status = UrlStatus.NOT_MODIFIED.toString();
+            } else {
+                status = UrlStatus.FETCHED.toString();
+            }
+        } else if (exception instanceof BaseFetchException) {
+            // TODO KKr - we'd have to do something special here for AbortedFetchException with
+            // the reason == INTERRUPTED, as we'd want to (a) increment URLS_SKIPPED, not failed,
+            // and we'd want to bail out of this loop (or set the interrupted flag)
+            BaseFetchException e = (BaseFetchException)exception;
+            _fetchMgr.failed(_ref, e);
+            
+            // If the server says it's overloaded, hand this and all remaining URLs back to
+            // be fetched later, versus failing them (or continuing to pound on the server).
+            if ((_fetchSet != null) && (e instanceof HttpFetchException) && ((HttpFetchException)e).isRetryLater()) {
+                List<ScoredUrlDatum> remaining = new ArrayList<ScoredUrlDatum>();
+                remaining.add(item);
+                while (_iter.hasNext()) {
+                    remaining.add(_iter.next());
+                }
+                
+                long retryDelay = ((HttpFetchException)e).getRetryAfter(System.currentTimeMillis());
+                if (_fetchMgr.retryLater(_fetchSet, remaining, retryDelay)) {
+                    LOGGER.info(String.format("Server for %s asked us to retry later, deferring %d URLs", item.getUrl(), remaining.size()));
+                    return false;
+                }
+                
+                // We still own the remaining URLs, so go back to processing them one by one.
+                _iter = remaining.listIterator(1);
+            }
+            
+            LOGGER.info("Fetch exception while fetching " + item.getUrl(), e);
+            process.increment(FetchCounters.URLS_FAILED, 1);
+            
+            // We can do this because each of the concrete subclasses of BaseFetchException implements
+            // WritableComparable
+            status = (Comparable)e;
+        } else {
+            LOGGER.warn("Unexpected exception while fetching " + item.getUrl(), exception);
+
+            process.increment(FetchCounters.URLS_FAILED, 1);
+            status = new IOFetchException(item.getUrl(), new IOException(exception));
+        }
+        
+        if (result == null) {
+            result = new FetchedDatum(item);
+        }
+        
+        Tuple tuple = result.getTuple();
+        tuple.add(status);
+        _fetchMgr.collect(tuple);
+        return true;
+    }
+    
+    /**
+     * While we still have entries, we need to write them out to avoid losing them.
+     */
+    private void skipRemaining() {
+        LoggingFlowProcess process = _fetchMgr.getProcess();
+        while (_iter.hasNext()) {
+            ScoredUrlDatum item = _iter.next();
+            FetchedDatum result = new FetchedDatum(item);
+            process.increment(FetchCounters.URLS_SKIPPED, 1);
+            AbortedFetchException status = new AbortedFetchException(item.getUrl(), AbortedFetchReason.INTERRUPTED);
+            
+            Tuple tuple = result.getTuple();
+            tuple.add(status);
+           _fetchMgr.collect(tuple);
         }
     }
 
@@ -35,6 +35,7 @@ public class FetchedResult {
     private final String _hostAddress;
 
     private Payload _payload;
+    private boolean _notModified = false;
     
     public FetchedResult(   String baseUrl,
                             String redirectedUrl,
@@ -132,4 +133,15 @@ public class FetchedResult {
 	public String getHostAddress() {
         return _hostAddress;
     }
+
+    /**
+     * @return true if this was a conditional fetch, and the content hasn't changed (304).
+     */
+    public boolean isNotModified() {
+        return _notModified;
+    }
+
+    public void setNotModified(boolean notModified) {
+        _notModified = notModified;
+    }
 }
@@ -44,6 +44,10 @@ public interface HttpHeaderNames {
 
     public final static String LOCATION = "Location";
 
+    public final static String ETAG = "ETag";
+
+    public final static String RETRY_AFTER = "Retry-After";
+
     public static final String ACCEPT_LANGUAGE = "Accept-Language";
 
     public static final String ACCEPT_CHARSET = "Accept-Charset";
@@ -51,6 +55,14 @@ public interface HttpHeaderNames {
     public static final String ACCEPT_ENCODING = "Accept-Encoding";
 
     public static final String ACCEPT = "Accept";
+
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    public static final String IF_NONE_MATCH = "If-None-Match";
+
+    public static final String CONNECTION = "Connection";
+
+    public static final String KEEP_ALIVE = "Keep-Alive";
     
 
 }
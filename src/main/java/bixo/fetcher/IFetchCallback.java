@@ -0,0 +1,34 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import bixo.datum.FetchedDatum;
+import bixo.exceptions.BaseFetchException;
+
+/**
+ * Gets the result of a fetch started by BaseFetcher.get(scoredUrl, keepAlive, callback).
+ * Exactly one of these methods is called for each fetch. With a non-blocking fetcher
+ * this happens on one of the fetcher's threads, so implementations shouldn't do
+ * anything slow.
+ */
+public interface IFetchCallback {
+    
+    public void fetched(FetchedDatum result);
+    
+    public void failed(BaseFetchException e);
+    
+}
@@ -16,6 +16,11 @@
  */
 package bixo.fetcher;
 
+import java.util.List;
+
+import bixo.datum.FetchSetDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.BaseFetchException;
 import cascading.tuple.Tuple;
 
 import com.bixolabs.cascading.LoggingFlowProcess;
@@ -29,4 +34,34 @@ public interface IFetchMgr {
     
     public void finished(String ref);
     
+    /**
+     * Called after each URL in the set for <ref> has been successfully fetched.
+     * 
+     * @param ref grouping ref for the set
+     * @param responseTime time (in milliseconds) it took to fetch the URL
+     * @param responseRate bytes/second
+     */
+    public void fetched(String ref, long responseTime, int responseRate);
+    
+    /**
+     * Called after a URL in the set for <ref> failed to be fetched.
+     * 
+     * @param ref grouping ref for the set
+     * @param e exception from the fetcher
+     */
+    public void failed(String ref, BaseFetchException e);
+    
+    /**
+     * Called when the server for <fetchSet> has told us to back off (429/503 response). If
+     * this returns true then the set's ref has been paused for (at least) <retryDelay>, and
+     * the <items> have been queued up to be fetched again after that. Otherwise the caller
+     * still owns <items>, and should handle them as normal.
+     * 
+     * @param fetchSet the set being fetched when the server told us to back off
+     * @param items URLs from the set that haven't been fetched yet, including the one that failed
+     * @param retryDelay time (in milliseconds) from the Retry-After header, or HttpFetchException.NO_RETRY_AFTER
+     * @return true if the URLs will be retried later
+     */
+    public boolean retryLater(FetchSetDatum fetchSet, List<ScoredUrlDatum> items, long retryDelay);
+    
 }
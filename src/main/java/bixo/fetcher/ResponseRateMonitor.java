@@ -0,0 +1,170 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.log4j.Logger;
+
+import bixo.config.FetcherPolicy;
+
+/**
+ * Watchdog for the transfer rate of response bodies that are being read.
+ * 
+ * A fetcher thread that's blocked in a read can't check the rate itself, so a
+ * server that trickles out data can otherwise tie up that thread until the
+ * socket timeout. One shared thread wakes up every CHECK_INTERVAL, and aborts
+ * the request for any transfer that's been going for at least MIN_MEASUREMENT_TIME
+ * at less than its min response rate. The aborted read then fails, and the fetcher
+ * uses isAborted() to turn that into a SLOW_RESPONSE_RATE abort.
+ */
+public class ResponseRateMonitor {
+    private static final Logger LOGGER = Logger.getLogger(ResponseRateMonitor.class);
+
+    public static final long CHECK_INTERVAL = 250L;
+    
+    // Don't judge a transfer until it's been going for this long, as we can get
+    // a hiccup starting out.
+    public static final long MIN_MEASUREMENT_TIME = 1000L;
+    
+    private static final ResponseRateMonitor INSTANCE = new ResponseRateMonitor();
+    
+    public static class Transfer {
+        private String _url;
+        private AbortableHttpRequest _request;
+        private int _minResponseRate;
+        private long _startTime;
+        private volatile long _bytesRead;
+        private volatile boolean _aborted;
+        
+        private Transfer(String url, AbortableHttpRequest request, int minResponseRate, long startTime) {
+            _url = url;
+            _request = request;
+            _minResponseRate = minResponseRate;
+            _startTime = startTime;
+            _bytesRead = 0;
+            _aborted = false;
+        }
+        
+        public void setBytesRead(long bytesRead) {
+            _bytesRead = bytesRead;
+        }
+        
+        public boolean isAborted() {
+            return _aborted;
+        }
+        
+        /**
+         * @return the transfer rate (bytes/second), as of <now>.
+         */
+        public long getResponseRate(long now) {
+            // Assume transfer time is at least one millisecond, to avoid DBZ exception.
+            return (_bytesRead * 1000L) / Math.max(1, now - _startTime);
+        }
+        
+        private boolean isTooSlow(long now) {
+            return (now - _startTime >= MIN_MEASUREMENT_TIME) && (getResponseRate(now) < _minResponseRate);
+        }
+        
+        private void abort(long now) {
+            LOGGER.debug(String.format("Aborting %s due to slow response rate of %d bytes/sec", _url, getResponseRate(now)));
+            _aborted = true;
+            _request.abort();
+        }
+    }
+    
+    private Set<Transfer> _transfers;
+    private ScheduledExecutorService _executor;
+    
+    private ResponseRateMonitor() {
+        _transfers = Collections.newSetFromMap(new ConcurrentHashMap<Transfer, Boolean>());
+    }
+    
+    public static ResponseRateMonitor getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Start watching the transfer of <url>'s response body, which will be aborted via
+     * <request> if it drops below <minResponseRate>. The caller must call finish()
+     * when it's done reading, whatever happens.
+     */
+    public Transfer start(String url, AbortableHttpRequest request, int minResponseRate) {
+        Transfer result = new Transfer(url, request, minResponseRate, System.currentTimeMillis());
+        if (minResponseRate != FetcherPolicy.NO_MIN_RESPONSE_RATE) {
+            startExecutor();
+            _transfers.add(result);
+        }
+        
+        return result;
+    }
+    
+    public void finish(Transfer transfer) {
+        _transfers.remove(transfer);
+    }
+    
+    public int getNumTransfers() {
+        return _transfers.size();
+    }
+    
+    private synchronized void startExecutor() {
+        if (_executor != null) {
+            return;
+        }
+        
+        _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                // Daemon, so that we never keep the JVM alive.
+                Thread result = new Thread(r, "bixo-response-rate-monitor");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        
+        _executor.scheduleWithFixedDelay(new Runnable() {
+            
+            @Override
+            public void run() {
+                checkTransfers(System.currentTimeMillis());
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    
+    void checkTransfers(long now) {
+        for (Transfer transfer : _transfers) {
+            if (transfer.isTooSlow(now)) {
+                _transfers.remove(transfer);
+                
+                try {
+                    transfer.abort(now);
+                } catch (Throwable t) {
+                    // Don't let one bad abort kill the monitor thread.
+                    LOGGER.warn("Exception aborting slow transfer of " + transfer._url, t);
+                }
+            }
+        }
+    }
+}
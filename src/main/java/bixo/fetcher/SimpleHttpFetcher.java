@@ -16,26 +16,39 @@
  */
 package bixo.fetcher;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
@@ -58,26 +71,34 @@ import org.apache.http.client.params.ClientParamBean;
 import org.apache.http.client.params.CookiePolicy;
 import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.params.ConnPerRoute;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.AbstractVerifier;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.cookie.params.CookieSpecParamBean;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.client.DefaultRedirectHandler;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
 
@@ -96,8 +117,8 @@ import bixo.exceptions.IOFetchException;
 import bixo.exceptions.RedirectFetchException;
 import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
 import bixo.exceptions.UrlFetchException;
-import bixo.utils.EncodingUtils;
-import bixo.utils.EncodingUtils.ExpandedResult;
+import bixo.utils.BaseDnsResolver;
+import bixo.utils.ContentBuffer;
 import bixo.utils.HttpUtils;
 
 import com.bixolabs.cascading.Payload;
@@ -119,11 +140,27 @@ public class SimpleHttpFetcher extends BaseFetcher {
     // multiple threads to hit the same domain. So jack the value way up.
     private static final long CONNECTION_POOL_TIMEOUT = 100 * 1000L;
     
+    // How long we keep an idle connection around, when the server doesn't tell us via a
+    // Keep-Alive header. By default that's a bit longer than the crawl delay, since that's
+    // how long it'll be until we make the next request to the same server. Servers often
+    // close idle connections sooner, but stale checking catches that.
+    public static final long UNSET_KEEP_ALIVE_DURATION = Long.MIN_VALUE;
+    private static final long MIN_KEEP_ALIVE_DURATION = 5 * 1000L;
+    private static final long KEEP_ALIVE_SLOP = 5 * 1000L;
+    
+    // Max time we keep an idle connection around, even if the server says it'll keep
+    // it open for longer.
+    private static final long MAX_KEEP_ALIVE_DURATION = 5 * 60 * 1000L;
+    
+    // TLS sessions we keep around for resuming, versus doing a full handshake with the
+    // server. Sessions are small (a few KB), and servers typically honor resumption for
+    // somewhere between 5 minutes and a day.
+    private static final int DEFAULT_SSL_SESSION_CACHE_SIZE = 10000;
+    private static final int DEFAULT_SSL_SESSION_TIMEOUT = 60 * 60;
+    
     private static final int BUFFER_SIZE = 8 * 1024;
     private static final int DEFAULT_MAX_RETRY_COUNT = 10;
     
-    private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
-    
     // Use the same values as Firefox (except that we don't accept deflate,
     // which we're not sure is implemented correctly - see the notes in
     // EncodingUtils/EncodingUtilsTest for more details).
@@ -154,9 +191,36 @@ public class SimpleHttpFetcher extends BaseFetcher {
     private int _connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
     private int _maxRetryCount = DEFAULT_MAX_RETRY_COUNT;
     private String _acceptEncoding = DEFAULT_ACCEPT_ENCODING;
+    private long _keepAliveDuration = UNSET_KEEP_ALIVE_DURATION;
+    private int _sslSessionCacheSize = DEFAULT_SSL_SESSION_CACHE_SIZE;
+    private int _sslSessionTimeout = DEFAULT_SSL_SESSION_TIMEOUT;
+    
+    private AtomicLong _newConnections = new AtomicLong();
+    private AtomicLong _reusedConnections = new AtomicLong();
+    private AtomicLong _fullHandshakes = new AtomicLong();
+    private AtomicLong _resumedHandshakes = new AtomicLong();
     
     transient private DefaultHttpClient _httpClient;
     
+    /**
+     * Connection operator that resolves host names using our (typically caching)
+     * resolver, versus always going to InetAddress.
+     */
+    private static class MyConnectionOperator extends DefaultClientConnectionOperator {
+        private BaseDnsResolver _resolver;
+        
+        public MyConnectionOperator(SchemeRegistry schemes, BaseDnsResolver resolver) {
+            super(schemes);
+            
+            _resolver = resolver;
+        }
+        
+        @Override
+        protected InetAddress[] resolveHostname(String host) throws UnknownHostException {
+            return _resolver.resolve(host);
+        }
+    }
+    
     private static class MyRequestRetryHandler implements HttpRequestRetryHandler {
         private int _maxRetryCount;
         
@@ -267,10 +331,18 @@ public class SimpleHttpFetcher extends BaseFetcher {
     }
     
     /**
-     * Interceptor to record host address in context.
+     * Interceptor to record host address in context, and whether the request is
+     * going out on a new or a kept-alive connection.
      *
      */
     private static class MyRequestInterceptor implements HttpRequestInterceptor {
+        private AtomicLong _newConnections;
+        private AtomicLong _reusedConnections;
+        
+        public MyRequestInterceptor(AtomicLong newConnections, AtomicLong reusedConnections) {
+            _newConnections = newConnections;
+            _reusedConnections = reusedConnections;
+        }
 
         @Override
         public void process(HttpRequest request,
@@ -282,6 +354,150 @@ public class SimpleHttpFetcher extends BaseFetcher {
             
             context.setAttribute(   HOST_ADDRESS,
                                     connection.getRemoteAddress().getHostAddress());
+            
+            // The metrics live with the underlying connection, so they carry over from
+            // earlier requests that used the same pooled connection.
+            if (connection.getMetrics().getRequestCount() == 0) {
+                _newConnections.incrementAndGet();
+            } else {
+                _reusedConnections.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Limit on connections per route, which uses the per-host value from our
+     * fetcher policy.
+     */
+    private static class MyConnPerRoute implements ConnPerRoute {
+        private FetcherPolicy _fetcherPolicy;
+        
+        public MyConnPerRoute(FetcherPolicy fetcherPolicy) {
+            _fetcherPolicy = fetcherPolicy;
+        }
+        
+        @Override
+        public int getMaxForRoute(HttpRoute route) {
+            return _fetcherPolicy.getMaxConnectionsPerHost(route.getTargetHost().getHostName());
+        }
+    }
+    
+    /**
+     * Return the value of the <name> parameter from the response's Keep-Alive
+     * header (e.g. "Keep-Alive: timeout=5, max=100"), or -1 if it's missing or
+     * invalid.
+     */
+    private static long getKeepAliveParam(HttpResponse response, String name) {
+        HeaderElementIterator iter = new BasicHeaderElementIterator(response.headerIterator(HttpHeaderNames.KEEP_ALIVE));
+        while (iter.hasNext()) {
+            HeaderElement element = iter.nextElement();
+            if (name.equalsIgnoreCase(element.getName()) && (element.getValue() != null)) {
+                try {
+                    return Long.parseLong(element.getValue().trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Keep idle connections around for as long as the server says it will (up to
+     * MAX_KEEP_ALIVE_DURATION), or a default time when the server doesn't tell us.
+     */
+    private static class MyConnectionKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        private long _defaultDuration;
+        
+        public MyConnectionKeepAliveStrategy(long defaultDuration) {
+            _defaultDuration = defaultDuration;
+        }
+        
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long timeout = getKeepAliveParam(response, "timeout");
+            if (timeout > 0) {
+                return Math.min(timeout * 1000L, MAX_KEEP_ALIVE_DURATION);
+            } else {
+                return _defaultDuration;
+            }
+        }
+    }
+    
+    /**
+     * Don't reuse a connection if we asked the server to close it, or if the server
+     * says it won't take any more requests (or any more time) on it.
+     */
+    private static class MyConnectionReuseStrategy extends DefaultConnectionReuseStrategy {
+        
+        @Override
+        public boolean keepAlive(HttpResponse response, HttpContext context) {
+            if (!super.keepAlive(response, context)) {
+                return false;
+            }
+            
+            HttpRequest request = (HttpRequest)context.getAttribute(ExecutionContext.HTTP_REQUEST);
+            if (request != null) {
+                for (Header header : request.getHeaders(HttpHeaderNames.CONNECTION)) {
+                    if (HTTP.CONN_CLOSE.equalsIgnoreCase(header.getValue())) {
+                        return false;
+                    }
+                }
+            }
+            
+            return (getKeepAliveParam(response, "max") != 0) && (getKeepAliveParam(response, "timeout") != 0);
+        }
+    }
+    
+    /**
+     * SSL socket factory that keeps track of how many handshakes were full, versus
+     * resuming a session from an earlier connection to the same server (which saves
+     * a round trip and the expensive public key operations).
+     * 
+     * JSSE caches client sessions by host and port in the SSLContext, so every
+     * connection made via the same SSLContext gets a chance to resume.
+     */
+    private static class MySSLSocketFactory extends SSLSocketFactory {
+        private AtomicLong _fullHandshakes;
+        private AtomicLong _resumedHandshakes;
+        
+        public MySSLSocketFactory(SSLContext sslContext, AtomicLong fullHandshakes, AtomicLong resumedHandshakes) {
+            super(sslContext);
+            
+            _fullHandshakes = fullHandshakes;
+            _resumedHandshakes = resumedHandshakes;
+        }
+        
+        @Override
+        public Socket connectSocket(Socket sock, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpParams params) throws IOException, UnknownHostException, ConnectTimeoutException {
+            long startTime = System.currentTimeMillis();
+            Socket result = super.connectSocket(sock, remoteAddress, localAddress, params);
+            countHandshake(result, startTime);
+            return result;
+        }
+        
+        @Override
+        public Socket createLayeredSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
+            long startTime = System.currentTimeMillis();
+            Socket result = super.createLayeredSocket(socket, host, port, autoClose);
+            countHandshake(result, startTime);
+            return result;
+        }
+        
+        private void countHandshake(Socket socket, long startTime) {
+            if (!(socket instanceof SSLSocket)) {
+                return;
+            }
+            
+            // The hostname verifier has already done the handshake. A resumed session
+            // was created by an earlier connection, so it's older than this one.
+            SSLSession session = ((SSLSocket)socket).getSession();
+            if (session.getCreationTime() < startTime) {
+                _resumedHandshakes.incrementAndGet();
+            } else {
+                _fullHandshakes.incrementAndGet();
+            }
         }
     }
     
@@ -363,6 +579,72 @@ public class SimpleHttpFetcher extends BaseFetcher {
         _maxRetryCount = maxRetryCount;
     }
     
+    /**
+     * Return how long (in milliseconds) we keep an idle connection in the pool when the
+     * server doesn't send a Keep-Alive timeout. Unless it's been set, this is a bit longer
+     * than the crawl delay, so that we can reuse the connection for the next request to
+     * the same server.
+     */
+    public long getKeepAliveDuration() {
+        if (_keepAliveDuration != UNSET_KEEP_ALIVE_DURATION) {
+            return _keepAliveDuration;
+        }
+        
+        long duration = Math.max(MIN_KEEP_ALIVE_DURATION, _fetcherPolicy.getCrawlDelay() + KEEP_ALIVE_SLOP);
+        return Math.min(duration, MAX_KEEP_ALIVE_DURATION);
+    }
+    
+    /**
+     * Set how long (in milliseconds) to keep an idle connection in the pool when the
+     * server doesn't send a Keep-Alive timeout, or UNSET_KEEP_ALIVE_DURATION to base
+     * it on the crawl delay.
+     */
+    public void setKeepAliveDuration(long keepAliveDuration) {
+        _keepAliveDuration = keepAliveDuration;
+    }
+
+    public int getSslSessionCacheSize() {
+        return _sslSessionCacheSize;
+    }
+    
+    /**
+     * Set the max number of TLS sessions we keep around to resume, or 0 for no limit.
+     */
+    public void setSslSessionCacheSize(int sslSessionCacheSize) {
+        _sslSessionCacheSize = sslSessionCacheSize;
+    }
+    
+    public int getSslSessionTimeout() {
+        return _sslSessionTimeout;
+    }
+    
+    /**
+     * Set how long (in seconds) we try to resume a TLS session, or 0 for no limit.
+     */
+    public void setSslSessionTimeout(int sslSessionTimeout) {
+        _sslSessionTimeout = sslSessionTimeout;
+    }
+    
+    @Override
+    public long getFullHandshakeCount() {
+        return _fullHandshakes.get();
+    }
+    
+    @Override
+    public long getResumedHandshakeCount() {
+        return _resumedHandshakes.get();
+    }
+    
+    @Override
+    public long getNewConnectionCount() {
+        return _newConnections.get();
+    }
+    
+    @Override
+    public long getReusedConnectionCount() {
+        return _reusedConnections.get();
+    }
+    
     /**
      * Return the current value used for the ACCEPT-ENCODING request parameter.
      * 
@@ -388,6 +670,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
     	datum.setNumRedirects(result.getNumRedirects());
     	datum.setHostAddress(result.getHostAddress());
     	datum.setPayload(result.getPayload());
+    	datum.setNotModified(result.isNotModified());
     	return datum;
     }
 
@@ -396,6 +679,38 @@ public class SimpleHttpFetcher extends BaseFetcher {
         return convert(request(new HttpGet(), scoredUrl));
     }
 
+    @Override
+    public FetchedDatum get(ScoredUrlDatum scoredUrl, boolean keepAlive) throws BaseFetchException {
+        HttpGet getter = new HttpGet();
+        if (!keepAlive) {
+            getter.setHeader(HttpHeaderNames.CONNECTION, HTTP.CONN_CLOSE);
+        }
+        
+        setValidatorHeaders(getter, getLastModified(scoredUrl), getETag(scoredUrl));
+        return convert(request(getter, scoredUrl));
+    }
+
+    @Override
+    public FetchedDatum get(ScoredUrlDatum scoredUrl, String lastModified, String etag) throws BaseFetchException {
+        HttpGet getter = new HttpGet();
+        setValidatorHeaders(getter, lastModified, etag);
+        return convert(request(getter, scoredUrl));
+    }
+
+    private static void setValidatorHeaders(HttpRequestBase request, String lastModified, String etag) {
+        if (lastModified != null) {
+            request.setHeader(HttpHeaderNames.IF_MODIFIED_SINCE, lastModified);
+        }
+        
+        if (etag != null) {
+            request.setHeader(HttpHeaderNames.IF_NONE_MATCH, etag);
+        }
+    }
+    
+    private static boolean isConditional(HttpRequestBase request) {
+        return request.containsHeader(HttpHeaderNames.IF_MODIFIED_SINCE) || request.containsHeader(HttpHeaderNames.IF_NONE_MATCH);
+    }
+
     private FetchedResult request(HttpRequestBase request, ScoredUrlDatum scoredUrl) throws BaseFetchException {
         init();
 
@@ -450,6 +765,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
         String contentType = "";
         String mimeType = "";
         String hostAddress = null;
+        boolean notModified = false;
         
         // Create a local instance of cookie store, and bind to local context
         // Without this we get killed w/lots of threads, due to sync() on single cookie store.
@@ -485,7 +801,10 @@ public class SimpleHttpFetcher extends BaseFetcher {
                 }
             }
             
-            if ((httpStatus < 200) || (httpStatus >= 300)) {
+            // A 304 in response to a conditional request isn't an error, it just means that the
+            // validators we sent still match, so there's no content to read.
+            notModified = (httpStatus == HttpStatus.SC_NOT_MODIFIED) && isConditional(request);
+            if (!notModified && ((httpStatus < 200) || (httpStatus >= 300))) {
                 // We can't just check against SC_OK, as some wackos return 201, 202, etc
                 throw new HttpFetchException(url, "Error fetching " + url, httpStatus, headerMap);
             }
@@ -519,7 +838,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
             // mime-types from the server to be processed, set "" as one of the valid mime-types in FetcherPolicy.
             mimeType = HttpUtils.getMimeTypeFromContentType(contentType);
             Set<String> mimeTypes = _fetcherPolicy.getValidMimeTypes();
-            if ((mimeTypes != null) && (mimeTypes.size() > 0)) {
+            if (!notModified && (mimeTypes != null) && (mimeTypes.size() > 0)) {
                 if (!mimeTypes.contains(mimeType)) {
                     throw new AbortedFetchException(url, "Invalid mime-type: " + mimeType, AbortedFetchReason.INVALID_MIMETYPE);
                 }
@@ -594,7 +913,35 @@ public class SimpleHttpFetcher extends BaseFetcher {
             }
         }
 
-        // Now finally read in response body, up to targetLength bytes.
+        // Toss truncated image content, and compressed content that we can't fully read. We
+        // might want to just decompress a truncated gzip containing text, since we have a
+        // max content size to save us from any gzip corruption.
+        String contentEncoding = headerMap.getFirst(HttpHeaderNames.CONTENT_ENCODING);
+        boolean isGzipped = "gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding);
+        if (truncated) {
+            if (!isTextMimeType(mimeType)) {
+                safeAbort(true, request);
+                throw new AbortedFetchException(url, "Truncated image", AbortedFetchReason.CONTENT_SIZE);
+            } else if (isGzipped) {
+                safeAbort(true, request);
+                throw new AbortedFetchException(url, "Truncated compressed data", AbortedFetchReason.CONTENT_SIZE);
+            }
+        }
+        
+        if ((contentEncoding != null) && LOGGER.isTraceEnabled()) {
+            fetchTrace.append("; Content-Encoding: " + contentEncoding);
+        }
+
+        // The Content-Length is for the compressed data, so it doesn't tell us how much
+        // we'll wind up with after inflating it.
+        if (isGzipped) {
+            targetLength = maxContentSize;
+        }
+        
+        // Now finally read in response body, up to targetLength bytes. Gzip'd content is
+        // inflated as we read it, so the max content size applies to the decompressed
+        // data, and we never hold on to a compressed copy. We read directly into this
+        // thread's pooled buffer, and then make one right-sized copy for the result.
         // Note that entity might be null, for zero length responses.
         byte[] content = new byte[0];
         long readRate = 0;
@@ -602,99 +949,88 @@ public class SimpleHttpFetcher extends BaseFetcher {
         needAbort = true;
 
         if (entity != null) {
+            CountingInputStream wireIn = null;
             InputStream in = null;
+            ContentBuffer buffer = ContentBuffer.acquire();
+            boolean corrupted = false;
+            
+            // The monitor aborts the request if the transfer rate drops too low while
+            // we're blocked in a read, since we can't check it ourselves then.
+            int minResponseRate = _fetcherPolicy.getMinResponseRate();
+            ResponseRateMonitor.Transfer transfer = ResponseRateMonitor.getInstance().start(url, request, minResponseRate);
 
             try {
-                in = entity.getContent();
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int bytesRead = 0;
-                int totalRead = 0;
-                ByteArrayOutputStream out = new ByteArrayOutputStream(DEFAULT_BYTEARRAY_SIZE);
+                wireIn = new CountingInputStream(entity.getContent());
+                in = isGzipped ? new GZIPInputStream(wireIn, BUFFER_SIZE) : wireIn;
 
                 int readRequests = 0;
-                int minResponseRate = _fetcherPolicy.getMinResponseRate();
-                // TODO KKr - we need to monitor the rate while reading a
-                // single block. Look at HttpClient
-                // metrics support for how to do this. Once we fix this, fix
-                // the test to read a smaller (< 20K)
-                // chuck of data.
-                while ((totalRead < targetLength) &&
-                                ((bytesRead = in.read(buffer, 0, Math.min(buffer.length, targetLength - totalRead))) != -1)) {
-                    readRequests += 1;
-                    totalRead += bytesRead;
-                    out.write(buffer, 0, bytesRead);
-
-                    // Assume read time is at least one millisecond, to avoid DBZ exception.
-                    long totalReadTime = Math.max(1, System.currentTimeMillis() - readStartTime);
-                    readRate = (totalRead * 1000L) / totalReadTime;
-
-                    // Don't bail on the first read cycle, as we can get a hiccup starting out.
-                    // Also don't bail if we've read everything we need.
-                    if ((readRequests > 1) && (totalRead < targetLength) && (readRate < minResponseRate)) {
-                        throw new AbortedFetchException(url, "Slow response rate of " + readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE);
+                try {
+                    while ((buffer.getLength() < targetLength) &&
+                                    (buffer.read(in, Math.min(BUFFER_SIZE, targetLength - buffer.getLength())) != -1)) {
+                        readRequests += 1;
+                        transfer.setBytesRead(wireIn.getByteCount());
+
+                        // Assume read time is at least one millisecond, to avoid DBZ exception. The rate
+                        // is based on what came over the wire, not what it inflated to.
+                        long totalReadTime = Math.max(1, System.currentTimeMillis() - readStartTime);
+                        readRate = (wireIn.getByteCount() * 1000L) / totalReadTime;
+
+                        // Don't bail on the first read cycle, as we can get a hiccup starting out.
+                        // Also don't bail if we've read everything we need.
+                        if ((readRequests > 1) && (buffer.getLength() < targetLength) && (readRate < minResponseRate)) {
+                            throw new AbortedFetchException(url, "Slow response rate of " + readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE);
+                        }
+
+                        // Check to see if we got interrupted.
+                        if (Thread.interrupted()) {
+                            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+                        }
                     }
 
-                    // Check to see if we got interrupted.
-                    if (Thread.interrupted()) {
-                        throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+                    // See if there's more decompressed data than we want.
+                    if (isGzipped && (buffer.getLength() >= targetLength) && (in.read() != -1)) {
+                        truncated = true;
+                    }
+                } catch (IOException e) {
+                    // Corrupt or cut-off gzip data means we keep what we were able to inflate.
+                    if (isGzipped && ((e instanceof ZipException) || (e instanceof EOFException))) {
+                        LOGGER.trace("Exception unzipping content", e);
+                        corrupted = true;
+                    } else {
+                        throw e;
                     }
                 }
 
-                content = out.toByteArray();
-                needAbort = truncated || (in.available() > 0);
+                // An aborted read might look like the end of the data, versus failing.
+                if (transfer.isAborted()) {
+                    throw makeSlowResponseException(url, transfer);
+                }
+                
+                content = buffer.toByteArray();
+                needAbort = truncated || corrupted || (wireIn.available() > 0);
             } catch (IOException e) {
+                if (transfer.isAborted()) {
+                    throw makeSlowResponseException(url, transfer);
+                }
+                
                 // We don't need to abort if there's an IOException
                 throw new IOFetchException(url, e);
             } finally {
+                ResponseRateMonitor.getInstance().finish(transfer);
                 safeAbort(needAbort, request);
                 safeClose(in);
+                safeClose(wireIn);
+                ContentBuffer.release(buffer);
             }
         }
         
-        // Toss truncated image content.
-        if  (   (truncated)
-            &&  (!isTextMimeType(mimeType))) {
-            throw new AbortedFetchException(url, "Truncated image", AbortedFetchReason.CONTENT_SIZE);
-        }
-
-        // Now see if we need to uncompress the content.
-        String contentEncoding = headerMap.getFirst(HttpHeaderNames.CONTENT_ENCODING);
-        if (contentEncoding != null) {
-            if (LOGGER.isTraceEnabled()) {
-                fetchTrace.append("; Content-Encoding: " + contentEncoding);
+        if (isGzipped) {
+            if (truncated && !isTextMimeType(mimeType)) {
+                throw new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE);
             }
-
-            // TODO KKr We might want to just decompress a truncated gzip
-            // containing text (since we have a max content size to save us
-            // from any gzip corruption). We might want to break the following 
-            // out into a separate method, by the way (if not refactor this 
-            // entire monolithic method).
-            //
-            try {
-                if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
-                    if (truncated) {
-                        throw new AbortedFetchException(url, "Truncated compressed data", AbortedFetchReason.CONTENT_SIZE);
-                    } else {
-                        ExpandedResult expandedResult = EncodingUtils.processGzipEncoded(content, maxContentSize);
-                        truncated = expandedResult.isTruncated();
-                        if  (   (truncated)
-                            &&  (!isTextMimeType(mimeType))) {
-                            throw new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE);
-                        } else {
-                            content = expandedResult.getExpanded();
-                            if (LOGGER.isTraceEnabled()) {
-                                fetchTrace.append("; unzipped to " + content.length + " bytes");
-                            }
-                        }
-//                    } else if ("deflate".equals(contentEncoding)) {
-//                        content = EncodingUtils.processDeflateEncoded(content);
-//                        if (LOGGER.isTraceEnabled()) {
-//                            fetchTrace.append("; inflated to " + content.length + " bytes");
-//                        }
-                    }
-                }
-            } catch (IOException e) {
-                throw new IOFetchException(url, e);
+            
+            if (LOGGER.isTraceEnabled()) {
+                fetchTrace.append("; unzipped to " + content.length + " bytes");
             }
         }
 
@@ -704,20 +1040,27 @@ public class SimpleHttpFetcher extends BaseFetcher {
         }
         
         // TODO KKr - Save truncated flag in FetchedResult/FetchedDatum.
-        return new FetchedResult(   url,
-                                    redirectedUrl,
-                                    System.currentTimeMillis(), 
-                                    headerMap,
-                                    content,
-                                    contentType,
-                                    (int)readRate,
-                                    payload,
-                                    newBaseUrl,
-                                    numRedirects,
-                                    hostAddress);
-    }
-    
-    private boolean isTextMimeType(String mimeType) {
+        FetchedResult result = new FetchedResult(   url,
+                                                    redirectedUrl,
+                                                    System.currentTimeMillis(), 
+                                                    headerMap,
+                                                    content,
+                                                    contentType,
+                                                    (int)readRate,
+                                                    payload,
+                                                    newBaseUrl,
+                                                    numRedirects,
+                                                    hostAddress);
+        result.setNotModified(notModified);
+        return result;
+    }
+    
+    private static AbortedFetchException makeSlowResponseException(String url, ResponseRateMonitor.Transfer transfer) {
+        long readRate = transfer.getResponseRate(System.currentTimeMillis());
+        return new AbortedFetchException(url, "Slow response rate of " + readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE);
+    }
+    
+    static boolean isTextMimeType(String mimeType) {
         for (String textContentType : TEXT_MIME_TYPES) {
             if (textContentType.equals(mimeType)) {
                 return true;
@@ -783,15 +1126,14 @@ public class SimpleHttpFetcher extends BaseFetcher {
             HttpConnectionParams.setSoTimeout(params, _socketTimeout);
             HttpConnectionParams.setConnectionTimeout(params, _connectionTimeout);
             
-            // Even with stale checking enabled, a connection can "go stale" between the check and the
-            // next request. So we still need to handle the case of a closed socket (from the server side),
-            // and disabling this check improves performance.
-            HttpConnectionParams.setStaleCheckingEnabled(params, false);
+            // We keep idle connections around for about as long as the crawl delay, which is often
+            // longer than the server does. So check whether the server has closed a connection before
+            // we reuse it, which is much cheaper than failing the request and retrying it. A connection
+            // can still go stale between the check and the next request, which the retry handler covers.
+            HttpConnectionParams.setStaleCheckingEnabled(params, true);
             
-            // FUTURE - set this on a per-route (host) basis when we have per-host policies for
-            // doing partner crawls. We could define a BixoConnPerRoute class that supports this.
-            ConnPerRouteBean connPerRoute = new ConnPerRouteBean(_fetcherPolicy.getMaxConnectionsPerHost());
-            ConnManagerParams.setMaxConnectionsPerRoute(params, connPerRoute);
+            // Use the per-host limits from our policy, e.g. for partner crawls.
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new MyConnPerRoute(_fetcherPolicy));
 
             HttpProtocolParams.setVersion(params, _httpVersion);
             HttpProtocolParams.setUserAgent(params, _userAgent.getUserAgentString());
@@ -812,7 +1154,12 @@ public class SimpleHttpFetcher extends BaseFetcher {
                 try {
                     SSLContext sslContext = SSLContext.getInstance(contextName);
                     sslContext.init(null, new TrustManager[] { new DummyX509TrustManager(null) }, null);
-                    sf = new SSLSocketFactory(sslContext);
+                    
+                    SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+                    sessionContext.setSessionCacheSize(_sslSessionCacheSize);
+                    sessionContext.setSessionTimeout(_sslSessionTimeout);
+                    
+                    sf = new MySSLSocketFactory(sslContext, _fullHandshakes, _resumedHandshakes);
                     break;
                 } catch (NoSuchAlgorithmException e) {
                     LOGGER.debug("SSLContext algorithm not available: " + contextName);
@@ -829,11 +1176,22 @@ public class SimpleHttpFetcher extends BaseFetcher {
             }
 
             // Use ThreadSafeClientConnManager since more than one thread will be using the HttpClient.
-            ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, schemeRegistry);
+            // The connection operator is created by the ThreadSafeClientConnManager constructor, so
+            // the resolver has to come from a local (captured before the super call), not a field.
+            final BaseDnsResolver resolver = getDnsResolver();
+            ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, schemeRegistry) {
+                
+                @Override
+                protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schreg) {
+                    return new MyConnectionOperator(schreg, resolver);
+                }
+            };
             _httpClient = new DefaultHttpClient(cm, params);
             _httpClient.setHttpRequestRetryHandler(new MyRequestRetryHandler(_maxRetryCount));
             _httpClient.setRedirectHandler(new MyRedirectHandler(_fetcherPolicy.getRedirectMode()));
-            _httpClient.addRequestInterceptor(new MyRequestInterceptor());
+            _httpClient.addRequestInterceptor(new MyRequestInterceptor(_newConnections, _reusedConnections));
+            _httpClient.setKeepAliveStrategy(new MyConnectionKeepAliveStrategy(getKeepAliveDuration()));
+            _httpClient.setReuseStrategy(new MyConnectionReuseStrategy());
             
             params = _httpClient.getParams();
             // FUTURE KKr - support authentication
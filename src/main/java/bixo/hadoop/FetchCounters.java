@@ -34,6 +34,7 @@ public enum FetchCounters {
     // During URL fetching
     URLS_FETCHING,
     URLS_FETCHED,
+    URLS_NOT_MODIFIED,      // Conditional fetches where content hadn't changed (incl. in URLS_FETCHED)
     URLS_SKIPPED,           // (incl. URLS_SKIPPED_PER_SERVER_LIMIT)
     URLS_FAILED,
 
@@ -45,5 +46,18 @@ public enum FetchCounters {
     
     FETCHSETS_QUEUED,       // Number of fetch sets in the disk queue
     URLS_QUEUED,            // Number of URLs in the disk queue
+    
+    FETCHER_IDLE_TIME,      // Total time in milliseconds FetchBuffer waited for something to fetch
+    
+    HOSTS_THROTTLED,        // Number of times the adaptive controller backed off a server
+    
+    HOSTS_BACKED_OFF,       // Number of times a server told us to retry later (429/503)
+    URLS_REQUEUED,          // URLs put back in the queue because their server told us to retry later
+    
+    CONNECTIONS_OPENED,     // Requests that had to open a new connection (connection pool miss)
+    CONNECTIONS_REUSED,     // Requests that reused a kept-alive connection (connection pool hit)
+    
+    TLS_HANDSHAKES_FULL,    // TLS handshakes that negotiated a new session
+    TLS_HANDSHAKES_RESUMED, // TLS handshakes that resumed an earlier session
 
 }
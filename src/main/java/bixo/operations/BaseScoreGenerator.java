@@ -19,8 +19,10 @@ package bixo.operations;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 
 import bixo.datum.GroupedUrlDatum;
+import bixo.urls.ParsedUrl;
 import bixo.utils.DomainNames;
 
 @SuppressWarnings("serial")
@@ -41,6 +43,12 @@ public abstract class BaseScoreGenerator implements Serializable {
     
     
     public double generateScore(String url) {
+        ParsedUrl parsedUrl = ParsedUrl.parse(url);
+        if ((parsedUrl != null) && parsedUrl.isSimpleHttp()) {
+            String host = parsedUrl.getHost();
+            return generateScore(host, DomainNames.getPLD(host), url);
+        }
+        
         try {
             URL realUrl = new URL(url);
             String host = realUrl.getHost();
@@ -54,6 +62,26 @@ public abstract class BaseScoreGenerator implements Serializable {
         return generateScore(domain, pld, url.getUrl());
     }
 
+    /**
+     * Return scores for a batch of URLs from the same domain, which are all allowed by
+     * robots.txt. By default this calls generateScore() for each one, but scorers that
+     * can do better with all of the URLs at once (e.g. a single lookup in some external
+     * store) can override it.
+     * 
+     * @param domain hostname
+     * @param pld paid-level domain (derived from domain)
+     * @param urls URLs to score
+     * @return scores, in the same order as <urls>
+     */
+    public double[] generateScores(String domain, String pld, List<GroupedUrlDatum> urls) {
+        double[] result = new double[urls.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = generateScore(domain, pld, urls.get(i));
+        }
+        
+        return result;
+    }
+    
     /**
      * Return score for URL, based on domain & URL path
      * 
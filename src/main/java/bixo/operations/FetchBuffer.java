@@ -16,25 +16,43 @@
  */
 package bixo.operations;
 
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.lang.SerializationUtils;
 import org.apache.log4j.Logger;
 
 import bixo.config.FetcherPolicy;
 import bixo.config.FetcherPolicy.FetcherMode;
 import bixo.datum.FetchSetDatum;
+import bixo.datum.FetchSetDatumCodec;
 import bixo.datum.FetchedDatum;
+import bixo.datum.ParsedDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.datum.UrlStatus;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.fetcher.AdaptiveHostController;
 import bixo.fetcher.BaseFetcher;
 import bixo.fetcher.FetchTask;
 import bixo.fetcher.IFetchMgr;
 import bixo.hadoop.FetchCounters;
+import bixo.parser.BaseParser;
+import bixo.parser.ParseRunner;
+import bixo.parser.ParserCounters;
 import bixo.utils.DiskQueue;
 import bixo.utils.ThreadedExecutor;
 import cascading.flow.FlowProcess;
@@ -57,42 +75,34 @@ import com.bixolabs.cascading.NullContext;
 public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<NullContext>, IFetchMgr {
     private static Logger LOGGER = Logger.getLogger(FetchBuffer.class);
 
-    private class QueuedFetchSetsComparator implements Comparator<FetchSetDatum> {
+    /**
+     * The entry that's ready sooner sorts sooner, but that's handled by the DiskQueue
+     * priority for each grouping ref (see getFetchTime). If both are ready at the same
+     * time, return the one with the bigger fetch set.
+     */
+    private static class QueuedFetchSetsComparator implements Comparator<FetchSetDatum> {
 
-        private long getFetchTime(String groupingRef) {
-            if (_activeRefs.get(groupingRef) == null) {
-                Long nextFetchTime = _pendingRefs.get(groupingRef);
-                if (nextFetchTime == null) {
-                    return(0);
-                } else {
-                    return(nextFetchTime);
-                }
-            } else {
-                // fetch set is active, so sort at end
-                return(Long.MAX_VALUE);
-            }
-        }
-        
         @Override
         public int compare(FetchSetDatum o1, FetchSetDatum o2) {
-            long o1FetchTime = getFetchTime(o1.getGroupingRef());
-            long o2FetchTime = getFetchTime(o2.getGroupingRef());
+            int o1NumUrls = o1.getNumUrls();
+            int o2NumUrls = o2.getNumUrls();
             
-            // The entry that's ready sooner sorts sooner. If both
-            // are ready, return the one with the bigger fetch set.
-            if (o1FetchTime < o2FetchTime) {
-                return -1;
-            } else if (o1FetchTime > o2FetchTime) {
-                return 1;
-            } else if (o1.getUrls().size() > o2.getUrls().size()) {
+            if (o1NumUrls > o2NumUrls) {
                 return -1;
-            } else if (o1.getUrls().size() < o2.getUrls().size()) {
+            } else if (o1NumUrls < o2NumUrls) {
                 return 1;
             } else {
                 return 0;
             }
         }
-        
+    }
+    
+    private static class GroupingRefKeyer implements DiskQueue.PriorityKeyer<FetchSetDatum> {
+
+        @Override
+        public Object getKey(FetchSetDatum element) {
+            return element.getGroupingRef();
+        }
     }
     
     private class QueuedValues {
@@ -108,7 +118,51 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         public QueuedValues(Iterator<TupleEntry> values) {
             _values = values;
             _iteratorDone = false;
-            _queue = new DiskQueue<FetchSetDatum>(MAX_ELEMENTS_IN_MEMORY, new QueuedFetchSetsComparator());
+            _queue = new DiskQueue<FetchSetDatum>(MAX_ELEMENTS_IN_MEMORY, new QueuedFetchSetsComparator(), new GroupingRefKeyer());
+            _queue.setCodec(new FetchSetDatumCodec());
+        }
+        
+        /**
+         * Add every fetch set that was handed back to us via retryLater() since the last
+         * call. As with updatePriorities(), this has to happen on the operate() thread.
+         */
+        private void addRetrySets() {
+            FetchSetDatum datum;
+            while ((datum = _retrySets.poll()) != null) {
+                addToQueue(datum);
+            }
+        }
+        
+        /**
+         * Update the queue priority of every ref that has become active or finished since
+         * the last call. This has to happen here, versus in finished(), since the DiskQueue
+         * isn't thread-safe.
+         */
+        private void updatePriorities() {
+            String ref;
+            while ((ref = _changedRefs.poll()) != null) {
+                // Refs without any queued fetch sets get their priority in addToQueue().
+                if (_queue.containsKey(ref)) {
+                    _queue.setPriority(ref, getFetchTime(ref));
+                }
+            }
+        }
+        
+        private long getFetchTime(String groupingRef) {
+            if (_activeRefs.get(groupingRef) == null) {
+                Long nextFetchTime = _pendingRefs.get(groupingRef);
+                if (nextFetchTime == null) {
+                    return(0);
+                } else {
+                    return(nextFetchTime);
+                }
+            } else if (canAddActive(groupingRef)) {
+                // fetch set is active, but we can fetch another set in parallel
+                return(0);
+            } else {
+                // fetch set is active, so sort at end
+                return(Long.MAX_VALUE);
+            }
         }
         
         /**
@@ -124,22 +178,50 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         }
         
         public boolean isEmpty() {
-            return _queue.isEmpty() && !safeHasNext();
+            return _queue.isEmpty() && _retrySets.isEmpty() && !safeHasNext();
         }
         
-        private boolean readyToFetch(String ref) {
-            if (_activeRefs.get(ref) == null) {
+        private boolean readyToFetch(String ref, long now) {
+            if (isBackedOff(ref, now)) {
+                return false;
+            } else if (_activeRefs.get(ref) == null) {
                 Long nextFetchTime = _pendingRefs.get(ref);
-                if ((nextFetchTime == null) || (nextFetchTime <= System.currentTimeMillis())) {
+                if ((nextFetchTime == null) || (nextFetchTime <= now)) {
                     return true;
                 }
+            } else if (canAddActive(ref)) {
+                return true;
             }
             
             return false;
         }
         
-        public FetchSetDatum nextOrNull(FetcherMode mode) {
+        /**
+         * Return the next fetch set that's ready to be fetched at <now>, or null.
+         * 
+         * @param mode how to handle fetch sets that aren't ready yet
+         * @param now time to use when deciding if a ref is ready. One clock read per
+         *        call is plenty, since we don't spend any real time in here.
+         * @return fetch set to fetch, or null if there's nothing to fetch right now.
+         */
+        public FetchSetDatum nextOrNull(FetcherMode mode, final long now) {
+            addRetrySets();
+            updatePriorities();
+            
+            // Sets for refs whose server told us to back off. These always wait for their retry
+            // time, whatever the mode, so we set them aside while we look for something else.
+            List<FetchSetDatum> backedOff = new ArrayList<FetchSetDatum>();
             
+            try {
+                return nextOrNull(mode, now, backedOff);
+            } finally {
+                for (FetchSetDatum datum : backedOff) {
+                    addToQueue(datum);
+                }
+            }
+        }
+        
+        private FetchSetDatum nextOrNull(FetcherMode mode, final long now, List<FetchSetDatum> backedOff) {
             int fetchSetsQueued = 0;
             
             // Loop until we have something to return, or there's nothing that we can return, or we've
@@ -151,7 +233,7 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                 
                 if (queueDatum != null) {
                     String ref = queueDatum.getGroupingRef();
-                    if (readyToFetch(ref)) {
+                    if (readyToFetch(ref, now)) {
                         List<ScoredUrlDatum> urls = queueDatum.getUrls();
                         trace("Politely returning %d urls via queue from %s (e.g. %s)", urls.size(), ref, urls.get(0).getUrl());
                         return queueDatum;
@@ -175,7 +257,7 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                         continue;
                     }
 
-                    if (readyToFetch(ref)) {
+                    if (readyToFetch(ref, now)) {
                         trace("Politely returning %d urls via iterator from %s (e.g. %s)", urls.size(), ref, urls.get(0).getUrl());
                         return iterDatum;
                     }
@@ -191,6 +273,12 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                 // must not be ready), decide what to do based on our FetcherMode.
                 if (queueDatum != null) {
                     List<ScoredUrlDatum> urls = queueDatum.getUrls();
+                    
+                    if (isBackedOff(queueDatum.getGroupingRef(), now)) {
+                        trace("Holding %d urls via queue from %s until retry time (e.g. %s)", urls.size(), queueDatum.getGroupingRef(), urls.get(0).getUrl());
+                        backedOff.add(queueDatum);
+                        continue;
+                    }
 
                     switch (mode) {
                         case COMPLETE:
@@ -220,6 +308,24 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             return null;
         }
 
+        /**
+         * Return the next fetch set that we haven't fetched, regardless of whether it's
+         * ready, or null if there's nothing left. This is only used to skip whatever
+         * is left once we stop fetching.
+         * 
+         * @return fetch set to skip, or null
+         */
+        public FetchSetDatum nextToSkip() {
+            addRetrySets();
+            
+            FetchSetDatum result = removeFromQueue();
+            if ((result == null) && safeHasNext()) {
+                result = new FetchSetDatum(new TupleEntry(_values.next()));
+            }
+            
+            return result;
+        }
+
         /**
          * Return the top-most item from the queue, or null if the queue is empty.
          * 
@@ -240,38 +346,165 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                 _flowProcess.increment(FetchCounters.FETCHSETS_QUEUED, 1);
                 _flowProcess.increment(FetchCounters.URLS_QUEUED, datum.getUrls().size());
 
+                // The queue forgets a ref's priority once it has no more fetch sets for that
+                // ref, so we have to set it again when adding the first one.
+                String ref = datum.getGroupingRef();
+                if (!_queue.containsKey(ref)) {
+                    _queue.setPriority(ref, getFetchTime(ref));
+                }
+                
                 _queue.add(datum);
             }
         }
 }
 
+    /**
+     * Parses one fetched document on a parser thread, and emits the result.
+     */
+    private class ParseTask implements Runnable {
+        private Tuple _fetchResult;
+        
+        public ParseTask(Tuple fetchResult) {
+            _fetchResult = fetchResult;
+        }
+        
+        @Override
+        public void run() {
+            FetchedDatum fetchedDatum = new FetchedDatum(_fetchResult.get(FETCHED_DATUM_FIELD_POSITIONS));
+            ParsedDatum parseResult = null;
+            
+            BaseParser parser = null;
+            try {
+                parser = acquireParser();
+            } catch (Exception e) {
+                // We were interrupted, or couldn't make a copy of the parser.
+                LOGGER.warn("Can't get a parser for " + fetchedDatum.getUrl(), e);
+                _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            
+            if (parser != null) {
+                try {
+                    parseResult = ParseRunner.parse(parser, fetchedDatum, _flowProcess);
+                } finally {
+                    releaseParser(parser);
+                }
+            }
+            
+            emit(_fetchResult, parseResult);
+        }
+    }
+    
     private static final Fields FETCH_RESULT_FIELD = new Fields(BaseDatum.fieldName(FetchBuffer.class, "fetch-exception"));
+    private static final Fields PARSE_RESULT_FIELD = new Fields(BaseDatum.fieldName(FetchBuffer.class, "parse-result"));
+    
+    private static final int[] FETCHED_DATUM_FIELD_POSITIONS = new int[FetchedDatum.FIELDS.size()];
+    static {
+        for (int i = 0; i < FETCHED_DATUM_FIELD_POSITIONS.length; i++) {
+            FETCHED_DATUM_FIELD_POSITIONS[i] = i;
+        }
+    }
 
-    // Time to sleep when we don't have any URLs that can be fetched.
+    // Max time to wait when we don't have any URLs that can be fetched. We'll normally
+    // wake up sooner, when a ref becomes ready or a fetch task finishes.
     private static final long NOTHING_TO_FETCH_SLEEP_TIME = 1000;
 
     private static final long HARD_TERMINATION_CLEANUP_DURATION = 10 * 1000L;
 
+    // How long to wait before retrying a server that returned 429/503 without a
+    // Retry-After header. This doubles each time the same server backs us off.
+    private static final long DEFAULT_RETRY_DELAY = 60 * 1000L;
+    
+    // After this many back-offs from one server, we stop re-queuing its URLs.
+    private static final int MAX_BACKOFFS_PER_REF = 3;
+
     private BaseFetcher _fetcher;
     private FetcherMode _fetcherMode;
+    private BaseParser _parser;
+    private int _numParserThreads;
 
     private transient ThreadedExecutor _executor;
+    
+    // With a non-blocking fetcher we don't use _executor. Instead each fetch set that's in
+    // progress holds one of these, which limits how many requests are in flight.
+    private transient Semaphore _fetchPermits;
+    private transient ThreadedExecutor _parseExecutor;
+    private transient BlockingQueue<BaseParser> _idleParsers;
+    private transient Semaphore _parserPermits;
+    private transient AdaptiveHostController _controller;
     private transient LoggingFlowProcess _flowProcess;
     private transient TupleEntryCollector _collector;
 
     private transient Object _refLock;
     private transient ConcurrentHashMap<String, Long> _activeRefs;
+    private transient ConcurrentHashMap<String, Integer> _activeCounts;
     private transient ConcurrentHashMap<String, Long> _pendingRefs;
     
+    // Fetch sets handed back to us by retryLater(), waiting to be added to the queue.
+    private transient ConcurrentLinkedQueue<FetchSetDatum> _retrySets;
+    
+    // When each ref that backed us off can be fetched again (until that time has passed, or
+    // the ref is done), and how many times that's happened.
+    private transient ConcurrentHashMap<String, Long> _retryTimes;
+    private transient ConcurrentHashMap<String, Integer> _backoffCounts;
+    
+    // Set to false (protected by _refLock) once we're no longer able to fetch re-queued URLs.
+    private transient boolean _acceptRetries;
+    
+    // Refs whose active/pending state has changed, and thus need their queue priority updated.
+    private transient ConcurrentLinkedQueue<String> _changedRefs;
+    
+    // Times when pending refs become ready, and a count of ref state changes, both
+    // protected by _refLock. Together they let operate() wait for exactly as long as
+    // it needs to, versus polling.
+    private transient PriorityQueue<Long> _readyTimes;
+    private transient long _refChanges;
+    
     private transient AtomicBoolean _keepCollecting;
     
     public FetchBuffer(BaseFetcher fetcher) {
+        this(fetcher, null, 0);
+    }
+
+    /**
+     * Create a FetchBuffer that also parses what it fetches, using <numParserThreads>
+     * threads, so that CPU-bound parsing overlaps with network-bound fetching. Each output
+     * tuple then has one more field, which is the ParsedDatum tuple for the document, or
+     * null if it wasn't fetched (or couldn't be parsed).
+     * 
+     * If <parser> is thread-safe (see {@link BaseParser#isThreadSafe()}) then it's shared by
+     * all of the threads, so e.g. a SimpleParser's own worker limit also applies. Otherwise
+     * at most <numParserThreads> copies get made.
+     * 
+     * @param fetcher
+     * @param parser parser to use, or null to only fetch
+     * @param numParserThreads number of parser threads, if <parser> isn't null
+     */
+    public FetchBuffer(BaseFetcher fetcher, BaseParser parser, int numParserThreads) {
         // We're going to output a tuple that contains a FetchedDatum, plus meta-data,
-        // plus a result that could be a string, a status, or an exception
-        super(FetchedDatum.FIELDS.append(FETCH_RESULT_FIELD));
+        // plus a result that could be a string, a status, or an exception, plus (optionally)
+        // the parse result.
+        super(makeOutputFields(parser));
 
+        if ((parser != null) && (numParserThreads < 1)) {
+            throw new InvalidParameterException("numParserThreads must be > 0: " + numParserThreads);
+        }
+        
         _fetcher = fetcher;
         _fetcherMode = _fetcher.getFetcherPolicy().getFetcherMode();
+        _parser = parser;
+        _numParserThreads = numParserThreads;
+    }
+    
+    private static Fields makeOutputFields(BaseParser parser) {
+        Fields result = FetchedDatum.FIELDS.append(FETCH_RESULT_FIELD);
+        if (parser != null) {
+            result = result.append(PARSE_RESULT_FIELD);
+        }
+        
+        return result;
     }
 
     @Override
@@ -289,11 +522,45 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         _flowProcess = new LoggingFlowProcess((HadoopFlowProcess) flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
 
-        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), _fetcher.getFetcherPolicy().getRequestTimeout());
+        if (_fetcher.isNonBlocking()) {
+            _executor = null;
+            _fetchPermits = new Semaphore(_fetcher.getMaxThreads());
+        } else {
+            _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), _fetcher.getFetcherPolicy().getRequestTimeout(),
+                            _fetcher.isUseVirtualThreads());
+            _fetchPermits = null;
+        }
+        
+        if (_parser != null) {
+            // If all of the parser threads stay busy for this long, the fetch thread parses
+            // the document itself, which also keeps fetching from getting too far ahead.
+            _parseExecutor = new ThreadedExecutor(_numParserThreads, _parser.getParserPolicy().getMaxParseDuration());
+            
+            // A thread-safe parser gets shared. Otherwise we keep a pool of copies, one per
+            // parser thread, which fetch threads that parse for themselves have to wait for.
+            // Note that the threads doing the parsing can be virtual threads, so we can't
+            // give each one its own copy.
+            _idleParsers = new LinkedBlockingQueue<BaseParser>();
+            _parserPermits = new Semaphore(_numParserThreads);
+        }
 
         _refLock = new Object();
         _pendingRefs = new ConcurrentHashMap<String, Long>();
         _activeRefs = new ConcurrentHashMap<String, Long>();
+        _activeCounts = new ConcurrentHashMap<String, Integer>();
+        _retrySets = new ConcurrentLinkedQueue<FetchSetDatum>();
+        _retryTimes = new ConcurrentHashMap<String, Long>();
+        _backoffCounts = new ConcurrentHashMap<String, Integer>();
+        _acceptRetries = true;
+        
+        if (_fetcher.getFetcherPolicy().isAdaptiveConcurrency()) {
+            _controller = new AdaptiveHostController(_fetcher.getFetcherPolicy().getMaxConnectionsPerHost());
+        } else {
+            _controller = null;
+        }
+        _changedRefs = new ConcurrentLinkedQueue<String>();
+        _readyTimes = new PriorityQueue<Long>();
+        _refChanges = 0;
         
         _keepCollecting = new AtomicBoolean(true);
     }
@@ -307,25 +574,53 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         
         // Each value is a PreFetchedDatum that contains a set of URLs to fetch in one request from
         // a single server, plus other values needed to set state properly.
-        while (!Thread.interrupted() && !fetcherPolicy.isTerminateFetch() && !values.isEmpty()) {
-            FetchSetDatum datum = values.nextOrNull(_fetcherMode);
+        // We also keep going while fetch sets are active, as they might hand URLs back to us
+        // if their server tells us to retry later.
+        while (!Thread.interrupted() && !fetcherPolicy.isTerminateFetch() && !isFinished(values)) {
+            long refChanges = getRefChanges();
+            long scanTime = System.currentTimeMillis();
+            FetchSetDatum datum = values.nextOrNull(_fetcherMode, scanTime);
             
             try {
                 if (datum == null) {
-                    trace("Nothing ready to fetch, sleeping...");
+                    trace("Nothing ready to fetch, waiting...");
                     process.keepAlive();
-                    Thread.sleep(NOTHING_TO_FETCH_SLEEP_TIME);
+                    waitForRefChange(refChanges, scanTime, NOTHING_TO_FETCH_SLEEP_TIME);
                 } else {
                     List<ScoredUrlDatum> urls = datum.getUrls();
                     String ref = datum.getGroupingRef();
                     trace("Processing %d URLs for %s", urls.size(), ref);
+                    
+                    // With a non-blocking fetcher, all of the requests we allow to be in flight
+                    // can be in use by long-running sets, which is normal under load. So we wait
+                    // for one to finish, and only give up if we're out of time, in which case the
+                    // set goes back into the queue, to be skipped along with everything else.
+                    if (_fetchPermits != null) {
+                        boolean gotPermit = false;
+                        try {
+                            gotPermit = waitForFetchPermit(process);
+                        } finally {
+                            if (!gotPermit) {
+                                values.addToQueue(datum);
+                            }
+                        }
+                        
+                        if (!gotPermit) {
+                            continue;
+                        }
+                    }
 
-                    Runnable doFetch = new FetchTask(this, _fetcher, urls, ref);
+                    FetchTask doFetch = new FetchTask(this, _fetcher, datum);
                     if (datum.isLastList()) {
                         makeActive(ref, 0L);
                         trace("Executing fetch of %d URLs from %s (last batch)", urls.size(), ref);
                     } else {
-                        Long nextFetchTime = System.currentTimeMillis() + datum.getFetchDelay();
+                        long fetchDelay = datum.getFetchDelay();
+                        if (_controller != null) {
+                            fetchDelay = _controller.getFetchDelay(ref, fetchDelay, urls.size());
+                        }
+                        
+                        Long nextFetchTime = System.currentTimeMillis() + fetchDelay;
                         makeActive(ref, nextFetchTime);
                         trace("Executing fetch of %d URLs from %s (next fetch time %d)", urls.size(), ref, nextFetchTime);
                     }
@@ -333,12 +628,16 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                     long startTime = System.currentTimeMillis();
 
                     try {
-                        _executor.execute(doFetch);
+                        if (_fetchPermits == null) {
+                            _executor.execute(doFetch);
+                        } else {
+                            doFetch.start();
+                        }
                     } catch (RejectedExecutionException e) {
                         // should never happen.
                         LOGGER.error("Fetch pool rejected our fetch list for " + ref);
 
-                        finished(ref);
+                        refFinished(ref);
                         skipUrls(urls, UrlStatus.SKIPPED_DEFERRED, String.format("Execution rejection skipped %d URLs", urls.size()));
                     }
 
@@ -351,22 +650,23 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             }
         }
         
+        // From here on, anything that a server tells us to retry later just fails. If we
+        // terminated early this hasn't been done yet by isFinished().
+        synchronized (_refLock) {
+            _acceptRetries = false;
+        }
+        
         // Skip all URLs that we've got left.
         if (!values.isEmpty()) {
             trace("Found unprocessed URLs");
             
             UrlStatus status = Thread.interrupted() ? UrlStatus.SKIPPED_INTERRUPTED : UrlStatus.SKIPPED_TIME_LIMIT;
             
-            while (!values.isEmpty()) {
-                FetchSetDatum datum = values.nextOrNull(FetcherMode.IMPOLITE);
-                
-                // datum could be null if the URLs were set to be skipped, as then
-                // nextOrNull() will return null even with impolite mode.
-                if (datum != null) {
-                    List<ScoredUrlDatum> urls = datum.getUrls();
-                    trace("Skipping %d urls from %s (e.g. %s) ", urls.size(), datum.getGroupingRef(), urls.get(0).getUrl());
-                    skipUrls(datum.getUrls(), status, null);
-                }
+            FetchSetDatum datum;
+            while ((datum = values.nextToSkip()) != null) {
+                List<ScoredUrlDatum> urls = datum.getUrls();
+                trace("Skipping %d urls from %s (e.g. %s) ", urls.size(), datum.getGroupingRef(), urls.get(0).getUrl());
+                skipUrls(urls, datum.isSkipped() ? UrlStatus.SKIPPED_PER_SERVER_LIMIT : status, null);
             }
         }
     }
@@ -381,7 +681,7 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             Thread.sleep(pollTime);
             
             long requestTimeout = _fetcher.getFetcherPolicy().getRequestTimeout();
-            if (!_executor.terminate(requestTimeout)) {
+            if (!terminateFetching(requestTimeout)) {
                 LOGGER.warn("Had to do a hard termination of general fetching");
                 
                 // Abort any active connections, which should give the FetchTasks a chance
@@ -393,6 +693,14 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                 Thread.sleep(HARD_TERMINATION_CLEANUP_DURATION);
             }
             
+            // Wait for parsing of everything we fetched to finish.
+            if (_parseExecutor != null) {
+                long parseTimeout = _parser.getParserPolicy().getMaxParseDuration();
+                if (!_parseExecutor.terminate(parseTimeout)) {
+                    LOGGER.warn("Had to do a hard termination of parsing");
+                }
+            }
+            
             // Now stop collecting results. If somebody is in the middle of the collect() call,
             // we want them to finish before we set it to false and drop out of this method.
             synchronized (_keepCollecting) {
@@ -404,29 +712,244 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             LOGGER.warn("Interrupted while waiting for termination");
         }
 
+        if (!_backoffCounts.isEmpty()) {
+            LOGGER.info(String.format("%d servers told us to retry later", _backoffCounts.size()));
+            if (LOGGER.isDebugEnabled()) {
+                for (Map.Entry<String, Integer> entry : _backoffCounts.entrySet()) {
+                    LOGGER.debug(String.format("Backed off %d times by %s", entry.getValue(), entry.getKey()));
+                }
+            }
+        }
+        
+        // Report how often we got to skip the TCP (and TLS) handshake by reusing a connection,
+        // and how often a new TLS connection got to skip the full handshake.
+        long newConnections = _fetcher.getNewConnectionCount();
+        long reusedConnections = _fetcher.getReusedConnectionCount();
+        _flowProcess.increment(FetchCounters.CONNECTIONS_OPENED, (int)newConnections);
+        _flowProcess.increment(FetchCounters.CONNECTIONS_REUSED, (int)reusedConnections);
+        if (newConnections + reusedConnections > 0) {
+            LOGGER.info(String.format("%d of %d requests reused a kept-alive connection", reusedConnections, newConnections + reusedConnections));
+        }
+        
+        long fullHandshakes = _fetcher.getFullHandshakeCount();
+        long resumedHandshakes = _fetcher.getResumedHandshakeCount();
+        _flowProcess.increment(FetchCounters.TLS_HANDSHAKES_FULL, (int)fullHandshakes);
+        _flowProcess.increment(FetchCounters.TLS_HANDSHAKES_RESUMED, (int)resumedHandshakes);
+        if (fullHandshakes + resumedHandshakes > 0) {
+            LOGGER.info(String.format("%d of %d TLS handshakes resumed an earlier session", resumedHandshakes, fullHandshakes + resumedHandshakes));
+        }
+        
         _flowProcess.dumpCounters();
     }
 
+    /**
+     * Wait for all active fetch sets to finish.
+     * 
+     * @param timeout
+     * @return true if they all finished, false if we timed out.
+     * @throws InterruptedException
+     */
+    private boolean terminateFetching(long timeout) throws InterruptedException {
+        if (_fetchPermits == null) {
+            return _executor.terminate(timeout);
+        } else if (_fetchPermits.tryAcquire(_fetcher.getMaxThreads(), timeout, TimeUnit.MILLISECONDS)) {
+            _fetchPermits.release(_fetcher.getMaxThreads());
+            return true;
+        } else {
+            return false;
+        }
+    }
+    
+    /**
+     * Wait for an active fetch set to finish, if all of the requests that we allow to be
+     * in flight are in use. We keep the task alive while waiting, and stop waiting once
+     * it's time to stop fetching.
+     * 
+     * @param process
+     * @return true if we got a permit, which finished() releases, or false if we're done fetching.
+     * @throws InterruptedException
+     */
+    private boolean waitForFetchPermit(FlowProcess process) throws InterruptedException {
+        FetcherPolicy fetcherPolicy = _fetcher.getFetcherPolicy();
+        while (!_fetchPermits.tryAcquire(NOTHING_TO_FETCH_SLEEP_TIME, TimeUnit.MILLISECONDS)) {
+            process.keepAlive();
+            if (fetcherPolicy.isTerminateFetch()) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
     @Override
     public void finished(String ref) {
+        if (_fetchPermits != null) {
+            _fetchPermits.release();
+        }
+        
+        refFinished(ref);
+    }
+    
+    private void refFinished(String ref) {
         synchronized (_refLock) {
-            Long nextFetchTime = _activeRefs.remove(ref);
-            if (nextFetchTime == null) {
+            Integer activeCount = _activeCounts.get(ref);
+            if (activeCount == null) {
                 throw new RuntimeException("finished called on non-active ref: " + ref);
             }
             
-            // If there's going to be more to fetch, put it back in the pending pool.
-            if (nextFetchTime != 0) {
-                trace("Finished batch fetch for %s, with next batch at %d", ref, nextFetchTime);
-                _pendingRefs.put(ref, nextFetchTime);
+            if (activeCount > 1) {
+                // Other fetch sets for this ref are still running, so it stays active.
+                _activeCounts.put(ref, activeCount - 1);
+                trace("Finished batch fetch for %s, with %d still active", ref, activeCount - 1);
             } else {
-                trace("Finished last batch fetch for %s", ref);
+                _activeCounts.remove(ref);
+                Long nextFetchTime = _activeRefs.remove(ref);
+                
+                // If there's going to be more to fetch, put it back in the pending pool.
+                if (nextFetchTime != 0) {
+                    trace("Finished batch fetch for %s, with next batch at %d", ref, nextFetchTime);
+                    _pendingRefs.put(ref, nextFetchTime);
+                    _readyTimes.add(nextFetchTime);
+                } else {
+                    trace("Finished last batch fetch for %s", ref);
+                    _retryTimes.remove(ref);
+                }
             }
+            
+            // Wake up operate() if it's waiting, since this ref is no longer blocking anything.
+            _changedRefs.add(ref);
+            _refChanges += 1;
+            _refLock.notifyAll();
         }
     }
 
+    @Override
+    public void fetched(String ref, long responseTime, int responseRate) {
+        if ((_controller != null) && _controller.fetched(ref, responseTime, responseRate)) {
+            _flowProcess.increment(FetchCounters.HOSTS_THROTTLED, 1);
+        }
+    }
+    
+    @Override
+    public void failed(String ref, BaseFetchException e) {
+        if ((_controller != null) && _controller.failed(ref, e)) {
+            _flowProcess.increment(FetchCounters.HOSTS_THROTTLED, 1);
+        }
+    }
+    
+    @Override
+    public boolean retryLater(FetchSetDatum fetchSet, List<ScoredUrlDatum> items, long retryDelay) {
+        FetcherPolicy fetcherPolicy = _fetcher.getFetcherPolicy();
+        if (fetcherPolicy.getMaxRetryDelay() == FetcherPolicy.NO_RETRY_DELAY) {
+            return false;
+        }
+        
+        String ref = fetchSet.getGroupingRef();
+        synchronized (_refLock) {
+            if (!_acceptRetries || (_activeCounts.get(ref) == null)) {
+                return false;
+            }
+            
+            Integer backoffCount = _backoffCounts.get(ref);
+            int numBackoffs = (backoffCount == null) ? 0 : backoffCount;
+            if (numBackoffs >= MAX_BACKOFFS_PER_REF) {
+                trace("Giving up on %s after %d back-offs", ref, numBackoffs);
+                return false;
+            }
+            
+            if (retryDelay == HttpFetchException.NO_RETRY_AFTER) {
+                retryDelay = DEFAULT_RETRY_DELAY << numBackoffs;
+            }
+            
+            long retryTime = System.currentTimeMillis() + retryDelay;
+            if ((retryDelay > fetcherPolicy.getMaxRetryDelay()) || (retryTime >= fetcherPolicy.getCrawlEndTime())) {
+                trace("Not waiting %dms to retry %s", retryDelay, ref);
+                return false;
+            }
+            
+            _backoffCounts.put(ref, numBackoffs + 1);
+            _retryTimes.put(ref, retryTime);
+            
+            // Pause the ref, so that once its active set(s) finish, it stays pending until the
+            // retry time. This is true even if it was the last set, since now it's not.
+            _activeRefs.put(ref, Math.max(_activeRefs.get(ref), retryTime));
+            
+            FetchSetDatum retrySet = new FetchSetDatum(items, retryTime, fetchSet.getFetchDelay(), fetchSet.getGroupingKey(), ref);
+            retrySet.setLastList(fetchSet.isLastList());
+            _retrySets.add(retrySet);
+            trace("Retrying %d URLs from %s at %d", items.size(), ref, retryTime);
+            
+            // Make sure operate() wakes up in time to fetch them.
+            _readyTimes.add(retryTime);
+            _changedRefs.add(ref);
+            _refChanges += 1;
+            _refLock.notifyAll();
+        }
+        
+        _flowProcess.increment(FetchCounters.HOSTS_BACKED_OFF, 1);
+        _flowProcess.increment(FetchCounters.URLS_REQUEUED, items.size());
+        return true;
+    }
+    
     @Override
     public void collect(Tuple tuple) {
+        if ((_parser == null) || !isFetched(tuple)) {
+            emit(tuple, null);
+            return;
+        }
+        
+        ParseTask parseTask = new ParseTask(tuple);
+        try {
+            _parseExecutor.execute(parseTask);
+        } catch (RejectedExecutionException e) {
+            // Parser threads are all busy (or shut down), so do it ourselves.
+            parseTask.run();
+        }
+    }
+    
+    private BaseParser acquireParser() throws InterruptedException {
+        if (_parser.isThreadSafe()) {
+            return _parser;
+        }
+        
+        _parserPermits.acquire();
+        BaseParser result = _idleParsers.poll();
+        if (result == null) {
+            try {
+                result = (BaseParser)SerializationUtils.clone(_parser);
+            } catch (RuntimeException e) {
+                _parserPermits.release();
+                throw e;
+            }
+        }
+        
+        return result;
+    }
+    
+    private void releaseParser(BaseParser parser) {
+        if (!_parser.isThreadSafe()) {
+            _idleParsers.add(parser);
+            _parserPermits.release();
+        }
+    }
+    
+    private boolean isFetched(Tuple tuple) {
+        Object status = tuple.getObject(FetchedDatum.FIELDS.size());
+        return UrlStatus.FETCHED.toString().equals(status);
+    }
+    
+    /**
+     * Output the result of fetching (and optionally parsing) one URL. This is called by
+     * fetch threads, parser threads, and the operate() thread.
+     * 
+     * @param tuple FetchedDatum tuple plus fetch result
+     * @param parseResult parse result, if we're parsing
+     */
+    private void emit(Tuple tuple, ParsedDatum parseResult) {
+        if (_parser != null) {
+            tuple.add(parseResult == null ? null : parseResult.getTuple());
+        }
+        
         // Prevent two bad things from happening:
         // 1. Somebody changes _keepCollecting after we've tested that it's true
         // 2. Two people calling collector.add() at the same time (it's not thread safe)
@@ -449,7 +972,7 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             FetchedDatum result = new FetchedDatum(datum);
             Tuple tuple = result.getTuple();
             tuple.add(status.toString());
-            _collector.add(tuple);
+            emit(tuple, null);
         }
 
         _flowProcess.increment(FetchCounters.URLS_SKIPPED, urls.size());
@@ -463,7 +986,9 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
     }
     
     /**
-     * Make <ref> active, removing from pending if necessary.
+     * Make <ref> active, removing from pending if necessary. If <ref> is already
+     * active (adaptive concurrency lets us run more than one set per ref) then we
+     * keep the later of the two next fetch times.
      * 
      * @param ref
      * @param nextFetchTime
@@ -472,8 +997,88 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         synchronized (_refLock) {
             trace("Making %s active", ref);
             _pendingRefs.remove(ref);
-            _activeRefs.put(ref, nextFetchTime);
+            
+            Integer activeCount = _activeCounts.get(ref);
+            if (activeCount == null) {
+                _activeCounts.put(ref, 1);
+                _activeRefs.put(ref, nextFetchTime);
+            } else {
+                _activeCounts.put(ref, activeCount + 1);
+                _activeRefs.put(ref, Math.max(_activeRefs.get(ref), nextFetchTime));
+            }
+            
+            _changedRefs.add(ref);
+        }
+    }
+    
+    /**
+     * Return true if <ref> is active, but we're allowed to start fetching another
+     * set from it in parallel.
+     * 
+     * @param ref
+     * @return true if we can fetch another set for <ref> now.
+     */
+    private boolean canAddActive(String ref) {
+        if (_controller == null) {
+            return false;
         }
+        
+        // Don't start another set while the server has told us to back off.
+        if (isBackedOff(ref, System.currentTimeMillis())) {
+            return false;
+        }
+        
+        Integer activeCount = _activeCounts.get(ref);
+        return (activeCount != null) && (activeCount < _controller.getMaxActive(ref));
+    }
+
+    /**
+     * Return true if the server for <ref> has told us to back off, and its retry time
+     * hasn't been reached by <now>. Once it has, we forget about the retry time.
+     * 
+     * @param ref
+     * @param now
+     * @return true if we can't fetch anything from <ref> yet.
+     */
+    private boolean isBackedOff(String ref, long now) {
+        Long retryTime = _retryTimes.get(ref);
+        if (retryTime == null) {
+            return false;
+        } else if (retryTime > now) {
+            return true;
+        } else {
+            _retryTimes.remove(ref, retryTime);
+            return false;
+        }
+    }
+    
+    /**
+     * Return true if there's nothing left to fetch, and no active fetch set that could
+     * hand URLs back to us. This check and turning off retries happen while holding
+     * _refLock, so a fetch set can't re-queue URLs after we've decided we're done.
+     * 
+     * @param values
+     * @return true if we're done fetching.
+     */
+    private boolean isFinished(QueuedValues values) {
+        synchronized (_refLock) {
+            if (!values.isEmpty() || isRetryPossible()) {
+                return false;
+            }
+            
+            _acceptRetries = false;
+            return true;
+        }
+    }
+    
+    /**
+     * Return true if there are active fetch sets that could still hand URLs back to us
+     * via retryLater().
+     * 
+     * @return true if we might get more URLs to fetch.
+     */
+    private boolean isRetryPossible() {
+        return (_fetcher.getFetcherPolicy().getMaxRetryDelay() != FetcherPolicy.NO_RETRY_DELAY) && !_activeCounts.isEmpty();
     }
 
     private void adjustActive(String ref, long deltaTime) {
@@ -485,6 +1090,49 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         }
     }
 
+    private long getRefChanges() {
+        synchronized (_refLock) {
+            return _refChanges;
+        }
+    }
+    
+    /**
+     * Wait until the next pending ref is ready to be fetched, or some active ref
+     * has finished, or we hit <maxWait>. Both checks are made while holding _refLock,
+     * which is what finished() holds when it notifies us, so we never miss a wakeup:
+     * if a ref finished after <refChanges> was read, or a pending ref became ready
+     * after <scanTime>, then we return immediately.
+     * 
+     * @param refChanges value of _refChanges before we looked for something to fetch
+     * @param scanTime time used to decide which refs were ready when we looked
+     * @param maxWait longest time to wait, in milliseconds
+     * @throws InterruptedException
+     */
+    private void waitForRefChange(long refChanges, long scanTime, long maxWait) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        
+        synchronized (_refLock) {
+            // Drop ready times that were already taken into account when we looked for
+            // something to fetch. Entries can be stale (the ref has become active again
+            // since), but that only means we'll wake up a bit early.
+            while (!_readyTimes.isEmpty() && (_readyTimes.peek() <= scanTime)) {
+                _readyTimes.poll();
+            }
+            
+            long waitTime = maxWait;
+            if (!_readyTimes.isEmpty()) {
+                waitTime = Math.min(waitTime, _readyTimes.peek() - System.currentTimeMillis());
+            }
+            
+            // Note that wait(0) would wait forever.
+            if ((_refChanges == refChanges) && (waitTime > 0)) {
+                _refLock.wait(waitTime);
+            }
+        }
+        
+        _flowProcess.increment(FetchCounters.FETCHER_IDLE_TIME, (int)(System.currentTimeMillis() - startTime));
+    }
+    
     private void trace(String template, Object... params) {
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace(String.format(template, params));
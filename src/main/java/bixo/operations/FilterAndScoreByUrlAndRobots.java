@@ -16,6 +16,9 @@
  */
 package bixo.operations;
 
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.Iterator;
 import java.util.concurrent.RejectedExecutionException;
 
@@ -27,7 +30,11 @@ import bixo.datum.ScoredUrlDatum;
 import bixo.fetcher.BaseFetcher;
 import bixo.hadoop.FetchCounters;
 import bixo.robots.BaseRobotsParser;
+import bixo.robots.RobotRulesFetcher;
+import bixo.robots.RobotRulesStore;
 import bixo.robots.RobotUtils;
+import bixo.utils.BaseDnsResolver;
+import bixo.utils.CachingDnsResolver;
 import bixo.utils.DiskQueue;
 import bixo.utils.GroupingKey;
 import bixo.utils.ThreadedExecutor;
@@ -45,6 +52,9 @@ import com.bixolabs.cascading.NullContext;
 /**
  * Filter out URLs by either domain (not popular enough) or if they're blocked by robots.txt
  *
+ * Robot rules are fetched via a RobotRulesFetcher, so we limit how many robots.txt files
+ * we fetch at the same time from one IP address. A domain that has to wait for its rules
+ * doesn't tie up a thread.
  */
 
 @SuppressWarnings("serial")
@@ -53,14 +63,22 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
 	
     private static final long COMMAND_TIMEOUT = RobotUtils.getMaxFetchTime();
     private static final long TERMINATE_TIMEOUT = COMMAND_TIMEOUT;
+    
+    // Max time we'll wait during cleanup for tasks to work through queued robots.txt
+    // requests, before deferring whatever is left. Fetches that are in progress then get
+    // TERMINATE_TIMEOUT to finish, so that's the most cleanup can take.
+    private static final long MAX_DRAIN_TIME = 2 * TERMINATE_TIMEOUT;
 
     private static final int MAX_URLS_IN_MEMORY = 100;
 
     private BaseScoreGenerator _scorer;
 	private BaseFetcher _fetcher;
 	private BaseRobotsParser _parser;
+	private RobotRulesStore _robotRulesStore = null;
+	private int _maxRobotsFetchesPerIp = RobotRulesFetcher.DEFAULT_MAX_FETCHES_PER_IP;
 	
     private transient ThreadedExecutor _executor;
+    private transient RobotRulesFetcher _robotRulesFetcher;
     private transient LoggingFlowProcess _flowProcess;
 
     public FilterAndScoreByUrlAndRobots(UserAgent userAgent, int maxThreads, BaseRobotsParser parser, BaseScoreGenerator scorer) {
@@ -80,20 +98,69 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
         _fetcher = fetcher;
     }
 
+    /**
+     * Use (and update) previously fetched robot rules from <store>, versus
+     * always fetching robots.txt.
+     * 
+     * @param store
+     */
+    public void setRobotRulesStore(RobotRulesStore store) {
+        _robotRulesStore = store;
+    }
+    
+    public RobotRulesStore getRobotRulesStore() {
+        return _robotRulesStore;
+    }
+    
+    /**
+     * Set the max number of robots.txt files that we'll fetch at the same time
+     * from one IP address.
+     * 
+     * @param maxRobotsFetchesPerIp
+     */
+    public void setMaxRobotsFetchesPerIp(int maxRobotsFetchesPerIp) {
+        _maxRobotsFetchesPerIp = maxRobotsFetchesPerIp;
+    }
+    
+    public int getMaxRobotsFetchesPerIp() {
+        return _maxRobotsFetchesPerIp;
+    }
+    
     @Override
     public void prepare(FlowProcess flowProcess, cascading.operation.OperationCall<NullContext> operationCall) {
-        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), COMMAND_TIMEOUT);
+        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), COMMAND_TIMEOUT, _fetcher.isUseVirtualThreads());
         
         // FUTURE KKr - use Cascading process vs creating our own, once it
         // supports logging in local mode, and a setStatus() call.
         _flowProcess = new LoggingFlowProcess((HadoopFlowProcess)flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
+        
+        if (_robotRulesStore != null) {
+            try {
+                _robotRulesStore.open(((HadoopFlowProcess)flowProcess).getJobConf());
+            } catch (IOException e) {
+                throw new RuntimeException("Can't load saved robot rules", e);
+            }
+        }
+        
+        _robotRulesFetcher = new RobotRulesFetcher(_fetcher, _parser, _robotRulesStore, _maxRobotsFetchesPerIp);
     }
     
     @Override
     public void cleanup(FlowProcess flowProcess, cascading.operation.OperationCall<NullContext> operationCall) {
         
+        // Threads keep going with the queued robots.txt requests for the same IP address,
+        // so give them time to work through the longest queue, up to MAX_DRAIN_TIME.
+        int maxPerIp = _robotRulesFetcher.getMaxFetchesPerIp();
+        long drainTime = TERMINATE_TIMEOUT * (1 + ((_robotRulesFetcher.getMaxQueuedPerIp() + maxPerIp - 1) / maxPerIp));
+        
         try {
+            _executor.awaitIdle(Math.min(drainTime, MAX_DRAIN_TIME));
+            
+            // Anything that's still queued gets deferred, so we only have to wait for the
+            // fetches that are in progress.
+            _robotRulesFetcher.terminate();
+            
             if (!_executor.terminate(TERMINATE_TIMEOUT)) {
                 LOGGER.warn("Had to do a hard shutdown of robots fetching");
             }
@@ -101,17 +168,52 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
             // FUTURE What's the right thing to do here? E.g. do I need to worry about
             // losing URLs still to be processed?
             LOGGER.warn("Interrupted while waiting for termination");
+            _robotRulesFetcher.terminate();
             Thread.currentThread().interrupt();
         }
         
+        LOGGER.info(String.format("Robots.txt: %d fetched, %d waited for the same IP address",
+                        _robotRulesFetcher.getNumFetched(), _robotRulesFetcher.getNumDelayed()));
+        
+        if (_robotRulesStore != null) {
+            try {
+                _robotRulesStore.close(((HadoopFlowProcess)flowProcess).getJobConf());
+            } catch (IOException e) {
+                // Not fatal, we'll just have to fetch robots.txt again next time.
+                LOGGER.error("Can't save robot rules", e);
+            }
+        }
+        
+        BaseDnsResolver resolver = _fetcher.getDnsResolver();
+        if (resolver instanceof CachingDnsResolver) {
+            CachingDnsResolver cachingResolver = (CachingDnsResolver)resolver;
+            LOGGER.info(String.format("DNS cache: %d hits, %d negative hits, %d misses", cachingResolver.getHits(),
+                            cachingResolver.getNegativeHits(), cachingResolver.getMisses()));
+        }
+        
         _flowProcess.dumpCounters();
     }
     
+    private void prefetchHost(String protocolAndDomain) {
+        BaseDnsResolver resolver = _fetcher.getDnsResolver();
+        if (resolver instanceof CachingDnsResolver) {
+            try {
+                ((CachingDnsResolver)resolver).prefetch(new URL(protocolAndDomain).getHost());
+            } catch (MalformedURLException e) {
+                // Ignore, ProcessRobotsTask will handle this.
+            }
+        }
+    }
+    
 	@Override
 	public void operate(FlowProcess flowProcess, BufferCall<NullContext> bufferCall) {
         TupleEntry group = bufferCall.getGroup();
         String protocolAndDomain = group.getString(0);
 
+        // Start resolving the host now, while we're reading in the URLs and waiting
+        // for a free thread, so that ProcessRobotsTask typically gets a cached result.
+        prefetchHost(protocolAndDomain);
+        
         DiskQueue<GroupedUrlDatum> urls = new DiskQueue<GroupedUrlDatum>(MAX_URLS_IN_MEMORY);
         Iterator<TupleEntry> values = bufferCall.getArgumentsIterator();
         while (values.hasNext()) {
@@ -119,7 +221,7 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
         }
         
         try {
-            Runnable doRobots = new ProcessRobotsTask(protocolAndDomain, _scorer, urls, _fetcher, _parser, bufferCall.getOutputCollector(), _flowProcess);
+            Runnable doRobots = new ProcessRobotsTask(protocolAndDomain, _scorer, urls, _fetcher, bufferCall.getOutputCollector(), _flowProcess, _robotRulesFetcher);
             _executor.execute(doRobots);
         } catch (RejectedExecutionException e) {
             // should never happen.
@@ -23,6 +23,7 @@ import org.apache.log4j.Logger;
 
 import bixo.datum.UrlDatum;
 import bixo.hadoop.ImportCounters;
+import bixo.urls.ParsedUrl;
 import cascading.flow.FlowProcess;
 import cascading.operation.BaseOperation;
 import cascading.operation.Function;
@@ -62,8 +63,11 @@ public class LoadUrlsFunction extends BaseOperation<NullContext> implements Func
         }
         
         try {
-            // Validate the URL
-            new URL(url);
+            // Validate the URL. We only need to create a URL object for unusual URLs.
+            ParsedUrl parsedUrl = ParsedUrl.parse(url);
+            if ((parsedUrl == null) || !parsedUrl.isSimpleHttp()) {
+                new URL(url);
+            }
             
             UrlDatum urlDatum = new UrlDatum(url);
             funcCall.getOutputCollector().add(urlDatum.getTuple());
@@ -20,6 +20,8 @@ import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 
 import org.apache.log4j.Logger;
@@ -31,6 +33,9 @@ import bixo.fetcher.BaseFetcher;
 import bixo.hadoop.FetchCounters;
 import bixo.robots.BaseRobotRules;
 import bixo.robots.BaseRobotsParser;
+import bixo.robots.RobotRulesFetcher;
+import bixo.robots.RobotRulesFetcher.RobotRulesCallback;
+import bixo.robots.RobotRulesStore;
 import bixo.robots.RobotUtils;
 import bixo.utils.DomainInfo;
 import bixo.utils.DomainNames;
@@ -39,9 +44,12 @@ import cascading.tuple.TupleEntryCollector;
 
 import com.bixolabs.cascading.LoggingFlowProcess;
 
-public class ProcessRobotsTask implements Runnable {
+public class ProcessRobotsTask implements Runnable, RobotRulesCallback {
     private static final Logger LOGGER = Logger.getLogger(ProcessRobotsTask.class);
 
+    // Number of URLs we score (and emit) at a time, once we've got the robot rules.
+    private static final int SCORING_BATCH_SIZE = 100;
+    
     private String _protocolAndDomain;
     private BaseScoreGenerator _scorer;
     private Queue<GroupedUrlDatum> _urls;
@@ -49,9 +57,19 @@ public class ProcessRobotsTask implements Runnable {
     private TupleEntryCollector _collector;
     private BaseRobotsParser _parser;
     private LoggingFlowProcess _flowProcess;
+    private RobotRulesStore _robotRulesStore;
+    private RobotRulesFetcher _robotRulesFetcher;
+    
+    private DomainInfo _domainInfo;
+    private String _pld;
 
     public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
                     BaseRobotsParser parser, TupleEntryCollector collector, LoggingFlowProcess flowProcess) {
+        this(protocolAndDomain, scorer, urls, fetcher, parser, collector, flowProcess, (RobotRulesStore)null);
+    }
+    
+    public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
+                    BaseRobotsParser parser, TupleEntryCollector collector, LoggingFlowProcess flowProcess, RobotRulesStore robotRulesStore) {
         _protocolAndDomain = protocolAndDomain;
         _scorer = scorer;
         _urls = urls;
@@ -59,6 +77,19 @@ public class ProcessRobotsTask implements Runnable {
         _parser = parser;
         _collector = collector;
         _flowProcess = flowProcess;
+        _robotRulesStore = robotRulesStore;
+    }
+
+    /**
+     * Create a task that gets the robot rules via <robotRulesFetcher>, versus fetching
+     * robots.txt directly. If the rules aren't available right away, the task finishes
+     * without waiting for them, and the URLs get processed when the rules show up.
+     */
+    public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
+                    TupleEntryCollector collector, LoggingFlowProcess flowProcess, RobotRulesFetcher robotRulesFetcher) {
+        this(protocolAndDomain, scorer, urls, fetcher, null, collector, flowProcess, (RobotRulesStore)null);
+        
+        _robotRulesFetcher = robotRulesFetcher;
     }
 
     /**
@@ -92,20 +123,21 @@ public class ProcessRobotsTask implements Runnable {
     @Override
     public void run() {
         _flowProcess.increment(FetchCounters.DOMAINS_PROCESSING, 1);
-
+        boolean waitingForRules = false;
+        
         try {
-            DomainInfo domainInfo = new DomainInfo(_protocolAndDomain);
-            if (!domainInfo.isValidHostAddress()) {
+            _domainInfo = new DomainInfo(_protocolAndDomain, _fetcher.getDnsResolver());
+            if (!_domainInfo.isValidHostAddress()) {
                 throw new UnknownHostException(_protocolAndDomain);
             }
             
             if (LOGGER.isTraceEnabled()) {
-                LOGGER.trace(String.format("Resolved %s to %s", _protocolAndDomain, domainInfo.getHostAddress()));
+                LOGGER.trace(String.format("Resolved %s to %s", _protocolAndDomain, _domainInfo.getHostAddress()));
             }
             
-            String domain = domainInfo.getDomain();
-            String pld = DomainNames.getPLD(domain);
-            if (!_scorer.isGoodDomain(domain, pld)) {
+            String domain = _domainInfo.getDomain();
+            _pld = DomainNames.getPLD(domain);
+            if (!_scorer.isGoodDomain(domain, _pld)) {
                 _flowProcess.increment(FetchCounters.DOMAINS_SKIPPED, 1);
                 _flowProcess.increment(FetchCounters.URLS_SKIPPED, _urls.size());
                 
@@ -113,44 +145,14 @@ public class ProcessRobotsTask implements Runnable {
                 
                 emptyQueue(_urls, GroupingKey.SKIPPED_GROUPING_KEY, _collector);
             } else {
-                BaseRobotRules robotRules = RobotUtils.getRobotRules(_fetcher, _parser, new URL(domainInfo.getProtocolAndDomain() + "/robots.txt"));
-
-                String validKey = null;
-                boolean isDeferred = robotRules.isDeferVisits();
-                if (isDeferred) {
-                    LOGGER.debug("Deferring visits to URLs from " + domainInfo.getDomain());
-                    _flowProcess.increment(FetchCounters.DOMAINS_DEFERRED, 1);
+                URL robotsUrl = new URL(_domainInfo.getProtocolAndDomain() + "/robots.txt");
+                if (_robotRulesFetcher != null) {
+                    // We'll get called back (maybe right away, maybe by some other thread)
+                    // with the rules.
+                    waitingForRules = true;
+                    _robotRulesFetcher.getRobotRules(robotsUrl, _domainInfo.getHostAddress(), this);
                 } else {
-                    validKey = GroupingKey.makeGroupingKey(domainInfo.getHostAddress(), robotRules.getCrawlDelay());
-                    _flowProcess.increment(FetchCounters.DOMAINS_FINISHED, 1);
-                }
-
-                // Use the same key for every URL from this domain
-                GroupedUrlDatum datum;
-                while ((datum = _urls.poll()) != null) {
-                    ScoredUrlDatum scoreUrl;
-                    FetchCounters counter;
-                    String url = datum.getUrl();
-
-                    if (isDeferred) {
-                        counter = FetchCounters.URLS_DEFERRED;
-                        scoreUrl = new ScoredUrlDatum(url, GroupingKey.DEFERRED_GROUPING_KEY, UrlStatus.SKIPPED_DEFERRED, 0.0);
-                    } else if (!robotRules.isAllowed(url)) {
-                        counter = FetchCounters.URLS_BLOCKED;
-                        scoreUrl = new ScoredUrlDatum(url, GroupingKey.BLOCKED_GROUPING_KEY, UrlStatus.SKIPPED_BLOCKED, 0.0);
-                    } else {
-                        counter = FetchCounters.URLS_ACCEPTED;
-                        double score = _scorer.generateScore(domain, pld, datum);
-                        scoreUrl = new ScoredUrlDatum(url, validKey, UrlStatus.UNFETCHED, score);
-                    }
-                    
-                    scoreUrl.setPayload(datum.getPayload());
-                    _flowProcess.increment(counter, 1);
-
-                    // collectors aren't thread safe
-                    synchronized (_collector) {
-                        _collector.add(scoreUrl.getTuple());
-                    }
+                    processUrls(RobotUtils.getRobotRules(_fetcher, _parser, robotsUrl, _robotRulesStore));
                 }
             }
         } catch (UnknownHostException e) {
@@ -173,9 +175,107 @@ public class ProcessRobotsTask implements Runnable {
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
             _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
             emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+        } finally {
+            if (!waitingForRules) {
+                _flowProcess.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see bixo.robots.RobotRulesFetcher.RobotRulesCallback#onRobotRules(bixo.robots.BaseRobotRules)
+     * 
+     * Called by the RobotRulesFetcher when the rules for our domain are available.
+     */
+    @Override
+    public void onRobotRules(BaseRobotRules robotRules) {
+        try {
+            processUrls(robotRules);
+        } catch (Exception e) {
+            LOGGER.warn("Exception processing " + _protocolAndDomain, e);
+            _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
+            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
+            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
         } finally {
             _flowProcess.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
         }
     }
+    
+    private void processUrls(BaseRobotRules robotRules) {
+        String validKey = null;
+        boolean isDeferred = robotRules.isDeferVisits();
+        if (isDeferred) {
+            LOGGER.debug("Deferring visits to URLs from " + _domainInfo.getDomain());
+            _flowProcess.increment(FetchCounters.DOMAINS_DEFERRED, 1);
+        } else {
+            validKey = GroupingKey.makeGroupingKey(_domainInfo.getHostAddress(), robotRules.getCrawlDelay());
+            _flowProcess.increment(FetchCounters.DOMAINS_FINISHED, 1);
+        }
+
+        // Use the same key for every URL from this domain. We score the allowed URLs in
+        // batches, and output each batch in one go, so that we're not constantly fighting
+        // other threads for the collector.
+        List<ScoredUrlDatum> results = new ArrayList<ScoredUrlDatum>(SCORING_BATCH_SIZE);
+        List<GroupedUrlDatum> toScore = new ArrayList<GroupedUrlDatum>(SCORING_BATCH_SIZE);
+        
+        GroupedUrlDatum datum;
+        while ((datum = _urls.poll()) != null) {
+            String url = datum.getUrl();
+            ScoredUrlDatum scoreUrl = null;
+            
+            if (isDeferred) {
+                scoreUrl = new ScoredUrlDatum(url, GroupingKey.DEFERRED_GROUPING_KEY, UrlStatus.SKIPPED_DEFERRED, 0.0);
+            } else if (!robotRules.isAllowed(url)) {
+                scoreUrl = new ScoredUrlDatum(url, GroupingKey.BLOCKED_GROUPING_KEY, UrlStatus.SKIPPED_BLOCKED, 0.0);
+            } else {
+                toScore.add(datum);
+            }
+            
+            if (scoreUrl != null) {
+                scoreUrl.setPayload(datum.getPayload());
+                results.add(scoreUrl);
+            }
+            
+            if (results.size() + toScore.size() >= SCORING_BATCH_SIZE) {
+                emitBatch(results, toScore, validKey, isDeferred);
+            }
+        }
+        
+        emitBatch(results, toScore, validKey, isDeferred);
+    }
+    
+    private void emitBatch(List<ScoredUrlDatum> results, List<GroupedUrlDatum> toScore, String validKey, boolean isDeferred) {
+        int numBlockedOrDeferred = results.size();
+        if (!toScore.isEmpty()) {
+            double[] scores = _scorer.generateScores(_domainInfo.getDomain(), _pld, toScore);
+            for (int i = 0; i < scores.length; i++) {
+                GroupedUrlDatum datum = toScore.get(i);
+                ScoredUrlDatum scoreUrl = new ScoredUrlDatum(datum.getUrl(), validKey, UrlStatus.UNFETCHED, scores[i]);
+                scoreUrl.setPayload(datum.getPayload());
+                results.add(scoreUrl);
+            }
+        }
+        
+        if (results.isEmpty()) {
+            return;
+        }
+        
+        if (!toScore.isEmpty()) {
+            _flowProcess.increment(FetchCounters.URLS_ACCEPTED, toScore.size());
+        }
+        
+        if (numBlockedOrDeferred > 0) {
+            _flowProcess.increment(isDeferred ? FetchCounters.URLS_DEFERRED : FetchCounters.URLS_BLOCKED, numBlockedOrDeferred);
+        }
 
+        // collectors aren't thread safe
+        synchronized (_collector) {
+            for (ScoredUrlDatum scoreUrl : results) {
+                _collector.add(scoreUrl.getTuple());
+            }
+        }
+        
+        results.clear();
+        toScore.clear();
+    }
 }
@@ -125,7 +125,7 @@ public class UrlLengthener extends BaseOperation<NullContext> implements Functio
         _flowProcess = new LoggingFlowProcess((HadoopFlowProcess) flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
 
-        _executor = new ThreadedExecutor(_maxThreads, COMMAND_TIMEOUT);
+        _executor = new ThreadedExecutor(_maxThreads, COMMAND_TIMEOUT, _fetcher.isUseVirtualThreads());
     }
     
     @Override
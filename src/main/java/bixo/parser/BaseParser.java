@@ -43,6 +43,17 @@ public abstract class BaseParser implements Serializable {
 
     public abstract ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception;
 
+    /**
+     * Return true if parse() can be called by several threads at the same time, so
+     * callers can share one parser (and whatever it pools internally) rather than
+     * making a copy for each thread.
+     * 
+     * @return true if this parser is thread-safe, which by default it isn't.
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
     /**
      * Extract encoding from content-type
      * 
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import bixo.datum.FetchedDatum;
+import bixo.datum.ParsedDatum;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+
+/**
+ * Parses one document, and keeps track of how that went using the ParserCounters. This
+ * is shared by everything that parses in a Cascading operation (ParsePipe, and FetchBuffer
+ * when it's also parsing), so they all count and log the same way.
+ */
+public class ParseRunner {
+    private static final Logger LOGGER = Logger.getLogger(ParseRunner.class);
+
+    private ParseRunner() {
+        // Static methods only
+    }
+    
+    /**
+     * Parse <fetchedDatum> using <parser>, updating the counters for <process>.
+     * 
+     * @param parser
+     * @param fetchedDatum
+     * @param process
+     * @return parse result, or null if the document couldn't be parsed.
+     */
+    public static ParsedDatum parse(BaseParser parser, FetchedDatum fetchedDatum, LoggingFlowProcess process) {
+        long startTime = System.currentTimeMillis();
+        
+        try {
+            ParsedDatum result = parser.parse(fetchedDatum);
+            process.increment(ParserCounters.DOCUMENTS_PARSED, 1);
+            return result;
+        } catch (TimeoutException e) {
+            LOGGER.warn("Timeout processing " + fetchedDatum.getUrl());
+            process.increment(ParserCounters.DOCUMENTS_TIMED_OUT, 1);
+            process.increment(ParserCounters.DOCUMENTS_FAILED, 1);
+        } catch (Exception e) {
+            LOGGER.warn("Error processing " + fetchedDatum.getUrl(), e);
+            process.increment(ParserCounters.DOCUMENTS_FAILED, 1);
+        } finally {
+            long parseTime = System.currentTimeMillis() - startTime;
+            process.increment(ParserCounters.PARSE_TIME, (int)parseTime);
+            process.increment(ParserCounters.getParseTimeCounter(parseTime), 1);
+        }
+        
+        return null;
+    }
+}
@@ -18,5 +18,34 @@ package bixo.parser;
 
 public enum ParserCounters {
     DOCUMENTS_PARSED,   // successfully parsed a document.
-    DOCUMENTS_FAILED    // failed to parse a document
+    DOCUMENTS_FAILED,   // failed to parse a document
+    DOCUMENTS_TIMED_OUT,    // took longer than max parse duration (incl. in DOCUMENTS_FAILED)
+    
+    PARSE_TIME,         // total time in milliseconds spent parsing
+    
+    // Parse time histogram. Unlike percentiles calculated per task, these add up correctly
+    // across tasks, so the job's parse time percentiles can be derived from them.
+    PARSE_TIME_UNDER_10MS,
+    PARSE_TIME_UNDER_100MS,
+    PARSE_TIME_UNDER_1S,
+    PARSE_TIME_UNDER_10S,
+    PARSE_TIME_OVER_10S;
+    
+    /**
+     * @param parseTime time in milliseconds
+     * @return the histogram counter to increment for <parseTime>
+     */
+    public static ParserCounters getParseTimeCounter(long parseTime) {
+        if (parseTime < 10) {
+            return PARSE_TIME_UNDER_10MS;
+        } else if (parseTime < 100) {
+            return PARSE_TIME_UNDER_100MS;
+        } else if (parseTime < 1000) {
+            return PARSE_TIME_UNDER_1S;
+        } else if (parseTime < 10000) {
+            return PARSE_TIME_UNDER_10S;
+        } else {
+            return PARSE_TIME_OVER_10S;
+        }
+    }
 }
@@ -21,11 +21,21 @@ import java.io.InputStream;
 import java.io.Serializable;
 import java.net.URL;
 import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.lang.SerializationException;
+import org.apache.commons.lang.SerializationUtils;
 import org.apache.log4j.Logger;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.AutoDetectParser;
@@ -33,6 +43,7 @@ import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
 import org.apache.tika.parser.html.HtmlMapper;
 import org.apache.tika.parser.html.IdentityHtmlMapper;
+import org.xml.sax.ContentHandler;
 
 import bixo.config.ParserPolicy;
 import bixo.datum.FetchedDatum;
@@ -56,11 +67,105 @@ public class SimpleParser extends BaseParser {
         }
     }
 
+    /**
+     * A thread that runs Tika for us, with its own copies of the content and link
+     * extractors (which aren't thread-safe). Workers are reused for many documents,
+     * unless a parse times out, in which case the worker is thrown away since we
+     * can't be sure that Tika will ever give the thread back.
+     */
+    private class ParserWorker {
+        private ExecutorService _executor;
+        private BaseContentExtractor _workerContentExtractor;
+        private BaseLinkExtractor _workerLinkExtractor;
+        private ParseContext _workerParseContext;
+        
+        // Built once from the extractors, versus for every document. The profiling handler
+        // is null if we're not detecting the language.
+        private TikaCallable.LanguageProfilingHandler _workerProfilingHandler;
+        private ContentHandler _workerContentHandler;
+        
+        public ParserWorker() {
+            _executor = Executors.newSingleThreadExecutor(WORKER_THREAD_FACTORY);
+            
+            if (takeOriginalExtractors()) {
+                _workerContentExtractor = _contentExtractor;
+                _workerLinkExtractor = _linkExtractor;
+            } else {
+                try {
+                    _workerContentExtractor = (BaseContentExtractor)SerializationUtils.clone(_contentExtractor);
+                    _workerLinkExtractor = (BaseLinkExtractor)SerializationUtils.clone(_linkExtractor);
+                } catch (SerializationException e) {
+                    LOGGER.warn("Can't copy content/link extractors, so parser workers will share them", e);
+                    _workerContentExtractor = _contentExtractor;
+                    _workerLinkExtractor = _linkExtractor;
+                }
+            }
+            
+            _workerLinkExtractor.setLinkTags(getParserPolicy().getLinkTags());
+            _workerLinkExtractor.setLinkAttributeTypes(getParserPolicy().getLinkAttributeTypes());
+            
+            // The parse context only depends on the link extractor, so we only need to make it once.
+            _workerParseContext = (_parseContext != null) ? _parseContext : TikaCallable.makeParseContext(_workerLinkExtractor);
+            
+            makeContentHandler();
+        }
+        
+        private void makeContentHandler() {
+            _workerProfilingHandler = isExtractLanguage() ? new TikaCallable.LanguageProfilingHandler() : null;
+            _workerContentHandler = TikaCallable.makeContentHandler(_workerContentExtractor, _workerLinkExtractor, _workerProfilingHandler);
+        }
+        
+        public ParsedDatum parse(InputStream is, Metadata metadata) throws Exception {
+            // Language detection can be turned on or off after we were created.
+            if (isExtractLanguage() != (_workerProfilingHandler != null)) {
+                makeContentHandler();
+            } else if (_workerProfilingHandler != null) {
+                _workerProfilingHandler.reset();
+            }
+            
+            _workerContentExtractor.reset();
+            _workerLinkExtractor.reset();
+            
+            Callable<ParsedDatum> c = new TikaCallable(_parser, _workerContentExtractor, _workerLinkExtractor, _workerContentHandler,
+                            _workerProfilingHandler, is, metadata, _workerParseContext);
+            Future<ParsedDatum> task = _executor.submit(c);
+            
+            try {
+                return task.get(getParserPolicy().getMaxParseDuration(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                task.cancel(true);
+                throw e;
+            }
+        }
+        
+        public void terminate() {
+            _executor.shutdownNow();
+        }
+    }
+    
+    private static final ThreadFactory WORKER_THREAD_FACTORY = new ThreadFactory() {
+        private AtomicInteger _threadNumber = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            // Daemon, so that a worker that's stuck in Tika can't keep the JVM alive.
+            Thread result = new Thread(r, "bixo-parser-" + _threadNumber.incrementAndGet());
+            result.setDaemon(true);
+            return result;
+        }
+    };
+    
+    public static final int DEFAULT_MAX_WORKERS = Runtime.getRuntime().availableProcessors();
+    
     private boolean _extractLanguage = true;
+    private int _maxWorkers = DEFAULT_MAX_WORKERS;
     protected BaseContentExtractor _contentExtractor;
     protected BaseLinkExtractor _linkExtractor;
     protected ParseContext _parseContext;
     private transient Parser _parser;
+    private transient BlockingQueue<ParserWorker> _idleWorkers;
+    private transient Semaphore _workerPermits;
+    private transient boolean _originalExtractorsTaken;
     
     public SimpleParser() {
         this(new ParserPolicy());
@@ -144,10 +249,10 @@ public class SimpleParser extends BaseParser {
             _parser = getTikaParser();
         }
         
-        _contentExtractor.reset();
-        _linkExtractor.setLinkTags(getParserPolicy().getLinkTags());
-        _linkExtractor.setLinkAttributeTypes(getParserPolicy().getLinkAttributeTypes());
-        _linkExtractor.reset();
+        if (_idleWorkers == null) {
+            _idleWorkers = new LinkedBlockingQueue<ParserWorker>();
+            _workerPermits = new Semaphore(_maxWorkers);
+        }
     }
 
     public Parser getTikaParser() {
@@ -162,6 +267,71 @@ public class SimpleParser extends BaseParser {
         return _extractLanguage;
     }
     
+    /**
+     * Set the max number of documents that can be parsed at the same time, by
+     * different threads calling parse(). Each one uses a worker thread that's
+     * reused for subsequent documents.
+     * 
+     * @param maxWorkers
+     */
+    public void setMaxWorkers(int maxWorkers) {
+        _maxWorkers = maxWorkers;
+    }
+    
+    public int getMaxWorkers() {
+        return _maxWorkers;
+    }
+    
+    /**
+     * The first worker uses our own content & link extractors, and any others get
+     * copies. If that worker gets thrown away, its thread might still be using them,
+     * so from then on every new worker gets copies.
+     * 
+     * @return true if the caller should use the original extractors.
+     */
+    private synchronized boolean takeOriginalExtractors() {
+        boolean result = !_originalExtractorsTaken;
+        _originalExtractorsTaken = true;
+        return result;
+    }
+    
+    private ParserWorker acquireWorker() throws InterruptedException {
+        _workerPermits.acquire();
+        
+        ParserWorker result = _idleWorkers.poll();
+        if (result == null) {
+            try {
+                result = new ParserWorker();
+            } catch (RuntimeException e) {
+                _workerPermits.release();
+                throw e;
+            }
+        }
+        
+        return result;
+    }
+    
+    private void releaseWorker(ParserWorker worker, boolean reusable) {
+        if (reusable) {
+            _idleWorkers.add(worker);
+        } else {
+            // The thread might be stuck, so we'll create a new worker when one is needed.
+            worker.terminate();
+        }
+        
+        _workerPermits.release();
+    }
+    
+    /* (non-Javadoc)
+     * @see bixo.parser.BaseParser#isThreadSafe()
+     * 
+     * Each concurrent parse() call gets its own worker, with its own extractors.
+     */
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+    
     @Override
     public ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception {
         init();
@@ -183,20 +353,19 @@ public class SimpleParser extends BaseParser {
         	URL baseUrl = getContentLocation(fetchedDatum);
         	metadata.add(Metadata.CONTENT_LOCATION, baseUrl.toExternalForm());
 
-            Callable<ParsedDatum> c = new TikaCallable(_parser, _contentExtractor, _linkExtractor, is, metadata, isExtractLanguage(), _parseContext);
-            FutureTask<ParsedDatum> task = new FutureTask<ParsedDatum>(c);
-            Thread t = new Thread(task);
-            t.start();
-            
             ParsedDatum result;
+            ParserWorker worker = acquireWorker();
+            boolean reusable = false;
+            
             try {
-                result = task.get(getParserPolicy().getMaxParseDuration(), TimeUnit.MILLISECONDS);
-            } catch (TimeoutException e) {
-                task.cancel(true);
-                t.interrupt();
+                result = worker.parse(is, metadata);
+                reusable = true;
+            } catch (ExecutionException e) {
+                // Parsing failed, but the worker is fine.
+                reusable = true;
                 throw e;
             } finally {
-                t = null;
+                releaseWorker(worker, reusable);
             }
             
             // TODO KKr Should there be a BaseParser to take care of copying
@@ -26,13 +26,15 @@ import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 import org.apache.tika.language.LanguageIdentifier;
-import org.apache.tika.language.ProfilingHandler;
+import org.apache.tika.language.ProfilingWriter;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
 import org.apache.tika.parser.html.DefaultHtmlMapper;
 import org.apache.tika.parser.html.HtmlMapper;
 import org.apache.tika.sax.TeeContentHandler;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.helpers.DefaultHandler;
 
 import bixo.datum.ParsedDatum;
 
@@ -72,6 +74,32 @@ class TikaCallable implements Callable<ParsedDatum> {
         }
     }
 
+    /**
+     * Does the same thing as Tika's ProfilingHandler, but can be reset, so that a parser
+     * worker can use the same one for every document.
+     */
+    static class LanguageProfilingHandler extends DefaultHandler {
+        private ProfilingWriter _writer = new ProfilingWriter();
+        
+        public void reset() {
+            _writer = new ProfilingWriter();
+        }
+        
+        public LanguageIdentifier getLanguage() {
+            return _writer.getLanguage();
+        }
+        
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            _writer.write(ch, start, length);
+        }
+        
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) {
+            _writer.write(ch, start, length);
+        }
+    }
+    
     // Simplistic language code pattern used when there are more than one languages specified
     // FUTURE KKr - improve this to handle en-US, and "eng" for those using old-style language codes.
     private static final Pattern LANGUAGE_CODE_PATTERN = Pattern.compile("([a-z]{2})([,;-]).*");
@@ -79,9 +107,10 @@ class TikaCallable implements Callable<ParsedDatum> {
     private Parser _parser;
     private BaseContentExtractor _contentExtractor;
     private BaseLinkExtractor _linkExtractor;
+    private ContentHandler _contentHandler;
+    private LanguageProfilingHandler _profilingHandler;
     private InputStream _input;
     private Metadata _metadata;
-    private boolean _extractLanguage;
     private ParseContext _parseContext;
     
     public TikaCallable(Parser parser, BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, InputStream input, Metadata metadata) {
@@ -89,39 +118,44 @@ class TikaCallable implements Callable<ParsedDatum> {
     }
 
     public TikaCallable(Parser parser, BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, InputStream input, Metadata metadata, boolean extractLanguage) {
-        this(parser, contentExtractor, linkExtractor, input, metadata, true, null);
- 
+        this(parser, contentExtractor, linkExtractor, input, metadata, extractLanguage, null);
     }
     
     public TikaCallable(Parser parser, BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, InputStream input, Metadata metadata, boolean extractLanguage, ParseContext parseContext) {
+        this(parser, contentExtractor, linkExtractor, extractLanguage ? new LanguageProfilingHandler() : null, input, metadata, parseContext);
+    }
+    
+    private TikaCallable(Parser parser, BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, LanguageProfilingHandler profilingHandler, InputStream input, Metadata metadata, ParseContext parseContext) {
+        this(parser, contentExtractor, linkExtractor, makeContentHandler(contentExtractor, linkExtractor, profilingHandler), profilingHandler, input, metadata, parseContext);
+    }
+    
+    /**
+     * Parse using <contentHandler>, which was made by makeContentHandler() from the same
+     * extractors and profiling handler. This lets a caller that parses many documents
+     * reuse all of them, as long as it resets them before each document.
+     * 
+     * @param profilingHandler handler for detecting the language, or null to not do that
+     */
+    TikaCallable(Parser parser, BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, ContentHandler contentHandler, LanguageProfilingHandler profilingHandler, InputStream input, Metadata metadata, ParseContext parseContext) {
         _parser = parser;
         _contentExtractor = contentExtractor;
         _linkExtractor = linkExtractor;
+        _contentHandler = contentHandler;
+        _profilingHandler = profilingHandler;
         _input = input;
         _metadata = metadata;
-        _extractLanguage = extractLanguage;
         _parseContext = parseContext;
     }
     
     @Override
     public ParsedDatum call() throws Exception {
         try {
-            TeeContentHandler teeContentHandler;
-            ProfilingHandler profilingHandler = null;
-            
-            if (_extractLanguage) {
-                profilingHandler = new ProfilingHandler();
-                teeContentHandler = new TeeContentHandler(_contentExtractor, _linkExtractor, profilingHandler);
-            } else {
-                teeContentHandler = new TeeContentHandler(_contentExtractor, _linkExtractor);
-            }
-
             if (_parseContext == null) {
-                _parseContext = makeParseContext();
+                _parseContext = makeParseContext(_linkExtractor);
             }
-            _parser.parse(_input, teeContentHandler, _metadata, _parseContext);
+            _parser.parse(_input, _contentHandler, _metadata, _parseContext);
             
-            String lang = _extractLanguage ? detectLanguage(_metadata, profilingHandler) : "";
+            String lang = (_profilingHandler != null) ? detectLanguage(_metadata, _profilingHandler) : "";
             return new ParsedDatum(_metadata.get(Metadata.RESOURCE_NAME_KEY), null, _contentExtractor.getContent(), lang,
                             _metadata.get(Metadata.TITLE),
                             _linkExtractor.getLinks(), makeMap(_metadata));
@@ -136,20 +170,35 @@ class TikaCallable implements Callable<ParsedDatum> {
         }
     }
     
+    /**
+     * @param contentExtractor
+     * @param linkExtractor
+     * @param profilingHandler handler for detecting the language, or null
+     * @return handler that passes everything Tika parses to all of these.
+     */
+    static ContentHandler makeContentHandler(BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, LanguageProfilingHandler profilingHandler) {
+        if (profilingHandler != null) {
+            return new TeeContentHandler(contentExtractor, linkExtractor, profilingHandler);
+        } else {
+            return new TeeContentHandler(contentExtractor, linkExtractor);
+        }
+    }
+    
     /**
      * Decide if we need to set up our own HtmlMapper, because the link extractor has tags that
      * aren't part of the default set.
      * 
-     * @return
+     * @param linkExtractor
+     * @return context to use when parsing
      */
-    private ParseContext makeParseContext() {
+    static ParseContext makeParseContext(BaseLinkExtractor linkExtractor) {
         ParseContext result = new ParseContext();
 
-        Set<String> validTags = _linkExtractor.getLinkTags();
+        Set<String> validTags = linkExtractor.getLinkTags();
         HtmlMapper defaultMapper = DefaultHtmlMapper.INSTANCE;
         for (String tag : validTags) {
             if (defaultMapper.mapSafeElement(tag) == null) {
-                result.set(HtmlMapper.class, new CustomHtmlMapper(validTags, _linkExtractor.getLinkAttributeTypes()));
+                result.set(HtmlMapper.class, new CustomHtmlMapper(validTags, linkExtractor.getLinkAttributeTypes()));
                 break;
             }
         }
@@ -159,13 +208,13 @@ class TikaCallable implements Callable<ParsedDatum> {
 
     /**
      * See if a language was set by the parser, from meta tags.
-     * As a last resort falls back to the result from the ProfilingHandler.
+     * As a last resort falls back to the result from the profiling handler.
      *  
      * @param metadata
      * @param profilingHandler
      * @return The first language found (two char lang code) or empty string if no language was detected.
      */
-    private static String detectLanguage(Metadata metadata, ProfilingHandler profilingHandler) {
+    private static String detectLanguage(Metadata metadata, LanguageProfilingHandler profilingHandler) {
         String result = null;
         
         String dubCoreLang = metadata.get(Metadata.LANGUAGE);
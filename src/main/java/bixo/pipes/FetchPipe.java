@@ -26,6 +26,7 @@ import bixo.config.DefaultFetchJobPolicy;
 import bixo.datum.FetchSetDatum;
 import bixo.datum.FetchedDatum;
 import bixo.datum.GroupedUrlDatum;
+import bixo.datum.ParsedDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.datum.StatusDatum;
 import bixo.datum.UrlDatum;
@@ -38,7 +39,9 @@ import bixo.operations.FetchBuffer;
 import bixo.operations.FilterAndScoreByUrlAndRobots;
 import bixo.operations.GroupFunction;
 import bixo.operations.MakeFetchSetsBuffer;
+import bixo.parser.BaseParser;
 import bixo.robots.BaseRobotsParser;
+import bixo.robots.RobotRulesStore;
 import bixo.robots.RobotUtils;
 import bixo.robots.SimpleRobotRulesParser;
 import bixo.utils.GroupingKey;
@@ -71,6 +74,12 @@ public class FetchPipe extends SubAssembly {
     // Pipe that outputs StatusDatum tuples, for all URLs being processed.
     public static final String STATUS_PIPE_NAME = "FetchPipe-status";
     
+    // Pipe that outputs ParsedDatum tuples, for URLs that were fetched and parsed (only
+    // if a parser was provided).
+    public static final String PARSED_PIPE_NAME = "FetchPipe-parsed";
+    
+    private FilterAndScoreByUrlAndRobots _robotsFilter;
+    
     /**
      * Generate key using protocol+host+port, which is what we need in order
      * to safely fetch robots.txt files.
@@ -137,6 +146,26 @@ public class FetchPipe extends SubAssembly {
         }
     }
 
+    private static class ExtractParsedFunction extends BaseOperation<NullContext> implements Function<NullContext> {
+        private int _fieldPos;
+        
+        // Only output ParsedDatum tuples for input where we were able to fetch and parse the URL.
+        public ExtractParsedFunction() {
+            super(ParsedDatum.FIELDS);
+            
+            // Location of extra field added during fetch, that contains the parse result
+            _fieldPos = FetchedDatum.FIELDS.size() + 1;
+        }
+
+        @Override
+        public void operate(FlowProcess process, FunctionCall<NullContext> funcCall) {
+            Object parseResult = funcCall.getArguments().getTuple().getObject(_fieldPos);
+            if (parseResult != null) {
+                funcCall.getOutputCollector().add((Tuple)parseResult);
+            }
+        }
+    }
+
     private static class MakeStatusFunction extends BaseOperation<NullContext> implements Function<NullContext> {
         private int _fieldPos;
         
@@ -167,9 +196,17 @@ public class FetchPipe extends SubAssembly {
                 UrlStatus urlStatus = UrlStatus.valueOf((String)result);
                 if (urlStatus == UrlStatus.FETCHED) {
                     status = new StatusDatum(fd.getUrl(), fd.getHeaders(), fd.getHostAddress(), fd.getPayload());
+                } else if (urlStatus == UrlStatus.NOT_MODIFIED) {
+                    status = new StatusDatum(fd.getUrl(), urlStatus, fd.getHeaders(), null, System.currentTimeMillis(), fd.getHostAddress(), fd.getPayload());
                 } else {
                     status = new StatusDatum(fd.getUrl(), urlStatus, fd.getPayload());
                 }
+                
+                // Carry the validators forward in the payload, so that when the status is used
+                // to update the crawl DB, the next fetch of this URL can be conditional.
+                if ((urlStatus == UrlStatus.FETCHED) || (urlStatus == UrlStatus.NOT_MODIFIED)) {
+                    BaseFetcher.setValidators(status, fd.getHeaders());
+                }
             } else if (result instanceof BaseFetchException) {
                 status = new StatusDatum(fd.getUrl(), (BaseFetchException)result, fd.getPayload());
             } else {
@@ -226,10 +263,32 @@ public class FetchPipe extends SubAssembly {
     
     public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
                     BaseFetchJobPolicy fetchJobPolicy, int numReducers) {
+        this(urlProvider, scorer, fetcher, robotsFetcher, parser, fetchJobPolicy, numReducers, null, 0);
+    }
+    
+    /**
+     * Generate an assembly that will fetch all of the UrlDatum tuples coming out of urlProvider,
+     * and also parse the fetched content in the same reducer, using <numParserThreads> threads
+     * so that parsing runs at the same time as fetching. This replaces a separate ParsePipe,
+     * and the ParsedDatum tuples are available from getParsedTailPipe().
+     * 
+     * @param urlProvider
+     * @param scorer
+     * @param fetcher
+     * @param robotsFetcher
+     * @param parser robots.txt parser
+     * @param fetchJobPolicy
+     * @param numReducers
+     * @param contentParser parser for fetched content, or null to only fetch
+     * @param numParserThreads number of threads to use for parsing
+     */
+    public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
+                    BaseFetchJobPolicy fetchJobPolicy, int numReducers, BaseParser contentParser, int numParserThreads) {
         
         Pipe robotsPipe = new Each(urlProvider, new GroupFunction(new GroupByDomain()));
         robotsPipe = new GroupBy("Grouping URLs by IP/delay", robotsPipe, GroupedUrlDatum.getGroupingField());
-        robotsPipe = new Every(robotsPipe, new FilterAndScoreByUrlAndRobots(robotsFetcher, parser, scorer), Fields.RESULTS);
+        _robotsFilter = new FilterAndScoreByUrlAndRobots(robotsFetcher, parser, scorer);
+        robotsPipe = new Every(robotsPipe, _robotsFilter, Fields.RESULTS);
         
         // Split into records for URLs that are special (not fetchable) and regular
         SplitterAssembly splitter = new SplitterAssembly(robotsPipe, new SplitIntoSpecialAndRegularKeys());
@@ -242,7 +301,7 @@ public class FetchPipe extends SubAssembly {
         
         prefetchPipe = new Every(prefetchPipe, new MakeFetchSetsBuffer(fetchJobPolicy, numReducers), Fields.RESULTS);
         Pipe fetchPipe = new GroupBy("Fetching URL sets", prefetchPipe, FetchSetDatum.getGroupingField(), FetchSetDatum.getSortingField());
-        fetchPipe = new Every(fetchPipe, new FetchBuffer(fetcher), Fields.RESULTS);
+        fetchPipe = new Every(fetchPipe, new FetchBuffer(fetcher, contentParser, numParserThreads), Fields.RESULTS);
 
         Pipe fetchedContent = new Pipe(CONTENT_PIPE_NAME, new Each(fetchPipe, new FilterErrorsFunction()));
 
@@ -257,9 +316,24 @@ public class FetchPipe extends SubAssembly {
         // group name here for BaseTool.nameFlowSteps to use for the job name.
         Pipe joinedStatus = new GroupBy(STATUS_PIPE_NAME, Pipe.pipes(skippedStatus, fetchedStatus), new Fields(StatusDatum.URL_FN));
 
-        setTails(fetchedContent, joinedStatus);
+        if (contentParser == null) {
+            setTails(fetchedContent, joinedStatus);
+        } else {
+            Pipe parsedContent = new Pipe(PARSED_PIPE_NAME, new Each(fetchPipe, new ExtractParsedFunction()));
+            setTails(fetchedContent, joinedStatus, parsedContent);
+        }
     }
 
+    /**
+     * Use previously fetched robot rules from <store> (and save updated rules there), versus
+     * always fetching robots.txt. This has to be called before the flow is created.
+     * 
+     * @param store
+     */
+    public void setRobotRulesStore(RobotRulesStore store) {
+        _robotsFilter.setRobotRulesStore(store);
+    }
+    
     public Pipe getContentTailPipe() {
         return getTailPipe(CONTENT_PIPE_NAME);
     }
@@ -268,6 +342,10 @@ public class FetchPipe extends SubAssembly {
         return getTailPipe(STATUS_PIPE_NAME);
     }
     
+    public Pipe getParsedTailPipe() {
+        return getTailPipe(PARSED_PIPE_NAME);
+    }
+    
     private Pipe getTailPipe(String pipeName) {
         String[] pipeNames = getTailNames();
         for (int i = 0; i < pipeNames.length; i++) {
@@ -303,4 +381,24 @@ public class FetchPipe extends SubAssembly {
         
         return result;
     }
+    
+    /**
+     * Same as makeSinkMap(statusSink, fetchedSink), but for a FetchPipe that also parses
+     * the fetched content.
+     * 
+     * @param statusSink Tap where status will be sent (can be null)
+     * @param fetchedSink Tap where fetched content will be sent (can be null)
+     * @param parsedSink Tap where parsed content will be sent (can be null)
+     * @return Map usable in FlowConnector.connect() call.
+     */
+    public static Map<String, Tap> makeSinkMap(Tap statusSink, Tap fetchedSink, Tap parsedSink) {
+        Map<String, Tap> result = makeSinkMap(statusSink, fetchedSink);
+        
+        if (parsedSink == null) {
+            parsedSink = new NullSinkTap(ParsedDatum.FIELDS);
+        }
+        
+        result.put(PARSED_PIPE_NAME, parsedSink);
+        return result;
+    }
 }
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.pipes;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import bixo.datum.FetchedDatum;
+import bixo.datum.StatusDatum;
+import bixo.datum.UrlStatus;
+import bixo.urls.BaseUrlNormalizer;
+import bixo.urls.SimpleUrlNormalizer;
+import bixo.utils.HttpUtils;
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Buffer;
+import cascading.operation.BufferCall;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
+import cascading.pipe.Each;
+import cascading.pipe.Every;
+import cascading.pipe.GroupBy;
+import cascading.pipe.Pipe;
+import cascading.pipe.SubAssembly;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
+
+import com.bixolabs.cascading.NullContext;
+
+/**
+ * Mine the results of a crawl (the status and content tail pipes of a FetchPipe) for
+ * query parameters that never change what a host returns, and so can be dropped.
+ * 
+ * For each query parameter of each (normalized) URL, we group together all of the URLs
+ * that are the same except for the value of that parameter. If a group has at least
+ * two different values, and they all returned the same content, that's evidence the
+ * parameter can be dropped. If they returned different content, or some of them got
+ * a client error (e.g. 404), then the parameter matters. A parameter with at least
+ * <minSameContent> groups of evidence, and nothing against it, becomes a rule.
+ * 
+ * Pages often include things that change with every fetch, or that echo the URL, so
+ * text content is compared after removing the page's URL and query parameter values,
+ * timestamps, and long tokens that look like session IDs (see normalizeContent()).
+ * 
+ * The tail pipe has RULE_FIELDS, which can be used to build UrlParameterRules.
+ */
+@SuppressWarnings("serial")
+public class MineUrlParameterRulesPipe extends SubAssembly {
+
+    public static final String RULES_PIPE_NAME = "MineUrlParameterRulesPipe-rules";
+    
+    public static final int DEFAULT_MIN_SAME_CONTENT = 2;
+    
+    public static final String HOST_FN = "MineUrlParameterRulesPipe-host";
+    public static final String PARAMETER_FN = "MineUrlParameterRulesPipe-parameter";
+    public static final String NUM_SAME_FN = "MineUrlParameterRulesPipe-numSame";
+    public static final String NUM_DIFFERENT_FN = "MineUrlParameterRulesPipe-numDifferent";
+    
+    public static final Fields RULE_FIELDS = new Fields(HOST_FN, PARAMETER_FN, NUM_SAME_FN, NUM_DIFFERENT_FN);
+    
+    private static final String KEY_FN = "MineUrlParameterRulesPipe-key";
+    private static final String VALUE_FN = "MineUrlParameterRulesPipe-value";
+    private static final String SIGNATURE_FN = "MineUrlParameterRulesPipe-signature";
+    
+    private static final Fields PARAMETER_FIELDS = new Fields(HOST_FN, PARAMETER_FN, KEY_FN, VALUE_FN, SIGNATURE_FN);
+    
+    private static final String CONTENT_SIGNATURE_PREFIX = "content:";
+    private static final String STATUS_SIGNATURE_PREFIX = "status:";
+    
+    // Status values that tell us a parameter value mattered, since the server
+    // rejected it. Server errors and aborted fetches don't tell us anything.
+    private static final Set<UrlStatus> CLIENT_ERROR_STATUSES = EnumSet.of(UrlStatus.HTTP_CLIENT_ERROR,
+                    UrlStatus.HTTP_UNAUTHORIZED, UrlStatus.HTTP_FORBIDDEN, UrlStatus.HTTP_NOT_FOUND, UrlStatus.HTTP_GONE);
+    
+    // Query parameter values that are shorter than this are too likely to also be
+    // regular text, so we don't remove them from the content.
+    private static final int MIN_ECHOED_VALUE_LENGTH = 4;
+    
+    // Dates, times, long numbers (Unix timestamps, counters), and long tokens with both
+    // letters and digits (session IDs, cache busters).
+    private static final String TOKEN_CHARS = "[0-9A-Za-z_\\-]";
+    private static final Pattern NOISE_PATTERN = Pattern.compile("\\d{4}-\\d{1,2}-\\d{1,2}"
+                    + "|\\d{1,2}:\\d{2}(:\\d{2}(\\.\\d+)?)?"
+                    + "|\\d{8,}"
+                    + "|(?<!" + TOKEN_CHARS + ")(?=" + TOKEN_CHARS + "*\\d)(?=" + TOKEN_CHARS + "*[A-Za-z])" + TOKEN_CHARS + "{16,}(?!" + TOKEN_CHARS + ")");
+    private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+    
+    /**
+     * Return the content of <datum> with the things that often differ between two
+     * fetches of the same page removed: the page's URL and the values of its query
+     * parameters, dates and times, long numbers, and long tokens of mixed letters and
+     * digits. Runs of whitespace are collapsed.
+     * 
+     * We only use the result for comparing pages, so the content is decoded as
+     * ISO-8859-1, which leaves any ASCII-compatible charset's markup and digits intact.
+     * 
+     * @param datum
+     * @return normalized content, or null if it's not text.
+     */
+    static String normalizeContent(FetchedDatum datum) {
+        String mimeType = HttpUtils.getMimeTypeFromContentType(datum.getContentType());
+        if (!mimeType.startsWith("text/") && !mimeType.contains("xml") && !mimeType.contains("json")) {
+            return null;
+        }
+        
+        String content;
+        try {
+            content = new String(datum.getContentBytes(), 0, datum.getContentLength(), "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Impossible exception", e);
+        }
+        
+        for (String url : new String[] { datum.getUrl(), datum.getFetchedUrl() }) {
+            if (url == null) {
+                continue;
+            }
+            
+            content = content.replace(url, "").replace(url.replace("&", "&amp;"), "");
+            
+            int queryStart = url.indexOf('?');
+            if (queryStart == -1) {
+                continue;
+            }
+            
+            for (String parameter : url.substring(queryStart + 1).split("[&#]")) {
+                int equalsOffset = parameter.indexOf('=');
+                String value = parameter.substring(equalsOffset + 1);
+                if ((equalsOffset != -1) && (value.length() >= MIN_ECHOED_VALUE_LENGTH)) {
+                    content = content.replace(value, "");
+                }
+            }
+        }
+        
+        content = NOISE_PATTERN.matcher(content).replaceAll("");
+        return WHITESPACE_PATTERN.matcher(content).replaceAll(" ").trim();
+    }
+    
+    /**
+     * Emit one tuple for each query parameter in <url>, with the URL minus that
+     * parameter as the key for finding variants of the URL.
+     */
+    private static void emitParameters(String url, String signature, TupleEntryCollector collector) {
+        int queryStart = url.indexOf('?');
+        int hostStart = url.indexOf("://");
+        if ((queryStart == -1) || (hostStart == -1) || (hostStart > queryStart)) {
+            return;
+        }
+        
+        hostStart += "://".length();
+        int hostEnd = hostStart;
+        while ((hostEnd < queryStart) && ("/:#".indexOf(url.charAt(hostEnd)) == -1)) {
+            hostEnd += 1;
+        }
+        
+        String host = url.substring(hostStart, hostEnd).toLowerCase();
+        
+        int queryEnd = url.indexOf('#', queryStart);
+        if (queryEnd == -1) {
+            queryEnd = url.length();
+        }
+        
+        String[] parameters = url.substring(queryStart + 1, queryEnd).split("&");
+        for (int i = 0; i < parameters.length; i++) {
+            String parameter = parameters[i];
+            if (parameter.length() == 0) {
+                continue;
+            }
+            
+            int equalsOffset = parameter.indexOf('=');
+            String name = equalsOffset == -1 ? parameter : parameter.substring(0, equalsOffset);
+            String value = equalsOffset == -1 ? "" : parameter.substring(equalsOffset + 1);
+            
+            StringBuilder key = new StringBuilder(url.length());
+            key.append(url, 0, queryStart);
+            for (int j = 0; j < parameters.length; j++) {
+                if ((j != i) && (parameters[j].length() > 0)) {
+                    key.append(key.length() == queryStart ? '?' : '&');
+                    key.append(parameters[j]);
+                }
+            }
+            
+            key.append(url, queryEnd, url.length());
+            collector.add(new Tuple(host, name, key.toString(), value, signature));
+        }
+    }
+    
+    private static class ExtractContentParameters extends BaseOperation<NullContext> implements Function<NullContext> {
+        
+        private BaseUrlNormalizer _normalizer;
+        
+        private transient MessageDigest _digest;
+        
+        public ExtractContentParameters(BaseUrlNormalizer normalizer) {
+            super(PARAMETER_FIELDS);
+            
+            _normalizer = normalizer;
+        }
+        
+        @Override
+        public void prepare(FlowProcess flowProcess, OperationCall<NullContext> operationCall) {
+            super.prepare(flowProcess, operationCall);
+            
+            try {
+                _digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("MD5 digest not available", e);
+            }
+        }
+        
+        @Override
+        public void operate(FlowProcess flowProcess, FunctionCall<NullContext> functionCall) {
+            FetchedDatum datum = new FetchedDatum(functionCall.getArguments());
+            
+            _digest.reset();
+            String content = normalizeContent(datum);
+            if (content == null) {
+                _digest.update(datum.getContentBytes(), 0, datum.getContentLength());
+            } else {
+                try {
+                    _digest.update(content.getBytes("ISO-8859-1"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException("Impossible exception", e);
+                }
+            }
+            
+            String signature = CONTENT_SIGNATURE_PREFIX + new BigInteger(1, _digest.digest()).toString(16);
+            emitParameters(_normalizer.normalize(datum.getUrl()), signature, functionCall.getOutputCollector());
+        }
+    }
+    
+    private static class ExtractStatusParameters extends BaseOperation<NullContext> implements Function<NullContext> {
+        
+        private BaseUrlNormalizer _normalizer;
+        
+        public ExtractStatusParameters(BaseUrlNormalizer normalizer) {
+            super(PARAMETER_FIELDS);
+            
+            _normalizer = normalizer;
+        }
+        
+        @Override
+        public void operate(FlowProcess flowProcess, FunctionCall<NullContext> functionCall) {
+            StatusDatum datum = new StatusDatum(functionCall.getArguments());
+            UrlStatus status = datum.getStatus();
+            if (CLIENT_ERROR_STATUSES.contains(status)) {
+                emitParameters(_normalizer.normalize(datum.getUrl()), STATUS_SIGNATURE_PREFIX + status.name(), functionCall.getOutputCollector());
+            }
+        }
+    }
+    
+    /**
+     * Decide whether one group of URL variants (same URL, different values for one
+     * parameter) is evidence for or against dropping the parameter.
+     */
+    private static class CompareVariants extends BaseOperation<NullContext> implements Buffer<NullContext> {
+        
+        public CompareVariants() {
+            super(RULE_FIELDS);
+        }
+        
+        @Override
+        public void operate(FlowProcess flowProcess, BufferCall<NullContext> bufferCall) {
+            Set<String> values = new HashSet<String>();
+            String firstSignature = null;
+            boolean sameSignature = true;
+            
+            Iterator<TupleEntry> iter = bufferCall.getArgumentsIterator();
+            while (iter.hasNext()) {
+                TupleEntry entry = iter.next();
+                
+                // We only care about whether there's more than one value.
+                if (values.size() < 2) {
+                    values.add(entry.getString(VALUE_FN));
+                }
+                
+                String signature = entry.getString(SIGNATURE_FN);
+                if (firstSignature == null) {
+                    firstSignature = signature;
+                } else if (!firstSignature.equals(signature)) {
+                    sameSignature = false;
+                }
+            }
+            
+            if (values.size() < 2) {
+                return;
+            }
+            
+            boolean same = sameSignature && firstSignature.startsWith(CONTENT_SIGNATURE_PREFIX);
+            TupleEntry group = bufferCall.getGroup();
+            bufferCall.getOutputCollector().add(new Tuple(group.getString(HOST_FN), group.getString(PARAMETER_FN), same ? 1 : 0, same ? 0 : 1));
+        }
+    }
+    
+    private static class SumEvidence extends BaseOperation<NullContext> implements Buffer<NullContext> {
+        
+        private int _minSameContent;
+        
+        public SumEvidence(int minSameContent) {
+            super(RULE_FIELDS);
+            
+            _minSameContent = minSameContent;
+        }
+        
+        @Override
+        public void operate(FlowProcess flowProcess, BufferCall<NullContext> bufferCall) {
+            int numSame = 0;
+            int numDifferent = 0;
+            
+            Iterator<TupleEntry> iter = bufferCall.getArgumentsIterator();
+            while (iter.hasNext()) {
+                TupleEntry entry = iter.next();
+                numSame += entry.getInteger(NUM_SAME_FN);
+                numDifferent += entry.getInteger(NUM_DIFFERENT_FN);
+            }
+            
+            if ((numDifferent == 0) && (numSame >= _minSameContent)) {
+                TupleEntry group = bufferCall.getGroup();
+                bufferCall.getOutputCollector().add(new Tuple(group.getString(HOST_FN), group.getString(PARAMETER_FN), numSame, numDifferent));
+            }
+        }
+    }
+    
+    public MineUrlParameterRulesPipe(Pipe statusPipe, Pipe contentPipe) {
+        this(statusPipe, contentPipe, new SimpleUrlNormalizer(), DEFAULT_MIN_SAME_CONTENT);
+    }
+    
+    public MineUrlParameterRulesPipe(Pipe statusPipe, Pipe contentPipe, BaseUrlNormalizer normalizer, int minSameContent) {
+        Pipe statusParameters = new Each(statusPipe, new ExtractStatusParameters(normalizer), Fields.RESULTS);
+        Pipe contentParameters = new Each(contentPipe, new ExtractContentParameters(normalizer), Fields.RESULTS);
+        
+        Pipe variantsPipe = new GroupBy("Grouping URL variants", Pipe.pipes(statusParameters, contentParameters), new Fields(HOST_FN, PARAMETER_FN, KEY_FN));
+        variantsPipe = new Every(variantsPipe, new CompareVariants(), Fields.RESULTS);
+        
+        Pipe rulesPipe = new GroupBy(RULES_PIPE_NAME, variantsPipe, new Fields(HOST_FN, PARAMETER_FN));
+        rulesPipe = new Every(rulesPipe, new SumEvidence(minSameContent), Fields.RESULTS);
+        setTails(rulesPipe);
+    }
+    
+    public Pipe getTailPipe() {
+        return getTails()[0];
+    }
+}
@@ -16,12 +16,10 @@
  */
 package bixo.pipes;
 
-import org.apache.log4j.Logger;
-
 import bixo.datum.FetchedDatum;
 import bixo.datum.ParsedDatum;
 import bixo.parser.BaseParser;
-import bixo.parser.ParserCounters;
+import bixo.parser.ParseRunner;
 import bixo.parser.SimpleParser;
 import cascading.flow.FlowProcess;
 import cascading.flow.hadoop.HadoopFlowProcess;
@@ -40,8 +38,6 @@ import com.bixolabs.cascading.NullContext;
 
 @SuppressWarnings("serial")
 public class ParsePipe extends SubAssembly {
-    private static final Logger LOGGER = Logger.getLogger(ParsePipe.class);
-    
     public static final String PARSE_PIPE_NAME = "parse_pipe";
 
     private static class ParseFunction extends BaseOperation<NullContext> implements Function<NullContext> {
@@ -72,14 +68,10 @@ public class ParsePipe extends SubAssembly {
         public void operate(FlowProcess flowProcess, FunctionCall<NullContext> functionCall) {
             FetchedDatum fetchedDatum = new FetchedDatum(functionCall.getArguments());
             
-            try {
-                ParsedDatum parseResult = _parser.parse(fetchedDatum);
-                _flowProcess.increment(ParserCounters.DOCUMENTS_PARSED, 1);
+            // TODO KKr - don't lose datums for documents that couldn't be parsed
+            ParsedDatum parseResult = ParseRunner.parse(_parser, fetchedDatum, _flowProcess);
+            if (parseResult != null) {
                 functionCall.getOutputCollector().add(parseResult.getTuple());
-            } catch (Exception e) {
-                LOGGER.warn("Error processing " + fetchedDatum.getUrl(), e);
-                _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
-                // TODO KKr - don't lose datums for documents that couldn't be parsed
             }
         }
         
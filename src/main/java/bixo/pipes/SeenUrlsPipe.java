@@ -0,0 +1,213 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.pipes;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import bixo.datum.UrlDatum;
+import bixo.hadoop.DedupCounters;
+import bixo.utils.BloomFilter;
+import bixo.utils.SeenUrlsStore;
+import cascading.flow.FlowProcess;
+import cascading.flow.hadoop.HadoopFlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Buffer;
+import cascading.operation.BufferCall;
+import cascading.operation.Filter;
+import cascading.operation.FilterCall;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
+import cascading.pipe.Each;
+import cascading.pipe.Every;
+import cascading.pipe.GroupBy;
+import cascading.pipe.Pipe;
+import cascading.pipe.SubAssembly;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+import com.bixolabs.cascading.NullContext;
+
+/**
+ * Remove URLs that we've (probably) seen before, using a SeenUrlsStore, so that only
+ * new URLs have to be merged into the crawl DB.
+ * 
+ * URLs from earlier loops are removed on the map side, before anything gets shuffled.
+ * The remaining URLs are grouped by partition of the store, and each partition's
+ * filter is updated with the new URLs (which also removes duplicates within this loop,
+ * and any URLs from earlier loops that the map side didn't catch), and saved to the
+ * store's output path for the next loop. Since a Bloom filter can have false positives,
+ * a small fraction of new URLs will be removed as well.
+ * 
+ * Each map task only loads the partitions it needs, but with enough URLs that's all of
+ * them, so it stops loading once it hits the store's max loaded bytes (see
+ * {@link SeenUrlsStore#setMaxLoadedBytes(long)}). URLs in partitions that didn't get loaded
+ * are shuffled, and then removed on the reduce side, which only ever loads one partition
+ * at a time.
+ * 
+ * The input and output tuples are UrlDatums, with URLs that have already been normalized.
+ */
+@SuppressWarnings("serial")
+public class SeenUrlsPipe extends SubAssembly {
+    private static final Logger LOGGER = Logger.getLogger(SeenUrlsPipe.class);
+
+    public static final String NEW_URLS_PIPE_NAME = "SeenUrlsPipe-new urls";
+    
+    private static final String PARTITION_FN = "SeenUrlsPipe-partition";
+    
+    private static class FilterSeenUrls extends BaseOperation<NullContext> implements Filter<NullContext> {
+        
+        private SeenUrlsStore _store;
+        
+        public FilterSeenUrls(SeenUrlsStore store) {
+            _store = store;
+        }
+        
+        @Override
+        public void prepare(FlowProcess flowProcess, OperationCall<NullContext> operationCall) {
+            super.prepare(flowProcess, operationCall);
+            
+            try {
+                _store.open(((HadoopFlowProcess)flowProcess).getJobConf());
+            } catch (IOException e) {
+                throw new RuntimeException("Can't load seen URL filters from " + _store.getInputPath(), e);
+            }
+        }
+        
+        @Override
+        public boolean isRemove(FlowProcess flowProcess, FilterCall<NullContext> filterCall) {
+            String url = filterCall.getArguments().getString(UrlDatum.URL_FN);
+            try {
+                if (_store.mightContain(SeenUrlsStore.fingerprint(url))) {
+                    flowProcess.increment(DedupCounters.URLS_SEEN, 1);
+                    return true;
+                } else {
+                    return false;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Can't load seen URL filter from " + _store.getInputPath(), e);
+            }
+        }
+        
+        @Override
+        public void cleanup(FlowProcess flowProcess, OperationCall<NullContext> operationCall) {
+            if (_store.getNumNotLoaded() > 0) {
+                LOGGER.info(String.format("Didn't load %d seen URL filters, their URLs get checked when grouped", _store.getNumNotLoaded()));
+            }
+            
+            super.cleanup(flowProcess, operationCall);
+        }
+    }
+    
+    private static class AddPartition extends BaseOperation<NullContext> implements Function<NullContext> {
+        
+        private SeenUrlsStore _store;
+        
+        public AddPartition(SeenUrlsStore store) {
+            super(new Fields(PARTITION_FN));
+            
+            _store = store;
+        }
+        
+        @Override
+        public void operate(FlowProcess flowProcess, FunctionCall<NullContext> functionCall) {
+            String url = functionCall.getArguments().getString(UrlDatum.URL_FN);
+            functionCall.getOutputCollector().add(new Tuple(_store.getPartition(SeenUrlsStore.fingerprint(url))));
+        }
+    }
+    
+    private static class UpdateSeenUrls extends BaseOperation<NullContext> implements Buffer<NullContext> {
+        
+        private SeenUrlsStore _store;
+        
+        private transient Set<Integer> _updatedPartitions;
+        
+        public UpdateSeenUrls(SeenUrlsStore store) {
+            super(UrlDatum.FIELDS);
+            
+            _store = store;
+        }
+        
+        @Override
+        public void prepare(FlowProcess flowProcess, OperationCall<NullContext> operationCall) {
+            super.prepare(flowProcess, operationCall);
+            
+            _updatedPartitions = new HashSet<Integer>();
+        }
+        
+        @Override
+        public void operate(FlowProcess flowProcess, BufferCall<NullContext> bufferCall) {
+            int partition = bufferCall.getGroup().getInteger(PARTITION_FN);
+            
+            try {
+                BloomFilter filter = _store.loadPartition(((HadoopFlowProcess)flowProcess).getJobConf(), partition);
+                if (filter == null) {
+                    filter = _store.makeFilter();
+                }
+                
+                Iterator<TupleEntry> iter = bufferCall.getArgumentsIterator();
+                while (iter.hasNext()) {
+                    TupleEntry entry = iter.next();
+                    
+                    // If adding it doesn't change the filter, then we've already seen it.
+                    if (filter.add(SeenUrlsStore.fingerprint(entry.getString(UrlDatum.URL_FN)))) {
+                        flowProcess.increment(DedupCounters.URLS_NEW, 1);
+                        bufferCall.getOutputCollector().add(new Tuple(entry.getTuple()));
+                    } else {
+                        flowProcess.increment(DedupCounters.URLS_DUPLICATE, 1);
+                    }
+                }
+                
+                _store.savePartition(((HadoopFlowProcess)flowProcess).getJobConf(), partition, filter, "");
+                _updatedPartitions.add(partition);
+            } catch (IOException e) {
+                throw new RuntimeException("Can't update seen URL filter for partition " + partition, e);
+            }
+        }
+        
+        @Override
+        public void cleanup(FlowProcess flowProcess, OperationCall<NullContext> operationCall) {
+            LOGGER.info(String.format("Updated %d seen URL filters", _updatedPartitions.size()));
+            
+            try {
+                _store.carryForward(((HadoopFlowProcess)flowProcess).getJobConf(), _updatedPartitions);
+            } catch (IOException e) {
+                throw new RuntimeException("Can't carry forward seen URL filters to " + _store.getOutputPath(), e);
+            }
+            
+            super.cleanup(flowProcess, operationCall);
+        }
+    }
+    
+    public SeenUrlsPipe(Pipe urlsPipe, SeenUrlsStore store) {
+        Pipe newUrls = new Each(urlsPipe, new FilterSeenUrls(store));
+        newUrls = new Each(newUrls, new AddPartition(store), Fields.ALL);
+        newUrls = new GroupBy(NEW_URLS_PIPE_NAME, newUrls, new Fields(PARTITION_FN));
+        newUrls = new Every(newUrls, UrlDatum.FIELDS, new UpdateSeenUrls(store), Fields.RESULTS);
+        setTails(newUrls);
+    }
+    
+    public Pipe getTailPipe() {
+        return getTails()[0];
+    }
+}
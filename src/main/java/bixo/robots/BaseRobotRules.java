@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import bixo.config.BaseFetchJobPolicy;
+import bixo.urls.ParsedUrl;
 
 /**
  * Result from parsing a single robots.txt file - which means we
@@ -31,6 +32,13 @@ public abstract class BaseRobotRules {
     public abstract boolean isAllowAll();
     public abstract boolean isAllowNone();
     
+    /**
+     * Same as isAllowed(String), for a URL that's already been parsed.
+     */
+    public boolean isAllowed(ParsedUrl url) {
+        return isAllowed(url.getUrl());
+    }
+    
     private long _crawlDelay = BaseFetchJobPolicy.UNSET_CRAWL_DELAY;
     private boolean _deferVisits = false;
     private List<String> _sitemaps;
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.robots;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.http.HttpStatus;
+
+/**
+ * Robot rules for one protocol+host, along with what we need to know to decide
+ * when (and how) to re-fetch them - the time and HTTP status of the fetch, and
+ * the Last-Modified and ETag response headers for doing a conditional GET.
+ */
+public class CachedRobotRules implements Writable {
+
+    private long _fetchTime;
+    private int _httpStatus;
+    private String _lastModified;
+    private String _etag;
+    private BaseRobotRules _rules;
+    
+    public CachedRobotRules() {
+        // For Writable
+    }
+    
+    public CachedRobotRules(long fetchTime, int httpStatus, BaseRobotRules rules) {
+        this(fetchTime, httpStatus, rules, null, null);
+    }
+    
+    public CachedRobotRules(long fetchTime, int httpStatus, BaseRobotRules rules, String lastModified, String etag) {
+        _fetchTime = fetchTime;
+        _httpStatus = httpStatus;
+        _rules = rules;
+        _lastModified = lastModified;
+        _etag = etag;
+    }
+    
+    public long getFetchTime() {
+        return _fetchTime;
+    }
+
+    public int getHttpStatus() {
+        return _httpStatus;
+    }
+
+    public String getLastModified() {
+        return _lastModified;
+    }
+
+    public String getETag() {
+        return _etag;
+    }
+
+    public BaseRobotRules getRules() {
+        return _rules;
+    }
+    
+    public boolean hasValidators() {
+        return (_lastModified != null) || (_etag != null);
+    }
+    
+    /**
+     * Return a copy of these rules with a new fetch time, for when the server tells
+     * us that robots.txt hasn't changed.
+     */
+    public CachedRobotRules refresh(long fetchTime) {
+        return new CachedRobotRules(fetchTime, _httpStatus, _rules, _lastModified, _etag);
+    }
+    
+    /**
+     * We only keep rules that we can serialize, and that came from a definitive response
+     * (we got robots.txt, or it's missing). Otherwise we want to try again next time.
+     */
+    public boolean isCacheable() {
+        return (_rules instanceof SimpleRobotRules)
+            && !_rules.isDeferVisits()
+            && (_httpStatus >= HttpStatus.SC_OK)
+            && (_httpStatus < HttpStatus.SC_INTERNAL_SERVER_ERROR);
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVLong(out, _fetchTime);
+        WritableUtils.writeVInt(out, _httpStatus);
+        writeString(out, _lastModified);
+        writeString(out, _etag);
+        ((SimpleRobotRules)_rules).write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        _fetchTime = WritableUtils.readVLong(in);
+        _httpStatus = WritableUtils.readVInt(in);
+        _lastModified = readString(in);
+        _etag = readString(in);
+        
+        SimpleRobotRules rules = new SimpleRobotRules();
+        rules.readFields(in);
+        _rules = rules;
+    }
+    
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            Text.writeString(out, value);
+        }
+    }
+    
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? Text.readString(in) : null;
+    }
+}
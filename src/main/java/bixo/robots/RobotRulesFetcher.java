@@ -0,0 +1,256 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.robots;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpStatus;
+import org.apache.log4j.Logger;
+
+import bixo.fetcher.BaseFetcher;
+
+/**
+ * Gets robot rules for many sites at once, while being polite to the servers hosting them.
+ * 
+ * We limit the number of simultaneous robots.txt fetches per IP address, since lots of
+ * sub-domains (or domains with the same PLD) often live on one server.
+ * 
+ * A caller that can't start a fetch right away isn't blocked. Its request is queued, and
+ * it gets called back later, on the thread that does the fetch. The thread that finishes
+ * a fetch keeps going with the next queued request for that IP address, so no thread ever
+ * sits idle waiting for an IP address to free up.
+ */
+public class RobotRulesFetcher {
+    private static final Logger LOGGER = Logger.getLogger(RobotRulesFetcher.class);
+    
+    public static final int DEFAULT_MAX_FETCHES_PER_IP = 2;
+    
+    /**
+     * Callback for when robot rules are available.
+     */
+    public interface RobotRulesCallback {
+        
+        /**
+         * Called (once) with the rules for the requested robots.txt URL. This is
+         * typically called by a different thread than the one that made the request.
+         */
+        public void onRobotRules(BaseRobotRules rules);
+    }
+    
+    private static class FetchRequest {
+        private URL _robotsUrl;
+        private RobotRulesCallback _callback;
+        
+        public FetchRequest(URL robotsUrl, RobotRulesCallback callback) {
+            _robotsUrl = robotsUrl;
+            _callback = callback;
+        }
+    }
+    
+    private static class IpState {
+        private int _activeFetches = 0;
+        private LinkedList<FetchRequest> _queued = new LinkedList<FetchRequest>();
+    }
+    
+    private BaseFetcher _fetcher;
+    private BaseRobotsParser _parser;
+    private RobotRulesStore _store;
+    private int _maxFetchesPerIp;
+    
+    private Map<String, IpState> _ipStates;
+    private boolean _terminated;
+    
+    private AtomicInteger _numFetched;
+    private AtomicInteger _numDelayed;
+    
+    public RobotRulesFetcher(BaseFetcher fetcher, BaseRobotsParser parser, RobotRulesStore store) {
+        this(fetcher, parser, store, DEFAULT_MAX_FETCHES_PER_IP);
+    }
+    
+    /**
+     * @param fetcher fetcher for robots.txt files
+     * @param parser robots.txt parser
+     * @param store previously fetched rules to use (and update), or null
+     * @param maxFetchesPerIp max number of robots.txt files to fetch at the same time
+     *        from one IP address
+     */
+    public RobotRulesFetcher(BaseFetcher fetcher, BaseRobotsParser parser, RobotRulesStore store, int maxFetchesPerIp) {
+        _fetcher = fetcher;
+        _parser = parser;
+        _store = store;
+        _maxFetchesPerIp = Math.max(1, maxFetchesPerIp);
+        
+        _ipStates = new HashMap<String, IpState>();
+        _terminated = false;
+        
+        _numFetched = new AtomicInteger();
+        _numDelayed = new AtomicInteger();
+    }
+    
+    /**
+     * Get the rules for <robotsUrl>, which lives on the server at <hostAddress>, and
+     * pass them to <callback>.
+     * 
+     * If we can fetch the rules now, this is done in the calling thread, and the callback
+     * is called before we return. In that case the calling thread also handles any requests
+     * for the same IP address that were queued up while it was fetching, so this call can
+     * take a while to return. Otherwise we return right away, and <callback> is called later
+     * by whichever thread does the fetch.
+     */
+    public void getRobotRules(URL robotsUrl, String hostAddress, RobotRulesCallback callback) {
+        FetchRequest request = new FetchRequest(robotsUrl, callback);
+        
+        synchronized (this) {
+            if (_terminated) {
+                deferred(callback);
+                return;
+            }
+            
+            IpState ipState = _ipStates.get(hostAddress);
+            if (ipState == null) {
+                ipState = new IpState();
+                _ipStates.put(hostAddress, ipState);
+            }
+            
+            if (ipState._activeFetches >= _maxFetchesPerIp) {
+                _numDelayed.incrementAndGet();
+                ipState._queued.add(request);
+                return;
+            }
+            
+            ipState._activeFetches += 1;
+        }
+        
+        // Keep going with queued requests for the same IP address, until there aren't any
+        // (or we've been interrupted, in which case terminate() takes care of them).
+        while (request != null) {
+            fetch(request);
+            request = nextRequest(hostAddress, !Thread.currentThread().isInterrupted());
+        }
+    }
+    
+    private synchronized FetchRequest nextRequest(String hostAddress, boolean keepGoing) {
+        IpState ipState = _ipStates.get(hostAddress);
+        FetchRequest result = (keepGoing && !_terminated) ? ipState._queued.poll() : null;
+        if (result == null) {
+            ipState._activeFetches -= 1;
+            if ((ipState._activeFetches == 0) && ipState._queued.isEmpty()) {
+                _ipStates.remove(hostAddress);
+            }
+        }
+        
+        return result;
+    }
+    
+    private void fetch(FetchRequest request) {
+        BaseRobotRules rules;
+        try {
+            rules = RobotUtils.getRobotRules(_fetcher, _parser, request._robotsUrl, _store);
+            _numFetched.incrementAndGet();
+        } catch (Throwable t) {
+            LOGGER.warn("Unexpected exception getting robot rules for " + request._robotsUrl, t);
+            rules = _parser.failedFetch(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        }
+        
+        try {
+            request._callback.onRobotRules(rules);
+        } catch (Throwable t) {
+            LOGGER.error("Unexpected exception processing robot rules for " + request._robotsUrl, t);
+        }
+    }
+    
+    private void deferred(RobotRulesCallback callback) {
+        callback.onRobotRules(_parser.failedFetch(HttpStatus.SC_SERVICE_UNAVAILABLE));
+    }
+    
+    /**
+     * Stop fetching. Any queued requests (and any new requests) get rules that
+     * defer visits to the site, so that the caller can still process its URLs.
+     */
+    public void terminate() {
+        List<RobotRulesCallback> deferred = new ArrayList<RobotRulesCallback>();
+        synchronized (this) {
+            _terminated = true;
+            
+            for (IpState ipState : _ipStates.values()) {
+                for (FetchRequest request : ipState._queued) {
+                    deferred.add(request._callback);
+                }
+                
+                ipState._queued.clear();
+            }
+        }
+        
+        if (!deferred.isEmpty()) {
+            LOGGER.warn(String.format("Deferring %d robots.txt requests that were still queued", deferred.size()));
+        }
+        
+        for (RobotRulesCallback callback : deferred) {
+            deferred(callback);
+        }
+    }
+    
+    /**
+     * @return number of requests that are waiting to be fetched, because there were
+     * already too many fetches in progress for the same IP address.
+     */
+    public synchronized int getNumQueued() {
+        int result = 0;
+        for (IpState ipState : _ipStates.values()) {
+            result += ipState._queued.size();
+        }
+        
+        return result;
+    }
+    
+    /**
+     * @return max number of queued requests for any one IP address.
+     */
+    public synchronized int getMaxQueuedPerIp() {
+        int result = 0;
+        for (IpState ipState : _ipStates.values()) {
+            result = Math.max(result, ipState._queued.size());
+        }
+        
+        return result;
+    }
+    
+    public int getMaxFetchesPerIp() {
+        return _maxFetchesPerIp;
+    }
+    
+    /**
+     * @return number of robots.txt URLs that we got rules for.
+     */
+    public int getNumFetched() {
+        return _numFetched.get();
+    }
+    
+    /**
+     * @return number of requests that had to wait for another fetch from the same
+     * IP address to finish.
+     */
+    public int getNumDelayed() {
+        return _numDelayed.get();
+    }
+}
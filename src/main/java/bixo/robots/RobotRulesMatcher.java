@@ -0,0 +1,264 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.robots;
+
+import java.util.Arrays;
+
+/**
+ * Allow/disallow rules from a robots.txt file, compiled into a trie so that we can
+ * check a path against all of the rules in one pass over the path.
+ * 
+ * Rules support the Google extensions, where '*' matches any sequence of characters,
+ * and a '$' at the end anchors the rule to the end of the path. If more than one rule
+ * matches, the longest rule (by number of characters) wins, and for rules with the same
+ * length an allow beats a disallow.
+ * 
+ * For the typical case of rules without a '*', matching is just a walk down the trie.
+ * Otherwise we track the set of trie nodes that match the path so far (an NFA), which
+ * is still a single pass since the number of active nodes is small.
+ */
+public class RobotRulesMatcher {
+
+    private static final int NO_MATCH = -1;
+    
+    private static class Node {
+        private char[] _chars = new char[0];
+        private Node[] _children = new Node[0];
+        
+        // Child reached via a '*', and whether this node is such a child (so it
+        // loops on any character).
+        private Node _wildcard;
+        private boolean _isWildcard;
+        
+        // Longest rule that ends here, and whether it's an allow rule. The "end" versions
+        // are for rules anchored with a '$', which only match at the end of the path.
+        private int _matchLength = NO_MATCH;
+        private boolean _matchAllow;
+        private int _endMatchLength = NO_MATCH;
+        private boolean _endMatchAllow;
+        
+        public Node getChild(char c) {
+            int index = Arrays.binarySearch(_chars, c);
+            return index < 0 ? null : _children[index];
+        }
+        
+        public Node addChild(char c) {
+            int index = Arrays.binarySearch(_chars, c);
+            if (index >= 0) {
+                return _children[index];
+            }
+            
+            index = -(index + 1);
+            char[] chars = new char[_chars.length + 1];
+            Node[] children = new Node[_children.length + 1];
+            System.arraycopy(_chars, 0, chars, 0, index);
+            System.arraycopy(_children, 0, children, 0, index);
+            System.arraycopy(_chars, index, chars, index + 1, _chars.length - index);
+            System.arraycopy(_children, index, children, index + 1, _children.length - index);
+            
+            Node result = new Node();
+            chars[index] = c;
+            children[index] = result;
+            _chars = chars;
+            _children = children;
+            return result;
+        }
+        
+        public Node addWildcard() {
+            if (_isWildcard) {
+                // '**' is the same as '*'
+                return this;
+            }
+            
+            if (_wildcard == null) {
+                _wildcard = new Node();
+                _wildcard._isWildcard = true;
+            }
+            
+            return _wildcard;
+        }
+    }
+    
+    // Result of matching, so we only need to allocate one of these per call.
+    private static class Match {
+        private int _length = NO_MATCH;
+        private boolean _allow = true;
+        
+        public void update(int length, boolean allow) {
+            if (length == NO_MATCH) {
+                return;
+            }
+            
+            if ((length > _length) || ((length == _length) && allow)) {
+                _length = length;
+                _allow = allow;
+            }
+        }
+    }
+    
+    private Node _root;
+    private boolean _hasWildcards;
+    private int _numRules;
+    private int _numNodes;
+    
+    public RobotRulesMatcher() {
+        _root = new Node();
+        _numNodes = 1;
+        _hasWildcards = false;
+        _numRules = 0;
+    }
+    
+    /**
+     * Add a rule. The rule's length (for longest-match) is the length of <pattern>.
+     * 
+     * @param pattern path prefix, which can contain '*' and a trailing '$'
+     * @param allow true for an allow rule, false for disallow
+     */
+    public void addRule(String pattern, boolean allow) {
+        int length = pattern.length();
+        boolean anchored = (length > 0) && (pattern.charAt(length - 1) == '$');
+        int patternEnd = anchored ? length - 1 : length;
+        
+        Node node = _root;
+        for (int i = 0; i < patternEnd; i++) {
+            char c = pattern.charAt(i);
+            Node child;
+            if (c == '*') {
+                if (!node._isWildcard && (node._wildcard == null)) {
+                    _numNodes += 1;
+                }
+                
+                child = node.addWildcard();
+                _hasWildcards = true;
+            } else {
+                child = node.getChild(c);
+                if (child == null) {
+                    child = node.addChild(c);
+                    _numNodes += 1;
+                }
+            }
+            
+            node = child;
+        }
+        
+        if (anchored) {
+            if ((length > node._endMatchLength) || ((length == node._endMatchLength) && allow)) {
+                node._endMatchLength = length;
+                node._endMatchAllow = allow;
+            }
+        } else {
+            if ((length > node._matchLength) || ((length == node._matchLength) && allow)) {
+                node._matchLength = length;
+                node._matchAllow = allow;
+            }
+        }
+        
+        _numRules += 1;
+    }
+    
+    public int getNumRules() {
+        return _numRules;
+    }
+    
+    /**
+     * Return true if <path> is allowed, which is also the case if no rule matches.
+     */
+    public boolean isAllowed(String path) {
+        Match match = new Match();
+        if (_hasWildcards) {
+            matchWithWildcards(path, match);
+        } else {
+            matchPrefixes(path, match);
+        }
+        
+        return match._allow;
+    }
+    
+    private void matchPrefixes(String path, Match match) {
+        Node node = _root;
+        int pathLength = path.length();
+        for (int i = 0; i < pathLength; i++) {
+            node = node.getChild(path.charAt(i));
+            if (node == null) {
+                return;
+            }
+            
+            match.update(node._matchLength, node._matchAllow);
+        }
+        
+        match.update(node._endMatchLength, node._endMatchAllow);
+    }
+    
+    private void matchWithWildcards(String path, Match match) {
+        // Each node shows up at most once in the active set.
+        Node[] active = new Node[_numNodes];
+        Node[] next = new Node[_numNodes];
+        int numActive = addNode(active, 0, _root, match);
+        
+        int pathLength = path.length();
+        for (int i = 0; (i < pathLength) && (numActive > 0); i++) {
+            char c = path.charAt(i);
+            int numNext = 0;
+            for (int j = 0; j < numActive; j++) {
+                Node node = active[j];
+                if (node._isWildcard) {
+                    numNext = addNode(next, numNext, node, match);
+                }
+                
+                Node child = node.getChild(c);
+                if (child != null) {
+                    numNext = addNode(next, numNext, child, match);
+                }
+            }
+            
+            Node[] temp = active;
+            active = next;
+            next = temp;
+            numActive = numNext;
+        }
+        
+        for (int j = 0; j < numActive; j++) {
+            match.update(active[j]._endMatchLength, active[j]._endMatchAllow);
+        }
+    }
+    
+    // Add <node> (and the node for a '*' that follows it, since that can match
+    // nothing) to the active set, and record any rules that end there. Return
+    // the new size of the active set.
+    private static int addNode(Node[] nodes, int numNodes, Node node, Match match) {
+        while (node != null) {
+            if (!contains(nodes, numNodes, node)) {
+                nodes[numNodes++] = node;
+                match.update(node._matchLength, node._matchAllow);
+            }
+            
+            node = node._wildcard;
+        }
+        
+        return numNodes;
+    }
+    
+    private static boolean contains(Node[] nodes, int numNodes, Node node) {
+        for (int i = 0; i < numNodes; i++) {
+            if (nodes[i] == node) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+}
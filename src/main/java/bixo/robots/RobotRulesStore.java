@@ -0,0 +1,385 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.robots;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent cache of robot rules, keyed by protocol+host (e.g. http://www.domain.com),
+ * so that a recurring crawl doesn't have to re-fetch every robots.txt file in every loop.
+ * 
+ * The store is read from <inputPath> (typically the previous loop's robots directory),
+ * and written to <outputPath> when a task is done. Rules that are older than <maxAge>
+ * are stale - we re-fetch them, using a conditional GET if we have a Last-Modified or
+ * ETag value from the previous fetch.
+ * 
+ * Each task saves its rules as a MapFile named after its partition, so when a task
+ * starts it only opens the MapFiles, and looks up rules (via their index) as they're
+ * requested. Each task writes out the entries it used, plus the saved entries from the
+ * file(s) with its partition number, so every entry is carried forward by one task. If the same key winds up in
+ * more than one file, the most recently fetched entry wins. Entries that haven't been
+ * fetched for a long time are dropped.
+ * 
+ * Output is written to a temporary directory for the task attempt, and only renamed
+ * into <outputPath> once it's complete.
+ * 
+ * Entries are kept in memory in their compact serialized form, and only expanded into
+ * rules when they're requested.
+ */
+@SuppressWarnings("serial")
+public class RobotRulesStore implements Serializable {
+    private static final Logger LOGGER = Logger.getLogger(RobotRulesStore.class);
+    
+    // Same as what Google uses for caching robots.txt files.
+    public static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L;
+    
+    // Drop unused entries after they're this many times older than the max age.
+    private static final int MAX_AGE_TO_KEEP_FACTOR = 7;
+    
+    private static final String TEMP_DIR_NAME = "_temporary";
+    private static final Pattern PART_NAME_PATTERN = Pattern.compile("part-(\\d+)");
+    
+    private String _inputPath;
+    private String _outputPath;
+    private long _maxAge;
+    
+    // Entries that have been used or updated by this task.
+    private transient Map<String, byte[]> _entries;
+    
+    // Saved entries from the input path, and the partition number of each file.
+    private transient List<MapFile.Reader> _readers;
+    private transient List<Integer> _readerPartitions;
+    
+    private transient AtomicInteger _numHits;
+    private transient AtomicInteger _numUpdates;
+    
+    /**
+     * @param inputPath directory with previously saved rules, or null if there's nothing to load.
+     * @param outputPath directory to save rules in, or null to not save them.
+     */
+    public RobotRulesStore(String inputPath, String outputPath) {
+        this(inputPath, outputPath, DEFAULT_MAX_AGE);
+    }
+    
+    public RobotRulesStore(String inputPath, String outputPath, long maxAge) {
+        _inputPath = inputPath;
+        _outputPath = outputPath;
+        _maxAge = maxAge;
+    }
+    
+    public String getInputPath() {
+        return _inputPath;
+    }
+    
+    public String getOutputPath() {
+        return _outputPath;
+    }
+    
+    public long getMaxAge() {
+        return _maxAge;
+    }
+    
+    /**
+     * Return the key we use for the robots.txt at <url>
+     */
+    public static String makeKey(URL url) {
+        StringBuilder result = new StringBuilder();
+        result.append(url.getProtocol().toLowerCase());
+        result.append("://");
+        result.append(url.getHost().toLowerCase());
+        if (url.getPort() != -1) {
+            result.append(':');
+            result.append(url.getPort());
+        }
+        
+        return result.toString();
+    }
+    
+    private synchronized void init() {
+        if (_entries == null) {
+            _entries = new ConcurrentHashMap<String, byte[]>();
+            _readers = Collections.synchronizedList(new ArrayList<MapFile.Reader>());
+            _readerPartitions = Collections.synchronizedList(new ArrayList<Integer>());
+            _numHits = new AtomicInteger();
+            _numUpdates = new AtomicInteger();
+        }
+    }
+    
+    /**
+     * Open the saved rules in our input path (if any). Nothing gets loaded until
+     * it's requested.
+     */
+    public void open(Configuration conf) throws IOException {
+        init();
+        
+        if (_inputPath == null) {
+            return;
+        }
+        
+        Path inputDir = new Path(_inputPath);
+        FileSystem fs = inputDir.getFileSystem(conf);
+        if (!fs.exists(inputDir)) {
+            LOGGER.info("No saved robot rules at " + inputDir);
+            return;
+        }
+        
+        for (FileStatus status : fs.listStatus(inputDir)) {
+            Matcher m = PART_NAME_PATTERN.matcher(status.getPath().getName());
+            if (!status.isDir() || !m.matches()) {
+                continue;
+            }
+            
+            try {
+                _readers.add(new MapFile.Reader(fs, status.getPath().toString(), conf));
+                _readerPartitions.add(Integer.parseInt(m.group(1)));
+            } catch (IOException e) {
+                LOGGER.warn("Error opening saved robot rules in " + status.getPath(), e);
+            }
+        }
+        
+        LOGGER.info(String.format("Opened %d files of saved robot rules in %s", _readers.size(), inputDir));
+    }
+    
+    /**
+     * Save the rules we used and any changes to them (plus the saved rules that
+     * this task is responsible for) to our output path.
+     */
+    public void close(Configuration conf) throws IOException {
+        init();
+        
+        LOGGER.info(String.format("Robot rules: %d cache hits, %d updated", _numHits.get(), _numUpdates.get()));
+        
+        try {
+            if (_outputPath != null) {
+                save(conf);
+            }
+        } finally {
+            closeReaders();
+        }
+    }
+    
+    private void save(Configuration conf) throws IOException {
+        int partition = conf.getInt("mapred.task.partition", 0);
+        int numPartitions = Math.max(1, conf.getInt("mapred.reduce.tasks", 1));
+        String taskId = conf.get("mapred.task.id");
+        
+        // A MapFile has to be written in key order.
+        TreeMap<Text, byte[]> entries = new TreeMap<Text, byte[]>();
+        for (Map.Entry<String, byte[]> entry : _entries.entrySet()) {
+            entries.put(new Text(entry.getKey()), entry.getValue());
+        }
+        
+        // Carry forward the saved entries that are our responsibility (if the number of
+        // partitions has gone down, that can be more than one file) and aren't too old.
+        long oldestFetchTime = System.currentTimeMillis() - (_maxAge * MAX_AGE_TO_KEEP_FACTOR);
+        for (int i = 0; i < _readers.size(); i++) {
+            if ((_readerPartitions.get(i) % numPartitions) != partition) {
+                continue;
+            }
+            
+            MapFile.Reader reader = _readers.get(i);
+            Text key = new Text();
+            BytesWritable value = new BytesWritable();
+            try {
+                reader.reset();
+                while (reader.next(key, value)) {
+                    byte[] bytes = Arrays.copyOf(value.getBytes(), value.getLength());
+                    if (!entries.containsKey(key) && (getFetchTime(bytes) >= oldestFetchTime)) {
+                        entries.put(key, bytes);
+                        key = new Text();
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Error reading saved robot rules for partition " + _readerPartitions.get(i), e);
+            }
+        }
+        
+        // Write to a directory for this task attempt, and then move it into place, so that
+        // a failed attempt doesn't leave a partial file behind.
+        String filename = String.format("part-%05d", partition);
+        Path outputDir = new Path(_outputPath);
+        Path attemptDir = new Path(new Path(outputDir, TEMP_DIR_NAME), taskId == null ? filename : taskId);
+        Path tempFile = new Path(attemptDir, filename);
+        Path outputFile = new Path(outputDir, filename);
+        
+        FileSystem fs = outputDir.getFileSystem(conf);
+        MapFile.Writer writer = new MapFile.Writer(conf, fs, tempFile.toString(), Text.class, BytesWritable.class, CompressionType.BLOCK);
+        try {
+            for (Map.Entry<Text, byte[]> entry : entries.entrySet()) {
+                writer.append(entry.getKey(), new BytesWritable(entry.getValue()));
+            }
+        } finally {
+            writer.close();
+        }
+        
+        if (fs.exists(outputFile)) {
+            // Some other attempt of this task got there first.
+            LOGGER.info("Robot rules already saved to " + outputFile);
+        } else if (!fs.rename(tempFile, outputFile)) {
+            throw new IOException("Can't move saved robot rules from " + tempFile + " to " + outputFile);
+        } else {
+            LOGGER.info(String.format("Saved %d robot rules to %s", entries.size(), outputFile));
+        }
+        
+        fs.delete(attemptDir, true);
+    }
+    
+    private void closeReaders() {
+        synchronized (_readers) {
+            for (MapFile.Reader reader : _readers) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Error closing saved robot rules", e);
+                }
+            }
+            
+            _readers.clear();
+            _readerPartitions.clear();
+        }
+    }
+    
+    /**
+     * Return the cached rules for <key> (see makeKey()), or null if we don't have any.
+     */
+    public CachedRobotRules get(String key) {
+        init();
+        
+        byte[] value = _entries.get(key);
+        if (value == null) {
+            value = lookup(key);
+            if (value == null) {
+                return null;
+            }
+            
+            // Remember it, so that it gets saved.
+            _entries.put(key, value);
+        }
+        
+        try {
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(value, value.length);
+            CachedRobotRules result = new CachedRobotRules();
+            result.readFields(in);
+            return result;
+        } catch (IOException e) {
+            LOGGER.warn("Invalid saved robot rules for " + key, e);
+            _entries.remove(key);
+            return null;
+        }
+    }
+    
+    /**
+     * Find the most recently fetched saved entry for <key>.
+     * 
+     * @param key
+     * @return serialized entry, or null if we don't have one.
+     */
+    private byte[] lookup(String key) {
+        Text textKey = new Text(key);
+        byte[] result = null;
+        long resultFetchTime = 0;
+        
+        synchronized (_readers) {
+            for (MapFile.Reader reader : _readers) {
+                try {
+                    BytesWritable value = new BytesWritable();
+                    if (reader.get(textKey, value) != null) {
+                        byte[] bytes = Arrays.copyOf(value.getBytes(), value.getLength());
+                        long fetchTime = getFetchTime(bytes);
+                        if ((result == null) || (fetchTime > resultFetchTime)) {
+                            result = bytes;
+                            resultFetchTime = fetchTime;
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("Error reading saved robot rules for " + key, e);
+                }
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Save <rules> for <key>, if they're cacheable.
+     */
+    public void put(String key, CachedRobotRules rules) {
+        init();
+        
+        if (!rules.isCacheable()) {
+            return;
+        }
+        
+        try {
+            DataOutputBuffer out = new DataOutputBuffer();
+            rules.write(out);
+            _entries.put(key, Arrays.copyOf(out.getData(), out.getLength()));
+            _numUpdates.incrementAndGet();
+        } catch (IOException e) {
+            // Should never happen, since we're writing to memory.
+            LOGGER.warn("Can't serialize robot rules for " + key, e);
+        }
+    }
+    
+    /**
+     * Return true if <rules> are too old to use without checking with the server.
+     */
+    public boolean isStale(CachedRobotRules rules, long now) {
+        return rules.getFetchTime() + _maxAge <= now;
+    }
+    
+    /**
+     * Record that we're using cached rules without re-fetching them.
+     */
+    public void recordHit() {
+        init();
+        _numHits.incrementAndGet();
+    }
+    
+    // The fetch time is the first thing written out by CachedRobotRules.
+    private static long getFetchTime(byte[] value) throws IOException {
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(value, value.length);
+        return WritableUtils.readVLong(in);
+    }
+}
@@ -24,11 +24,14 @@ import org.apache.log4j.Logger;
 import bixo.config.FetcherPolicy;
 import bixo.config.UserAgent;
 import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
 import bixo.datum.ScoredUrlDatum;
 import bixo.exceptions.HttpFetchException;
 import bixo.exceptions.IOFetchException;
 import bixo.exceptions.RedirectFetchException;
+import bixo.fetcher.AsyncHttpFetcher;
 import bixo.fetcher.BaseFetcher;
+import bixo.fetcher.HttpHeaderNames;
 import bixo.fetcher.SimpleHttpFetcher;
 
 public class RobotUtils {
@@ -56,8 +59,19 @@ public class RobotUtils {
     // FUTURE KKr - add in time to do the download.
     private static final long MAX_FETCH_TIME = (ROBOTS_CONNECTION_TIMEOUT + ROBOTS_SOCKET_TIMEOUT) * ROBOTS_RETRY_COUNT;
 
+    /**
+     * Create a fetcher for robots.txt files that goes with <fetcher>, so if that uses
+     * non-blocking I/O then so does the robots.txt fetcher.
+     * 
+     * @param fetcher fetcher for content
+     * @return robots.txt fetcher
+     */
     public static BaseFetcher createFetcher(BaseFetcher fetcher) {
-        return createFetcher(fetcher.getUserAgent(), fetcher.getMaxThreads());
+        if (fetcher.isNonBlocking()) {
+            return createAsyncFetcher(fetcher.getUserAgent(), fetcher.getMaxThreads());
+        } else {
+            return createFetcher(fetcher.getUserAgent(), fetcher.getMaxThreads());
+        }
     }
 
     public static BaseFetcher createFetcher(UserAgent userAgent, int maxThreads) {
@@ -74,6 +88,28 @@ public class RobotUtils {
         return fetcher;
     }
     
+    /**
+     * Create a fetcher for robots.txt files that uses non-blocking I/O, so that the threads
+     * waiting on slow servers are just waiting for a callback, versus tying up a connection's
+     * worth of resources. Like the blocking fetcher, it makes conditional requests for stale
+     * rules from a RobotRulesStore that have validators.
+     * 
+     * @param userAgent
+     * @param maxThreads max number of robots.txt requests in flight
+     * @return robots.txt fetcher
+     */
+    public static BaseFetcher createAsyncFetcher(UserAgent userAgent, int maxThreads) {
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMaxContentSize(MAX_ROBOTS_SIZE);
+        policy.setMaxConnectionsPerHost(MAX_CONNECTIONS_PER_HOST);
+        policy.setRequestTimeout(MAX_FETCH_TIME);
+        AsyncHttpFetcher fetcher = new AsyncHttpFetcher(maxThreads, policy, userAgent);
+        fetcher.setConnectionTimeout(ROBOTS_CONNECTION_TIMEOUT);
+        fetcher.setSocketTimeout(ROBOTS_SOCKET_TIMEOUT);
+        
+        return fetcher;
+    }
+    
     public static long getMaxFetchTime() {
         return MAX_FETCH_TIME;
     }
@@ -87,11 +123,52 @@ public class RobotUtils {
      * @return Robot rules
      */
     public static BaseRobotRules getRobotRules(BaseFetcher fetcher, BaseRobotsParser parser, URL robotsUrl) {
+        return fetchRobotRules(fetcher, parser, robotsUrl, null).getRules();
+    }
+
+    /**
+     * Return rules for the indicated robots.txt file, using the rules in <store> if
+     * they're not stale. Otherwise fetch the file (conditionally, if we have stale rules
+     * that came with a Last-Modified or ETag header), and update <store>.
+     * 
+     * @param fetcher Fetcher for downloading robots.txt file
+     * @param robotsUrl URL to robots.txt file
+     * @param store Cache of robot rules, or null
+     * @return Robot rules
+     */
+    public static BaseRobotRules getRobotRules(BaseFetcher fetcher, BaseRobotsParser parser, URL robotsUrl, RobotRulesStore store) {
+        if (store == null) {
+            return getRobotRules(fetcher, parser, robotsUrl);
+        }
+        
+        String key = RobotRulesStore.makeKey(robotsUrl);
+        CachedRobotRules cached = store.get(key);
+        if ((cached != null) && !store.isStale(cached, System.currentTimeMillis())) {
+            store.recordHit();
+            return cached.getRules();
+        }
+        
+        CachedRobotRules result = fetchRobotRules(fetcher, parser, robotsUrl, cached);
+        store.put(key, result);
+        return result.getRules();
+    }
+
+    private static CachedRobotRules fetchRobotRules(BaseFetcher fetcher, BaseRobotsParser parser, URL robotsUrl, CachedRobotRules cached) {
+        long fetchTime = System.currentTimeMillis();
         
         try {
             String urlToFetch = robotsUrl.toExternalForm();
             ScoredUrlDatum scoredUrl = new ScoredUrlDatum(urlToFetch);
-            FetchedDatum result = fetcher.get(scoredUrl);
+            FetchedDatum result;
+            if ((cached != null) && cached.hasValidators()) {
+                result = fetcher.get(scoredUrl, cached.getLastModified(), cached.getETag());
+            } else {
+                result = fetcher.get(scoredUrl);
+            }
+            
+            if (result.isNotModified() && (cached != null)) {
+                return cached.refresh(fetchTime);
+            }
 
             // HACK! DANGER! Some sites will redirect the request to the top-level domain
             // page, without returning a 404. So look for a response which has a redirect,
@@ -101,24 +178,36 @@ public class RobotUtils {
             String contentType = result.getContentType();
             boolean isPlainText = (contentType != null) && (contentType.startsWith("text/plain"));
             if ((result.getNumRedirects() > 0) && !isPlainText) {
-                return parser.failedFetch(HttpStatus.SC_GONE);
+                return new CachedRobotRules(fetchTime, HttpStatus.SC_GONE, parser.failedFetch(HttpStatus.SC_GONE));
             }
             
-            return parser.parseContent(urlToFetch, result.getContentBytes(), result.getContentType(), 
+            BaseRobotRules rules = parser.parseContent(urlToFetch, result.getContentBytes(), result.getContentType(), 
                             fetcher.getUserAgent().getAgentName());
+            
+            HttpHeaders headers = result.getHeaders();
+            if (headers == null) {
+                return new CachedRobotRules(fetchTime, HttpStatus.SC_OK, rules);
+            } else {
+                return new CachedRobotRules(fetchTime, HttpStatus.SC_OK, rules, headers.getFirst(HttpHeaderNames.LAST_MODIFIED),
+                                headers.getFirst(HttpHeaderNames.ETAG));
+            }
         } catch (HttpFetchException e) {
-            return parser.failedFetch(e.getHttpStatus());
+            if ((e.getHttpStatus() == HttpStatus.SC_NOT_MODIFIED) && (cached != null)) {
+                return cached.refresh(fetchTime);
+            }
+            
+            return new CachedRobotRules(fetchTime, e.getHttpStatus(), parser.failedFetch(e.getHttpStatus()));
         } catch (IOFetchException e) {
-            return parser.failedFetch(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            return new CachedRobotRules(fetchTime, HttpStatus.SC_INTERNAL_SERVER_ERROR, parser.failedFetch(HttpStatus.SC_INTERNAL_SERVER_ERROR));
         } catch (RedirectFetchException e) {
             // Other sites will have circular redirects, so treat this as a missing robots.txt
-            return parser.failedFetch(HttpStatus.SC_GONE);
+            return new CachedRobotRules(fetchTime, HttpStatus.SC_GONE, parser.failedFetch(HttpStatus.SC_GONE));
         } catch (Exception e) {
             LOGGER.error("Unexpected exception fetching robots.txt: " + robotsUrl, e);
-            return parser.failedFetch(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            return new CachedRobotRules(fetchTime, HttpStatus.SC_INTERNAL_SERVER_ERROR, parser.failedFetch(HttpStatus.SC_INTERNAL_SERVER_ERROR));
         } catch (Throwable t) {
             LOGGER.error("Unexpected throwable caught while fetching robots.tx: " + robotsUrl , t);
-            return parser.failedFetch(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            return new CachedRobotRules(fetchTime, HttpStatus.SC_INTERNAL_SERVER_ERROR, parser.failedFetch(HttpStatus.SC_INTERNAL_SERVER_ERROR));
         }
     }
 
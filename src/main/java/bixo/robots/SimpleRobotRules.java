@@ -16,17 +16,25 @@
  */
 package bixo.robots;
 
-import java.net.URL;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.regex.Pattern;
 
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import bixo.urls.ParsedUrl;
+
 /**
  * Result from parsing a single robots.txt file - which means we
  * get a set of rules, and a crawl-delay.
  */
 
-public class SimpleRobotRules extends BaseRobotRules {
+public class SimpleRobotRules extends BaseRobotRules implements Writable {
 
     public enum RobotRulesMode {
         ALLOW_ALL,
@@ -59,6 +67,9 @@ public class SimpleRobotRules extends BaseRobotRules {
     private ArrayList<RobotRule> _rules;
     private RobotRulesMode _mode;
     
+    // Rules compiled for fast matching, or null if they need to be (re)compiled.
+    private volatile RobotRulesMatcher _matcher;
+    
     public SimpleRobotRules() {
         this(RobotRulesMode.ALLOW_SOME);
     }
@@ -68,10 +79,12 @@ public class SimpleRobotRules extends BaseRobotRules {
         
         _mode = mode;
         _rules = new ArrayList<RobotRule>();
+        _matcher = null;
     }
     
     public void clearRules() {
         _rules.clear();
+        _matcher = null;
     }
 
     public void addRule(String prefix, boolean allow) {
@@ -82,51 +95,180 @@ public class SimpleRobotRules extends BaseRobotRules {
         }
 
         _rules.add(new RobotRule(prefix, allow));
+        _matcher = null;
     }
 
-    // TODO KKr - make sure paths are sorted from longest to shortest,
-    // to implement longest match
     public boolean isAllowed(String url) {
         if (_mode == RobotRulesMode.ALLOW_NONE) {
             return false;
         } else if (_mode == RobotRulesMode.ALLOW_ALL) {
             return true;
         } else {
-            String path = getPath(url);
-            
-            // Always allow robots.txt
-            if (path.equals("/robots.txt")) {
-                return true;
-            }
-
-            for (RobotRule rule : _rules) {
-                if (path.startsWith(rule._prefix)) {
-                    return rule._allow;
-                }
-            }
+            return isAllowedPath(getPath(url));
+        }
+    }
 
+    @Override
+    public boolean isAllowed(ParsedUrl url) {
+        if (_mode == RobotRulesMode.ALLOW_NONE) {
+            return false;
+        } else if (_mode == RobotRulesMode.ALLOW_ALL) {
             return true;
+        } else {
+            return isAllowedPath(getPath(url));
         }
     }
 
-    private String getPath(String url) {
+    /**
+     * Same as isAllowed(url), for when the caller has already extracted the path (and query)
+     * from the URL. The path must be URL-decoded and lower-cased, which is what getPath() returns.
+     * 
+     * The longest matching rule wins, and if an allow and a disallow rule have the same
+     * length then the allow rule wins. Rules can use '*' and '$' wildcards.
+     * 
+     * @param path decoded, lower-cased path (plus query, if any)
+     * @return true if the path is allowed
+     */
+    public boolean isAllowedPath(String path) {
+        if (_mode == RobotRulesMode.ALLOW_NONE) {
+            return false;
+        } else if (_mode == RobotRulesMode.ALLOW_ALL) {
+            return true;
+        }
+        
+        // Always allow robots.txt
+        if (path.equals("/robots.txt")) {
+            return true;
+        }
 
-        try {
-            String path = new URL(url).getPath();
-            
-            if ((path == null) || (path.equals(""))) {
-                return "/";
-            } else {
-                // We always lower-case the path, as anybody who sets up rules that differ only by case
-                // is insane, but it's more likely that somebody will accidentally put in rules that don't
-                // match their target paths because of case differences.
-                return URLDecoder.decode(path, "UTF-8").toLowerCase();
+        return getMatcher().isAllowed(path);
+    }
+    
+    private RobotRulesMatcher getMatcher() {
+        RobotRulesMatcher result = _matcher;
+        if (result == null) {
+            synchronized (this) {
+                result = _matcher;
+                if (result == null) {
+                    result = new RobotRulesMatcher();
+                    for (RobotRule rule : _rules) {
+                        // Paths are lower-cased, so rules have to be as well.
+                        result.addRule(rule._prefix.toLowerCase(), rule._allow);
+                    }
+                    
+                    _matcher = result;
+                }
             }
-        } catch (Exception e) {
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Return the part of <url> that rules are matched against, which is the path and query.
+     * We avoid creating a URL, since this gets called for every URL we might fetch.
+     * 
+     * @param url
+     * @return decoded, lower-cased path and query, or "/" if the URL is invalid.
+     */
+    public static String getPath(String url) {
+        int hostStart = url.indexOf("://");
+        if (hostStart == -1) {
             // If the URL is invalid, we don't really care since the fetch
             // will fail, so return the root.
             return "/";
         }
+        
+        int urlLength = url.length();
+        int pathStart = hostStart + 3;
+        while (pathStart < urlLength) {
+            char c = url.charAt(pathStart);
+            if ((c == '/') || (c == '?') || (c == '#')) {
+                break;
+            }
+            
+            pathStart += 1;
+        }
+        
+        return getPath(url, pathStart);
+    }
+    
+    /**
+     * Same as getPath(String), for a URL that's already been parsed.
+     */
+    public static String getPath(ParsedUrl url) {
+        return getPath(url.getUrl(), url.getPathStart());
+    }
+    
+    private static String getPath(String url, int pathStart) {
+        int pathEnd = url.indexOf('#', pathStart);
+        if (pathEnd == -1) {
+            pathEnd = url.length();
+        }
+        
+        String path = url.substring(pathStart, pathEnd);
+        if ((path.length() == 0) || (path.charAt(0) != '/')) {
+            path = "/" + path;
+        }
+        
+        // We always lower-case the path, as anybody who sets up rules that differ only by case
+        // is insane, but it's more likely that somebody will accidentally put in rules that don't
+        // match their target paths because of case differences.
+        if ((path.indexOf('%') != -1) || (path.indexOf('+') != -1)) {
+            try {
+                path = URLDecoder.decode(path, "UTF-8");
+            } catch (Exception e) {
+                return "/";
+            }
+        }
+        
+        return path.toLowerCase();
+    }
+    
+    public RobotRulesMode getMode() {
+        return _mode;
+    }
+    
+    /**
+     * Write out a compact form of the rules, for caching them between crawls.
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(_mode.ordinal());
+        WritableUtils.writeVLong(out, getCrawlDelay());
+        out.writeBoolean(isDeferVisits());
+        
+        WritableUtils.writeVInt(out, getSitemaps().size());
+        for (String sitemap : getSitemaps()) {
+            Text.writeString(out, sitemap);
+        }
+        
+        WritableUtils.writeVInt(out, _rules.size());
+        for (RobotRule rule : _rules) {
+            Text.writeString(out, rule._prefix);
+            out.writeBoolean(rule._allow);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        _mode = RobotRulesMode.values()[in.readByte()];
+        setCrawlDelay(WritableUtils.readVLong(in));
+        setDeferVisits(in.readBoolean());
+        
+        getSitemaps().clear();
+        int numSitemaps = WritableUtils.readVInt(in);
+        for (int i = 0; i < numSitemaps; i++) {
+            addSitemap(Text.readString(in));
+        }
+        
+        _rules.clear();
+        _matcher = null;
+        int numRules = WritableUtils.readVInt(in);
+        for (int i = 0; i < numRules; i++) {
+            String prefix = Text.readString(in);
+            _rules.add(new RobotRule(prefix, in.readBoolean()));
+        }
     }
     
     /**
@@ -16,14 +16,13 @@
  */
 package bixo.robots;
 
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
@@ -98,18 +97,21 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
         private boolean _finishedAgentFields;
         
         private String _url;
-        private String _targetName;
+        private String[] _targetNames;
         
         private SimpleRobotRules _curRules;
         
         public ParseState(String url, String targetName) {
             _url = url;
-            _targetName = targetName;
+            
+            // Extract possible match names from our target agent name, since it appears
+            // to be expected that "Mozilla botname 1.0" matches "botname"
+            _targetNames = targetName.split(" ");
             _curRules = new SimpleRobotRules();
         }
         
-        public String getTargetName() {
-            return _targetName;
+        public String[] getTargetNames() {
+            return _targetNames;
         }
         
         public boolean isMatchedRealName() {
@@ -166,22 +168,63 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
 
     }
     
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    /**
+     * One (non-empty) line from the robots.txt file. We don't create any strings for
+     * the line or the directive's data unless somebody asks for them, since most of
+     * the time (e.g. disallow lines for some other agent) nobody does.
+     */
     private static class RobotToken {
         private RobotDirective _directive;
         private String _data;
+        private String _line;
+        
+        private byte[] _buffer;
+        private int _lineStart;
+        private int _lineEnd;
+        private int _dataStart;
+        private Charset _charset;
         
         public RobotToken(RobotDirective directive, String data) {
             _directive = directive;
             _data = data;
         }
 
+        public RobotToken(Charset charset) {
+            _charset = charset;
+        }
+        
+        public void set(RobotDirective directive, byte[] buffer, int lineStart, int lineEnd, int dataStart) {
+            _directive = directive;
+            _buffer = buffer;
+            _lineStart = lineStart;
+            _lineEnd = lineEnd;
+            _dataStart = dataStart;
+            _data = null;
+            _line = null;
+        }
+        
         public RobotDirective getDirective() {
             return _directive;
         }
 
         public String getData() {
+            if (_data == null) {
+                _data = new String(_buffer, _dataStart, _lineEnd - _dataStart, _charset).toLowerCase();
+            }
+            
             return _data;
         }
+        
+        public String getLine() {
+            if (_line == null) {
+                _line = new String(_buffer, _lineStart, _lineEnd - _lineStart, _charset).toLowerCase();
+            }
+            
+            return _line;
+        }
     }
     
     private static Map<String, RobotDirective> DIRECTIVE_PREFIX = new HashMap<String, RobotDirective>();
@@ -206,56 +249,287 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
         DIRECTIVE_PREFIX.put("crawl delay", RobotDirective.CRAWL_DELAY);
     }
     
-    // separator is either one or more spaces/tabs, or a colon
-    private static final Pattern COLON_DIRECTIVE_DELIMITER = Pattern.compile("[ \t]*:[ \t]*(.*)");
-    private static final Pattern BLANK_DIRECTIVE_DELIMITER = Pattern.compile("[ \t]+(.*)");
+    // The directive prefixes as ASCII bytes, indexed by their first byte, so for each
+    // line we only have to check the few that could possibly match.
+    private static final byte[][][] PREFIX_BYTES = new byte[128][][];
+    private static final RobotDirective[][] PREFIX_DIRECTIVES = new RobotDirective[128][];
+    
+    static {
+        for (Map.Entry<String, RobotDirective> entry : DIRECTIVE_PREFIX.entrySet()) {
+            byte[] prefix = entry.getKey().getBytes(US_ASCII);
+            int firstByte = prefix[0];
+            
+            byte[][] prefixes = PREFIX_BYTES[firstByte];
+            RobotDirective[] directives = PREFIX_DIRECTIVES[firstByte];
+            int numPrefixes = (prefixes == null ? 0 : prefixes.length);
+            
+            PREFIX_BYTES[firstByte] = new byte[numPrefixes + 1][];
+            PREFIX_DIRECTIVES[firstByte] = new RobotDirective[numPrefixes + 1];
+            for (int i = 0; i < numPrefixes; i++) {
+                PREFIX_BYTES[firstByte][i] = prefixes[i];
+                PREFIX_DIRECTIVES[firstByte][i] = directives[i];
+            }
+            
+            PREFIX_BYTES[firstByte][numPrefixes] = prefix;
+            PREFIX_DIRECTIVES[firstByte][numPrefixes] = entry.getValue();
+        }
+    }
     
-    // match the rest of the directive, up until whitespace or colon
-    private static final Pattern DIRECTIVE_SUFFIX_PATTERN = Pattern.compile("[^: \t]+(.*)");
-
     /**
-     * Figure out directive on line of text from robots.txt file.
-     * We assume the line has been lower-cased
+     * Streaming tokenizer that works directly on the robots.txt bytes. Since all of the
+     * directives, separators, comment markers and line endings are ASCII, we can find them
+     * without decoding the content, as long as the charset is ASCII-compatible (we convert
+     * UTF-16 content to UTF-8 before getting here).
      * 
-     * @param line
-     * @return robot command found on line
+     * For each line we remove HTML tags (if requested), comments and surrounding whitespace,
+     * then figure out the directive. A directive is a (case-insensitive) known prefix,
+     * optionally followed by non-separator chars for prefix directives (e.g. ACAP-xxx), and
+     * then either a colon with optional surrounding whitespace, or just whitespace. If the
+     * line starts with a colon it's an unknown directive, otherwise it's missing one.
      */
-    private static RobotToken tokenize(String line) {
-        for (String prefix : DIRECTIVE_PREFIX.keySet()) {
-            int prefixLength = prefix.length();
-            if (line.startsWith(prefix)) {
-                RobotDirective directive = DIRECTIVE_PREFIX.get(prefix);
-                String dataPortion = line.substring(prefixLength);
-
-                if (directive.isPrefix()) {
-                    Matcher m = DIRECTIVE_SUFFIX_PATTERN.matcher(dataPortion);
-                    if (m.matches()) {
-                        dataPortion = m.group(1);
-                    } else {
+    private static class RobotTokenizer {
+        private byte[] _content;
+        private int _pos;
+        private int _end;
+        private boolean _isUtf8;
+        private boolean _stripHtml;
+        private byte[] _lineBuffer;
+        private RobotToken _token;
+        
+        public RobotTokenizer(byte[] content, int offset, int end, Charset charset, boolean stripHtml) {
+            _content = content;
+            _pos = offset;
+            _end = end;
+            _isUtf8 = charset.equals(UTF_8);
+            _stripHtml = stripHtml;
+            _token = new RobotToken(charset);
+        }
+        
+        /**
+         * @return token for the next non-empty line, or null if there are no more lines.
+         * The token is reused, so it's only valid until the next call.
+         */
+        public RobotToken next() {
+            while (_pos < _end) {
+                int lineStart = _pos;
+                int lineEnd = findLineEnd(lineStart);
+                
+                byte[] buffer = _content;
+                if (_stripHtml) {
+                    buffer = stripHtml(lineStart, lineEnd);
+                    lineEnd = lineEnd - lineStart;
+                    lineStart = 0;
+                }
+                
+                // Trim off comments and whitespace
+                for (int i = lineStart; i < lineEnd; i++) {
+                    if (buffer[i] == '#') {
+                        lineEnd = i;
+                        break;
+                    }
+                }
+                
+                while ((lineStart < lineEnd) && isWhitespace(buffer[lineStart])) {
+                    lineStart += 1;
+                }
+                
+                while ((lineEnd > lineStart) && isWhitespace(buffer[lineEnd - 1])) {
+                    lineEnd -= 1;
+                }
+                
+                if (lineStart < lineEnd) {
+                    tokenize(buffer, lineStart, lineEnd);
+                    return _token;
+                }
+            }
+            
+            return null;
+        }
+        
+        /**
+         * Find the end of the line starting at <start>, and move our position past
+         * the line terminator. Besides CR and LF, for UTF-8 content we also handle the
+         * Unicode next line, line separator and paragraph separator chars.
+         */
+        private int findLineEnd(int start) {
+            for (int i = start; i < _end; i++) {
+                byte b = _content[i];
+                if ((b == '\n') || (b == '\r')) {
+                    _pos = i + 1;
+                    return i;
+                } else if (_isUtf8 && (b < 0)) {
+                    int terminatorLength = getUnicodeTerminatorLength(i);
+                    if (terminatorLength > 0) {
+                        _pos = i + terminatorLength;
+                        return i;
+                    }
+                }
+            }
+            
+            _pos = _end;
+            return _end;
+        }
+        
+        private int getUnicodeTerminatorLength(int pos) {
+            // U+0085 is C2 85, U+2028 and U+2029 are E2 80 A8 and E2 80 A9
+            if ((_content[pos] == (byte)0xC2) && (pos + 1 < _end) && (_content[pos + 1] == (byte)0x85)) {
+                return 2;
+            } else if ((_content[pos] == (byte)0xE2) && (pos + 2 < _end) && (_content[pos + 1] == (byte)0x80)
+                            && ((_content[pos + 2] == (byte)0xA8) || (_content[pos + 2] == (byte)0xA9))) {
+                return 3;
+            } else {
+                return 0;
+            }
+        }
+        
+        /**
+         * Copy the line into our line buffer, minus anything that looks like an HTML tag
+         * (a '<', one or more chars that aren't '>', and then a '>').
+         */
+        private byte[] stripHtml(int lineStart, int lineEnd) {
+            int lineLength = lineEnd - lineStart;
+            if ((_lineBuffer == null) || (_lineBuffer.length < lineLength)) {
+                _lineBuffer = new byte[Math.max(lineLength, 256)];
+            }
+            
+            int length = 0;
+            int i = lineStart;
+            while (i < lineEnd) {
+                byte b = _content[i];
+                if ((b == '<') && (i + 1 < lineEnd) && (_content[i + 1] != '>')) {
+                    int tagEnd = indexOf((byte)'>', i + 2, lineEnd);
+                    if (tagEnd != -1) {
+                        i = tagEnd + 1;
                         continue;
                     }
                 }
-                Matcher m = COLON_DIRECTIVE_DELIMITER.matcher(dataPortion);
-                if (!m.matches()) {
-                    m = BLANK_DIRECTIVE_DELIMITER.matcher(dataPortion);
+                
+                _lineBuffer[length++] = b;
+                i += 1;
+            }
+            
+            // Clear out the rest of the line, so we can treat it as whitespace.
+            for (int j = length; j < lineLength; j++) {
+                _lineBuffer[j] = ' ';
+            }
+            
+            return _lineBuffer;
+        }
+        
+        private int indexOf(byte target, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (_content[i] == target) {
+                    return i;
                 }
-
-                if (m.matches()) {
-                    return new RobotToken(directive, m.group(1).trim());
+            }
+            
+            return -1;
+        }
+        
+        private void tokenize(byte[] buffer, int lineStart, int lineEnd) {
+            int firstByte = toLowerCase(buffer[lineStart]);
+            byte[][] prefixes = (firstByte < 0 ? null : PREFIX_BYTES[firstByte]);
+            if (prefixes != null) {
+                for (int i = 0; i < prefixes.length; i++) {
+                    byte[] prefix = prefixes[i];
+                    if (!startsWith(buffer, lineStart, lineEnd, prefix)) {
+                        continue;
+                    }
+                    
+                    RobotDirective directive = PREFIX_DIRECTIVES[firstByte][i];
+                    int pos = lineStart + prefix.length;
+                    if (directive.isPrefix()) {
+                        int suffixStart = pos;
+                        while ((pos < lineEnd) && !isSeparator(buffer[pos]) && (buffer[pos] != ':')) {
+                            pos += 1;
+                        }
+                        
+                        if (pos == suffixStart) {
+                            continue;
+                        }
+                    }
+                    
+                    int dataStart = findDataStart(buffer, pos, lineEnd);
+                    if (dataStart != -1) {
+                        _token.set(directive, buffer, lineStart, lineEnd, dataStart);
+                        return;
+                    }
                 }
             }
+            
+            if (buffer[lineStart] == ':') {
+                _token.set(RobotDirective.UNKNOWN, buffer, lineStart, lineEnd, lineStart);
+            } else {
+                _token.set(RobotDirective.MISSING, buffer, lineStart, lineEnd, lineStart);
+            }
         }
         
-        Matcher m = COLON_DIRECTIVE_DELIMITER.matcher(line);
-        if (m.matches()) {
-            return new RobotToken(RobotDirective.UNKNOWN, line);
-        } else {
-            return new RobotToken(RobotDirective.MISSING, line);
+        /**
+         * Skip over the separator between the directive and its data, which is either
+         * a colon with optional spaces/tabs around it, or one or more spaces/tabs.
+         * 
+         * @return start of the (trimmed) data, or -1 if there's no valid separator.
+         */
+        private int findDataStart(byte[] buffer, int pos, int lineEnd) {
+            int separatorStart = pos;
+            while ((pos < lineEnd) && isSeparator(buffer[pos])) {
+                pos += 1;
+            }
+            
+            if ((pos < lineEnd) && (buffer[pos] == ':')) {
+                pos += 1;
+            } else if (pos == separatorStart) {
+                return -1;
+            }
+            
+            while ((pos < lineEnd) && isWhitespace(buffer[pos])) {
+                pos += 1;
+            }
+            
+            return pos;
+        }
+        
+        private static boolean startsWith(byte[] buffer, int lineStart, int lineEnd, byte[] prefix) {
+            if (lineEnd - lineStart < prefix.length) {
+                return false;
+            }
+            
+            for (int i = 0; i < prefix.length; i++) {
+                if (toLowerCase(buffer[lineStart + i]) != prefix[i]) {
+                    return false;
+                }
+            }
+            
+            return true;
+        }
+        
+        private static boolean isSeparator(byte b) {
+            return (b == ' ') || (b == '\t');
+        }
+        
+        private static boolean isWhitespace(byte b) {
+            // Same as what String.trim() removes.
+            return (b >= 0) && (b <= ' ');
+        }
+        
+        private static int toLowerCase(byte b) {
+            return ((b >= 'A') && (b <= 'Z')) ? b + ('a' - 'A') : b;
         }
     }
     
-    private static final Pattern SIMPLE_HTML_PATTERN = Pattern.compile("(?is)<(html|head|body)\\s*>");
-    private static final Pattern USER_AGENT_PATTERN = Pattern.compile("(?i)user-agent:");
+    // ASCII-compatible charsets encode these the same as US-ASCII.
+    private static final String ASCII_PROBE = "user-agent: /*$#<>\r\n\t";
+    private static final byte[] ASCII_PROBE_BYTES = ASCII_PROBE.getBytes(US_ASCII);
+
+    // What we look for to decide if we've got an HTML page, versus a robots.txt file.
+    private static final byte[][] HTML_TAG_NAMES = {
+        "<html".getBytes(US_ASCII),
+        "<head".getBytes(US_ASCII),
+        "<body".getBytes(US_ASCII)
+    };
+    private static final byte[] USER_AGENT_FIELD = "user-agent:".getBytes(US_ASCII);
+
+    private static final Pattern AGENT_NAME_DELIMITER = Pattern.compile("[ \t,]");
 
     // Max # of warnings during parse of any one robots.txt file.
     private static final int MAX_WARNINGS = 5;
@@ -264,8 +538,26 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
     // than this, we'll skip all pages.
     private static final long MAX_CRAWL_DELAY = 300000;
 
+    // Max # of bytes we'll process from any one robots.txt file. Google uses 500KB.
+    public static final int DEFAULT_MAX_PARSE_BYTES = 500 * 1024;
+    
+    private int _maxParseBytes = DEFAULT_MAX_PARSE_BYTES;
+    
     private int _numWarnings;
     
+    public int getMaxParseBytes() {
+        return _maxParseBytes;
+    }
+
+    /**
+     * Set the max number of bytes we'll process from a robots.txt file. Anything after
+     * the last complete line within this limit is ignored, so a site that returns megabytes
+     * of junk can't eat up lots of CPU.
+     */
+    public void setMaxParseBytes(int maxParseBytes) {
+        _maxParseBytes = maxParseBytes;
+    }
+    
     @Override
     public BaseRobotRules failedFetch(int httpStatusCode) {
         SimpleRobotRules result;
@@ -300,22 +592,39 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
             return new SimpleRobotRules(RobotRulesMode.ALLOW_ALL);
         }
 
-        int bytesLen = content.length;
         int offset = 0;
-        String encoding = "us-ascii";
+        int end = content.length;
+        Charset charset = getCharset(contentType);
         
-        // Check for a UTF-8 BOM at the beginning (EF BB BF)
-        if ((bytesLen >= 3) && (content[0] == (byte)0xEF) && (content[1] == (byte)0xBB) && (content[2] == (byte)0xBF)) {
+        // Check for a BOM at the beginning. UTF-8 is EF BB BF, UTF-16 is FE FF (big-endian)
+        // or FF FE (little-endian).
+        if ((end >= 3) && (content[0] == (byte)0xEF) && (content[1] == (byte)0xBB) && (content[2] == (byte)0xBF)) {
             offset = 3;
-            bytesLen -= 3;
-            encoding = "UTF-8";
+            charset = UTF_8;
+        } else if ((end >= 2) && (content[0] == (byte)0xFE) && (content[1] == (byte)0xFF)) {
+            offset = 2;
+            charset = Charset.forName("UTF-16BE");
+        } else if ((end >= 2) && (content[0] == (byte)0xFF) && (content[1] == (byte)0xFE)) {
+            offset = 2;
+            charset = Charset.forName("UTF-16LE");
         }
         
-        String contentAsStr;
-        try {
-            contentAsStr = new String(content, offset, bytesLen, encoding);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("Impossible unsupported encoding exception for " + encoding);
+        // We can only work with the raw bytes if the charset is ASCII-compatible, so convert
+        // anything else (e.g. UTF-16) to UTF-8 first. This is rare.
+        if (!isAsciiCompatible(charset)) {
+            content = new String(content, offset, end - offset, charset).getBytes(UTF_8);
+            offset = 0;
+            end = content.length;
+            charset = UTF_8;
+        }
+        
+        // Ignore anything after the last complete line that's within our limit.
+        if (end - offset > _maxParseBytes) {
+            LOGGER.debug(String.format("Only processing first %d bytes of robots.txt file (size %d): %s", _maxParseBytes, content.length, url));
+            end = offset + _maxParseBytes;
+            while ((end > offset) && (content[end - 1] != '\n') && (content[end - 1] != '\r')) {
+                end -= 1;
+            }
         }
 
         // Decide if we need to do special HTML processing.
@@ -325,8 +634,8 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
         // assume somebody messed up and returned back to us a random HTML page instead
         // of a robots.txt file.
         boolean hasHTML = false;
-        if (isHtmlType || SIMPLE_HTML_PATTERN.matcher(contentAsStr).find()) {
-            if (!USER_AGENT_PATTERN.matcher(contentAsStr).find()) {
+        if (isHtmlType || hasHtmlTag(content, offset, end)) {
+            if (indexOfIgnoreCase(content, offset, end, USER_AGENT_FIELD) == -1) {
                 LOGGER.trace("Found non-robots.txt HTML file: " + url);
                 return new SimpleRobotRules(RobotRulesMode.ALLOW_ALL);
             } else {
@@ -341,35 +650,15 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
             }
         }
         
-        // Break on anything that might be used as a line ending. Since tokenizer doesn't
-        // return empty tokens, a \r\n sequence still works since it looks like an empty
-        // string between the \r and \n.
-        StringTokenizer lineParser = new StringTokenizer(contentAsStr, "\n\r\u0085\u2028\u2029");
+        // Get rid of HTML markup, in case some brain-dead webmaster has created an HTML
+        // page for robots.txt. We could do more sophisticated processing here to better
+        // handle bad HTML, but that's a very tiny percentage of all robots.txt files.
+        RobotTokenizer tokenizer = new RobotTokenizer(content, offset, end, charset, hasHTML);
         ParseState parseState = new ParseState(url, robotName.toLowerCase());
         boolean keepGoing = true;
         
-        while (keepGoing && lineParser.hasMoreTokens()) {
-            String line = lineParser.nextToken();
-
-            // Get rid of HTML markup, in case some brain-dead webmaster has created an HTML
-            // page for robots.txt. We could do more sophisticated processing here to better
-            // handle bad HTML, but that's a very tiny percentage of all robots.txt files.
-            if (hasHTML) {
-                line = line.replaceAll("<[^>]+>","");
-            }
-            
-            // trim out comments and whitespace
-            int hashPos = line.indexOf("#");
-            if (hashPos >= 0) {
-                line = line.substring(0, hashPos);
-            }
-            
-            line = line.trim().toLowerCase();
-            if (line.length() == 0) {
-                continue;
-            }
-         
-            RobotToken token = tokenize(line);
+        RobotToken token;
+        while (keepGoing && ((token = tokenizer.next()) != null)) {
             switch (token.getDirective()) {
                 case USER_AGENT:
                     keepGoing = handleUserAgent(parseState, token);
@@ -396,12 +685,12 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
                     break;
 
                 case UNKNOWN:
-                    reportWarning("Unknown directive in robots.txt file: " + line, url);
+                    reportWarning("Unknown directive in robots.txt file: %s", token, url);
                     parseState.setFinishedAgentFields(true);
                     break;
                     
                 case MISSING:
-                    reportWarning(String.format("Unknown line in robots.txt file (size %d): %s", content.length, line), url);
+                    reportWarning("Unknown line in robots.txt file (size " + content.length + "): %s", token, url);
                     parseState.setFinishedAgentFields(true);
                     break;
                     
@@ -413,7 +702,6 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
                     break;
             }
         }
-
         SimpleRobotRules result = parseState.getRobotRules();
         if (result.getCrawlDelay() > MAX_CRAWL_DELAY) {
             // Some evil sites use a value like 3600 (seconds) for the crawl delay, which would
@@ -425,6 +713,94 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
         }
     }
 
+    /**
+     * @return charset from the content type, if it's valid, otherwise UTF-8.
+     */
+    private static Charset getCharset(String contentType) {
+        if (contentType != null) {
+            int charsetPos = contentType.toLowerCase().indexOf("charset=");
+            if (charsetPos != -1) {
+                String charsetName = contentType.substring(charsetPos + "charset=".length()).split("[;, \t]")[0];
+                charsetName = charsetName.replaceAll("[\"']", "");
+                try {
+                    return Charset.forName(charsetName);
+                } catch (Exception e) {
+                    // Illegal or unsupported charset name, so ignore it.
+                }
+            }
+        }
+        
+        return UTF_8;
+    }
+    
+    private static boolean isAsciiCompatible(Charset charset) {
+        if (charset.equals(UTF_8) || charset.equals(US_ASCII)) {
+            return true;
+        }
+        
+        try {
+            return Arrays.equals(ASCII_PROBE_BYTES, ASCII_PROBE.getBytes(charset.name()));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+    
+    /**
+     * @return true if the content has an <html>, <head> or <body> tag.
+     */
+    private static boolean hasHtmlTag(byte[] content, int offset, int end) {
+        for (int i = offset; i < end; i++) {
+            if (content[i] != '<') {
+                continue;
+            }
+            
+            for (byte[] tagName : HTML_TAG_NAMES) {
+                if (indexOfIgnoreCase(content, i, Math.min(end, i + tagName.length), tagName) == i) {
+                    int pos = i + tagName.length;
+                    while ((pos < end) && isHtmlWhitespace(content[pos])) {
+                        pos += 1;
+                    }
+                    
+                    if ((pos < end) && (content[pos] == '>')) {
+                        return true;
+                    }
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+    private static boolean isHtmlWhitespace(byte b) {
+        return (b == ' ') || (b == '\t') || (b == '\n') || (b == '\r') || (b == '\f') || (b == 0x0B);
+    }
+    
+    /**
+     * Find <target> (which must be lower-case ASCII) in content, ignoring case.
+     * 
+     * @return position of the match, or -1 if not found.
+     */
+    private static int indexOfIgnoreCase(byte[] content, int offset, int end, byte[] target) {
+        int lastStart = end - target.length;
+        byte first = target[0];
+        for (int i = offset; i <= lastStart; i++) {
+            if (RobotTokenizer.toLowerCase(content[i]) != first) {
+                continue;
+            }
+            
+            int j = 1;
+            while ((j < target.length) && (RobotTokenizer.toLowerCase(content[i + j]) == target[j])) {
+                j += 1;
+            }
+            
+            if (j == target.length) {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
     private void reportWarning(String msg, String url) {
         _numWarnings += 1;
         
@@ -437,6 +813,18 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
         }
     }
     
+    /**
+     * Report a warning about the line in <token>, where we only create the message
+     * if it's actually going to be logged.
+     */
+    private void reportWarning(String format, RobotToken token, String url) {
+        if (_numWarnings + 1 < MAX_WARNINGS) {
+            reportWarning(String.format(format, token.getLine()), url);
+        } else {
+            reportWarning(format, url);
+        }
+    }
+    
     /**
      * Handle the user-agent: directive
      * 
@@ -463,12 +851,10 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
             state.setAddingRules(false);
         }
         
-        // Extract possible match names from our target agent name, since it appears
-        // to be expected that "Mozilla botname 1.0" matches "botname"
-        String[] targetNames = state.getTargetName().split(" ");
+        String[] targetNames = state.getTargetNames();
         
         // TODO KKr - catch case of multiple names, log as non-standard.
-        String[] agentNames = token.getData().split("[ \t,]");
+        String[] agentNames = AGENT_NAME_DELIMITER.split(token.getData());
         for (String agentName : agentNames) {
             if (agentName.equals("*") && !state.isMatchedWildcard()) {
                 state.setMatchedWildcard(true);
@@ -31,4 +31,12 @@ public abstract class BaseUrlValidator implements Serializable {
      */
     public abstract boolean isValid(String url);
 
+    /**
+     * Return true if the already-parsed url is valid. By default this just
+     * validates the URL string, but validators can use the parsed parts.
+     */
+    public boolean isValid(ParsedUrl url) {
+        return isValid(url.getUrl());
+    }
+
 }
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.urls;
+
+/**
+ * A URL string, plus the offsets of its parts, for URLs that look like
+ * <scheme>://<authority><path>?<query>#<fragment>.
+ * 
+ * Parsing only finds where each part starts and ends, without copying or checking the
+ * characters in each part, so it's much cheaper than creating a java.net.URL (and then
+ * a java.net.URI, to check the host). Code that needs several parts of the same URL
+ * (validating it, grouping it by domain, checking it against robots.txt rules) can share
+ * one ParsedUrl. See SimpleUrlValidator for validation of the characters.
+ */
+public class ParsedUrl {
+
+    public static final int HTTP_DEFAULT_PORT = 80;
+    public static final int HTTPS_DEFAULT_PORT = 443;
+    
+    private String _url;
+    private int _schemeEnd;
+    private int _hostStart;
+    private int _hostEnd;
+    private int _port;
+    private int _pathStart;
+    private int _queryStart;
+    private int _fragmentStart;
+    
+    private ParsedUrl(String url) {
+        _url = url;
+    }
+    
+    /**
+     * Find the parts of <url>.
+     * 
+     * @param url
+     * @return parsed URL, or null if <url> doesn't have a scheme followed by "//", or the
+     *         port isn't a number (that fits in an int).
+     */
+    public static ParsedUrl parse(String url) {
+        ParsedUrl result = new ParsedUrl(url);
+        int length = url.length();
+        
+        // scheme = alpha *( alpha | digit | "+" | "-" | "." )
+        int schemeEnd = 0;
+        while (schemeEnd < length) {
+            char c = url.charAt(schemeEnd);
+            if (isAlpha(c) || ((schemeEnd > 0) && (isDigit(c) || (c == '+') || (c == '-') || (c == '.')))) {
+                schemeEnd += 1;
+            } else {
+                break;
+            }
+        }
+        
+        if ((schemeEnd == 0) || !url.startsWith("://", schemeEnd)) {
+            return null;
+        }
+        
+        result._schemeEnd = schemeEnd;
+        
+        int authorityStart = schemeEnd + "://".length();
+        int authorityEnd = authorityStart;
+        while (authorityEnd < length) {
+            char c = url.charAt(authorityEnd);
+            if ((c == '/') || (c == '?') || (c == '#')) {
+                break;
+            }
+            
+            authorityEnd += 1;
+        }
+        
+        int hostStart = url.lastIndexOf('@', authorityEnd - 1);
+        hostStart = (hostStart < authorityStart) ? authorityStart : hostStart + 1;
+        
+        int hostEnd;
+        if ((hostStart < authorityEnd) && (url.charAt(hostStart) == '[')) {
+            // IPv6 literal, which contains ':' chars.
+            hostEnd = url.indexOf(']', hostStart);
+            if ((hostEnd == -1) || (hostEnd >= authorityEnd)) {
+                return null;
+            }
+            
+            hostEnd += 1;
+            if ((hostEnd < authorityEnd) && (url.charAt(hostEnd) != ':')) {
+                return null;
+            }
+        } else {
+            hostEnd = hostStart;
+            while ((hostEnd < authorityEnd) && (url.charAt(hostEnd) != ':')) {
+                hostEnd += 1;
+            }
+        }
+        
+        result._hostStart = hostStart;
+        result._hostEnd = hostEnd;
+        result._port = -1;
+        
+        if (hostEnd < authorityEnd) {
+            int portStart = hostEnd + 1;
+            long port = 0;
+            for (int i = portStart; i < authorityEnd; i++) {
+                char c = url.charAt(i);
+                if (!isDigit(c)) {
+                    return null;
+                }
+                
+                port = (port * 10) + (c - '0');
+                if (port > Integer.MAX_VALUE) {
+                    return null;
+                }
+            }
+            
+            if (portStart < authorityEnd) {
+                result._port = (int)port;
+            }
+        }
+        
+        result._pathStart = authorityEnd;
+        result._fragmentStart = url.indexOf('#', authorityEnd);
+        
+        int queryStart = url.indexOf('?', authorityEnd);
+        if ((result._fragmentStart != -1) && (queryStart > result._fragmentStart)) {
+            queryStart = -1;
+        }
+        
+        result._queryStart = queryStart;
+        return result;
+    }
+    
+    private static boolean isAlpha(char c) {
+        return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'));
+    }
+    
+    private static boolean isDigit(char c) {
+        return (c >= '0') && (c <= '9');
+    }
+    
+    private static boolean isAlphaNum(char c) {
+        return isAlpha(c) || isDigit(c);
+    }
+    
+    public String getUrl() {
+        return _url;
+    }
+    
+    /**
+     * @return scheme, in the same case as the URL.
+     */
+    public String getScheme() {
+        return _url.substring(0, _schemeEnd);
+    }
+    
+    /**
+     * @return true if the scheme is http or https (in any case).
+     */
+    public boolean isHttp() {
+        return ((_schemeEnd == 4) && _url.regionMatches(true, 0, "http", 0, 4))
+            || ((_schemeEnd == 5) && _url.regionMatches(true, 0, "https", 0, 5));
+    }
+    
+    public boolean hasUserInfo() {
+        return _hostStart > _schemeEnd + "://".length();
+    }
+    
+    public String getHost() {
+        return _url.substring(_hostStart, _hostEnd);
+    }
+    
+    public int getHostStart() {
+        return _hostStart;
+    }
+    
+    public int getHostEnd() {
+        return _hostEnd;
+    }
+    
+    /**
+     * @return port, or -1 if the URL doesn't specify one.
+     */
+    public int getPort() {
+        return _port;
+    }
+    
+    /**
+     * @return default port for the scheme, or -1 if it's not http or https.
+     */
+    public int getDefaultPort() {
+        if (!isHttp()) {
+            return -1;
+        } else {
+            return _schemeEnd == 4 ? HTTP_DEFAULT_PORT : HTTPS_DEFAULT_PORT;
+        }
+    }
+    
+    /**
+     * @return offset of the path, which is also the end of the authority. If the
+     *         path is empty, this is the offset of the query or fragment (or the URL length).
+     */
+    public int getPathStart() {
+        return _pathStart;
+    }
+    
+    public String getPath() {
+        return _url.substring(_pathStart, getPathEnd());
+    }
+    
+    private int getPathEnd() {
+        if (_queryStart != -1) {
+            return _queryStart;
+        } else if (_fragmentStart != -1) {
+            return _fragmentStart;
+        } else {
+            return _url.length();
+        }
+    }
+    
+    /**
+     * @return offset of the '?' that starts the query, or -1 if there isn't one.
+     */
+    public int getQueryStart() {
+        return _queryStart;
+    }
+    
+    /**
+     * @return query (without the '?'), or null if there isn't one.
+     */
+    public String getQuery() {
+        if (_queryStart == -1) {
+            return null;
+        } else {
+            return _url.substring(_queryStart + 1, _fragmentStart == -1 ? _url.length() : _fragmentStart);
+        }
+    }
+    
+    /**
+     * @return offset of the '#' that starts the fragment, or -1 if there isn't one.
+     */
+    public int getFragmentStart() {
+        return _fragmentStart;
+    }
+    
+    /**
+     * Return true if the host is a domain name (not an IP address) with the syntax
+     * required by RFC 2396, which is what java.net.URI accepts as a server host.
+     */
+    public boolean hasDomainName() {
+        int p = _hostStart;
+        int n = _hostEnd;
+        int lastLabelStart = -1;
+        boolean allDigits = true;
+        
+        while (p < n) {
+            // label = alphanum | alphanum *( alphanum | "-" ) alphanum
+            if (!isAlphaNum(_url.charAt(p))) {
+                return false;
+            }
+            
+            lastLabelStart = p;
+            while ((p < n) && (isAlphaNum(_url.charAt(p)) || (_url.charAt(p) == '-'))) {
+                allDigits &= isDigit(_url.charAt(p));
+                p += 1;
+            }
+            
+            if (_url.charAt(p - 1) == '-') {
+                return false;
+            }
+            
+            if (p < n) {
+                if (_url.charAt(p) != '.') {
+                    return false;
+                }
+                
+                p += 1;
+            }
+        }
+        
+        if (lastLabelStart == -1) {
+            return false;
+        }
+        
+        // Something like 10.0.0.1 is an IP address, and the top label of a fully
+        // qualified name has to start with a letter.
+        if (allDigits || ((lastLabelStart > _hostStart) && !isAlpha(_url.charAt(lastLabelStart)))) {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * java.net.URL ends the authority at the first '/' if there is one (before any '#'),
+     * so for something like "http://domain.com?a=/b" its idea of the host would be
+     * different from ours.
+     * 
+     * @return true if java.net.URL would find a different authority.
+     */
+    public boolean hasAmbiguousAuthority() {
+        if (_queryStart != _pathStart) {
+            return false;
+        }
+        
+        int slashOffset = _url.indexOf('/', _queryStart);
+        return (slashOffset != -1) && ((_fragmentStart == -1) || (slashOffset < _fragmentStart));
+    }
+    
+    /**
+     * Return true if this is an http or https URL with a domain name for the host, and
+     * no user info, which is the normal case. For these URLs, java.net.URL would find
+     * the same host and port, so callers don't need to create one.
+     */
+    public boolean isSimpleHttp() {
+        return isHttp() && !hasUserInfo() && !hasAmbiguousAuthority() && hasDomainName();
+    }
+    
+    /**
+     * @return scheme (lower-cased), host and port (if it's not the default port),
+     *         which is the same as UrlUtils.makeProtocolAndDomain(String).
+     */
+    public String getProtocolAndDomain() {
+        StringBuilder result = new StringBuilder(_hostEnd + 6);
+        result.append(getScheme().toLowerCase());
+        result.append("://");
+        result.append(_url, _hostStart, _hostEnd);
+        if ((_port != -1) && (_port != getDefaultPort())) {
+            result.append(':');
+            result.append(_port);
+        }
+        
+        return result.toString();
+    }
+    
+    @Override
+    public String toString() {
+        return _url;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.urls;
+
+/**
+ * Normalizes URLs with another normalizer (by default a SimpleUrlNormalizer), and
+ * then applies per-host rules for dropping and re-ordering query parameters.
+ */
+@SuppressWarnings("serial")
+public class RuleBasedUrlNormalizer extends BaseUrlNormalizer {
+
+    private BaseUrlNormalizer _normalizer;
+    private UrlParameterRules _rules;
+    
+    public RuleBasedUrlNormalizer(UrlParameterRules rules) {
+        this(new SimpleUrlNormalizer(), rules);
+    }
+    
+    public RuleBasedUrlNormalizer(BaseUrlNormalizer normalizer, UrlParameterRules rules) {
+        _normalizer = normalizer;
+        _rules = rules;
+    }
+    
+    public UrlParameterRules getRules() {
+        return _rules;
+    }
+    
+    @Override
+    public String normalize(String url) {
+        return _rules.apply(_normalizer.normalize(url));
+    }
+}
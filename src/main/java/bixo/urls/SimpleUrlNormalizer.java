@@ -16,17 +16,21 @@
  */
 package bixo.urls;
 
-import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLDecoder;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.Charset;
 
 import org.apache.log4j.Logger;
 
-import bixo.utils.StringUtils;
-
+/**
+ * Normalizes http(s) URLs in a single pass, by hand, without regular expressions
+ * or constructing java.net.URL objects. The StringBuilders (and byte buffer) that
+ * we use are reused between calls, one set per thread.
+ * 
+ * Anything that's not a simple http(s) URL - e.g. user info, IPv6 addresses,
+ * odd characters in the hostname, or other protocols - falls back to parsing
+ * with java.net.URL, so the results are the same as they've always been.
+ */
 @SuppressWarnings("serial")
 public class SimpleUrlNormalizer extends BaseUrlNormalizer {
     private static final Logger LOGGER = Logger.getLogger(SimpleUrlNormalizer.class);
@@ -42,27 +46,79 @@ public class SimpleUrlNormalizer extends BaseUrlNormalizer {
 
     private static final String RESERVED_PATH_CHARS = "%/?#";
     
-    private static final String HEX_CODES = "0123456789abcdefABCDEF";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    // Things that look like the (invalid) jsession ids prefixing or suffixing the query portion
+    // of a URL, e.g. ;jsessionid=xxx, up to the next '?', '&', '#' or the end of the URL.
+    private static final String JSESSION_ID_PREFIX = ";jsessionid=";
     
-    // Match "/xx/../" in the url, where xx consists of chars, different then "/"
-    // (slash) and needs to have at least one char different from "."
-    // Also match a leading "/../" in the URL. Both can be replaced by just "/"
-    private static final Pattern RELATIVE_PATH_PATTERN = Pattern.compile("(/[^/]*[^/.]{1}[^/]*/\\.\\./|^(/\\.\\./)+)");
+    // Query parameters (matched without regard to case) that look like session ids.
+    private static final String[] SESSION_ID_PARAMETERS = {
+        "sid", "phpsessid", "sessionid", "session_id", "bv_sessionid", "jsessionid", "-session",
+        "session", "session_key"
+    };
     
-    // Match against default pages such as /index.html, etc. 
-    private static final Pattern DEFAULT_PAGE_PATTERN = Pattern.compile("/((?i)index|default)\\.((?i)js[pf]{1}?[afx]?|cgi|cfm|asp[x]?|[psx]?htm[l]?|php[3456]?)(\\?|&|#|$)");
+    // Other common unwanted query parameters.
+    private static final String[] OTHER_IGNORED_QUERY_PARAMETERS = {
+        "width", "format", "country", "height", "src", "user", "username", "uname", "return_url",
+        "returnurl", "sort", "sort_by", "sortby", "sort_direction", "sort_key", "order_by",
+        "orderby", "sortorder", "collate"
+    };
     
-    // Remove things that look like the (invalid) jsession ids prefixing or suffixing the query portion of a URL.
-    private static final Pattern JSESSION_ID_PATTERN = Pattern.compile("(?:;jsessionid=.*?)(\\?|&|#|$)");
+    // Even more common unwanted query parameters, that we only remove in aggressive mode.
+    private static final String[] AGGRESSIVE_IGNORED_QUERY_PARAMETERS = {
+        "user", "usr", "user_id", "userid", "memberid"
+    };
     
-    // Remove things that look like session ids from the query portion of a URL.
-    private static final Pattern SESSION_ID_PATTERN = Pattern.compile("(\\?|&)(?:(?i)sid|phpsessid|sessionid|session_id|bv_sessionid|jsessionid|-session|session|session_key)=.*?(&|#|$)");
+    // Default pages such as /index.html, that we remove from the end of the path.
+    private static final String[] DEFAULT_PAGE_NAMES = { "index", "default" };
     
-    // Remove other common unwanted parameters from the query portion of a URL.
-    private static final Pattern OTHER_IGNORED_QUERY_PARAMETERS_PATTERN = Pattern.compile("(\\?|&)(?:(?i)width|format|country|height|src|user|username|uname|return_url|returnurl|sort|sort_by|sortby|sort_direction|sort_key|order_by|orderby|sortorder|collate)=.*?(&|#|$)");
+    private static final String[] DEFAULT_PAGE_EXTENSIONS = {
+        "jsp", "jsf", "jspa", "jspf", "jspx", "jsfa", "jsff", "jsfx", "cgi", "cfm", "asp", "aspx",
+        "htm", "html", "phtm", "phtml", "shtm", "shtml", "xhtm", "xhtml", "php", "php3", "php4",
+        "php5", "php6"
+    };
     
-    // Remove even more common unwanted parameters from the query portion of a URL.
-    private static final Pattern AGGRESSIVE_IGNORED_QUERY_PARAMETERS_PATTERN = Pattern.compile("(\\?|&)(?:(?i)user|usr|user_id|userid|memberid)=.*?(&|#|$)");
+    private static final int URL_BUFFER = 0;
+    private static final int PATH_BUFFER = 1;
+    private static final int RESULT_BUFFER = 2;
+    private static final int DECODED_BUFFER = 3;
+    
+    // Don't hang onto a buffer that some crazy-long URL made really big.
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+    
+    private static class Buffers {
+        private StringBuilder[] _builders = new StringBuilder[4];
+        private byte[] _bytes = new byte[256];
+        
+        public StringBuilder get(int buffer) {
+            StringBuilder result = _builders[buffer];
+            if ((result == null) || (result.capacity() > MAX_BUFFER_SIZE)) {
+                result = new StringBuilder(256);
+                _builders[buffer] = result;
+            }
+            
+            result.setLength(0);
+            return result;
+        }
+        
+        public byte[] getBytes(int minSize) {
+            if (_bytes.length < minSize) {
+                _bytes = new byte[Math.max(minSize, _bytes.length * 2)];
+            }
+            
+            return _bytes;
+        }
+    }
+    
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
     
     private boolean _treatRefAsQuery;
     private boolean _isAggressive;
@@ -80,71 +136,121 @@ public class SimpleUrlNormalizer extends BaseUrlNormalizer {
         _isAggressive = isAggressive;
     }
     
-    private String encodeCodePoint(int codepoint) {
-        try {
-            int[] codepoints = { codepoint };
-            byte[] bytes = new String(codepoints, 0, 1).getBytes("UTF-8");
-            
-            StringBuilder result = new StringBuilder();
-            for (byte value : bytes) {
-                result.append(String.format("%%%02x", value));
-            }
-            
-            return result.toString();
-        } catch (UnsupportedEncodingException e) {
-            LOGGER.error("Unexpected exception during URL encoding: " + e);
-            return "";
+    private static void appendEscaped(int value, StringBuilder result) {
+        result.append('%');
+        result.append(HEX_DIGITS[(value >> 4) & 0x0F]);
+        result.append(HEX_DIGITS[value & 0x0F]);
+    }
+    
+    private static void appendEncodedCodePoint(int codePoint, StringBuilder result) {
+        if (codePoint < 0x80) {
+            appendEscaped(codePoint, result);
+        } else if (codePoint < 0x800) {
+            appendEscaped(0xC0 | (codePoint >> 6), result);
+            appendEscaped(0x80 | (codePoint & 0x3F), result);
+        } else if ((codePoint >= Character.MIN_SURROGATE) && (codePoint <= Character.MAX_SURROGATE)) {
+            // Unpaired surrogate, which Java's UTF-8 encoder turns into '?'
+            appendEscaped('?', result);
+        } else if (codePoint < 0x10000) {
+            appendEscaped(0xE0 | (codePoint >> 12), result);
+            appendEscaped(0x80 | ((codePoint >> 6) & 0x3F), result);
+            appendEscaped(0x80 | (codePoint & 0x3F), result);
+        } else {
+            appendEscaped(0xF0 | (codePoint >> 18), result);
+            appendEscaped(0x80 | ((codePoint >> 12) & 0x3F), result);
+            appendEscaped(0x80 | ((codePoint >> 6) & 0x3F), result);
+            appendEscaped(0x80 | (codePoint & 0x3F), result);
         }
-
     }
     
-    private String encodeUrlComponent(String component, String reservedChars) {
-        StringBuilder result = new StringBuilder();
-        for (int i = 0; i < component.length(); ) {
-            int codePoint = component.codePointAt(i);
+    private static void encodeUrlComponent(CharSequence component, int start, int end, String reservedChars, StringBuilder result) {
+        for (int i = start; i < end; ) {
+            char c = component.charAt(i);
+            int codePoint = c;
+            if (Character.isHighSurrogate(c) && (i + 1 < end) && Character.isLowSurrogate(component.charAt(i + 1))) {
+                codePoint = Character.toCodePoint(c, component.charAt(i + 1));
+            }
+            
             if (codePoint == 0x0020) {
                 result.append('+');
             } else if (codePoint >= 0x007F) {
-                result.append(encodeCodePoint(codePoint));
-            } else if ((codePoint < 0x0020) || (reservedChars.indexOf((char)codePoint) != -1)) {
-                result.append(String.format("%%%02x", codePoint));
+                appendEncodedCodePoint(codePoint, result);
+            } else if ((codePoint < 0x0020) || (reservedChars.indexOf(codePoint) != -1)) {
+                appendEscaped(codePoint, result);
             } else {
-                result.append((char)codePoint);
+                result.append(c);
             }
             
             i += Character.charCount(codePoint);
         }
-        
-        return result.toString();
     }
     
-    public String decodeUrl(String url) {
+    private static int hexValue(char c) {
+        if ((c >= '0') && (c <= '9')) {
+            return c - '0';
+        } else if ((c >= 'a') && (c <= 'f')) {
+            return 10 + (c - 'a');
+        } else if ((c >= 'A') && (c <= 'F')) {
+            return 10 + (c - 'A');
+        } else {
+            return -1;
+        }
+    }
+    
+    // Decode like URLDecoder does, where a '%' that isn't followed by two hex digits
+    // is treated as an (unescaped) '%' character.
+    private static void decodeUrl(CharSequence url, int start, int end, Buffers buffers, StringBuilder result) {
         // FUTURE - handle unsupported %uHHHH sequences for Unicode code points.
         // FUTURE - detect & handle incorrectly encoded URLs
-        
-        // First, try to catch unescaped '%' characters.
-        int offset = 0;
-        while ((offset = url.indexOf('%', offset)) != -1) {
-            offset += 1;
-            boolean needsEscaping = false;
-            if (offset > (url.length() - 2)) {
-                needsEscaping = true;
-            } else if ((HEX_CODES.indexOf(url.charAt(offset)) == -1) || (HEX_CODES.indexOf(url.charAt(offset + 1)) == -1)) {
-                needsEscaping = true;
+        int i = start;
+        while (i < end) {
+            char c = url.charAt(i);
+            if (c == '+') {
+                result.append(' ');
+                i += 1;
+            } else if (c == '%') {
+                // Decode the run of escaped bytes as UTF-8.
+                byte[] bytes = buffers.getBytes(end - i);
+                int numBytes = 0;
+                while ((i < end) && (url.charAt(i) == '%')) {
+                    int high = (i + 2 < end) ? hexValue(url.charAt(i + 1)) : -1;
+                    int low = (high != -1) ? hexValue(url.charAt(i + 2)) : -1;
+                    if (low != -1) {
+                        bytes[numBytes++] = (byte)((high << 4) + low);
+                        i += 3;
+                    } else {
+                        bytes[numBytes++] = '%';
+                        i += 1;
+                    }
+                }
+                
+                result.append(new String(bytes, 0, numBytes, UTF_8));
+            } else {
+                result.append(c);
+                i += 1;
             }
-            
-            if (needsEscaping) {
-                url = url.substring(0, offset) + "25" + url.substring(offset);
-                offset += 1;
+        }
+    }
+    
+    private static void normalizeUrlComponent(CharSequence url, int start, int end, String reservedChars, Buffers buffers, StringBuilder result) {
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if ((c == '%') || (c == '+')) {
+                StringBuilder decoded = buffers.get(DECODED_BUFFER);
+                decodeUrl(url, start, end, buffers, decoded);
+                encodeUrlComponent(decoded, 0, decoded.length(), reservedChars, result);
+                return;
             }
         }
         
-        try {
-            return URLDecoder.decode(url, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            LOGGER.error("Unexpected exception during URL decoding: " + e);
-            return url;
-        }
+        encodeUrlComponent(url, start, end, reservedChars, result);
+    }
+    
+    public String decodeUrl(String url) {
+        Buffers buffers = BUFFERS.get();
+        StringBuilder result = buffers.get(DECODED_BUFFER);
+        decodeUrl(url, 0, url.length(), buffers, result);
+        return result.toString();
     }
 
     
@@ -168,39 +274,128 @@ public class SimpleUrlNormalizer extends BaseUrlNormalizer {
     // Now we get to re-encode the path and query portions of the URL, but we have
     // to split up the path as otherwise '/' => %2F.
     public String normalizePath(String path) {
-        // First, handle relative paths
-        Matcher matcher = RELATIVE_PATH_PATTERN.matcher(path);
-        while (matcher.find()) {
-            path = path.substring(0, matcher.start()) + "/" + path.substring(matcher.end());
-            matcher = RELATIVE_PATH_PATTERN.matcher(path);
-        }
-        
-        // Next, get rid of any default page.
-        matcher = DEFAULT_PAGE_PATTERN.matcher(path);
-        if (matcher.find()) {
-            path = path.substring(0, matcher.start()) + "/" + matcher.group(3) + path.substring(matcher.end());
-        }
+        Buffers buffers = BUFFERS.get();
+        StringBuilder result = buffers.get(RESULT_BUFFER);
+        normalizePath(path, 0, path.length(), buffers, result);
+        return result.toString();
+    }
+    
+    private static void normalizePath(CharSequence url, int start, int end, Buffers buffers, StringBuilder result) {
+        StringBuilder path = buffers.get(PATH_BUFFER);
+        path.append(url, start, end);
         
-        String[] pathParts = path.split("/");
+        // First, handle relative paths, then get rid of any default page.
+        removeRelativePaths(path);
+        removeDefaultPage(path);
         
-        StringBuilder newPath = new StringBuilder();
-        for (String pathPart : pathParts) {
-            if (pathPart.length() > 0) {
-                newPath.append('/');
-                newPath.append(encodeUrlComponent(decodeUrl(pathPart), RESERVED_PATH_CHARS));
+        int pathStart = result.length();
+        int length = path.length();
+        int partStart = 0;
+        while (partStart < length) {
+            int partEnd = indexOf(path, '/', partStart, length);
+            if (partEnd > partStart) {
+                result.append('/');
+                normalizeUrlComponent(path, partStart, partEnd, RESERVED_PATH_CHARS, buffers, result);
             }
+            
+            partStart = partEnd + 1;
         }
         
-        if (newPath.length() == 0) {
-            return "/";
+        if (result.length() == pathStart) {
+            result.append('/');
+            return;
         }
 
         // Preserve state of final / in path
-        if (path.endsWith("/") && (newPath.charAt(newPath.length() - 1) != '/')) {
-            newPath.append('/');
+        if ((path.charAt(length - 1) == '/') && (result.charAt(result.length() - 1) != '/')) {
+            result.append('/');
+        }
+    }
+    
+    // Replace "/xx/../" in the path, where xx consists of chars, different then "/"
+    // (slash) and needs to have at least one char different from ".", with "/". Also
+    // replace a leading "/../" (or "/..//../", etc) with "/". Repeat until there's
+    // nothing left to replace.
+    private static void removeRelativePaths(StringBuilder path) {
+        if (path.indexOf("/../") == -1) {
+            return;
+        }
+        
+        boolean replaced = true;
+        while (replaced) {
+            replaced = false;
+            
+            int length = path.length();
+            for (int i = 0; (i < length) && !replaced; i++) {
+                if (path.charAt(i) != '/') {
+                    continue;
+                }
+                
+                int segmentEnd = indexOf(path, '/', i + 1, length);
+                if ((segmentEnd != length) && !isAllDots(path, i + 1, segmentEnd) && regionMatches(path, segmentEnd, "/../")) {
+                    path.replace(i, segmentEnd + 4, "/");
+                    replaced = true;
+                } else if ((i == 0) && regionMatches(path, 0, "/../")) {
+                    int end = 0;
+                    while (regionMatches(path, end, "/../")) {
+                        end += 4;
+                    }
+                    
+                    path.replace(0, end, "/");
+                    replaced = true;
+                }
+            }
+        }
+    }
+    
+    private static boolean isAllDots(CharSequence s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) != '.') {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    // Get rid of the first /index.html (or default.php, etc) that's followed by a '?', '&', '#'
+    // or the end of the path.
+    private static void removeDefaultPage(StringBuilder path) {
+        int length = path.length();
+        for (int i = 0; i < length; i++) {
+            if (path.charAt(i) != '/') {
+                continue;
+            }
+            
+            for (String name : DEFAULT_PAGE_NAMES) {
+                int dotOffset = i + 1 + name.length();
+                if ((dotOffset >= length) || (path.charAt(dotOffset) != '.') || !regionMatchesIgnoreCase(path, i + 1, name)) {
+                    continue;
+                }
+                
+                int extensionEnd = dotOffset + 1;
+                while ((extensionEnd < length) && isLetterOrDigit(path.charAt(extensionEnd))) {
+                    extensionEnd += 1;
+                }
+                
+                char c = (extensionEnd < length) ? path.charAt(extensionEnd) : 0;
+                boolean atEnd = (c == '?') || (c == '&') || (c == '#') || isEndOfInput(path, extensionEnd);
+                if (atEnd && isDefaultPageExtension(path, dotOffset + 1, extensionEnd)) {
+                    path.delete(i + 1, extensionEnd);
+                    return;
+                }
+            }
+        }
+    }
+    
+    private static boolean isDefaultPageExtension(CharSequence s, int start, int end) {
+        for (String extension : DEFAULT_PAGE_EXTENSIONS) {
+            if ((extension.length() == end - start) && regionMatchesIgnoreCase(s, start, extension)) {
+                return true;
+            }
         }
         
-        return newPath.toString();
+        return false;
     }
 
     
@@ -211,75 +406,313 @@ public class SimpleUrlNormalizer extends BaseUrlNormalizer {
             return "";
         }
 
-        StringBuilder newQuery = new StringBuilder();
-        String[] queryParts = query.split("&");
-        for (String queryPart : queryParts) {
-            if (queryPart.length() == 0) {
-                // Strip out empty query parts, e.g. q=1&&z=2
+        Buffers buffers = BUFFERS.get();
+        StringBuilder result = buffers.get(RESULT_BUFFER);
+        normalizeQuery(query, 0, query.length(), buffers, result);
+        return result.toString();
+    }
+    
+    private static void normalizeQuery(CharSequence url, int start, int end, Buffers buffers, StringBuilder result) {
+        int queryStart = result.length();
+        int partStart = start;
+        while (partStart < end) {
+            int partEnd = indexOf(url, '&', partStart, end);
+            
+            // Strip out empty query parts, e.g. q=1&&z=2
+            if (partEnd > partStart) {
+                int kvStart = partStart;
+                while (true) {
+                    int kvEnd = indexOf(url, '=', kvStart, partEnd);
+                    normalizeUrlComponent(url, kvStart, kvEnd, RESERVED_QUERY_CHARS, buffers, result);
+                    if (kvEnd == partEnd) {
+                        break;
+                    }
+                    
+                    result.append('=');
+                    kvStart = kvEnd + 1;
+                }
+                
+                result.append('&');
+            }
+            
+            partStart = partEnd + 1;
+        }
+
+        // Remove last '&'
+        if (result.length() > queryStart) {
+            result.setLength(result.length() - 1);
+        }
+    }
+    
+    // Danger, hack! Some sites have session ids that look like http://domain.com/page.html;jsessionid=xxx,
+    // or even http://domain.com/page.html;jsessionid=xxx&q=z. So we always want to try to get rid of
+    // session ids first, before doing any other processing.
+    private static void removeJSessionId(StringBuilder url) {
+        int start = 0;
+        while ((start = url.indexOf(JSESSION_ID_PREFIX, start)) != -1) {
+            int end = findValueEnd(url, start + JSESSION_ID_PREFIX.length(), true);
+            if (end != -1) {
+                url.delete(start, end);
+                return;
+            }
+            
+            start += 1;
+        }
+    }
+    
+    // Remove the value (and name) of the first ?<name>=<value> or &<name>=<value> query parameter
+    // where <name> is one of <names>, leaving the leading '?' or '&'.
+    private static void removeQueryParameter(StringBuilder url, String[] names) {
+        int length = url.length();
+        for (int i = 0; i < length; i++) {
+            char c = url.charAt(i);
+            if ((c != '?') && (c != '&')) {
                 continue;
             }
             
-            String[] keyValues = StringUtils.splitOnChar(queryPart, '=');
-            if (keyValues.length == 1) {
-                newQuery.append(encodeUrlComponent(decodeUrl(keyValues[0]), RESERVED_QUERY_CHARS));
-                if (queryPart.endsWith("=")) {
-                    newQuery.append("=");
+            for (String name : names) {
+                int equalsOffset = i + 1 + name.length();
+                if ((equalsOffset < length) && (url.charAt(equalsOffset) == '=') && regionMatchesIgnoreCase(url, i + 1, name)) {
+                    int end = findValueEnd(url, equalsOffset + 1, false);
+                    if (end != -1) {
+                        url.delete(i + 1, end);
+                        return;
+                    }
                 }
+            }
+        }
+    }
+    
+    // Return the offset of the '&' or '#' (or '?', if <stopAtQuery> is true) that ends the
+    // value starting at <start>, or the end of the URL. Line terminators can only show up
+    // at the very end of the value, otherwise we return -1.
+    private static int findValueEnd(CharSequence url, int start, boolean stopAtQuery) {
+        int length = url.length();
+        for (int i = start; i < length; i++) {
+            char c = url.charAt(i);
+            if ((c == '&') || (c == '#') || (stopAtQuery && (c == '?'))) {
+                return i;
+            } else if (isLineTerminator(c)) {
+                return isEndOfInput(url, i) ? i : -1;
+            }
+        }
+        
+        return length;
+    }
+    
+    private static boolean isLineTerminator(char c) {
+        return (c == '\n') || (c == '\r') || (c == '\u0085') || (c == '\u2028') || (c == '\u2029');
+    }
+    
+    // Return true if <offset> is at the end of <s>, or only a final line terminator follows
+    // (the same as what '$' matches in a regular expression).
+    private static boolean isEndOfInput(CharSequence s, int offset) {
+        int length = s.length();
+        if (offset == length) {
+            return true;
+        } else if (offset == length - 2) {
+            return (s.charAt(offset) == '\r') && (s.charAt(offset + 1) == '\n');
+        } else if (offset == length - 1) {
+            char c = s.charAt(offset);
+            if (c == '\n') {
+                return (offset == 0) || (s.charAt(offset - 1) != '\r');
             } else {
-                for (String kvPart : keyValues) {
-                    newQuery.append(encodeUrlComponent(decodeUrl(kvPart), RESERVED_QUERY_CHARS));
-                    newQuery.append('=');
-                }
-
-                newQuery.setLength(newQuery.length() - 1);
+                return isLineTerminator(c);
             }
-
-            newQuery.append('&');
+        } else {
+            return false;
         }
-
-        // Remove last '&'
-        if ((newQuery.length() > 0) && (newQuery.charAt(newQuery.length() - 1) == '&')) {
-            newQuery.setLength(newQuery.length() - 1);
+    }
+    
+    private static int indexOf(CharSequence s, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
         }
         
-        return newQuery.toString();
+        return end;
+    }
+    
+    private static boolean regionMatches(CharSequence s, int offset, String target) {
+        if (offset + target.length() > s.length()) {
+            return false;
+        }
+        
+        for (int i = 0; i < target.length(); i++) {
+            if (s.charAt(offset + i) != target.charAt(i)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    // Compare against a lower-case target, ignoring the case of ASCII letters in <s>.
+    private static boolean regionMatchesIgnoreCase(CharSequence s, int offset, String target) {
+        if (offset + target.length() > s.length()) {
+            return false;
+        }
+        
+        for (int i = 0; i < target.length(); i++) {
+            if (toLowerCase(s.charAt(offset + i)) != target.charAt(i)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static char toLowerCase(char c) {
+        return ((c >= 'A') && (c <= 'Z')) ? (char)(c + ('a' - 'A')) : c;
+    }
+    
+    private static boolean isLetterOrDigit(char c) {
+        return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'));
+    }
+    
+    private static boolean isHostnameChar(char c) {
+        return isLetterOrDigit(c) || (c == '.') || (c == '-') || (c == '_');
     }
 
     public String normalize(String url) {
-        String result = url.trim();
+        Buffers buffers = BUFFERS.get();
+        StringBuilder result = buffers.get(URL_BUFFER);
         
         // First see if there is any protocol - if not, append http:// by default.
-        if (result.indexOf("://") == -1) {
+        String trimmed = url.trim();
+        if (trimmed.indexOf("://") == -1) {
             // FUTURE - could put some limit on max length of protocol string.
-            result = "http://" + result;
+            result.append("http://");
         }
         
-        // Danger, hack! Some sites have session ids that look like http://domain.com/page.html;jsessionid=xxx,
-        // or even http://domain.com/page.html;jsessionid=xxx&q=z. So we always want to try to get rid of
-        // session ids first, before doing any other processing.
-        Matcher matcher = JSESSION_ID_PATTERN.matcher(result);
-        if (matcher.find()) {
-            result = result.substring(0, matcher.start()) + matcher.group(1) + result.substring(matcher.end());
+        result.append(trimmed);
+        
+        removeJSessionId(result);
+        removeQueryParameter(result, SESSION_ID_PARAMETERS);
+        removeQueryParameter(result, OTHER_IGNORED_QUERY_PARAMETERS);
+        if (_isAggressive) {
+            removeQueryParameter(result, AGGRESSIVE_IGNORED_QUERY_PARAMETERS);
         }
         
-        matcher = SESSION_ID_PATTERN.matcher(result);
-        if (matcher.find()) {
-            result = result.substring(0, matcher.start()) + matcher.group(1) + matcher.group(2) + result.substring(matcher.end());
+        String normalized = normalizeHttpUrl(result, buffers);
+        if (normalized != null) {
+            return normalized;
+        } else {
+            return normalizeWithUrl(result.toString());
         }
+    }
+    
+    // Normalize a simple http or https URL, or return null if it's not one, and so we
+    // need to let java.net.URL take care of parsing it.
+    private String normalizeHttpUrl(CharSequence url, Buffers buffers) {
+        int length = url.length();
         
-        matcher = OTHER_IGNORED_QUERY_PARAMETERS_PATTERN.matcher(result);
-        if (matcher.find()) {
-            result = result.substring(0, matcher.start()) + matcher.group(1) + matcher.group(2) + result.substring(matcher.end());
+        // Stripping session ids could have left trailing whitespace.
+        if ((length == 0) || (url.charAt(length - 1) <= ' ')) {
+            return null;
         }
         
-        if (_isAggressive) {
-            matcher = AGGRESSIVE_IGNORED_QUERY_PARAMETERS_PATTERN.matcher(result);
-            if (matcher.find()) {
-                result = result.substring(0, matcher.start()) + matcher.group(1) + matcher.group(2) + result.substring(matcher.end());
+        int authorityStart;
+        if (regionMatchesIgnoreCase(url, 0, "http://")) {
+            authorityStart = "http://".length();
+        } else if (regionMatchesIgnoreCase(url, 0, "https://")) {
+            authorityStart = "https://".length();
+        } else {
+            return null;
+        }
+        
+        boolean isHttps = (authorityStart == "https://".length());
+        
+        // java.net.URL treats http://// as a UNC name.
+        if ((authorityStart < length) && (url.charAt(authorityStart) == '/')) {
+            return null;
+        }
+        
+        int refStart = indexOf(url, '#', authorityStart, length);
+        int queryStart = indexOf(url, '?', authorityStart, refStart);
+        int authorityEnd = indexOf(url, '/', authorityStart, queryStart);
+        
+        // Only handle <hostname>[:<port>], and leave anything else (user info, IPv6
+        // addresses, escaped or non-ASCII chars) to java.net.URL.
+        int hostEnd = indexOf(url, ':', authorityStart, authorityEnd);
+        for (int i = authorityStart; i < hostEnd; i++) {
+            if (!isHostnameChar(url.charAt(i))) {
+                return null;
+            }
+        }
+        
+        int port = -1;
+        if (hostEnd + 1 < authorityEnd) {
+            if (authorityEnd - (hostEnd + 1) > 9) {
+                return null;
+            }
+            
+            port = 0;
+            for (int i = hostEnd + 1; i < authorityEnd; i++) {
+                char c = url.charAt(i);
+                if ((c < '0') || (c > '9')) {
+                    return null;
+                }
+                
+                port = (port * 10) + (c - '0');
+            }
+            
+            if (port == (isHttps ? 443 : 80)) {
+                port = -1;
+            }
+        }
+        
+        // Remove trailing '.' from the hostname
+        if ((hostEnd > authorityStart) && (url.charAt(hostEnd - 1) == '.')) {
+            hostEnd -= 1;
+        }
+        
+        if (hostEnd == authorityStart) {
+            return null;
+        }
+        
+        StringBuilder result = buffers.get(RESULT_BUFFER);
+        result.append(isHttps ? "https://" : "http://");
+        for (int i = authorityStart; i < hostEnd; i++) {
+            result.append(toLowerCase(url.charAt(i)));
+        }
+        
+        if (port != -1) {
+            result.append(':');
+            result.append(port);
+        }
+        
+        normalizePath(url, authorityEnd, queryStart, buffers, result);
+        
+        // Danger, hack! Some sites (like StumbleUpon) use anchor text as query text, so they
+        // have a URL that looks like http://www.stumbleupon.com/toolbar/#url=...
+        // Assume that if the first '#' is preceded by a '/', and that '#' is our anchor text,
+        // then we want to include it versus stripping it out. But only do this if the caller
+        // explicitly wants that behavior, as most sites use .../#<whatever> for dynamic navigation.
+        
+        // FUTURE KKr - better would be to not require special param, and instead always see if the
+        // ref looks like a query, in that there's one or more <key>=<value> pairs separated by '&'.
+        boolean hasQuery = queryStart < refStart;
+        boolean hasRef = refStart < length;
+        if (_treatRefAsQuery && hasRef && !hasQuery && (queryStart > authorityEnd) && (url.charAt(queryStart - 1) == '/')) {
+            result.append('#');
+            normalizeQuery(url, refStart + 1, length, buffers, result);
+        } else if (hasQuery) {
+            result.append('?');
+            int queryOffset = result.length();
+            normalizeQuery(url, queryStart + 1, refStart, buffers, result);
+            if (result.length() == queryOffset) {
+                result.setLength(queryOffset - 1);
             }
         }
         
+        return result.toString();
+    }
+    
+    private String normalizeWithUrl(String result) {
         URL testUrl;
+        String url;
         
         try {
             String decodedUrl = result.replace("+", "%20");
@@ -307,14 +740,7 @@ public class SimpleUrlNormalizer extends BaseUrlNormalizer {
         
         String path = normalizePath(testUrl.getPath());
         
-        // Danger, hack! Some sites (like StumbleUpon) use anchor text as query text, so they
-        // have a URL that looks like http://www.stumbleupon.com/toolbar/#url=...
-        // Assume that if the first '#' is preceded by a '/', and that '#' is our anchor text,
-        // then we want to include it versus stripping it out. But only do this if the caller
-        // explicitly wants that behavior, as most sites use .../#<whatever> for dynamic navigation.
-        
-        // FUTURE KKr - better would be to not require special param, and instead always see if the
-        // ref looks like a query, in that there's one or more <key>=<value> pairs separated by '&'.
+        // See comment in normalizeHttpUrl about StumbleUpon.
         String query = testUrl.getQuery();
         String anchor = testUrl.getRef();
         
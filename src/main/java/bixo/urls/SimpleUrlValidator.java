@@ -18,18 +18,91 @@ package bixo.urls;
 
 import java.net.URI;
 import java.net.URL;
-import java.util.regex.Pattern;
 
+/**
+ * Validates http and https URLs, using the same rules as java.net.URL and java.net.URI
+ * (a URL is valid if both accept it, and both find a host).
+ * 
+ * We check the URL's characters ourselves, using the offsets from a ParsedUrl, and only
+ * fall back to actually creating a URL and a URI for things we don't handle, such as
+ * user info, IP addresses and non-ASCII characters.
+ */
 @SuppressWarnings("serial")
 public class SimpleUrlValidator extends BaseUrlValidator {
-    private static final Pattern HTTP_PATTERN = Pattern.compile("^(http|https):");
+    
+    private enum Validity {
+        VALID,
+        INVALID,
+        UNKNOWN
+    }
+    
+    // Characters that java.net.URI never accepts, anywhere in a URL.
+    private static final String ILLEGAL_CHARS = "\"<>\\^`{|}";
 
     @Override
     public boolean isValid(String urlString) {
-        if (!HTTP_PATTERN.matcher(urlString).find()) {
+        ParsedUrl url = ParsedUrl.parse(urlString);
+        
+        // If it doesn't parse, then java.net.URL wouldn't find a host.
+        return (url != null) && isValid(url);
+    }
+    
+    @Override
+    public boolean isValid(ParsedUrl url) {
+        String scheme = url.getScheme();
+        if (!scheme.equals("http") && !scheme.equals("https")) {
             return false;
         }
-
+        
+        switch (checkValidity(url)) {
+            case VALID:
+                return true;
+                
+            case INVALID:
+                return false;
+                
+            default:
+                return isValidUrlAndUri(url.getUrl());
+        }
+    }
+    
+    private static Validity checkValidity(ParsedUrl url) {
+        if (url.hasUserInfo() || url.hasAmbiguousAuthority() || !url.hasDomainName()) {
+            return Validity.UNKNOWN;
+        }
+        
+        String urlString = url.getUrl();
+        int portLength = url.getPathStart() - url.getHostEnd() - 1;
+        if ((portLength == 0) || (portLength > 5)) {
+            return Validity.UNKNOWN;
+        }
+        
+        int length = urlString.length();
+        for (int i = url.getPathStart(); i < length; i++) {
+            char c = urlString.charAt(i);
+            if (c >= 0x80) {
+                return Validity.UNKNOWN;
+            } else if ((c <= ' ') || (c == 0x7F) || (ILLEGAL_CHARS.indexOf(c) != -1)) {
+                return Validity.INVALID;
+            } else if (c == '%') {
+                if ((i + 2 >= length) || !isHex(urlString.charAt(i + 1)) || !isHex(urlString.charAt(i + 2))) {
+                    return Validity.INVALID;
+                }
+                
+                i += 2;
+            } else if ((c == '[') || (c == ']') || ((c == '#') && (i != url.getFragmentStart()))) {
+                return Validity.UNKNOWN;
+            }
+        }
+        
+        return Validity.VALID;
+    }
+    
+    private static boolean isHex(char c) {
+        return ((c >= '0') && (c <= '9')) || ((c >= 'a') && (c <= 'f')) || ((c >= 'A') && (c <= 'F'));
+    }
+    
+    private static boolean isValidUrlAndUri(String urlString) {
         try {
             URL url = new URL(urlString);
             String hostname = url.getHost();
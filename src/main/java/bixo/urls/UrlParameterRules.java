@@ -0,0 +1,282 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.urls;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Per-host rules for the query parameters of (normalized) URLs - which parameters to
+ * drop, and whether the order of the remaining parameters matters.
+ * 
+ * Rules are read from a compact text file, with one line per host:
+ * 
+ * <pre>
+ * # Comments start with '#'
+ * www.domain.com -sessid -ref sort
+ * domain.org -utm_source
+ * </pre>
+ * 
+ * where "-<name>" means drop the parameter, and "sort" means sort the parameters by
+ * name. The rules for a host also apply to its subdomains, unless the subdomain has
+ * rules of its own. Parameter names are matched exactly, as they appear in the
+ * normalized URL.
+ */
+@SuppressWarnings("serial")
+public class UrlParameterRules implements Serializable {
+    private static final Logger LOGGER = Logger.getLogger(UrlParameterRules.class);
+    
+    public static final String SORT_DIRECTIVE = "sort";
+    
+    private static class HostRules implements Serializable {
+        private Set<String> _droppedParameters = new TreeSet<String>();
+        private boolean _sortParameters = false;
+    }
+    
+    // Compare query parameters by name (the text before any '=').
+    private static final Comparator<String> PARAMETER_NAME_COMPARATOR = new Comparator<String>() {
+
+        @Override
+        public int compare(String o1, String o2) {
+            int length1 = getNameLength(o1);
+            int length2 = getNameLength(o2);
+            int minLength = Math.min(length1, length2);
+            for (int i = 0; i < minLength; i++) {
+                char c1 = o1.charAt(i);
+                char c2 = o2.charAt(i);
+                if (c1 != c2) {
+                    return c1 - c2;
+                }
+            }
+            
+            return length1 - length2;
+        }
+    };
+    
+    private Map<String, HostRules> _hostRules = new HashMap<String, HostRules>();
+    
+    private HostRules getOrAddRules(String hostname) {
+        String key = hostname.toLowerCase();
+        HostRules result = _hostRules.get(key);
+        if (result == null) {
+            result = new HostRules();
+            _hostRules.put(key, result);
+        }
+        
+        return result;
+    }
+    
+    public void addDroppedParameter(String hostname, String parameter) {
+        getOrAddRules(hostname)._droppedParameters.add(parameter);
+    }
+    
+    public void setSortParameters(String hostname, boolean sortParameters) {
+        getOrAddRules(hostname)._sortParameters = sortParameters;
+    }
+    
+    public boolean isDroppedParameter(String hostname, String parameter) {
+        HostRules rules = findRules(hostname.toLowerCase());
+        return (rules != null) && rules._droppedParameters.contains(parameter);
+    }
+    
+    public boolean isSortParameters(String hostname) {
+        HostRules rules = findRules(hostname.toLowerCase());
+        return (rules != null) && rules._sortParameters;
+    }
+    
+    public int getNumHosts() {
+        return _hostRules.size();
+    }
+    
+    // Find rules for the host, or the closest super domain that has rules.
+    private HostRules findRules(String hostname) {
+        while (true) {
+            HostRules result = _hostRules.get(hostname);
+            if (result != null) {
+                return result;
+            }
+            
+            int dotOffset = hostname.indexOf('.');
+            if (dotOffset == -1) {
+                return null;
+            }
+            
+            hostname = hostname.substring(dotOffset + 1);
+        }
+    }
+    
+    private static int getNameLength(String parameter) {
+        int result = parameter.indexOf('=');
+        return result == -1 ? parameter.length() : result;
+    }
+    
+    /**
+     * Apply the rules for the URL's host to its query parameters.
+     * 
+     * @param url - normalized URL
+     * @return - URL with parameters removed and/or re-ordered, or the original URL if
+     *           there are no rules for its host.
+     */
+    public String apply(String url) {
+        int queryStart = url.indexOf('?');
+        if ((queryStart == -1) || _hostRules.isEmpty()) {
+            return url;
+        }
+        
+        int hostStart = url.indexOf("://");
+        if ((hostStart == -1) || (hostStart > queryStart)) {
+            return url;
+        }
+        
+        hostStart += "://".length();
+        int hostEnd = hostStart;
+        while (hostEnd < queryStart) {
+            char c = url.charAt(hostEnd);
+            if ((c == '/') || (c == ':') || (c == '#')) {
+                break;
+            }
+            
+            hostEnd += 1;
+        }
+        
+        HostRules rules = findRules(url.substring(hostStart, hostEnd).toLowerCase());
+        if (rules == null) {
+            return url;
+        }
+        
+        int queryEnd = url.indexOf('#', queryStart);
+        if (queryEnd == -1) {
+            queryEnd = url.length();
+        }
+        
+        List<String> parameters = new ArrayList<String>();
+        boolean changed = false;
+        int partStart = queryStart + 1;
+        while (partStart < queryEnd) {
+            int partEnd = url.indexOf('&', partStart);
+            if ((partEnd == -1) || (partEnd > queryEnd)) {
+                partEnd = queryEnd;
+            }
+            
+            String parameter = url.substring(partStart, partEnd);
+            if (rules._droppedParameters.contains(parameter.substring(0, getNameLength(parameter)))) {
+                changed = true;
+            } else {
+                parameters.add(parameter);
+            }
+            
+            partStart = partEnd + 1;
+        }
+        
+        if (rules._sortParameters) {
+            List<String> unsorted = new ArrayList<String>(parameters);
+            
+            // Stable, so parameters with the same name stay in the same order.
+            Collections.sort(parameters, PARAMETER_NAME_COMPARATOR);
+            changed |= !unsorted.equals(parameters);
+        }
+        
+        if (!changed) {
+            return url;
+        }
+        
+        StringBuilder result = new StringBuilder(url.length());
+        result.append(url, 0, queryStart);
+        for (String parameter : parameters) {
+            result.append(result.length() == queryStart ? '?' : '&');
+            result.append(parameter);
+        }
+        
+        result.append(url, queryEnd, url.length());
+        return result.toString();
+    }
+    
+    public static UrlParameterRules load(InputStream is) throws IOException {
+        UrlParameterRules result = new UrlParameterRules();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int commentOffset = line.indexOf('#');
+            if (commentOffset != -1) {
+                line = line.substring(0, commentOffset);
+            }
+            
+            String[] tokens = line.trim().split("[ \t]+");
+            if (tokens[0].length() == 0) {
+                continue;
+            }
+            
+            String hostname = tokens[0];
+            result.getOrAddRules(hostname);
+            for (int i = 1; i < tokens.length; i++) {
+                String token = tokens[i];
+                if (token.startsWith("-") && (token.length() > 1)) {
+                    result.addDroppedParameter(hostname, token.substring(1));
+                } else if (token.equalsIgnoreCase(SORT_DIRECTIVE)) {
+                    result.setSortParameters(hostname, true);
+                } else {
+                    LOGGER.warn("Ignoring unknown URL parameter rule for " + hostname + ": " + token);
+                }
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Write out the rules in the same format that load() reads, sorted by host.
+     */
+    public void save(OutputStream os) throws IOException {
+        Writer writer = new OutputStreamWriter(os, "UTF-8");
+        
+        for (Map.Entry<String, HostRules> entry : new TreeMap<String, HostRules>(_hostRules).entrySet()) {
+            HostRules rules = entry.getValue();
+            writer.write(entry.getKey());
+            for (String parameter : rules._droppedParameters) {
+                writer.write(" -");
+                writer.write(parameter);
+            }
+            
+            if (rules._sortParameters) {
+                writer.write(' ');
+                writer.write(SORT_DIRECTIVE);
+            }
+            
+            writer.write('\n');
+        }
+        
+        writer.flush();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Plug point for turning a host name into IP addresses, so that robots
+ * processing (via DomainInfo) and the fetcher's connection setup can share
+ * one resolver, and one cache of results.
+ */
+@SuppressWarnings("serial")
+public abstract class BaseDnsResolver implements Serializable {
+
+    /**
+     * Return the IP addresses for <hostname>, or throw UnknownHostException
+     * if it can't be resolved.
+     */
+    public abstract InetAddress[] resolve(String hostname) throws UnknownHostException;
+}
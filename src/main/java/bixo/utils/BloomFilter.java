@@ -0,0 +1,167 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Bloom filter for 64-bit fingerprints (e.g. of URLs). A fingerprint that was added
+ * is always found, and one that wasn't is only found with (roughly) the false positive
+ * rate the filter was sized for, as long as no more than the expected number of entries
+ * are added.
+ * 
+ * The bit positions come from the fingerprint itself, by double hashing with its
+ * two 32-bit halves, so the fingerprint needs to be a good 64-bit hash.
+ */
+public class BloomFilter implements Writable {
+
+    private long[] _bits;
+    private long _numBits;
+    private int _numHashes;
+    private long _numEntries;
+    
+    public BloomFilter() {
+        // Empty constructor for deserialization.
+    }
+    
+    /**
+     * @param expectedEntries number of entries we expect to add
+     * @param falsePositiveRate target probability that mightContain() returns true
+     *        for a fingerprint that wasn't added.
+     */
+    public BloomFilter(long expectedEntries, double falsePositiveRate) {
+        if ((falsePositiveRate <= 0.0) || (falsePositiveRate >= 1.0)) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        
+        expectedEntries = Math.max(1, expectedEntries);
+        double ln2 = Math.log(2);
+        long numBits = (long)Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2));
+        
+        // Round up to a whole number of longs.
+        numBits = Math.max(64, (numBits + 63) & ~63L);
+        _bits = new long[(int)(numBits / 64)];
+        _numBits = numBits;
+        _numHashes = Math.max(1, (int)Math.round((double)numBits / expectedEntries * ln2));
+        _numEntries = 0;
+    }
+    
+    /**
+     * Add <fingerprint> to the filter.
+     * 
+     * @return true if any bits changed, which means the fingerprint definitely wasn't
+     *         in the filter before.
+     */
+    public boolean add(long fingerprint) {
+        boolean changed = false;
+        long hash = fingerprint;
+        long delta = (fingerprint >>> 32) | (fingerprint << 32);
+        for (int i = 0; i < _numHashes; i++) {
+            long bitIndex = (hash & Long.MAX_VALUE) % _numBits;
+            int wordIndex = (int)(bitIndex >>> 6);
+            long mask = 1L << bitIndex;
+            if ((_bits[wordIndex] & mask) == 0) {
+                _bits[wordIndex] |= mask;
+                changed = true;
+            }
+            
+            hash += delta;
+        }
+        
+        if (changed) {
+            _numEntries += 1;
+        }
+        
+        return changed;
+    }
+    
+    /**
+     * @return true if <fingerprint> might have been added, false if it definitely wasn't.
+     */
+    public boolean mightContain(long fingerprint) {
+        long hash = fingerprint;
+        long delta = (fingerprint >>> 32) | (fingerprint << 32);
+        for (int i = 0; i < _numHashes; i++) {
+            long bitIndex = (hash & Long.MAX_VALUE) % _numBits;
+            if ((_bits[(int)(bitIndex >>> 6)] & (1L << bitIndex)) == 0) {
+                return false;
+            }
+            
+            hash += delta;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Add everything in <other> to this filter. Both filters must have been created
+     * with the same size and false positive rate.
+     */
+    public void union(BloomFilter other) {
+        if ((other._numBits != _numBits) || (other._numHashes != _numHashes)) {
+            throw new IllegalArgumentException("Can't combine Bloom filters with different sizes");
+        }
+        
+        for (int i = 0; i < _bits.length; i++) {
+            _bits[i] |= other._bits[i];
+        }
+        
+        // We don't know how many entries are in both, so this is an estimate.
+        _numEntries = Math.max(_numEntries, other._numEntries);
+    }
+    
+    public long getNumBits() {
+        return _numBits;
+    }
+    
+    public int getNumHashes() {
+        return _numHashes;
+    }
+    
+    /**
+     * @return number of fingerprints that changed the filter when they were added,
+     *         which is (a slight undercount of) the number of unique entries.
+     */
+    public long getNumEntries() {
+        return _numEntries;
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(_numBits);
+        out.writeInt(_numHashes);
+        out.writeLong(_numEntries);
+        for (long word : _bits) {
+            out.writeLong(word);
+        }
+    }
+    
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        _numBits = in.readLong();
+        _numHashes = in.readInt();
+        _numEntries = in.readLong();
+        _bits = new long[(int)(_numBits / 64)];
+        for (int i = 0; i < _bits.length; i++) {
+            _bits[i] = in.readLong();
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded LRU cache in front of another resolver.
+ * 
+ * Successful lookups are cached for <ttl> milliseconds, and failed lookups
+ * (NXDOMAIN, etc) for <negativeTtl> milliseconds. The JDK doesn't tell us
+ * the TTL of the DNS record, so these are configured values, and the defaults
+ * are in line with what the JVM uses for its own cache. Concurrent lookups of
+ * the same host share one call to the underlying resolver.
+ * 
+ * Calling prefetch() with hosts that will be needed soon resolves them in the
+ * background, so the later call to resolve() is (typically) a cache hit.
+ * 
+ * The cache and prefetch threads are transient, so a resolver that's been
+ * serialized (e.g. as part of a fetcher) starts out with an empty cache.
+ * Use getSharedResolver() to get the one instance that's shared by everything
+ * in the JVM (child task) by default.
+ */
+@SuppressWarnings("serial")
+public class CachingDnsResolver extends BaseDnsResolver {
+    private static final Logger LOGGER = Logger.getLogger(CachingDnsResolver.class);
+    
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL = 5 * 60 * 1000L;
+    public static final long DEFAULT_NEGATIVE_TTL = 60 * 1000L;
+    public static final int DEFAULT_PREFETCH_THREADS = 16;
+    
+    private static final long PREFETCH_THREAD_KEEPALIVE = 10 * 1000L;
+    
+    private static final ThreadFactory PREFETCH_THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger _threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread result = new Thread(r, "bixo-dns-" + _threadNumber.getAndIncrement());
+            result.setDaemon(true);
+            return result;
+        }
+    };
+
+    private static CachingDnsResolver _sharedResolver = null;
+    
+    private static class CacheEntry {
+        private InetAddress[] _addresses;
+        private long _expirationTime;
+        
+        public CacheEntry(InetAddress[] addresses, long expirationTime) {
+            _addresses = addresses;
+            _expirationTime = expirationTime;
+        }
+    }
+    
+    private BaseDnsResolver _resolver;
+    private int _maxEntries;
+    private long _ttl;
+    private long _negativeTtl;
+    private int _prefetchThreads;
+    
+    private transient Map<String, CacheEntry> _cache;
+    private transient ConcurrentHashMap<String, FutureTask<InetAddress[]>> _pending;
+    private transient ThreadPoolExecutor _prefetchExecutor;
+    
+    private transient AtomicLong _hits;
+    private transient AtomicLong _misses;
+    private transient AtomicLong _negativeHits;
+    
+    public CachingDnsResolver() {
+        this(new SimpleDnsResolver());
+    }
+    
+    public CachingDnsResolver(BaseDnsResolver resolver) {
+        this(resolver, DEFAULT_MAX_ENTRIES, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+    
+    public CachingDnsResolver(BaseDnsResolver resolver, int maxEntries, long ttl, long negativeTtl) {
+        _resolver = resolver;
+        _maxEntries = maxEntries;
+        _ttl = ttl;
+        _negativeTtl = negativeTtl;
+        _prefetchThreads = DEFAULT_PREFETCH_THREADS;
+    }
+    
+    /**
+     * Return the resolver that's used by DomainInfo and SimpleHttpFetcher when
+     * nothing else has been configured.
+     */
+    public static synchronized CachingDnsResolver getSharedResolver() {
+        if (_sharedResolver == null) {
+            _sharedResolver = new CachingDnsResolver();
+        }
+        
+        return _sharedResolver;
+    }
+    
+    public int getMaxEntries() {
+        return _maxEntries;
+    }
+    
+    public long getTtl() {
+        return _ttl;
+    }
+    
+    public long getNegativeTtl() {
+        return _negativeTtl;
+    }
+    
+    public void setPrefetchThreads(int prefetchThreads) {
+        _prefetchThreads = prefetchThreads;
+    }
+    
+    public int getPrefetchThreads() {
+        return _prefetchThreads;
+    }
+    
+    public long getHits() {
+        init();
+        return _hits.get();
+    }
+    
+    public long getMisses() {
+        init();
+        return _misses.get();
+    }
+    
+    public long getNegativeHits() {
+        init();
+        return _negativeHits.get();
+    }
+    
+    public int size() {
+        init();
+        synchronized (_cache) {
+            return _cache.size();
+        }
+    }
+    
+    private synchronized void init() {
+        if (_cache == null) {
+            _cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+                
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                    return size() > _maxEntries;
+                }
+            };
+            
+            _pending = new ConcurrentHashMap<String, FutureTask<InetAddress[]>>();
+            
+            _prefetchExecutor = new ThreadPoolExecutor(_prefetchThreads, _prefetchThreads, PREFETCH_THREAD_KEEPALIVE, TimeUnit.MILLISECONDS, 
+                            new LinkedBlockingQueue<Runnable>(), PREFETCH_THREAD_FACTORY);
+            _prefetchExecutor.allowCoreThreadTimeOut(true);
+            
+            _hits = new AtomicLong();
+            _misses = new AtomicLong();
+            _negativeHits = new AtomicLong();
+        }
+    }
+    
+    @Override
+    public InetAddress[] resolve(String hostname) throws UnknownHostException {
+        init();
+        
+        String key = hostname.toLowerCase();
+        CacheEntry entry = getEntry(key);
+        if (entry != null) {
+            if (entry._addresses == null) {
+                _negativeHits.incrementAndGet();
+                throw new UnknownHostException(hostname);
+            }
+            
+            _hits.incrementAndGet();
+            return entry._addresses.clone();
+        }
+        
+        _misses.incrementAndGet();
+        return lookup(key).clone();
+    }
+    
+    /**
+     * Return true if we have a (good or bad) result for <hostname> that hasn't
+     * expired.
+     */
+    public boolean isCached(String hostname) {
+        init();
+        return getEntry(hostname.toLowerCase()) != null;
+    }
+    
+    /**
+     * Start resolving <hostname> in the background, if it's not already cached.
+     */
+    public void prefetch(String hostname) {
+        init();
+        
+        final String key = hostname.toLowerCase();
+        if ((getEntry(key) != null) || _pending.containsKey(key)) {
+            return;
+        }
+        
+        _prefetchExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    lookup(key);
+                } catch (UnknownHostException e) {
+                    // Ignore, we'll have cached this as a negative result.
+                } catch (Throwable t) {
+                    LOGGER.debug("Unexpected exception prefetching " + key, t);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Start resolving all of <hostnames> in the background. This returns right away.
+     */
+    public void prefetch(Collection<String> hostnames) {
+        for (String hostname : hostnames) {
+            prefetch(hostname);
+        }
+    }
+    
+    private CacheEntry getEntry(String key) {
+        synchronized (_cache) {
+            CacheEntry result = _cache.get(key);
+            if ((result != null) && (result._expirationTime <= System.currentTimeMillis())) {
+                _cache.remove(key);
+                result = null;
+            }
+            
+            return result;
+        }
+    }
+    
+    private void putEntry(String key, InetAddress[] addresses) {
+        long ttl = (addresses == null ? _negativeTtl : _ttl);
+        if (ttl <= 0) {
+            return;
+        }
+        
+        synchronized (_cache) {
+            _cache.put(key, new CacheEntry(addresses, System.currentTimeMillis() + ttl));
+        }
+    }
+    
+    private InetAddress[] lookup(final String key) throws UnknownHostException {
+        FutureTask<InetAddress[]> task = new FutureTask<InetAddress[]>(new Callable<InetAddress[]>() {
+
+            @Override
+            public InetAddress[] call() throws Exception {
+                try {
+                    InetAddress[] result = _resolver.resolve(key);
+                    putEntry(key, result);
+                    return result;
+                } catch (UnknownHostException e) {
+                    putEntry(key, null);
+                    throw e;
+                }
+            }
+        });
+        
+        FutureTask<InetAddress[]> existing = _pending.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                _pending.remove(key, task);
+            }
+        } else {
+            task = existing;
+        }
+        
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnknownHostException) {
+                throw new UnknownHostException(cause.getMessage());
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else {
+                throw new RuntimeException("Unexpected exception resolving " + key, cause);
+            }
+        }
+    }
+}
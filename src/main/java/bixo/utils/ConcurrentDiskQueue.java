@@ -0,0 +1,962 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.security.InvalidParameterException;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A thread-safe FIFO queue that spills to disk, for handing off elements between
+ * producer and consumer threads when the producer can get far ahead.
+ *
+ * Elements live in (oldest to newest) an in-memory head, a list of disk segments,
+ * and an in-memory tail buffer. When the tail buffer fills up it gets appended to
+ * the current write segment, which is closed once it has <maxSegmentElements> and a
+ * new one is started. Consumers refill the head from the oldest segment, and each
+ * segment file is deleted as soon as it's been drained. So heap use is bounded by
+ * the head and tail sizes, and disk use is bounded by what hasn't been read yet
+ * (versus DiskQueue, where the backing file keeps growing while reads and writes
+ * are interleaved).
+ *
+ * Segment reads and writes happen without holding the queue lock. A producer that
+ * fills the tail hands it off as a pending batch and then writes it out (batches are
+ * written in order, by one thread at a time), and a consumer that finds the head empty
+ * reserves the next chunk of the oldest segment and reads it in. So other producers
+ * and consumers only wait on disk I/O when they need what's being read or written.
+ *
+ * If <maxSize> is set, put() and offer(e, timeout) block while the queue (including
+ * what's on disk) is full.
+ */
+public class ConcurrentDiskQueue<E extends Serializable> extends AbstractQueue<E> implements BlockingQueue<E> {
+    private static final Logger LOGGER = Logger.getLogger(ConcurrentDiskQueue.class);
+
+    public static final int DEFAULT_MAX_SEGMENT_ELEMENTS = 100000;
+
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Default codec, which writes each element as length-prefixed Java serialization.
+     *
+     * @param <E> element stored in queue
+     */
+    private static class SerializationCodec<E> implements DiskQueue.ElementCodec<E> {
+
+        @Override
+        public void write(E element, DataOutput out) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(element);
+            oos.close();
+
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E read(DataInput in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return (E)ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Can't find class for element in disk segment: " + e.getMessage());
+            } finally {
+                ois.close();
+            }
+        }
+    }
+
+    private static class Segment {
+        private File _file;
+        
+        // Elements written to the file and not yet reserved by a reader, and the
+        // number that have been reserved (which are always the first ones in the file).
+        private int _numElements;
+        private int _numRead;
+        
+        // False once we've stopped appending to this segment. Guarded by the queue lock,
+        // while _out is only touched by the thread that's spilling.
+        private boolean _writable;
+        private DataOutputStream _out;
+        private DataInputStream _in;
+
+        public Segment() throws IOException {
+            _file = File.createTempFile(ConcurrentDiskQueue.class.getSimpleName() + "-segment-", null);
+            _out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_file), FILE_BUFFER_SIZE));
+            _numElements = 0;
+            _numRead = 0;
+            _writable = true;
+        }
+
+        public void closeForWriting() throws IOException {
+            _out.close();
+            _out = null;
+        }
+
+        public DataInputStream getInput() throws IOException {
+            if (_in == null) {
+                _in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file), FILE_BUFFER_SIZE));
+            }
+
+            return _in;
+        }
+
+        public void delete() {
+            IoUtils.safeClose(_out);
+            _out = null;
+            IoUtils.safeClose(_in);
+            _in = null;
+
+            if (!_file.delete()) {
+                LOGGER.warn("Unable to delete disk queue segment: " + _file);
+            }
+        }
+    }
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private final Condition _notFull = _lock.newCondition();
+    
+    // Signalled whenever a segment read or write finishes.
+    private final Condition _ioDone = _lock.newCondition();
+    
+    // Held (without the queue lock) while writing to a segment, so that batches get
+    // written out in order, one thread at a time.
+    private final ReentrantLock _spillLock = new ReentrantLock();
+
+    private final int _maxHeadSize;
+    private final int _maxTailSize;
+    private final int _maxSegmentElements;
+    private final int _maxSize;
+    private final DiskQueue.ElementCodec<E> _codec;
+
+    private LinkedList<E> _head;
+    private List<E> _tail;
+
+    // Oldest segment is first. Only the last segment can still be writable.
+    private LinkedList<Segment> _segments;
+    private int _segmentElements;
+
+    // Elements being read from the oldest segment, on their way to the head.
+    private Segment _loadingSegment;
+    private int _loadingElements;
+    
+    // Full tail buffers waiting to be written (oldest first), and the one being
+    // written. These come after the segments and before the tail.
+    private LinkedList<List<E>> _pendingBatches;
+    private int _pendingElements;
+    private List<E> _writingBatch;
+
+    private boolean _closed;
+
+    /**
+     * Construct an unbounded queue that keeps at most <maxInMemorySize> elements in
+     * memory, split between the head and tail, using Java serialization for the disk
+     * segments.
+     *
+     * @param maxInMemorySize Maximum number of elements to keep in memory.
+     */
+    public ConcurrentDiskQueue(int maxInMemorySize) {
+        this(maxInMemorySize, Integer.MAX_VALUE, null);
+    }
+
+    public ConcurrentDiskQueue(int maxInMemorySize, int maxSize, DiskQueue.ElementCodec<E> codec) {
+        this(maxInMemorySize / 2, maxInMemorySize - (maxInMemorySize / 2), DEFAULT_MAX_SEGMENT_ELEMENTS, maxSize, codec);
+    }
+
+    /**
+     * @param maxHeadSize Max elements in memory at the head (read side) of the queue.
+     * @param maxTailSize Max elements in memory at the tail (write side) before spilling.
+     * @param maxSegmentElements Max elements in one disk segment.
+     * @param maxSize Max total elements in the queue, or Integer.MAX_VALUE for no limit.
+     * @param codec Codec for disk segments, or null to use Java serialization.
+     */
+    public ConcurrentDiskQueue(int maxHeadSize, int maxTailSize, int maxSegmentElements, int maxSize, DiskQueue.ElementCodec<E> codec) {
+        if ((maxHeadSize < 1) || (maxTailSize < 1)) {
+            throw new InvalidParameterException("ConcurrentDiskQueue head and tail sizes must be at least one");
+        }
+
+        if (maxSegmentElements < maxTailSize) {
+            throw new InvalidParameterException("ConcurrentDiskQueue segment size must be at least the tail size");
+        }
+
+        if (maxSize < 1) {
+            throw new InvalidParameterException("ConcurrentDiskQueue max size must be at least one");
+        }
+
+        _maxHeadSize = maxHeadSize;
+        _maxTailSize = maxTailSize;
+        _maxSegmentElements = maxSegmentElements;
+        _maxSize = maxSize;
+        _codec = (codec == null ? new SerializationCodec<E>() : codec);
+
+        _head = new LinkedList<E>();
+        _tail = new ArrayList<E>(maxTailSize);
+        _segments = new LinkedList<Segment>();
+        _segmentElements = 0;
+        _loadingSegment = null;
+        _loadingElements = 0;
+        _pendingBatches = new LinkedList<List<E>>();
+        _pendingElements = 0;
+        _writingBatch = null;
+        _closed = false;
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        boolean hasSegments;
+        _lock.lock();
+        try {
+            hasSegments = !_segments.isEmpty();
+        } finally {
+            _lock.unlock();
+        }
+
+        if (hasSegments) {
+            LOGGER.warn("Concurrent disk queue still had segments in finalize");
+            close();
+        }
+    }
+
+    /**
+     * Delete all disk segments and drop everything in the queue. Any subsequent
+     * offer will fail.
+     */
+    public void close() {
+        List<Segment> segments;
+        _lock.lock();
+        try {
+            _closed = true;
+            segments = clearAll();
+            _notFull.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+        
+        deleteSegments(segments);
+    }
+
+    /**
+     * Return a weakly consistent iterator over the queue, oldest element first.
+     * 
+     * It returns the elements that were in the queue when it was created, and never
+     * throws ConcurrentModificationException, but it can return elements that have
+     * since been taken, and won't see elements added after it was created. Elements in
+     * disk segments are read as the iterator gets to them (using a separate stream,
+     * without holding the queue lock), and if a segment was drained and deleted in the
+     * meantime then its elements are skipped. remove() isn't supported.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        LinkedList<Iterator<E>> parts = new LinkedList<Iterator<E>>();
+        
+        _lock.lock();
+        try {
+            parts.add(new ArrayList<E>(_head).iterator());
+            
+            for (Segment segment : _segments) {
+                int firstIndex = segment._numRead;
+                int numElements = segment._numElements;
+                
+                // Elements being loaded are still in the segment file, and come before
+                // anything else in it.
+                if (segment == _loadingSegment) {
+                    firstIndex -= _loadingElements;
+                    numElements += _loadingElements;
+                }
+                
+                if (numElements > 0) {
+                    parts.add(new SegmentIterator(segment._file, firstIndex, numElements));
+                }
+            }
+            
+            if (_writingBatch != null) {
+                parts.add(new ArrayList<E>(_writingBatch).iterator());
+            }
+            
+            for (List<E> batch : _pendingBatches) {
+                parts.add(new ArrayList<E>(batch).iterator());
+            }
+            
+            parts.add(new ArrayList<E>(_tail).iterator());
+        } finally {
+            _lock.unlock();
+        }
+        
+        return new QueueIterator(parts);
+    }
+
+    @Override
+    public int size() {
+        _lock.lock();
+        try {
+            return unlockedSize();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of elements currently in disk segments.
+     */
+    public int getDiskSize() {
+        _lock.lock();
+        try {
+            return _segmentElements + _loadingElements;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of disk segment files that haven't been deleted yet.
+     */
+    public int getNumSegments() {
+        _lock.lock();
+        try {
+            return _segments.size();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E element) {
+        checkNotNull(element);
+
+        boolean spill;
+        _lock.lock();
+        try {
+            if (_closed || (unlockedSize() >= _maxSize)) {
+                return false;
+            }
+
+            spill = enqueue(element);
+        } finally {
+            _lock.unlock();
+        }
+        
+        if (spill) {
+            spillPending();
+        }
+        
+        return true;
+    }
+
+    @Override
+    public boolean offer(E element, long timeout, TimeUnit unit) throws InterruptedException {
+        checkNotNull(element);
+
+        boolean spill;
+        long nanos = unit.toNanos(timeout);
+        _lock.lockInterruptibly();
+        try {
+            while (!_closed && (unlockedSize() >= _maxSize)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+
+                nanos = _notFull.awaitNanos(nanos);
+            }
+
+            if (_closed) {
+                return false;
+            }
+            
+            spill = enqueue(element);
+        } finally {
+            _lock.unlock();
+        }
+        
+        if (spill) {
+            spillPending();
+        }
+        
+        return true;
+    }
+
+    @Override
+    public void put(E element) throws InterruptedException {
+        checkNotNull(element);
+
+        boolean spill;
+        _lock.lockInterruptibly();
+        try {
+            while (!_closed && (unlockedSize() >= _maxSize)) {
+                _notFull.await();
+            }
+
+            if (_closed) {
+                throw new IllegalStateException("Unable to add element to ConcurrentDiskQueue");
+            }
+            
+            spill = enqueue(element);
+        } finally {
+            _lock.unlock();
+        }
+        
+        if (spill) {
+            spillPending();
+        }
+    }
+
+    @Override
+    public E peek() {
+        while (true) {
+            _lock.lock();
+            try {
+                if (!_head.isEmpty()) {
+                    return _head.peek();
+                }
+            } finally {
+                _lock.unlock();
+            }
+            
+            if (!loadHead()) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public E poll() {
+        return dequeue();
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        while (true) {
+            E result = dequeue();
+            if (result != null) {
+                return result;
+            }
+            
+            _lock.lockInterruptibly();
+            try {
+                while (unlockedSize() == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    
+                    nanos = _notEmpty.awaitNanos(nanos);
+                }
+            } finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        while (true) {
+            E result = dequeue();
+            if (result != null) {
+                return result;
+            }
+            
+            _lock.lockInterruptibly();
+            try {
+                while (unlockedSize() == 0) {
+                    _notEmpty.await();
+                }
+            } finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        _lock.lock();
+        try {
+            return _maxSize - unlockedSize();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException("Can't drain a queue into itself");
+        }
+
+        int result = 0;
+        E element;
+        while ((result < maxElements) && ((element = dequeue()) != null)) {
+            c.add(element);
+            result += 1;
+        }
+
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractQueue#clear()
+     *
+     * Implement faster clear (so AbstractQueue doesn't call poll() repeatedly, and
+     * thus read everything back in from disk)
+     */
+    @Override
+    public void clear() {
+        List<Segment> segments;
+        _lock.lock();
+        try {
+            segments = clearAll();
+            _notFull.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+        
+        deleteSegments(segments);
+    }
+
+    /**
+     * Drop everything in the queue, once any segment reads or writes in progress have
+     * finished. Caller must hold the lock.
+     * 
+     * @return segments that the caller should delete after releasing the lock.
+     */
+    private List<Segment> clearAll() {
+        while ((_writingBatch != null) || (_loadingElements > 0)) {
+            _ioDone.awaitUninterruptibly();
+        }
+        
+        _head.clear();
+        _tail.clear();
+        _pendingBatches.clear();
+        _pendingElements = 0;
+
+        List<Segment> result = new ArrayList<Segment>(_segments);
+        _segments.clear();
+        _segmentElements = 0;
+        return result;
+    }
+
+    private void deleteSegments(List<Segment> segments) {
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+    }
+    
+    private void checkNotNull(E element) {
+        if (element == null) {
+            throw new NullPointerException("Element cannot be null for ConcurrentDiskQueue");
+        }
+    }
+
+    private int unlockedSize() {
+        return _head.size() + unlockedSizeBehindHead();
+    }
+
+    private int unlockedSizeBehindHead() {
+        int writingSize = (_writingBatch == null ? 0 : _writingBatch.size());
+        return _loadingElements + _segmentElements + writingSize + _pendingElements + _tail.size();
+    }
+    
+    /**
+     * Add <element> to the end of the queue. Caller must hold the lock.
+     *
+     * @return true if the caller needs to call spillPending() after releasing the lock.
+     */
+    private boolean enqueue(E element) {
+        // If nothing is queued up behind the head, we can skip the tail & disk.
+        if ((unlockedSizeBehindHead() == 0) && (_head.size() < _maxHeadSize)) {
+            _head.add(element);
+        } else {
+            if (_tail.size() >= _maxTailSize) {
+                _pendingBatches.add(_tail);
+                _pendingElements += _tail.size();
+                _tail = new ArrayList<E>(_maxTailSize);
+            }
+
+            _tail.add(element);
+        }
+
+        _notEmpty.signal();
+        return !_pendingBatches.isEmpty();
+    }
+
+    /**
+     * Remove the first element in the queue, or return null if the queue is empty.
+     * Caller must not hold the lock, as refilling the head can mean reading from disk.
+     */
+    private E dequeue() {
+        while (true) {
+            _lock.lock();
+            try {
+                E result = _head.poll();
+                if (result != null) {
+                    _notFull.signal();
+                    return result;
+                }
+            } finally {
+                _lock.unlock();
+            }
+            
+            if (!loadHead()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Write out full tail buffers to the current write segment, rolling to a new
+     * segment when it would get too big. The writing happens without the queue lock,
+     * so consumers (and producers that don't fill the tail) aren't stalled by disk I/O.
+     * Caller must not hold the lock.
+     */
+    private void spillPending() {
+        _spillLock.lock();
+        try {
+            while (true) {
+                List<E> batch;
+                Segment segment;
+                boolean rollSegment;
+
+                _lock.lock();
+                try {
+                    batch = _pendingBatches.poll();
+                    if (batch == null) {
+                        return;
+                    }
+
+                    _pendingElements -= batch.size();
+                    _writingBatch = batch;
+
+                    segment = _segments.peekLast();
+                    rollSegment = (segment == null) || !segment._writable || (segment._numRead + segment._numElements + batch.size() > _maxSegmentElements);
+                } finally {
+                    _lock.unlock();
+                }
+
+                Segment closedSegment = null;
+                Segment newSegment = null;
+                boolean written = false;
+                try {
+                    if (rollSegment) {
+                        if ((segment != null) && segment._writable) {
+                            closedSegment = segment;
+                            segment.closeForWriting();
+                        }
+
+                        newSegment = new Segment();
+                        segment = newSegment;
+                    }
+
+                    for (E element : batch) {
+                        _codec.write(element, segment._out);
+                    }
+
+                    // Readers only read what we've published, so it has to be in the file.
+                    segment._out.flush();
+                    written = true;
+                } catch (IOException e) {
+                    LOGGER.error("Error writing to ConcurrentDiskQueue segment, dropping " + batch.size() + " elements", e);
+                }
+
+                List<Segment> toDelete = new ArrayList<Segment>();
+                _lock.lock();
+                try {
+                    _writingBatch = null;
+
+                    if (closedSegment != null) {
+                        closedSegment._writable = false;
+                        removeIfDrained(closedSegment, toDelete);
+                    }
+
+                    if (written) {
+                        if (newSegment != null) {
+                            _segments.add(newSegment);
+                        }
+
+                        segment._numElements += batch.size();
+                        _segmentElements += batch.size();
+                    } else {
+                        // We can't append after a partial write, so stop using this segment.
+                        if (newSegment != null) {
+                            toDelete.add(newSegment);
+                        } else if (segment != null) {
+                            segment._writable = false;
+                            removeIfDrained(segment, toDelete);
+                        }
+
+                        _notFull.signalAll();
+                    }
+
+                    _ioDone.signalAll();
+                } finally {
+                    _lock.unlock();
+                }
+
+                deleteSegments(toDelete);
+            }
+        } finally {
+            _spillLock.unlock();
+        }
+    }
+
+    /**
+     * If <segment> has no more elements to read and won't be written to again, take it
+     * out of the list and add it to <toDelete>. Caller must hold the lock.
+     */
+    private void removeIfDrained(Segment segment, List<Segment> toDelete) {
+        if ((segment._numElements == 0) && !segment._writable && (segment != _loadingSegment)) {
+            _segments.remove(segment);
+            toDelete.add(segment);
+        }
+    }
+
+    /**
+     * If the head is empty, refill it from the oldest disk segment, or from the pending
+     * batches and tail if nothing is on disk. Segment reads happen without the queue
+     * lock, and only one thread loads at a time. Caller must not hold the lock.
+     *
+     * @return false if the queue was empty, otherwise true (though another thread may
+     *         have taken what was loaded by the time the caller looks at the head).
+     */
+    private boolean loadHead() {
+        Segment segment;
+        int numToLoad;
+
+        _lock.lock();
+        try {
+            if (!_head.isEmpty()) {
+                return true;
+            }
+
+            if (_loadingElements > 0) {
+                // Somebody else is refilling the head.
+                _ioDone.awaitUninterruptibly();
+                return true;
+            }
+
+            if (_segmentElements == 0) {
+                if (_writingBatch != null) {
+                    // What's being written comes before the pending batches and the tail.
+                    _ioDone.awaitUninterruptibly();
+                    return true;
+                }
+
+                for (List<E> batch : _pendingBatches) {
+                    _head.addAll(batch);
+                }
+
+                _pendingBatches.clear();
+                _pendingElements = 0;
+                _head.addAll(_tail);
+                _tail.clear();
+                return !_head.isEmpty();
+            }
+
+            // Drained segments are removed (other than one that's still being written
+            // to, which is the last one), so the first segment has what we want.
+            segment = _segments.peekFirst();
+            numToLoad = Math.min(segment._numElements, _maxHeadSize);
+            segment._numElements -= numToLoad;
+            segment._numRead += numToLoad;
+            _segmentElements -= numToLoad;
+            _loadingSegment = segment;
+            _loadingElements = numToLoad;
+        } finally {
+            _lock.unlock();
+        }
+
+        List<E> loaded = new ArrayList<E>(numToLoad);
+        boolean failed = false;
+        try {
+            DataInputStream in = segment.getInput();
+            while (loaded.size() < numToLoad) {
+                loaded.add(_codec.read(in));
+            }
+        } catch (IOException e) {
+            // We can't recover the rest of this segment, so drop it rather than
+            // returning the same error forever.
+            LOGGER.error("Error reading from ConcurrentDiskQueue segment, dropping " + (numToLoad - loaded.size()) + " elements", e);
+            failed = true;
+        }
+
+        List<Segment> toDelete = new ArrayList<Segment>();
+        _lock.lock();
+        try {
+            _head.addAll(loaded);
+            _loadingSegment = null;
+            _loadingElements = 0;
+
+            if (failed) {
+                _segmentElements -= segment._numElements;
+                segment._numElements = 0;
+                segment._writable = segment._writable && (_writingBatch != null);
+                _notFull.signalAll();
+            } else if (segment._writable && (segment._numElements == 0) && (_writingBatch == null)) {
+                // Nobody is appending to this segment right now, and we've read everything
+                // in it, so there's no point keeping it around.
+                segment._writable = false;
+            }
+            
+            removeIfDrained(segment, toDelete);
+            _ioDone.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+
+        deleteSegments(toDelete);
+        return true;
+    }
+
+    /**
+     * Reads <numElements> elements from a segment file, starting at <firstIndex>,
+     * using its own stream so that it doesn't interfere with consumers.
+     */
+    private class SegmentIterator implements Iterator<E> {
+        private File _file;
+        private int _numToSkip;
+        private int _numRemaining;
+        private DataInputStream _in;
+        private E _next;
+
+        public SegmentIterator(File file, int firstIndex, int numElements) {
+            _file = file;
+            _numToSkip = firstIndex;
+            _numRemaining = numElements;
+            _in = null;
+            _next = null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if ((_next == null) && (_numRemaining > 0)) {
+                _next = readNext();
+            }
+
+            return _next != null;
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            E result = _next;
+            _next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Remove not supported for ConcurrentDiskQueue iterator");
+        }
+
+        private E readNext() {
+            try {
+                if (_in == null) {
+                    _in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file), FILE_BUFFER_SIZE));
+                    while (_numToSkip > 0) {
+                        _codec.read(_in);
+                        _numToSkip -= 1;
+                    }
+                }
+
+                E result = _codec.read(_in);
+                _numRemaining -= 1;
+                if (_numRemaining == 0) {
+                    IoUtils.safeClose(_in);
+                }
+
+                return result;
+            } catch (FileNotFoundException e) {
+                // The segment was drained and deleted after we were created, so everything
+                // we would have returned has already been taken.
+            } catch (IOException e) {
+                LOGGER.warn("Error reading ConcurrentDiskQueue segment for iterator, skipping " + _numRemaining + " elements", e);
+                IoUtils.safeClose(_in);
+            }
+
+            _numRemaining = 0;
+            return null;
+        }
+    }
+
+    private class QueueIterator implements Iterator<E> {
+        private LinkedList<Iterator<E>> _parts;
+
+        public QueueIterator(LinkedList<Iterator<E>> parts) {
+            _parts = parts;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!_parts.isEmpty() && !_parts.peek().hasNext()) {
+                _parts.removeFirst();
+            }
+
+            return !_parts.isEmpty();
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return _parts.peek().next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Remove not supported for ConcurrentDiskQueue iterator");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Growable byte buffer that response bodies are read straight into, without
+ * an intermediate read buffer, and that gets reused for later responses.
+ * 
+ * acquire() takes a buffer from a shared free list (or makes a new one), and
+ * release() puts it back, so this works the same whether fetches run on a few
+ * long-lived threads or on a virtual thread per fetch. The free list holds at
+ * most MAX_POOLED_BUFFERS, and a buffer that had to grow past MAX_POOLED_SIZE
+ * is dropped on release(), so one huge response doesn't pin that much memory.
+ * A buffer must not be used after it has been released.
+ */
+public class ContentBuffer {
+
+    public static final int DEFAULT_INITIAL_SIZE = 32 * 1024;
+    public static final int MAX_POOLED_SIZE = 1024 * 1024;
+    public static final int MAX_POOLED_BUFFERS = 32;
+    
+    // Most recently released buffer first, since it's the most likely to be in cache.
+    private static final BlockingDeque<ContentBuffer> POOL = new LinkedBlockingDeque<ContentBuffer>(MAX_POOLED_BUFFERS);
+    
+    private byte[] _data;
+    private int _length;
+    
+    public ContentBuffer(int initialSize) {
+        _data = new byte[initialSize];
+        _length = 0;
+    }
+    
+    /**
+     * Return an empty buffer, reusing a released one if there is one.
+     */
+    public static ContentBuffer acquire() {
+        ContentBuffer result = POOL.pollFirst();
+        if (result == null) {
+            result = new ContentBuffer(DEFAULT_INITIAL_SIZE);
+        } else {
+            result.reset();
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Done with <buffer>. If it grew too big, or the free list is full, we let it go.
+     */
+    public static void release(ContentBuffer buffer) {
+        if (buffer.getCapacity() <= MAX_POOLED_SIZE) {
+            POOL.offerFirst(buffer);
+        }
+    }
+    
+    /**
+     * @return number of released buffers waiting to be reused.
+     */
+    public static int getNumPooled() {
+        return POOL.size();
+    }
+    
+    public void reset() {
+        _length = 0;
+    }
+    
+    /**
+     * Read up to <maxBytes> from <in>, appending them to the buffer.
+     * 
+     * @return number of bytes read, or -1 if we're at the end of <in>.
+     */
+    public int read(InputStream in, int maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            return 0;
+        }
+        
+        if (_length == _data.length) {
+            grow(_length + 1);
+        }
+        
+        int result = in.read(_data, _length, Math.min(maxBytes, _data.length - _length));
+        if (result > 0) {
+            _length += result;
+        }
+        
+        return result;
+    }
+    
+    private void grow(int minCapacity) {
+        // Double the size, but don't overflow.
+        int newCapacity = (int)Math.min(Integer.MAX_VALUE, Math.max(2L * _data.length, minCapacity));
+        _data = Arrays.copyOf(_data, newCapacity);
+    }
+    
+    public int getLength() {
+        return _length;
+    }
+    
+    public int getCapacity() {
+        return _data.length;
+    }
+    
+    /**
+     * @return right-sized copy of the buffer's content.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(_data, _length);
+    }
+}
@@ -16,20 +16,30 @@
  */
 package bixo.utils;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.security.InvalidParameterException;
 import java.util.AbstractQueue;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
@@ -42,6 +52,12 @@ import org.apache.log4j.Logger;
  * This implementation is optimized for being filled once (ie by the iterator in a reducer)
  * and then incrementally read. So it wouldn't work very well if reads/writes were happening
  * simultaneously, once anything had spilled to disk.
+ * 
+ * By default the in-memory portion is scanned for the lowest element on every peek/poll,
+ * which means the comparator can depend on state that changes while elements are queued.
+ * If a PriorityKeyer is provided, the in-memory portion is a heap instead, ordered first by
+ * a per-key priority (set via setPriority) and then by the comparator. In that case the
+ * comparator must only use immutable element state.
  *
  */
 public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
@@ -49,6 +65,8 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
 
     public static final float DEFAULT_REFILL_RATIO = 0.75f;
     
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+    
     private static class DefaultComparator<T extends Comparable> implements Comparator<T> {
 
         @Override
@@ -58,14 +76,64 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         
     }
     
-    private static class IndexQueue<E> extends AbstractQueue<E> {
+    /**
+     * Maps an element to the key used to (re)prioritize it, e.g. the grouping ref
+     * for a FetchSetDatum.
+     *
+     * @param <E> element stored in queue
+     */
+    public interface PriorityKeyer<E> {
+        public Object getKey(E element);
+    }
+    
+    /**
+     * Reads and writes elements in the backing store file. Without a codec, elements
+     * are written using Java serialization.
+     *
+     * @param <E> element stored in queue
+     */
+    public interface ElementCodec<E> {
+        public void write(E element, DataOutput out) throws IOException;
+        public E read(DataInput in) throws IOException;
+    }
+    
+    private static abstract class MemoryQueue<E> extends AbstractQueue<E> {
+        
+        private int _capacity;
+        
+        public MemoryQueue(int capacity) {
+            _capacity = capacity;
+        }
+        
+        public int getCapacity() {
+            return _capacity;
+        }
+        
+        public void setPriority(Object key, long priority) {
+            throw new IllegalStateException("DiskQueue was created without a PriorityKeyer");
+        }
+        
+        public boolean containsKey(Object key) {
+            throw new IllegalStateException("DiskQueue was created without a PriorityKeyer");
+        }
+        
+        /**
+         * Forget the priority for <key>, unless there are still elements with that key.
+         * 
+         * @param key
+         */
+        public void prunePriority(Object key) {
+        }
+    }
+    
+    private static class IndexQueue<E> extends MemoryQueue<E> {
 
         private List<E> _queue;
         private Comparator<? super E> _comparator;
-        private int _capacity;
 
         public IndexQueue(int capacity, Comparator<? super E> comparator) {
-            _capacity = capacity;
+            super(capacity);
+            
             _comparator = comparator;
             _queue = new ArrayList<E>(capacity);
         }
@@ -75,10 +143,6 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
             return _queue.iterator();
         }
 
-        public int getCapacity() {
-            return _capacity;
-        }
-
         @Override
         public int size() {
             return _queue.size();
@@ -88,7 +152,7 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         public boolean offer(E o) {
             if (o == null) {
                 throw new NullPointerException();
-            } else if (_queue.size() >= _capacity) {
+            } else if (_queue.size() >= getCapacity()) {
                 return false;
             } else {
                 _queue.add(o);
@@ -142,9 +206,217 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         }
     }
     
+    /**
+     * Binary heap ordered by (key priority, comparator). Each node knows its index, and
+     * we track the nodes for each key, so changing a key's priority only re-sifts the
+     * elements with that key, versus re-sorting everything.
+     *
+     * @param <E> element stored in queue
+     */
+    private static class KeyedHeapQueue<E> extends MemoryQueue<E> {
+        
+        private static class Node<E> {
+            private E _element;
+            private Object _key;
+            private long _priority;
+            private int _index;
+            
+            public Node(E element, Object key, long priority) {
+                _element = element;
+                _key = key;
+                _priority = priority;
+            }
+        }
+        
+        private List<Node<E>> _heap;
+        private Map<Object, List<Node<E>>> _nodesByKey;
+        private Map<Object, Long> _priorities;
+        private Comparator<? super E> _comparator;
+        private PriorityKeyer<? super E> _keyer;
+        
+        public KeyedHeapQueue(int capacity, Comparator<? super E> comparator, PriorityKeyer<? super E> keyer) {
+            super(capacity);
+            
+            _comparator = comparator;
+            _keyer = keyer;
+            _heap = new ArrayList<Node<E>>(capacity);
+            _nodesByKey = new HashMap<Object, List<Node<E>>>();
+            _priorities = new HashMap<Object, Long>();
+        }
+        
+        @Override
+        public Iterator<E> iterator() {
+            List<E> elements = new ArrayList<E>(_heap.size());
+            for (Node<E> node : _heap) {
+                elements.add(node._element);
+            }
+            
+            return elements.iterator();
+        }
+
+        @Override
+        public int size() {
+            return _heap.size();
+        }
+
+        @Override
+        public boolean offer(E o) {
+            if (o == null) {
+                throw new NullPointerException();
+            } else if (_heap.size() >= getCapacity()) {
+                return false;
+            }
+            
+            Object key = _keyer.getKey(o);
+            Long priority = _priorities.get(key);
+            Node<E> node = new Node<E>(o, key, priority == null ? 0 : priority);
+            
+            List<Node<E>> keyNodes = _nodesByKey.get(key);
+            if (keyNodes == null) {
+                keyNodes = new LinkedList<Node<E>>();
+                _nodesByKey.put(key, keyNodes);
+            }
+            keyNodes.add(node);
+            
+            node._index = _heap.size();
+            _heap.add(node);
+            siftUp(node._index);
+            return true;
+        }
+
+        @Override
+        public E peek() {
+            return _heap.isEmpty() ? null : _heap.get(0)._element;
+        }
+
+        @Override
+        public E poll() {
+            if (_heap.isEmpty()) {
+                return null;
+            }
+            
+            Node<E> result = _heap.get(0);
+            Node<E> last = _heap.remove(_heap.size() - 1);
+            if (last != result) {
+                last._index = 0;
+                _heap.set(0, last);
+                siftDown(0);
+            }
+            
+            List<Node<E>> keyNodes = _nodesByKey.get(result._key);
+            keyNodes.remove(result);
+            if (keyNodes.isEmpty()) {
+                _nodesByKey.remove(result._key);
+            }
+            
+            return result._element;
+        }
+        
+        @Override
+        public void clear() {
+            _heap.clear();
+            _nodesByKey.clear();
+            _priorities.clear();
+        }
+        
+        @Override
+        public boolean containsKey(Object key) {
+            return _nodesByKey.containsKey(key);
+        }
+        
+        @Override
+        public void prunePriority(Object key) {
+            if (!_nodesByKey.containsKey(key)) {
+                _priorities.remove(key);
+            }
+        }
+        
+        @Override
+        public void setPriority(Object key, long priority) {
+            _priorities.put(key, priority);
+            
+            List<Node<E>> keyNodes = _nodesByKey.get(key);
+            if (keyNodes == null) {
+                return;
+            }
+            
+            for (Node<E> node : keyNodes) {
+                long oldPriority = node._priority;
+                node._priority = priority;
+                if (priority < oldPriority) {
+                    siftUp(node._index);
+                } else if (priority > oldPriority) {
+                    siftDown(node._index);
+                }
+            }
+        }
+        
+        private int compare(Node<E> n1, Node<E> n2) {
+            if (n1._priority < n2._priority) {
+                return -1;
+            } else if (n1._priority > n2._priority) {
+                return 1;
+            } else {
+                return _comparator.compare(n1._element, n2._element);
+            }
+        }
+        
+        private void siftUp(int index) {
+            Node<E> node = _heap.get(index);
+            while (index > 0) {
+                int parentIndex = (index - 1) / 2;
+                Node<E> parent = _heap.get(parentIndex);
+                if (compare(node, parent) >= 0) {
+                    break;
+                }
+                
+                place(parent, index);
+                index = parentIndex;
+            }
+            
+            place(node, index);
+        }
+        
+        private void siftDown(int index) {
+            Node<E> node = _heap.get(index);
+            int size = _heap.size();
+            while (true) {
+                int childIndex = (index * 2) + 1;
+                if (childIndex >= size) {
+                    break;
+                }
+                
+                Node<E> child = _heap.get(childIndex);
+                if ((childIndex + 1 < size) && (compare(_heap.get(childIndex + 1), child) < 0)) {
+                    childIndex += 1;
+                    child = _heap.get(childIndex);
+                }
+                
+                if (compare(node, child) <= 0) {
+                    break;
+                }
+                
+                place(child, index);
+                index = childIndex;
+            }
+            
+            place(node, index);
+        }
+        
+        private void place(Node<E> node, int index) {
+            node._index = index;
+            _heap.set(index, node);
+        }
+    }
+    
     // The _memoryQueue represents the head of the queue. It can also be the tail, if
     // nothing has spilled over onto the disk.
-    private IndexQueue<E> _memoryQueue;
+    private MemoryQueue<E> _memoryQueue;
+    
+    // If we have a keyer, the number of elements with each key that are in the backing
+    // store file (or _fileInSaved), so we know when the last element for a key is taken.
+    private PriorityKeyer<? super E> _keyer;
+    private Map<Object, Integer> _fileKeys;
     
     // Percentage of memory queue used/capacity that triggers a refill from disk.
     private float _refillMemoryRatio;
@@ -152,8 +424,12 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
     // Number of elements in the backing store file on disk.
     private int _fileElements;
 
-    private ObjectOutputStream _fileOut;
-    private ObjectInputStream _fileIn;
+    // Optional codec for elements in the backing store file.
+    private ElementCodec<E> _codec;
+    
+    // If we have a codec, these are Data streams, otherwise they're Object streams.
+    private OutputStream _fileOut;
+    private InputStream _fileIn;
     
     // When moving elements from disk to memory, we don't know whether the memory queue
     // has space until the offer is rejected. So rather than trying to push back an element
@@ -180,11 +456,32 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
     }
     
     public DiskQueue(int maxInMemorySize, Comparator<? super E> comparator) {
+        this(maxInMemorySize, comparator, null);
+    }
+    
+    /**
+     * Construct a disk-backed queue where elements are ordered first by the priority
+     * of their key (see setPriority), and then by <comparator>. If <keyer> is null, we
+     * fall back to ordering only by <comparator>, which can then use mutable state.
+     * 
+     * @param maxInMemorySize Maximum number of elements to keep in memory.
+     * @param comparator Comparator for elements with the same key priority.
+     * @param keyer Maps elements to keys, or null.
+     */
+    public DiskQueue(int maxInMemorySize, Comparator<? super E> comparator, PriorityKeyer<? super E> keyer) {
         if (maxInMemorySize < 1) {
             throw new InvalidParameterException("DiskQueue max in-memory size must be at least one");
         }
 
-        _memoryQueue = new IndexQueue<E>(maxInMemorySize, comparator);
+        if (keyer == null) {
+            _memoryQueue = new IndexQueue<E>(maxInMemorySize, comparator);
+        } else {
+            _memoryQueue = new KeyedHeapQueue<E>(maxInMemorySize, comparator, keyer);
+        }
+        
+        _keyer = keyer;
+        _fileKeys = new HashMap<Object, Integer>();
+        
         _refillMemoryRatio = DEFAULT_REFILL_RATIO;
     }
 
@@ -221,6 +518,7 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         _fileOut = null;
 
         _fileElements = 0;
+        _fileKeys.clear();
 
         _backingStore.delete();
         _backingStore = null;
@@ -231,14 +529,57 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         
         if (_backingStore == null) {
             _backingStore = File.createTempFile(DiskQueue.class.getSimpleName() + "-backingstore-", null);
-            _fileOut = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(_backingStore)));
+            
+            if (_codec == null) {
+                _fileOut = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(_backingStore)));
 
-            // Flush output file, so there's something written when we open the input stream.
-            _fileOut.flush();
+                // Flush output file, so there's something written when we open the input stream.
+                _fileOut.flush();
 
-            _fileIn = new ObjectInputStream(new FileInputStream(_backingStore));
+                _fileIn = new ObjectInputStream(new FileInputStream(_backingStore));
+            } else {
+                _fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_backingStore), FILE_BUFFER_SIZE));
+                _fileIn = new DataInputStream(new BufferedInputStream(new FileInputStream(_backingStore), FILE_BUFFER_SIZE));
+            }
         }
     }
+    
+    private void writeElement(E element) throws IOException {
+        if (_codec == null) {
+            ObjectOutputStream out = (ObjectOutputStream)_fileOut;
+            out.writeObject(element);
+            
+            // Release memory ref to <element>, since we don't have any back-references from
+            // it to other serialized objects.
+            out.reset();
+        } else {
+            _codec.write(element, (DataOutputStream)_fileOut);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private E readElement() throws IOException, ClassNotFoundException {
+        if (_codec == null) {
+            return (E)((ObjectInputStream)_fileIn).readObject();
+        } else {
+            return _codec.read((DataInputStream)_fileIn);
+        }
+    }
+    
+    /**
+     * Use <codec> to write elements to (and read them from) the backing store file,
+     * versus Java serialization. This has to be set before anything spills to disk.
+     * 
+     * @param codec codec for elements, or null to use Java serialization.
+     * @throws IllegalStateException if elements have already been written to disk.
+     */
+    public void setCodec(ElementCodec<E> codec) {
+        if (_backingStore != null) {
+            throw new IllegalStateException("Can't change codec once elements have been written to disk");
+        }
+        
+        _codec = codec;
+    }
 
     @Override
     public Iterator<E> iterator() {
@@ -263,12 +604,14 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         if ((_backingStore != null) || !_memoryQueue.offer(element)) {
             try {
                 openFile();
-                _fileOut.writeObject(element);
+                writeElement(element);
                 _fileElements += 1;
                 
-                // Release memory ref to <element>, since we don't have any back-references from
-                // it to other serialized objects.
-                _fileOut.reset();
+                if (_keyer != null) {
+                    Object key = _keyer.getKey(element);
+                    Integer count = _fileKeys.get(key);
+                    _fileKeys.put(key, count == null ? 1 : count + 1);
+                }
             } catch (IOException e) {
                 LOGGER.error("Error writing to DiskQueue backing store", e);
                 return false;
@@ -278,6 +621,28 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         return true;
     }
 
+    /**
+     * Set the priority for all elements with <key>, including ones that get added later
+     * (or loaded from disk). Lower values sort sooner, and keys default to zero. Once the
+     * last element with <key> has been taken from the queue, its priority is forgotten.
+     * 
+     * @param key key returned by the PriorityKeyer
+     * @param priority new priority for the key
+     * @throws IllegalStateException if queue was created without a PriorityKeyer
+     */
+    public void setPriority(Object key, long priority) {
+        _memoryQueue.setPriority(key, priority);
+    }
+    
+    /**
+     * @param key key returned by the PriorityKeyer
+     * @return true if the queue has any elements with <key>.
+     * @throws IllegalStateException if queue was created without a PriorityKeyer
+     */
+    public boolean containsKey(Object key) {
+        return _memoryQueue.containsKey(key) || _fileKeys.containsKey(key);
+    }
+    
     @Override
     public E peek() {
         loadMemoryQueue();
@@ -288,14 +653,49 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
     public E remove() {
         loadMemoryQueue();
 
-        return _memoryQueue.remove();
+        return taken(_memoryQueue.remove());
     }
     
     @Override
     public E poll() {
         loadMemoryQueue();
 
-        return _memoryQueue.poll();
+        return taken(_memoryQueue.poll());
+    }
+    
+    /**
+     * If <element> was the last one with its key, forget the key's priority.
+     * 
+     * @param element element just taken from the memory queue, or null
+     * @return <element>
+     */
+    private E taken(E element) {
+        if ((element != null) && (_keyer != null)) {
+            Object key = _keyer.getKey(element);
+            if (!_fileKeys.containsKey(key)) {
+                _memoryQueue.prunePriority(key);
+            }
+        }
+        
+        return element;
+    }
+    
+    /**
+     * Update the count of elements in the backing store with the same key as <element>,
+     * which has just been moved into the memory queue.
+     * 
+     * @param element
+     */
+    private void loaded(E element) {
+        if (_keyer != null) {
+            Object key = _keyer.getKey(element);
+            Integer count = _fileKeys.get(key);
+            if ((count == null) || (count <= 1)) {
+                _fileKeys.remove(key);
+            } else {
+                _fileKeys.put(key, count - 1);
+            }
+        }
     }
 
     /* (non-Javadoc)
@@ -310,7 +710,6 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         closeFile();
     }
     
-    @SuppressWarnings("unchecked")
     private void loadMemoryQueue() {
         // use the memory queue as our buffer, so only load it up when it's below capacity.
         if ((float)_memoryQueue.size()/(float)_memoryQueue.getCapacity() >= _refillMemoryRatio) {
@@ -323,6 +722,7 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
                 throw new RuntimeException("Unexpected error - can't offer to an empty queue");
             }
 
+            loaded(_fileInSaved);
             _fileInSaved = null;
         }
 
@@ -334,13 +734,15 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
                 _fileOut.flush();
 
                 while (_fileElements > 0) {
-                    E nextFileElement = (E)_fileIn.readObject();
+                    E nextFileElement = readElement();
                     _fileElements -= 1;
 
                     if (!_memoryQueue.offer(nextFileElement)) {
                         _fileInSaved = nextFileElement;
                         return;
                     }
+                    
+                    loaded(nextFileElement);
                 }
 
                 // Nothing left in the file, so close/delete it.
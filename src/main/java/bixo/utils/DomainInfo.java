@@ -16,7 +16,6 @@
  */
 package bixo.utils;
 
-import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -24,6 +23,8 @@ import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.regex.Pattern;
 
+import bixo.urls.ParsedUrl;
+
 public class DomainInfo {
 
     private static final String TESTING_DOMAIN_PREFIX = "bixo-test-domain-";
@@ -41,18 +42,30 @@ public class DomainInfo {
     private String _hostAddress;
 
     public DomainInfo(String protocolAndDomain) throws UnknownHostException, MalformedURLException, URISyntaxException {
+        this(protocolAndDomain, CachingDnsResolver.getSharedResolver());
+    }
+    
+    public DomainInfo(String protocolAndDomain, BaseDnsResolver resolver) throws UnknownHostException, MalformedURLException, URISyntaxException {
         _protocolAndDomain = protocolAndDomain;
-        URL url = new URL(protocolAndDomain);
-
-        // Since URI class is stricter than URL when validating, let's use the URL result to try to create a URI
-        new URI(url.getProtocol(), null, url.getHost(), url.getPort(), url.getPath(), url.getQuery(), null);
         
-        _domain = url.getHost();
+        // If the host is a valid domain name then the URL and URI classes will both be happy
+        // with it, so we can skip creating them.
+        ParsedUrl parsedUrl = ParsedUrl.parse(protocolAndDomain);
+        if ((parsedUrl != null) && parsedUrl.isSimpleHttp()) {
+            _domain = parsedUrl.getHost();
+        } else {
+            URL url = new URL(protocolAndDomain);
+
+            // Since URI class is stricter than URL when validating, let's use the URL result to try to create a URI
+            new URI(url.getProtocol(), null, url.getHost(), url.getPort(), url.getPath(), url.getQuery(), null);
+
+            _domain = url.getHost();
+        }
         
         if (TESTING_DOMAIN_PATTERN.matcher(_domain).matches()) {
             _hostAddress = _domain;
         } else {
-            _hostAddress = InetAddress.getByName(_domain).getHostAddress();
+            _hostAddress = resolver.resolve(_domain)[0].getHostAddress();
         }
     }
 
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.IDN;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The Mozilla public suffix list (http://publicsuffix.org), compiled into a trie
+ * of reversed hostname labels (so "co.uk" is root -> "uk" -> "co").
+ * 
+ * Each node records whether it's a rule ("co.uk"), whether it has a wildcard rule
+ * below it ("*.uk"), and whether it's an exception ("!bl.uk"). Children are kept
+ * in small open-addressed hash tables, so a lookup walks the labels of a hostname
+ * from right to left, hashing each label as it scans for the preceding '.' and then
+ * comparing against the characters of the hostname itself - no splitting,
+ * lower-casing or substrings.
+ * 
+ * Rules with non-ASCII labels are added in both their Unicode and punycode forms,
+ * since we can see either in a URL.
+ * 
+ * The bundled list is an unmodified copy of the upstream list, and any rules of our
+ * own are in a separate overrides resource that gets loaded on top of it.
+ */
+public class PublicSuffixList {
+
+    public static final String DEFAULT_LIST_RESOURCE = "/effective_tld_names.dat";
+    public static final String DEFAULT_OVERRIDES_RESOURCE = "/public_suffix_overrides.dat";
+
+    private static class Node {
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private char[] _label;
+        private int _hash;
+        private Node[] _children = NO_CHILDREN;
+        private int _mask = 0;
+        private boolean _isRule = false;
+        private boolean _isWildcard = false;
+        private boolean _isException = false;
+
+        // Only used while we're building the trie.
+        private Map<String, Node> _childMap;
+
+        public Node(String label) {
+            _label = label.toCharArray();
+            _hash = hashLabel(label, 0, label.length());
+        }
+
+        public Node getOrAddChild(String label) {
+            if (_childMap == null) {
+                _childMap = new HashMap<String, Node>();
+            }
+
+            Node result = _childMap.get(label);
+            if (result == null) {
+                result = new Node(label);
+                _childMap.put(label, result);
+            }
+
+            return result;
+        }
+
+        /**
+         * Move the children into an open-addressed hash table that's at most half
+         * full, so most lookups are a single probe.
+         */
+        public void compile() {
+            if (_childMap == null) {
+                return;
+            }
+
+            int tableSize = 2;
+            while (tableSize < _childMap.size() * 2) {
+                tableSize *= 2;
+            }
+
+            _children = new Node[tableSize];
+            _mask = tableSize - 1;
+            for (Node child : _childMap.values()) {
+                int slot = child._hash & _mask;
+                while (_children[slot] != null) {
+                    slot = (slot + 1) & _mask;
+                }
+
+                _children[slot] = child;
+                child.compile();
+            }
+
+            _childMap = null;
+        }
+
+        public Node findChild(CharSequence hostname, int start, int end, int hash) {
+            if (_children.length == 0) {
+                return null;
+            }
+
+            int slot = hash & _mask;
+            Node child;
+            while ((child = _children[slot]) != null) {
+                if ((child._hash == hash) && labelEquals(child._label, hostname, start, end)) {
+                    return child;
+                }
+
+                slot = (slot + 1) & _mask;
+            }
+
+            return null;
+        }
+    }
+
+    private Node _root;
+    private int _numRules;
+
+    /**
+     * Create a list from the rules in the standard effective_tld_names.dat format.
+     * Lines that are empty or start with "//" are ignored, as is anything after the
+     * first whitespace on a line.
+     */
+    public PublicSuffixList(List<String> lines) {
+        _root = new Node("");
+
+        // Default rule is "*", so an unknown TLD is still a public suffix.
+        _root._isWildcard = true;
+
+        for (String line : lines) {
+            line = line.trim();
+            if ((line.length() == 0) || line.startsWith("//")) {
+                continue;
+            }
+
+            int spaceIndex = line.indexOf(' ');
+            if (spaceIndex != -1) {
+                line = line.substring(0, spaceIndex);
+            }
+
+            line = line.toLowerCase();
+            addRule(line);
+
+            String asciiLine = toAscii(line);
+            if ((asciiLine != null) && !asciiLine.equals(line)) {
+                addRule(asciiLine);
+            }
+        }
+
+        _root.compile();
+    }
+
+    public static PublicSuffixList load(InputStream is) throws IOException {
+        try {
+            return new PublicSuffixList(IOUtils.readLines(is, "UTF-8"));
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Return the list that's bundled with Bixo, plus our overrides.
+     */
+    public static PublicSuffixList loadDefault() {
+        List<String> lines = new ArrayList<String>();
+        lines.addAll(readResource(DEFAULT_LIST_RESOURCE));
+        lines.addAll(readResource(DEFAULT_OVERRIDES_RESOURCE));
+        return new PublicSuffixList(lines);
+    }
+
+    private static List<String> readResource(String resource) {
+        InputStream is = PublicSuffixList.class.getResourceAsStream(resource);
+        if (is == null) {
+            throw new IllegalStateException("Can't find public suffix list resource: " + resource);
+        }
+
+        try {
+            return IOUtils.readLines(is, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't load public suffix list resource: " + resource, e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private static String toAscii(String rule) {
+        boolean isAscii = true;
+        for (int i = 0; (i < rule.length()) && isAscii; i++) {
+            isAscii = rule.charAt(i) < 0x80;
+        }
+
+        if (isAscii) {
+            return rule;
+        }
+
+        try {
+            StringBuilder result = new StringBuilder();
+            for (String label : rule.split("\\.")) {
+                if (result.length() > 0) {
+                    result.append('.');
+                }
+
+                if (label.equals("*")) {
+                    result.append(label);
+                } else if (label.startsWith("!")) {
+                    result.append('!');
+                    result.append(IDN.toASCII(label.substring(1)));
+                } else {
+                    result.append(IDN.toASCII(label));
+                }
+            }
+
+            return result.toString();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void addRule(String rule) {
+        boolean isException = rule.startsWith("!");
+        if (isException) {
+            rule = rule.substring(1);
+        }
+
+        String[] labels = rule.split("\\.");
+        Node node = _root;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            String label = labels[i];
+            if ((i == 0) && label.equals("*")) {
+                node._isWildcard = true;
+                _numRules += 1;
+                return;
+            }
+
+            node = node.getOrAddChild(label);
+        }
+
+        if (isException) {
+            node._isException = true;
+        } else {
+            node._isRule = true;
+        }
+
+        _numRules += 1;
+    }
+
+    public int getNumRules() {
+        return _numRules;
+    }
+
+    /**
+     * Return the offset of the registrable domain (public suffix plus one label) in
+     * <hostname>, between <start> and <end>. E.g. for "www.xxx.co.uk" this is 4, the
+     * start of "xxx.co.uk".
+     * 
+     * @return offset of registrable domain, or -1 if the hostname is a public suffix
+     *         (e.g. "co.uk"), and so doesn't have one.
+     */
+    public int getRegistrableDomainStart(CharSequence hostname, int start, int end) {
+        Node node = _root;
+        int labelEnd = end;
+        int suffixStart = -1;
+
+        while (labelEnd > start) {
+            // Find the start of the label, and calculate its hash as we go.
+            int labelStart = labelEnd;
+            int hash = 0;
+            while ((labelStart > start) && (hostname.charAt(labelStart - 1) != '.')) {
+                labelStart -= 1;
+                hash = (hash * 31) + toLowerCase(hostname.charAt(labelStart));
+            }
+
+            Node child = node.findChild(hostname, labelStart, labelEnd, hash);
+            if ((child != null) && child._isException) {
+                // An exception rule means the label isn't part of the suffix.
+                suffixStart = labelEnd + 1;
+                break;
+            }
+
+            // Keep going, since the longest matching rule wins.
+            if (node._isWildcard || ((child != null) && child._isRule)) {
+                suffixStart = labelStart;
+            }
+
+            if (child == null) {
+                break;
+            }
+
+            node = child;
+            labelEnd = labelStart - 1;
+        }
+
+        if (suffixStart <= start) {
+            return -1;
+        }
+
+        int result = suffixStart - 1;
+        while ((result > start) && (hostname.charAt(result - 1) != '.')) {
+            result -= 1;
+        }
+
+        return result;
+    }
+
+    public int getRegistrableDomainStart(CharSequence hostname) {
+        return getRegistrableDomainStart(hostname, 0, hostname.length());
+    }
+
+    /**
+     * Hash of the (lower-cased) characters in <s> between <start> and <end>, done
+     * from right to left to match how we scan hostnames.
+     */
+    private static int hashLabel(CharSequence s, int start, int end) {
+        int result = 0;
+        for (int i = end - 1; i >= start; i--) {
+            result = (result * 31) + toLowerCase(s.charAt(i));
+        }
+
+        return result;
+    }
+
+    private static char toLowerCase(char c) {
+        if ((c >= 'A') && (c <= 'Z')) {
+            return (char)(c + ('a' - 'A'));
+        } else if (c >= 0x80) {
+            return Character.toLowerCase(c);
+        } else {
+            return c;
+        }
+    }
+
+    /**
+     * Check whether a (lower-case) label from the list matches the characters in <s>
+     * between <start> and <end>, ignoring the case of <s>.
+     */
+    private static boolean labelEquals(char[] label, CharSequence s, int start, int end) {
+        if (label.length != end - start) {
+            return false;
+        }
+
+        for (int i = 0; i < label.length; i++) {
+            if (label[i] != toLowerCase(s.charAt(start + i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent, partitioned Bloom filter of the URLs we've already seen, so that a
+ * recurring crawl can throw away known outlinks before they get shuffled.
+ * 
+ * URLs are reduced to 64-bit fingerprints, and each fingerprint belongs to one of
+ * <numPartitions> filters. Each loop reads the filters from <inputPath> (typically the
+ * previous loop's directory), and writes out updated filters to <outputPath>. Only the
+ * partitions that got new URLs need to be changed, but every partition has to be written
+ * out (or carried forward) so the next loop sees all of them. If more than one file in a
+ * directory has the same partition, they're combined when they're read back in.
+ * 
+ * Each partition is sized for <expectedUrls> / <numPartitions> URLs. Adding more than that
+ * still works, but the false positive rate (new URLs that we think we've seen) goes up.
+ * 
+ * After open(), partitions are loaded as mightContain() needs them, up to <maxLoadedBytes>
+ * worth of filters (256MB by default). With lots of URLs a task will need every partition,
+ * so this limit is what keeps a big store from running it out of memory.
+ */
+@SuppressWarnings("serial")
+public class SeenUrlsStore implements Serializable {
+    private static final Logger LOGGER = Logger.getLogger(SeenUrlsStore.class);
+    
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+    public static final long DEFAULT_MAX_LOADED_BYTES = 256L * 1024 * 1024;
+    
+    private static final String FILE_PREFIX = "part-";
+    
+    private String _inputPath;
+    private String _outputPath;
+    private int _numPartitions;
+    private long _expectedUrls;
+    private double _falsePositiveRate;
+    private long _maxLoadedBytes = DEFAULT_MAX_LOADED_BYTES;
+    
+    private transient Configuration _conf;
+    private transient Map<Integer, List<FileStatus>> _savedFiles;
+    private transient BloomFilter[] _filters;
+    private transient boolean[] _checked;
+    private transient long _loadedBytes;
+    private transient int _numNotLoaded;
+    
+    /**
+     * @param inputPath directory with previously saved filters, or null if there's nothing to load.
+     * @param outputPath directory to save filters in.
+     * @param numPartitions number of filters. This must stay the same from loop to loop.
+     * @param expectedUrls total number of unique URLs we expect to see.
+     */
+    public SeenUrlsStore(String inputPath, String outputPath, int numPartitions, long expectedUrls) {
+        this(inputPath, outputPath, numPartitions, expectedUrls, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+    
+    public SeenUrlsStore(String inputPath, String outputPath, int numPartitions, long expectedUrls, double falsePositiveRate) {
+        if (numPartitions < 1) {
+            throw new IllegalArgumentException("Number of partitions must be at least 1");
+        }
+        
+        _inputPath = inputPath;
+        _outputPath = outputPath;
+        _numPartitions = numPartitions;
+        _expectedUrls = expectedUrls;
+        _falsePositiveRate = falsePositiveRate;
+    }
+    
+    public String getInputPath() {
+        return _inputPath;
+    }
+    
+    public String getOutputPath() {
+        return _outputPath;
+    }
+    
+    public int getNumPartitions() {
+        return _numPartitions;
+    }
+    
+    /**
+     * Set the max total size of the saved filters that mightContain() will load.
+     * 
+     * @param maxLoadedBytes
+     */
+    public void setMaxLoadedBytes(long maxLoadedBytes) {
+        _maxLoadedBytes = maxLoadedBytes;
+    }
+    
+    public long getMaxLoadedBytes() {
+        return _maxLoadedBytes;
+    }
+    
+    /**
+     * Return a 64-bit fingerprint for <url>. The URL should already be normalized, as
+     * otherwise variants of the same URL won't have the same fingerprint.
+     */
+    public static long fingerprint(String url) {
+        // 64-bit FNV-1a, followed by the MurmurHash3 finalizer so that all of the
+        // bits are well mixed (the Bloom filter uses both halves).
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+    
+    public int getPartition(long fingerprint) {
+        // Use the high bits, since the Bloom filter mostly uses the low bits.
+        return (int)((fingerprint >>> 33) % _numPartitions);
+    }
+    
+    /**
+     * @return a new, empty filter for one partition.
+     */
+    public BloomFilter makeFilter() {
+        return new BloomFilter(Math.max(1, _expectedUrls / _numPartitions), _falsePositiveRate);
+    }
+    
+    /**
+     * Find the saved filters in our input path, for use by mightContain(). Nothing is
+     * loaded yet, other than checking that the filters have the right number of partitions.
+     */
+    public void open(Configuration conf) throws IOException {
+        _conf = conf;
+        _savedFiles = listSavedFiles(conf);
+        _filters = new BloomFilter[_numPartitions];
+        _checked = new boolean[_numPartitions];
+        _loadedBytes = 0;
+        _numNotLoaded = 0;
+        
+        if (!_savedFiles.isEmpty()) {
+            FileStatus status = _savedFiles.values().iterator().next().get(0);
+            FSDataInputStream in = status.getPath().getFileSystem(conf).open(status.getPath());
+            try {
+                checkNumPartitions(status, in.readInt());
+            } finally {
+                in.close();
+            }
+        }
+        
+        LOGGER.info(String.format("Found saved seen URL filters for %d partitions in %s", _savedFiles.size(), _inputPath));
+    }
+    
+    /**
+     * @return true if <fingerprint> was (probably) saved in an earlier loop, and false if
+     *         it definitely wasn't - or if its partition wasn't loaded because that would
+     *         have put us over <maxLoadedBytes>. So a false result still needs to be checked
+     *         against the full filter for the partition, e.g. when the URL gets added to it.
+     */
+    public boolean mightContain(long fingerprint) throws IOException {
+        int partition = getPartition(fingerprint);
+        if (!_checked[partition]) {
+            _checked[partition] = true;
+            _filters[partition] = loadForLookup(partition);
+        }
+        
+        BloomFilter filter = _filters[partition];
+        return (filter != null) && filter.mightContain(fingerprint);
+    }
+    
+    /**
+     * @return number of saved partitions that mightContain() skipped because of the limit
+     *         on how much it loads.
+     */
+    public int getNumNotLoaded() {
+        return _numNotLoaded;
+    }
+    
+    private BloomFilter loadForLookup(int partition) throws IOException {
+        List<FileStatus> files = _savedFiles.get(partition);
+        if (files == null) {
+            return null;
+        }
+        
+        // Files for the same partition get combined, so we only need as much memory as
+        // the biggest one.
+        long size = 0;
+        for (FileStatus status : files) {
+            size = Math.max(size, status.getLen());
+        }
+        
+        if (_loadedBytes + size > _maxLoadedBytes) {
+            if (_numNotLoaded == 0) {
+                LOGGER.warn(String.format("Seen URL filters would take more than %d bytes, not loading all of them", _maxLoadedBytes));
+            }
+            
+            _numNotLoaded += 1;
+            return null;
+        }
+        
+        _loadedBytes += size;
+        return readFilter(_conf, files, partition);
+    }
+    
+    /**
+     * Load the filter for <partition> from our input path, combining all of the saved
+     * files for that partition.
+     * 
+     * @return saved filter, or null if there isn't one.
+     */
+    public BloomFilter loadPartition(Configuration conf, int partition) throws IOException {
+        return readFilter(conf, listSavedFiles(conf).get(partition), partition);
+    }
+    
+    /**
+     * Find all of the saved filter files in our input path, keyed by the partition in
+     * their names.
+     */
+    private Map<Integer, List<FileStatus>> listSavedFiles(Configuration conf) throws IOException {
+        Map<Integer, List<FileStatus>> result = new HashMap<Integer, List<FileStatus>>();
+        if (_inputPath == null) {
+            return result;
+        }
+        
+        Path inputDir = new Path(_inputPath);
+        FileSystem fs = inputDir.getFileSystem(conf);
+        if (!fs.exists(inputDir)) {
+            LOGGER.info("No saved seen URL filters at " + inputDir);
+            return result;
+        }
+        
+        for (FileStatus status : fs.listStatus(inputDir)) {
+            int partition = getFilePartition(status.getPath().getName());
+            if (status.isDir() || (partition == -1)) {
+                continue;
+            }
+            
+            List<FileStatus> files = result.get(partition);
+            if (files == null) {
+                files = new ArrayList<FileStatus>();
+                result.put(partition, files);
+            }
+            
+            files.add(status);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Read and combine the filters in <files>, which are all for <partition>.
+     * 
+     * @return combined filter, or null if <files> is null.
+     */
+    private BloomFilter readFilter(Configuration conf, List<FileStatus> files, int partition) throws IOException {
+        if (files == null) {
+            return null;
+        }
+        
+        BloomFilter result = null;
+        for (FileStatus status : files) {
+            FSDataInputStream in = status.getPath().getFileSystem(conf).open(status.getPath());
+            try {
+                checkNumPartitions(status, in.readInt());
+                if (in.readInt() != partition) {
+                    throw new IOException(String.format("Seen URL filter %s isn't for partition %d", status.getPath(), partition));
+                }
+                
+                BloomFilter filter = new BloomFilter();
+                filter.readFields(in);
+                if (result == null) {
+                    result = filter;
+                } else {
+                    result.union(filter);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        
+        return result;
+    }
+    
+    private void checkNumPartitions(FileStatus status, int numPartitions) throws IOException {
+        if (numPartitions != _numPartitions) {
+            throw new IOException(String.format("Seen URL filter %s has %d partitions, expected %d", status.getPath(), numPartitions, _numPartitions));
+        }
+    }
+    
+    /**
+     * Save <filter> as the filter for <partition> in our output path.
+     * 
+     * @param suffix added to the filename, so that different tasks can save the same partition.
+     */
+    public void savePartition(Configuration conf, int partition, BloomFilter filter, String suffix) throws IOException {
+        Path outputFile = new Path(_outputPath, makeFilename(partition) + suffix);
+        FileSystem fs = outputFile.getFileSystem(conf);
+        FSDataOutputStream out = fs.create(outputFile, true);
+        try {
+            out.writeInt(_numPartitions);
+            out.writeInt(partition);
+            filter.write(out);
+        } finally {
+            out.close();
+        }
+        
+        if (filter.getNumEntries() > _expectedUrls / _numPartitions) {
+            LOGGER.warn(String.format("Seen URL filter for partition %d has %d entries, more than it was sized for", partition, filter.getNumEntries()));
+        }
+    }
+    
+    /**
+     * Copy the saved filters from our input path to our output path, for all of the
+     * partitions that this task is responsible for (based on the task's partition) that
+     * it didn't update.
+     */
+    public void carryForward(Configuration conf, Set<Integer> updatedPartitions) throws IOException {
+        int taskPartition = conf.getInt("mapred.task.partition", 0);
+        int numTasks = Math.max(1, conf.getInt("mapred.reduce.tasks", 1));
+        
+        Map<Integer, List<FileStatus>> savedFiles = listSavedFiles(conf);
+        int numCarried = 0;
+        for (int partition = taskPartition; partition < _numPartitions; partition += numTasks) {
+            if (updatedPartitions.contains(partition)) {
+                continue;
+            }
+            
+            BloomFilter filter = readFilter(conf, savedFiles.get(partition), partition);
+            if (filter != null) {
+                savePartition(conf, partition, filter, "-" + taskPartition);
+                numCarried += 1;
+            }
+        }
+        
+        LOGGER.info(String.format("Carried forward %d seen URL filters to %s", numCarried, _outputPath));
+    }
+    
+    private static String makeFilename(int partition) {
+        return String.format("%s%05d", FILE_PREFIX, partition);
+    }
+    
+    /**
+     * @return partition from a filename made by makeFilename() (plus an optional suffix
+     *         that starts with '-'), or -1 if it's not one of our files.
+     */
+    private static int getFilePartition(String filename) {
+        if (!filename.startsWith(FILE_PREFIX)) {
+            return -1;
+        }
+        
+        int end = filename.indexOf('-', FILE_PREFIX.length());
+        try {
+            return Integer.parseInt(filename.substring(FILE_PREFIX.length(), end == -1 ? filename.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
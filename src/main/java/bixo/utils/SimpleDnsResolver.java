@@ -0,0 +1,32 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolve host names using the JVM's standard (blocking) name lookup.
+ */
+@SuppressWarnings("serial")
+public class SimpleDnsResolver extends BaseDnsResolver {
+
+    @Override
+    public InetAddress[] resolve(String hostname) throws UnknownHostException {
+        return InetAddress.getAllByName(hostname);
+    }
+}
@@ -16,20 +16,38 @@
  */
 package bixo.utils;
 
+import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
 
 /**
  * A wrapper for ThreadPoolExecutor that implements a specific behavior we need in Bixo.
  * When execute() is called, it succeeds unless all of the threads are busy and the
  * specified timeout is exceeded (no threads finish up in that amount of time).
+ * 
+ * If virtual threads are requested (and the JVM supports them), each task gets its
+ * own new virtual thread, versus pooling them, and a semaphore with <maxThreads> permits
+ * limits how many run at once. So <maxThreads> becomes a concurrency limit that can be
+ * set far higher than what's reasonable with platform threads. Otherwise we fall back
+ * to a pool of regular platform threads, with identical behavior.
  *
  */
 public class ThreadedExecutor {
+    private static final Logger LOGGER = Logger.getLogger(ThreadedExecutor.class);
     
     public static final long MAX_POLL_TIME = 1000L;
     
@@ -60,11 +78,44 @@ public class ThreadedExecutor {
 
 
     private long _requestTimeout;
+    private boolean _virtualThreads;
+    
+    // Set when we're using a pool of threads.
     private ThreadPoolExecutor _pool;
     
+    // Set when we start a new thread for each task, versus using _pool.
+    private int _maxThreads;
+    private ThreadFactory _taskThreadFactory;
+    private Semaphore _permits;
+    private Set<Thread> _taskThreads;
+    private volatile boolean _shutdown;
+    
+    // Number of tasks that have been accepted but haven't finished, which gets
+    // signaled via _tasksDone when it drops to zero.
+    private final ReentrantLock _taskLock = new ReentrantLock();
+    private final Condition _tasksDone = _taskLock.newCondition();
+    private int _numTasks = 0;
+    
     public ThreadedExecutor(int maxThreads, long requestTimeout) {
+        this(maxThreads, requestTimeout, false);
+    }
+    
+    public ThreadedExecutor(int maxThreads, long requestTimeout, boolean useVirtualThreads) {
         _requestTimeout = requestTimeout;
         
+        if (useVirtualThreads) {
+            ThreadFactory threadFactory = makeVirtualThreadFactory();
+            if (threadFactory != null) {
+                initTaskThreads(maxThreads, threadFactory);
+                _virtualThreads = true;
+                return;
+            }
+            
+            LOGGER.warn("Virtual threads aren't supported by this JVM, using platform threads");
+        }
+        
+        _virtualThreads = false;
+        
         // With the "always offer with a timeout" queue, the maximumPoolSize should always
         // be set to the same as the corePoolSize, as otherwise things get very inefficient
         // since each execute() call will will delay by <timeout> even if we could add more
@@ -74,17 +125,186 @@ public class ThreadedExecutor {
         // between when a task is accepted by this executor, and when a thread starts working
         // on it.
         BlockingQueue<Runnable> queue = new MyBlockingQueue<Runnable>();
-        _pool = new ThreadPoolExecutor(maxThreads, maxThreads, MAX_POLL_TIME, TimeUnit.MILLISECONDS, queue);
+        _pool = new ThreadPoolExecutor(maxThreads, maxThreads, MAX_POLL_TIME, TimeUnit.MILLISECONDS, queue, Executors.defaultThreadFactory());
     }
     
     /**
-     * Execute <command> using the thread pool.
+     * Create an executor that starts a new thread from <taskThreadFactory> for each task,
+     * the same as we do with virtual threads. This lets us test that mode on JVMs that
+     * don't have virtual threads.
+     */
+    ThreadedExecutor(int maxThreads, long requestTimeout, ThreadFactory taskThreadFactory) {
+        _requestTimeout = requestTimeout;
+        _virtualThreads = false;
+        initTaskThreads(maxThreads, taskThreadFactory);
+    }
+    
+    private void initTaskThreads(int maxThreads, ThreadFactory taskThreadFactory) {
+        // Virtual threads are cheap to create, and aren't meant to be pooled, so there's
+        // no pool here. Instead each running task holds one of <maxThreads> permits.
+        _maxThreads = maxThreads;
+        _taskThreadFactory = taskThreadFactory;
+        _permits = new Semaphore(maxThreads, true);
+        _taskThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        _shutdown = false;
+        _pool = null;
+    }
+    
+    /**
+     * Return a ThreadFactory that creates virtual threads, or null if the JVM
+     * doesn't have them. We have to use reflection here, since we still build
+     * for (and run on) JVMs that predate Thread.ofVirtual().
+     * 
+     * @return factory for virtual threads, or null.
+     */
+    private static ThreadFactory makeVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "bixo-virtual-", 0L);
+            Method factoryMethod = builderClass.getMethod("factory");
+            return (ThreadFactory)factoryMethod.invoke(builder);
+        } catch (Exception e) {
+            // No virtual thread support (or it's a preview feature that's not enabled).
+            return null;
+        }
+    }
+    
+    /**
+     * @return true if workers are running on virtual threads.
+     */
+    public boolean isUsingVirtualThreads() {
+        return _virtualThreads;
+    }
+    
+    /**
+     * Execute <command> using the thread pool, or a new thread if we're not pooling.
      * 
      * @param command
      * @throws RejectedExecutionException
      */
     public void execute(Runnable command) throws RejectedExecutionException {
-        _pool.execute(command);
+        if (_pool != null) {
+            taskAccepted();
+            
+            try {
+                _pool.execute(new TaskRunner(command));
+            } catch (RejectedExecutionException e) {
+                taskFinished();
+                throw e;
+            }
+            
+            return;
+        }
+        
+        // Same as the pool, we wait up to <requestTimeout> for a running task to finish.
+        boolean gotPermit;
+        try {
+            gotPermit = !_shutdown && _permits.tryAcquire(_requestTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            gotPermit = false;
+        }
+        
+        if (gotPermit && _shutdown) {
+            _permits.release();
+            gotPermit = false;
+        }
+        
+        if (!gotPermit) {
+            throw new RejectedExecutionException("No thread available for " + command);
+        }
+        
+        taskAccepted();
+        
+        try {
+            Thread taskThread = _taskThreadFactory.newThread(new TaskRunner(command));
+            _taskThreads.add(taskThread);
+            taskThread.start();
+        } catch (RuntimeException e) {
+            _permits.release();
+            taskFinished();
+            throw new RejectedExecutionException("Can't start thread for " + command, e);
+        } catch (Error e) {
+            // E.g. OutOfMemoryError if we can't create the thread.
+            _permits.release();
+            taskFinished();
+            throw new RejectedExecutionException("Can't start thread for " + command, e);
+        }
+    }
+    
+    /**
+     * Runs one task, and then gives back the task's permit (if we're not pooling
+     * threads) and lets anyone waiting in awaitIdle() know that it's done.
+     */
+    private class TaskRunner implements Runnable {
+        private Runnable _command;
+        
+        public TaskRunner(Runnable command) {
+            _command = command;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                _command.run();
+            } finally {
+                if (_pool == null) {
+                    _taskThreads.remove(Thread.currentThread());
+                    _permits.release();
+                }
+                
+                taskFinished();
+            }
+        }
+    }
+    
+    private void taskAccepted() {
+        _taskLock.lock();
+        try {
+            _numTasks += 1;
+        } finally {
+            _taskLock.unlock();
+        }
+    }
+    
+    private void taskFinished() {
+        _taskLock.lock();
+        try {
+            _numTasks -= 1;
+            if (_numTasks == 0) {
+                _tasksDone.signalAll();
+            }
+        } finally {
+            _taskLock.unlock();
+        }
+    }
+    
+    /**
+     * Wait up to <timeout> milliseconds for every task that's been executed to finish.
+     * Unlike terminate(), the executor can still be used afterwards.
+     * 
+     * @param timeout
+     * @return true if no tasks are running, false if we timed out.
+     * @throws InterruptedException
+     */
+    public boolean awaitIdle(long timeout) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        
+        _taskLock.lock();
+        try {
+            while (_numTasks > 0) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                
+                nanos = _tasksDone.awaitNanos(nanos);
+            }
+            
+            return true;
+        } finally {
+            _taskLock.unlock();
+        }
     }
     
     
@@ -94,7 +314,11 @@ public class ThreadedExecutor {
      * @return count of active threads
      */
     public int getActiveCount() {
-        return _pool.getActiveCount();
+        if (_pool != null) {
+            return _pool.getActiveCount();
+        } else {
+            return _maxThreads - _permits.availablePermits();
+        }
     }
     
     /**
@@ -104,6 +328,9 @@ public class ThreadedExecutor {
      * @throws InterruptedException 
      */
     public boolean terminate(long terminationTimeout) throws InterruptedException {
+        if (_pool == null) {
+            return terminateTaskThreads(terminationTimeout);
+        }
         
         // First just wait for threads to terminate naturally.
         _pool.shutdown();
@@ -122,4 +349,21 @@ public class ThreadedExecutor {
         
         return false;
     }
+    
+    private boolean terminateTaskThreads(long terminationTimeout) throws InterruptedException {
+        _shutdown = true;
+        
+        // Once we have every permit, every task has finished.
+        if (_permits.tryAcquire(_maxThreads, terminationTimeout, TimeUnit.MILLISECONDS)) {
+            _permits.release(_maxThreads);
+            return true;
+        }
+        
+        // We need to do a hard shutdown, which (like shutdownNow) interrupts running tasks.
+        for (Thread taskThread : _taskThreads) {
+            taskThread.interrupt();
+        }
+        
+        return false;
+    }
 }
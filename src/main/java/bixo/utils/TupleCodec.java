@@ -0,0 +1,212 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+import cascading.tuple.Tuple;
+
+/**
+ * Compact binary encoding of a (possibly nested) Tuple, for use when spilling
+ * datums to disk.
+ *
+ * Each value is written as a one byte type tag followed by the value. Numbers
+ * use Hadoop's variable-length encoding. Within one call to write(), strings are
+ * written once and then referred to by index, and each new string only stores
+ * the suffix that differs from the previous new string. So a list of URLs from
+ * the same host, which all share the same group key, status, etc. takes up far
+ * less space than with Java serialization. Anything we don't know about gets
+ * Java-serialized, so every Serializable value still round-trips.
+ */
+public class TupleCodec {
+
+    private static final int NULL_TAG = 0;
+    private static final int STRING_TAG = 1;
+    private static final int STRING_REF_TAG = 2;
+    private static final int INT_TAG = 3;
+    private static final int LONG_TAG = 4;
+    private static final int DOUBLE_TAG = 5;
+    private static final int FLOAT_TAG = 6;
+    private static final int TRUE_TAG = 7;
+    private static final int FALSE_TAG = 8;
+    private static final int TUPLE_TAG = 9;
+    private static final int SERIALIZED_TAG = 10;
+
+    private Map<String, Integer> _stringIds = new HashMap<String, Integer>();
+    private List<String> _strings = new ArrayList<String>();
+    private String _lastString = "";
+
+    private TupleCodec() {
+        // Only created internally, to hold the string table for one tuple.
+    }
+
+    public static void write(Tuple tuple, DataOutput out) throws IOException {
+        new TupleCodec().writeTuple(tuple, out);
+    }
+
+    public static Tuple read(DataInput in) throws IOException {
+        return new TupleCodec().readTuple(in);
+    }
+
+    private void writeTuple(Tuple tuple, DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, tuple.size());
+        for (int i = 0; i < tuple.size(); i++) {
+            writeValue(tuple.getObject(i), out);
+        }
+    }
+
+    private Tuple readTuple(DataInput in) throws IOException {
+        int size = WritableUtils.readVInt(in);
+        Tuple result = new Tuple();
+        for (int i = 0; i < size; i++) {
+            result.add(readValue(in));
+        }
+
+        return result;
+    }
+
+    private void writeValue(Object value, DataOutput out) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL_TAG);
+        } else if (value instanceof String) {
+            writeString((String)value, out);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT_TAG);
+            WritableUtils.writeVInt(out, (Integer)value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG_TAG);
+            WritableUtils.writeVLong(out, (Long)value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE_TAG);
+            out.writeDouble((Double)value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT_TAG);
+            out.writeFloat((Float)value);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean)value ? TRUE_TAG : FALSE_TAG);
+        } else if (value instanceof Tuple) {
+            out.writeByte(TUPLE_TAG);
+            writeTuple((Tuple)value, out);
+        } else {
+            out.writeByte(SERIALIZED_TAG);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(value);
+            oos.close();
+
+            WritableUtils.writeVInt(out, bytes.size());
+            out.write(bytes.toByteArray());
+        }
+    }
+
+    private Object readValue(DataInput in) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case NULL_TAG:
+                return null;
+
+            case STRING_TAG:
+                int prefixLength = WritableUtils.readVInt(in);
+                String value = _lastString.substring(0, prefixLength) + Text.readString(in);
+                addString(value);
+                return value;
+
+            case STRING_REF_TAG:
+                return _strings.get(WritableUtils.readVInt(in));
+
+            case INT_TAG:
+                return WritableUtils.readVInt(in);
+
+            case LONG_TAG:
+                return WritableUtils.readVLong(in);
+
+            case DOUBLE_TAG:
+                return in.readDouble();
+
+            case FLOAT_TAG:
+                return in.readFloat();
+
+            case TRUE_TAG:
+                return Boolean.TRUE;
+
+            case FALSE_TAG:
+                return Boolean.FALSE;
+
+            case TUPLE_TAG:
+                return readTuple(in);
+
+            case SERIALIZED_TAG:
+                byte[] bytes = new byte[WritableUtils.readVInt(in)];
+                in.readFully(bytes);
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                try {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Can't find class for serialized tuple value: " + e.getMessage());
+                } finally {
+                    ois.close();
+                }
+
+            default:
+                throw new IOException("Invalid type tag in encoded tuple: " + tag);
+        }
+    }
+
+    private void writeString(String value, DataOutput out) throws IOException {
+        Integer id = _stringIds.get(value);
+        if (id != null) {
+            out.writeByte(STRING_REF_TAG);
+            WritableUtils.writeVInt(out, id);
+            return;
+        }
+
+        int prefixLength = 0;
+        int maxPrefixLength = Math.min(value.length(), _lastString.length());
+        while ((prefixLength < maxPrefixLength) && (value.charAt(prefixLength) == _lastString.charAt(prefixLength))) {
+            prefixLength += 1;
+        }
+        
+        // Don't split a surrogate pair between the prefix and the suffix.
+        if ((prefixLength > 0) && Character.isHighSurrogate(value.charAt(prefixLength - 1))) {
+            prefixLength -= 1;
+        }
+
+        out.writeByte(STRING_TAG);
+        WritableUtils.writeVInt(out, prefixLength);
+        Text.writeString(out, value.substring(prefixLength));
+        addString(value);
+    }
+
+    private void addString(String value) {
+        _stringIds.put(value, _strings.size());
+        _strings.add(value);
+        _lastString = value;
+    }
+}
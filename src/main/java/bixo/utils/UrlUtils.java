@@ -22,6 +22,8 @@ import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
+import bixo.urls.ParsedUrl;
+
 public class UrlUtils {
     private static final Logger LOGGER = Logger.getLogger(UrlUtils.class);
 
@@ -61,6 +63,13 @@ public class UrlUtils {
     }
     
     public static String makeProtocolAndDomain(String urlAsString) throws MalformedURLException {
+        // For the common case, we don't need to create a URL. Otherwise let the URL class
+        // decide what's valid, and what the host is.
+        ParsedUrl parsedUrl = ParsedUrl.parse(urlAsString);
+        if ((parsedUrl != null) && parsedUrl.isSimpleHttp()) {
+            return parsedUrl.getProtocolAndDomain();
+        }
+        
         URL url = new URL(urlAsString);
         StringBuilder result = new StringBuilder(url.getProtocol());
         result.append("://");
@@ -79,4 +88,12 @@ public class UrlUtils {
         
         return result.toString();
     }
+    
+    public static String makeProtocolAndDomain(ParsedUrl parsedUrl) throws MalformedURLException {
+        if (parsedUrl.isSimpleHttp()) {
+            return parsedUrl.getProtocolAndDomain();
+        } else {
+            return makeProtocolAndDomain(parsedUrl.getUrl());
+        }
+    }
 }
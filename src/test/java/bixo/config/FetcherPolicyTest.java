@@ -53,4 +53,23 @@ public class FetcherPolicyTest {
         }
     }
     
+    @Test
+    public void testPerHostMaxConnections() {
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMaxConnectionsPerHost(3);
+        policy.setMaxConnectionsPerHost("www.Partner.com", 20);
+        
+        Assert.assertEquals(3, policy.getMaxConnectionsPerHost());
+        Assert.assertEquals(3, policy.getMaxConnectionsPerHost("www.domain.com"));
+        Assert.assertEquals(20, policy.getMaxConnectionsPerHost("www.partner.com"));
+        Assert.assertEquals(20, policy.getMaxConnectionsPerHost("WWW.PARTNER.COM"));
+        
+        FetcherPolicy policy2 = new FetcherPolicy();
+        policy2.setMaxConnectionsPerHost(3);
+        Assert.assertFalse(policy.equals(policy2));
+        policy2.setMaxConnectionsPerHost("www.partner.com", 20);
+        Assert.assertEquals(policy, policy2);
+        Assert.assertEquals(policy.hashCode(), policy2.hashCode());
+    }
+    
 }
@@ -2,6 +2,9 @@ package bixo.exceptions;
 
 import static org.junit.Assert.*;
 
+import java.util.Date;
+
+import org.apache.http.impl.cookie.DateUtils;
 import org.junit.Test;
 
 import bixo.datum.HttpHeaders;
@@ -21,5 +24,50 @@ public class HttpFetchExceptionTest {
         HttpFetchException e = new HttpFetchException("url", "msg", 300, httpHeaders);
         assertEquals("HttpFetchException: msg (300) Headers: key=value [url]", e.toString());
     }
+    
+    @Test
+    public void testRetryLater() {
+        assertTrue(new HttpFetchException("url", "msg", 429, new HttpHeaders()).isRetryLater());
+        assertTrue(new HttpFetchException("url", "msg", 503, new HttpHeaders()).isRetryLater());
+        assertFalse(new HttpFetchException("url", "msg", 500, new HttpHeaders()).isRetryLater());
+        assertFalse(new HttpFetchException("url", "msg", 404, new HttpHeaders()).isRetryLater());
+    }
+    
+    @Test
+    public void testRetryAfterSeconds() {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.add("Retry-After", " 120 ");
+        HttpFetchException e = new HttpFetchException("url", "msg", 503, httpHeaders);
+        assertEquals(120 * 1000L, e.getRetryAfter(System.currentTimeMillis()));
+    }
+    
+    @Test
+    public void testRetryAfterDate() {
+        long now = System.currentTimeMillis();
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.add("Retry-After", DateUtils.formatDate(new Date(now + 60 * 1000L)));
+        HttpFetchException e = new HttpFetchException("url", "msg", 429, httpHeaders);
+        
+        // HTTP dates only have one second resolution.
+        long retryAfter = e.getRetryAfter(now);
+        assertTrue(retryAfter > 58 * 1000L);
+        assertTrue(retryAfter <= 60 * 1000L);
+        
+        // A date in the past means we can retry right away.
+        assertEquals(0, e.getRetryAfter(now + 120 * 1000L));
+    }
+    
+    @Test
+    public void testInvalidRetryAfter() {
+        assertEquals(HttpFetchException.NO_RETRY_AFTER, new HttpFetchException("url", "msg", 503, new HttpHeaders()).getRetryAfter(0));
+
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.add("Retry-After", "soon");
+        assertEquals(HttpFetchException.NO_RETRY_AFTER, new HttpFetchException("url", "msg", 503, httpHeaders).getRetryAfter(0));
+        
+        httpHeaders = new HttpHeaders();
+        httpHeaders.add("Retry-After", "-5");
+        assertEquals(HttpFetchException.NO_RETRY_AFTER, new HttpFetchException("url", "msg", 503, httpHeaders).getRetryAfter(0));
+    }
 
 }
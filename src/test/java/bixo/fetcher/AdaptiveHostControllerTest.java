@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpStatus;
+import org.junit.Test;
+
+import bixo.config.BaseFetchJobPolicy;
+import bixo.datum.HttpHeaders;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.HttpFetchException;
+import bixo.utils.GroupingKey;
+
+public class AdaptiveHostControllerTest {
+
+    private static final String UNSET_REF = GroupingKey.makeGroupingKey("1.2.3.4", BaseFetchJobPolicy.UNSET_CRAWL_DELAY);
+    private static final String ROBOTS_REF = GroupingKey.makeGroupingKey("1.2.3.5", 5000);
+    
+    @Test
+    public void testAdditiveIncrease() throws Exception {
+        AdaptiveHostController controller = new AdaptiveHostController(4);
+        assertEquals(1, controller.getMaxActive(UNSET_REF));
+        
+        // One good response with one active raises it to two, then two more
+        // to get to three, etc.
+        assertFalse(controller.fetched(UNSET_REF, 100, 10000));
+        assertEquals(2, controller.getMaxActive(UNSET_REF));
+        controller.fetched(UNSET_REF, 100, 10000);
+        assertEquals(2, controller.getMaxActive(UNSET_REF));
+        controller.fetched(UNSET_REF, 100, 10000);
+        assertEquals(3, controller.getMaxActive(UNSET_REF));
+        
+        for (int i = 0; i < 100; i++) {
+            controller.fetched(UNSET_REF, 100, 10000);
+        }
+        
+        assertEquals(4, controller.getMaxActive(UNSET_REF));
+        
+        // Delay should have come down to the min.
+        assertEquals((long)(10000 * AdaptiveHostController.MIN_DELAY_FACTOR), controller.getFetchDelay(UNSET_REF, 10000, 10));
+    }
+    
+    @Test
+    public void testMultiplicativeDecrease() throws Exception {
+        AdaptiveHostController controller = new AdaptiveHostController(8);
+        for (int i = 0; i < 100; i++) {
+            controller.fetched(UNSET_REF, 100, 10000);
+        }
+        
+        assertEquals(8, controller.getMaxActive(UNSET_REF));
+        
+        assertTrue(controller.failed(UNSET_REF, new HttpFetchException("http://domain.com", "", HttpStatus.SC_SERVICE_UNAVAILABLE, new HttpHeaders())));
+        assertEquals(4, controller.getMaxActive(UNSET_REF));
+        
+        assertTrue(controller.failed(UNSET_REF, new HttpFetchException("http://domain.com", "", 429, new HttpHeaders())));
+        assertEquals(2, controller.getMaxActive(UNSET_REF));
+        
+        assertTrue(controller.failed(UNSET_REF, new AbortedFetchException("http://domain.com", AbortedFetchReason.SLOW_RESPONSE_RATE)));
+        assertEquals(1, controller.getMaxActive(UNSET_REF));
+        
+        // Errors that don't mean the server is overloaded are ignored
+        assertFalse(controller.failed(UNSET_REF, new HttpFetchException("http://domain.com", "", HttpStatus.SC_NOT_FOUND, new HttpHeaders())));
+        
+        // Delay factor can't grow without bound.
+        for (int i = 0; i < 100; i++) {
+            controller.failed(UNSET_REF, new HttpFetchException("http://domain.com", "", HttpStatus.SC_SERVICE_UNAVAILABLE, new HttpHeaders()));
+        }
+        
+        assertEquals(1, controller.getMaxActive(UNSET_REF));
+        assertEquals((long)(1000 * AdaptiveHostController.MAX_DELAY_FACTOR), controller.getFetchDelay(UNSET_REF, 1000, 1));
+    }
+    
+    @Test
+    public void testSlowerResponses() throws Exception {
+        AdaptiveHostController controller = new AdaptiveHostController(8);
+        for (int i = 0; i < 20; i++) {
+            assertFalse(controller.fetched(UNSET_REF, 100, 10000));
+        }
+        
+        int maxActive = controller.getMaxActive(UNSET_REF);
+        
+        // Response time going way up should trigger a backoff.
+        boolean throttled = false;
+        for (int i = 0; (i < 20) && !throttled; i++) {
+            throttled = controller.fetched(UNSET_REF, 5000, 10000);
+        }
+        
+        assertTrue(throttled);
+        assertEquals(maxActive / 2, controller.getMaxActive(UNSET_REF));
+    }
+    
+    @Test
+    public void testRobotsCrawlDelayIsFloor() throws Exception {
+        AdaptiveHostController controller = new AdaptiveHostController(8);
+        for (int i = 0; i < 100; i++) {
+            controller.fetched(ROBOTS_REF, 100, 10000);
+        }
+        
+        assertEquals(1, controller.getMaxActive(ROBOTS_REF));
+        
+        // Base delay from the policy is below crawl delay * # of URLs, which wins.
+        assertEquals(5000 * 10, controller.getFetchDelay(ROBOTS_REF, 1000, 10));
+    }
+    
+    @Test
+    public void testNonGroupingKeyRef() throws Exception {
+        AdaptiveHostController controller = new AdaptiveHostController(2);
+        controller.fetched("some-ref", 100, 10000);
+        assertEquals(2, controller.getMaxActive("some-ref"));
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpStatus;
+import org.junit.Test;
+import org.mortbay.jetty.HttpException;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.RedirectMode;
+import bixo.datum.FetchedDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.IOFetchException;
+import bixo.exceptions.RedirectFetchException;
+import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
+import bixo.fetcher.simulation.SimulationWebServer;
+import bixo.utils.ConfigUtils;
+
+public class AsyncHttpFetcherTest extends SimulationWebServer {
+
+    private class MimeTypeResponseHandler extends AbstractHandler {
+
+        private String _mimeType;
+
+        public MimeTypeResponseHandler(String mimeType) {
+            _mimeType = mimeType;
+        }
+
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            String content = "test";
+            response.setStatus(HttpStatus.SC_OK);
+            if (_mimeType != null) {
+                response.setContentType(_mimeType);
+            }
+
+            response.setContentLength(content.length());
+            response.getOutputStream().write(content.getBytes());
+        }
+    }
+
+    /**
+     * Redirect /hop-N to /hop-N+1, after a delay, until /hop-<numHops> returns a page.
+     */
+    private class SlowRedirectResponseHandler extends AbstractHandler {
+
+        private int _numHops;
+        private long _delay;
+
+        public SlowRedirectResponseHandler(int numHops, long delay) {
+            _numHops = numHops;
+            _delay = delay;
+        }
+
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            try {
+                Thread.sleep(_delay);
+            } catch (InterruptedException e) {
+                throw new HttpException(500, "Response handler interrupted");
+            }
+
+            int hop = Integer.parseInt(pathInContext.substring("/hop-".length()));
+            if (hop < _numHops) {
+                response.sendRedirect("/hop-" + (hop + 1));
+            } else {
+                String content = "test";
+                response.setStatus(HttpStatus.SC_OK);
+                response.setContentType("text/html");
+                response.setContentLength(content.length());
+                response.getOutputStream().write(content.getBytes());
+            }
+        }
+    }
+
+    private class ConditionalResponseHandler extends AbstractHandler {
+
+        private static final String ETAG = "\"v1\"";
+
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            if (ETAG.equals(request.getHeader(HttpHeaderNames.IF_NONE_MATCH))) {
+                response.setStatus(HttpStatus.SC_NOT_MODIFIED);
+                response.setHeader(HttpHeaderNames.ETAG, ETAG);
+                ((Request)request).setHandled(true);
+                return;
+            }
+
+            String content = "test";
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/html");
+            response.setHeader(HttpHeaderNames.ETAG, ETAG);
+            response.setContentLength(content.length());
+            response.getOutputStream().write(content.getBytes());
+        }
+    }
+
+    @Test
+    public final void testConnectionRefused() throws Exception {
+        BaseFetcher fetcher = new AsyncHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8088/simple-page.html";
+
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Exception not thrown");
+        } catch (IOFetchException e) {
+            assertTrue(e.getCause() instanceof ConnectException);
+        }
+    }
+
+    @Test
+    public final void testSimpleFetch() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new AsyncHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/simple-page.html";
+
+        try {
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+            assertEquals(url, result.getFetchedUrl());
+            assertEquals("text/html", result.getContentType());
+            assertEquals("127.0.0.1", result.getHostAddress());
+            assertTrue(result.getContentLength() > 0);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testHttpError() throws Exception {
+        Server server = startServer(new FixedStatusResponseHandler(HttpStatus.SC_SERVICE_UNAVAILABLE), 8089);
+        BaseFetcher fetcher = new AsyncHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/simple-page.html";
+
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Exception not thrown");
+        } catch (HttpFetchException e) {
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getHttpStatus());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testSlowServerTermination() throws Exception {
+        // 60K bytes over 6 seconds is 10K bytes/sec, which is below our min rate. We need
+        // more than one buffer's worth of data after the first one, since the rate is
+        // measured from when the body starts arriving.
+        Server server = startServer(new RandomResponseHandler(60000, 6 * 1000L), 8089);
+
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMinResponseRate(20000);
+        BaseFetcher fetcher = new AsyncHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        String url = "http://localhost:8089/test.html";
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Aborted fetch exception not thrown");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.SLOW_RESPONSE_RATE, e.getAbortReason());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testLargeContent() throws Exception {
+        FetcherPolicy policy = new FetcherPolicy();
+        Server server = startServer(new RandomResponseHandler(policy.getMaxContentSize() * 2), 8089);
+        BaseFetcher fetcher = new AsyncHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/test.html";
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+        server.stop();
+
+        assertTrue("Content size should be truncated", result.getContentLength() <= policy.getMaxContentSize());
+    }
+
+    @Test
+    public final void testTruncatedImage() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new AsyncHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setMaxContentSize("image/png", 1500);
+
+        try {
+            fetcher.get(new ScoredUrlDatum("http://localhost:8089/bixolabs_mining.png"));
+            fail("Aborted fetch exception not thrown");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.CONTENT_SIZE, e.getAbortReason());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testRedirectHandling() throws Exception {
+        Server server = startServer(new RedirectResponseHandler("/base", "http://localhost:8089/redirect"), 8089);
+        BaseFetcher fetcher = new AsyncHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/base";
+        ScoredUrlDatum scoredUrl = new ScoredUrlDatum(url);
+        scoredUrl.setPayloadValue("payload-field-1", 1);
+        FetchedDatum result = fetcher.get(scoredUrl);
+        server.stop();
+
+        assertEquals("Redirected URL", "http://localhost:8089/redirect", result.getFetchedUrl());
+        assertNull(result.getNewBaseUrl());
+        assertEquals(1, result.getNumRedirects());
+        assertEquals(1, result.getPayloadValue("payload-field-1"));
+        assertEquals("redirected content", new String(result.getContentBytes(), 0, result.getContentLength()));
+    }
+
+    @Test
+    public final void testRedirectPolicy() throws Exception {
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setRedirectMode(RedirectMode.FOLLOW_NONE);
+        Server server = startServer(new RedirectResponseHandler("/base", "http://localhost:8089/redirect"), 8089);
+        BaseFetcher fetcher = new AsyncHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        try {
+            fetcher.get(new ScoredUrlDatum("http://localhost:8089/base"));
+            fail("Exception should have been thrown");
+        } catch (RedirectFetchException e) {
+            assertEquals("Redirected URL", "http://localhost:8089/redirect", e.getRedirectedUrl());
+            assertEquals(RedirectExceptionReason.TEMP_REDIRECT_DISALLOWED, e.getReason());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testMimeTypeFiltering() throws Exception {
+        FetcherPolicy policy = new FetcherPolicy();
+        Set<String> validMimeTypes = new HashSet<String>();
+        validMimeTypes.add("text/html");
+        policy.setValidMimeTypes(validMimeTypes);
+
+        Server server = startServer(new MimeTypeResponseHandler("text/xml"), 8089);
+        BaseFetcher fetcher = new AsyncHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        try {
+            fetcher.get(new ScoredUrlDatum("http://localhost:8089/"));
+            fail("Fetch should have failed");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.INVALID_MIMETYPE, e.getAbortReason());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testManyParallelFetches() throws Exception {
+        final int numThreads = 50;
+        Server server = startServer(new RandomResponseHandler(1000, 500L), 8089);
+        final BaseFetcher fetcher = new AsyncHttpFetcher(numThreads, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            final String url = "http://localhost:8089/page-" + i + ".html";
+            Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+                        if (result.getContentLength() != 1000) {
+                            errors.add(new Exception("Wrong length for " + url));
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            });
+
+            t.start();
+            threads.add(t);
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        server.stop();
+        assertEquals("Errors: " + errors, 0, errors.size());
+    }
+
+    @Test
+    public final void testCallbackFetches() throws Exception {
+        // Many more requests in flight than we have threads, all started from this thread.
+        final int numRequests = 50;
+        Server server = startServer(new RandomResponseHandler(1000, 500L), 8089);
+        AsyncHttpFetcher fetcher = new AsyncHttpFetcher(numRequests, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setCompletionThreads(1);
+        assertTrue(fetcher.isNonBlocking());
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch done = new CountDownLatch(numRequests);
+
+        try {
+            long startTime = System.currentTimeMillis();
+            for (int i = 0; i < numRequests; i++) {
+                final String url = "http://localhost:8089/page-" + i + ".html";
+                fetcher.get(new ScoredUrlDatum(url), true, new IFetchCallback() {
+
+                    @Override
+                    public void fetched(FetchedDatum result) {
+                        if (result.getContentLength() != 1000) {
+                            errors.add(new Exception("Wrong length for " + url));
+                        }
+
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void failed(BaseFetchException e) {
+                        errors.add(e);
+                        done.countDown();
+                    }
+                });
+            }
+
+            // Starting the requests shouldn't have waited on any of them.
+            assertTrue(System.currentTimeMillis() - startTime < 500L);
+            assertTrue("Fetches didn't finish", done.await(10, TimeUnit.SECONDS));
+            assertEquals("Errors: " + errors, 0, errors.size());
+        } finally {
+            fetcher.shutdown();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testTimeoutIncludesRedirects() throws Exception {
+        // Each hop is well within the request timeout, but all of them together aren't.
+        Server server = startServer(new SlowRedirectResponseHandler(4, 500L), 8089);
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setRequestTimeout(1500L);
+        BaseFetcher fetcher = new AsyncHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        long startTime = System.currentTimeMillis();
+        try {
+            fetcher.get(new ScoredUrlDatum("http://localhost:8089/hop-0"));
+            fail("Exception not thrown");
+        } catch (IOFetchException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+            assertTrue(System.currentTimeMillis() - startTime < 2000L);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testConditionalFetch() throws Exception {
+        Server server = startServer(new ConditionalResponseHandler(), 8089);
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setValidMimeTypes(new HashSet<String>(Collections.singletonList("text/html")));
+        BaseFetcher fetcher = new AsyncHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        ScoredUrlDatum datum = new ScoredUrlDatum("http://localhost:8089/test.html");
+
+        try {
+            FetchedDatum result = fetcher.get(datum, true);
+            assertFalse(result.isNotModified());
+            assertEquals(4, result.getContentLength());
+
+            BaseFetcher.setValidators(datum, result.getHeaders());
+            result = fetcher.get(datum, true);
+            assertTrue(result.isNotModified());
+            assertEquals(0, result.getContentLength());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.junit.Test;
+
+import bixo.config.FetcherPolicy;
+
+public class ResponseRateMonitorTest {
+
+    private static class MyRequest implements AbortableHttpRequest {
+        private boolean _aborted = false;
+        
+        @Override
+        public void setConnectionRequest(ClientConnectionRequest connRequest) throws IOException {
+        }
+
+        @Override
+        public void setReleaseTrigger(ConnectionReleaseTrigger releaseTrigger) throws IOException {
+        }
+
+        @Override
+        public void abort() {
+            _aborted = true;
+        }
+        
+        public boolean isAborted() {
+            return _aborted;
+        }
+    }
+    
+    @Test
+    public void testAbortingSlowTransfers() {
+        ResponseRateMonitor monitor = ResponseRateMonitor.getInstance();
+        
+        MyRequest slowRequest = new MyRequest();
+        ResponseRateMonitor.Transfer slowTransfer = monitor.start("http://slow.com", slowRequest, 1000);
+        MyRequest fastRequest = new MyRequest();
+        ResponseRateMonitor.Transfer fastTransfer = monitor.start("http://fast.com", fastRequest, 1000);
+        
+        long now = System.currentTimeMillis();
+        slowTransfer.setBytesRead(100);
+        fastTransfer.setBytesRead(100);
+        
+        // Too early to judge either of them.
+        monitor.checkTransfers(now + 500);
+        assertFalse(slowRequest.isAborted());
+        assertFalse(fastRequest.isAborted());
+        
+        fastTransfer.setBytesRead(100000);
+        monitor.checkTransfers(now + 5000);
+        assertTrue(slowRequest.isAborted());
+        assertTrue(slowTransfer.isAborted());
+        assertFalse(fastRequest.isAborted());
+        assertFalse(fastTransfer.isAborted());
+        
+        monitor.finish(slowTransfer);
+        monitor.finish(fastTransfer);
+        assertEquals(0, monitor.getNumTransfers());
+    }
+    
+    @Test
+    public void testNoMinResponseRate() {
+        ResponseRateMonitor monitor = ResponseRateMonitor.getInstance();
+        MyRequest request = new MyRequest();
+        ResponseRateMonitor.Transfer transfer = monitor.start("http://slow.com", request, FetcherPolicy.NO_MIN_RESPONSE_RATE);
+        assertEquals(0, monitor.getNumTransfers());
+        
+        monitor.checkTransfers(System.currentTimeMillis() + 5000);
+        assertFalse(request.isAborted());
+        assertFalse(transfer.isAborted());
+        monitor.finish(transfer);
+    }
+}
@@ -17,14 +17,19 @@
 package bixo.fetcher;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -41,6 +46,7 @@ import org.mortbay.jetty.Response;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.bio.SocketConnector;
 import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.security.SslSocketConnector;
 
 import bixo.config.FetcherPolicy;
 import bixo.config.FetcherPolicy.RedirectMode;
@@ -147,6 +153,102 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         }
     }
 
+    private class GzipResponseHandler extends AbstractHandler {
+        
+        private byte[] _content;
+        private String _mimeType;
+        
+        public GzipResponseHandler(byte[] content, String mimeType) {
+            _content = content;
+            _mimeType = mimeType;
+        }
+
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GZIPOutputStream out = new GZIPOutputStream(bytes);
+            out.write(_content);
+            out.close();
+            
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType(_mimeType);
+            response.setHeader(HttpHeaderNames.CONTENT_ENCODING, "gzip");
+            response.setContentLength(bytes.size());
+            response.getOutputStream().write(bytes.toByteArray());
+        }
+    }
+
+    private class TrickleResponseHandler extends AbstractHandler {
+        
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/html");
+            response.setContentLength(100000);
+            
+            // Send a good chunk right away, then stall for 10 seconds before sending
+            // another byte.
+            OutputStream os = response.getOutputStream();
+            os.write(new byte[1000]);
+            os.flush();
+            
+            try {
+                Thread.sleep(10000);
+                os.write(0);
+                os.flush();
+            } catch (InterruptedException e) {
+                throw new HttpException(500, "Response handler interrupted");
+            }
+        }
+    }
+
+    private class KeepAliveResponseHandler extends AbstractHandler {
+        
+        private String _keepAlive;
+        
+        public KeepAliveResponseHandler(String keepAlive) {
+            _keepAlive = keepAlive;
+        }
+
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            String content = "test";
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/html");
+            if (_keepAlive != null) {
+                response.setHeader(HttpHeaderNames.KEEP_ALIVE, _keepAlive);
+            }
+            
+            response.setContentLength(content.length());
+            response.getOutputStream().write(content.getBytes());
+        }
+    }
+
+    private class ConditionalResponseHandler extends AbstractHandler {
+        
+        private static final String ETAG = "\"v1\"";
+        private static final String LAST_MODIFIED = "Sat, 01 Jan 2011 00:00:00 GMT";
+        
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            if (ETAG.equals(request.getHeader(HttpHeaderNames.IF_NONE_MATCH))
+                            || LAST_MODIFIED.equals(request.getHeader(HttpHeaderNames.IF_MODIFIED_SINCE))) {
+                response.setStatus(HttpStatus.SC_NOT_MODIFIED);
+                response.setHeader(HttpHeaderNames.ETAG, ETAG);
+                ((Request)request).setHandled(true);
+                return;
+            }
+            
+            String content = "test";
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/html");
+            response.setHeader(HttpHeaderNames.ETAG, ETAG);
+            response.setHeader(HttpHeaderNames.LAST_MODIFIED, LAST_MODIFIED);
+            response.setContentLength(content.length());
+            response.getOutputStream().write(content.getBytes());
+        }
+    }
+
     @Test
     public final void testConnectionTimeout() throws Exception {
         Server server = startServer(new ResourcesResponseHandler(), 8089);
@@ -210,6 +312,31 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         server.stop();
     }
 
+    @Test
+    public final void testTricklingServerTermination() throws Exception {
+        Server server = startServer(new TrickleResponseHandler(), 8089);
+
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMinResponseRate(10000);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        // We'd be stuck in the second read for 10 seconds, and never get to check
+        // the response rate, if it wasn't for the response rate monitor.
+        String url = "http://localhost:8089/test.html";
+        long startTime = System.currentTimeMillis();
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Aborted fetch exception not thrown");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.SLOW_RESPONSE_RATE, e.getAbortReason());
+            assertTrue(System.currentTimeMillis() - startTime < 5000);
+        } finally {
+            server.stop();
+        }
+        
+        assertEquals(0, ResponseRateMonitor.getInstance().getNumTransfers());
+    }
+
     @Test
     public final void testNotTerminatingSlowServers() throws Exception {
         // Return 1K bytes at 2K bytes/second - would normally trigger an
@@ -276,6 +403,231 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         server.stop();
     }
     
+    @Test
+    public final void testGzipContent() throws Exception {
+        byte[] content = new byte[50000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte)('a' + (i % 26));
+        }
+        
+        Server server = startServer(new GzipResponseHandler(content, "text/html"), 8089);
+        FetcherPolicy policy = new FetcherPolicy();
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/test.html";
+        
+        try {
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+            assertEquals(content.length, result.getContentLength());
+            assertEquals(content.length, result.getContentBytes().length);
+            assertTrue(Arrays.equals(content, result.getContentBytes()));
+            
+            // Max content size applies to the decompressed data, even though the compressed
+            // data is much smaller than that.
+            fetcher.setDefaultMaxContentSize(10000);
+            result = fetcher.get(new ScoredUrlDatum(url));
+            assertEquals(10000, result.getContentLength());
+            assertEquals(10000, result.getContentBytes().length);
+            assertTrue(Arrays.equals(Arrays.copyOf(content, 10000), result.getContentBytes()));
+            
+            // And we can keep using the connection after a truncated read.
+            fetcher.setDefaultMaxContentSize(content.length);
+            result = fetcher.get(new ScoredUrlDatum(url));
+            assertEquals(content.length, result.getContentLength());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testTruncatedGzipImage() throws Exception {
+        Server server = startServer(new GzipResponseHandler(new byte[10000], "image/png"), 8089);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setMaxContentSize("image/png", 5000);
+        String url = "http://localhost:8089/test.png";
+        
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Aborted fetch exception not thrown");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.CONTENT_SIZE, e.getAbortReason());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testKeepAlive() throws Exception {
+        Server server = startServer(new KeepAliveResponseHandler(null), 8089);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        ScoredUrlDatum datum = new ScoredUrlDatum("http://localhost:8089/test.html");
+        
+        try {
+            fetcher.get(datum);
+            assertEquals(1, fetcher.getNewConnectionCount());
+            assertEquals(0, fetcher.getReusedConnectionCount());
+
+            // Second request reuses the connection, and tells the server to close it.
+            fetcher.get(datum, false);
+            assertEquals(1, fetcher.getNewConnectionCount());
+            assertEquals(1, fetcher.getReusedConnectionCount());
+
+            // So we need a new connection for the third request.
+            fetcher.get(datum, true);
+            assertEquals(2, fetcher.getNewConnectionCount());
+            assertEquals(1, fetcher.getReusedConnectionCount());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testKeepAliveMax() throws Exception {
+        // Server says it won't take any more requests on this connection.
+        Server server = startServer(new KeepAliveResponseHandler("timeout=5, max=0"), 8089);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        ScoredUrlDatum datum = new ScoredUrlDatum("http://localhost:8089/test.html");
+        
+        try {
+            fetcher.get(datum);
+            fetcher.get(datum);
+            assertEquals(2, fetcher.getNewConnectionCount());
+            assertEquals(0, fetcher.getReusedConnectionCount());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testKeepAliveTimeout() throws Exception {
+        Server server = startServer(new KeepAliveResponseHandler("timeout=1"), 8089);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        ScoredUrlDatum datum = new ScoredUrlDatum("http://localhost:8089/test.html");
+        
+        try {
+            fetcher.get(datum);
+            fetcher.get(datum);
+            assertEquals(1, fetcher.getNewConnectionCount());
+            assertEquals(1, fetcher.getReusedConnectionCount());
+            
+            // Once the server's keep-alive timeout has passed, we don't try to use
+            // the connection.
+            Thread.sleep(1500);
+            fetcher.get(datum);
+            assertEquals(2, fetcher.getNewConnectionCount());
+            assertEquals(1, fetcher.getReusedConnectionCount());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testKeepAliveAcrossCrawlDelay() throws Exception {
+        // The server doesn't send a Keep-Alive header, so how long we keep the connection
+        // depends on the crawl delay, which is longer than servers typically keep idle
+        // connections open.
+        Server server = startServer(new KeepAliveResponseHandler(null), 8089);
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setCrawlDelay(6 * 1000L);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        
+        try {
+            assertTrue(fetcher.getKeepAliveDuration() > policy.getCrawlDelay());
+            
+            // The last URL from one fetch set, and then the first URL from the next set
+            // for the same server.
+            fetcher.get(new ScoredUrlDatum("http://localhost:8089/page1.html"));
+            Thread.sleep(policy.getCrawlDelay());
+            fetcher.get(new ScoredUrlDatum("http://localhost:8089/page2.html"));
+            
+            assertEquals(1, fetcher.getNewConnectionCount());
+            assertEquals(1, fetcher.getReusedConnectionCount());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testServerClosingIdleConnection() throws Exception {
+        // The server closes idle connections before we'd stop using them, so we have
+        // to notice that and open a new one, versus failing the request.
+        Server server = startServer(new KeepAliveResponseHandler(null), 8089);
+        server.getConnectors()[0].setMaxIdleTime(500);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setMaxRetryCount(0);
+        ScoredUrlDatum datum = new ScoredUrlDatum("http://localhost:8089/test.html");
+        
+        try {
+            fetcher.get(datum);
+            Thread.sleep(1500);
+            fetcher.get(datum);
+            
+            assertEquals(2, fetcher.getNewConnectionCount());
+            assertEquals(0, fetcher.getReusedConnectionCount());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testConditionalFetch() throws Exception {
+        Server server = startServer(new ConditionalResponseHandler(), 8089);
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setValidMimeTypes(new HashSet<String>(Arrays.asList("text/html")));
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        ScoredUrlDatum datum = new ScoredUrlDatum("http://localhost:8089/test.html");
+        
+        try {
+            FetchedDatum result = fetcher.get(datum, true);
+            assertFalse(result.isNotModified());
+            assertEquals(4, result.getContentLength());
+            
+            // Carry the validators forward, like we would in a crawl DB.
+            BaseFetcher.setValidators(datum, result.getHeaders());
+            assertEquals("Sat, 01 Jan 2011 00:00:00 GMT", BaseFetcher.getLastModified(datum));
+            
+            // Now we get a 304 with no content type, which shouldn't be rejected by
+            // the mime-type filtering, or treated as an error.
+            result = fetcher.get(datum, true);
+            assertTrue(result.isNotModified());
+            assertEquals(0, result.getContentLength());
+            assertEquals("\"v1\"", result.getHeaders().getFirst(HttpHeaderNames.ETAG));
+        } finally {
+            server.stop();
+        }
+    }
+
+    
+    @Test
+    public final void testTlsSessionResumption() throws Exception {
+        Server server = new Server();
+        SslSocketConnector connector = new SslSocketConnector();
+        connector.setPort(8443);
+        connector.setKeystore(SimpleHttpFetcherTest.class.getResource("/test-keystore.jks").getFile());
+        connector.setPassword("password");
+        connector.setKeyPassword("password");
+        server.addConnector(connector);
+        server.setHandler(new KeepAliveResponseHandler(null));
+        server.start();
+        
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        ScoredUrlDatum datum = new ScoredUrlDatum("https://localhost:8443/test.html");
+        
+        try {
+            // Each request closes the connection, so we need a new TLS connection every
+            // time, but only the first one needs a full handshake.
+            for (int i = 0; i < 3; i++) {
+                FetchedDatum result = fetcher.get(datum, false);
+                assertEquals("test", new String(result.getContentBytes(), "UTF-8"));
+            }
+            
+            assertEquals(3, fetcher.getNewConnectionCount());
+            assertEquals(1, fetcher.getFullHandshakeCount());
+            assertEquals(2, fetcher.getResumedHandshakeCount());
+        } finally {
+            server.stop();
+        }
+    }
+    
     @Test
     public final void testLargeHtml() throws Exception {
         FetcherPolicy policy = new FetcherPolicy();
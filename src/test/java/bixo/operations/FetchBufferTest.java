@@ -0,0 +1,454 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.http.HttpStatus;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import bixo.config.FetcherPolicy;
+import bixo.datum.FetchSetDatum;
+import bixo.datum.FetchedDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+import bixo.datum.HttpHeaders;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.fetcher.BaseFetcher;
+import bixo.fetcher.HttpHeaderNames;
+import bixo.fetcher.IFetchCallback;
+import bixo.hadoop.FetchCounters;
+import bixo.utils.ConfigUtils;
+import cascading.flow.hadoop.HadoopFlowProcess;
+import cascading.operation.BufferCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
+
+import com.bixolabs.cascading.NullContext;
+
+public class FetchBufferTest {
+
+    /**
+     * Fetcher that "fetches" each URL after a fixed delay, on its own thread when
+     * it's non-blocking, and keeps track of when each fetch was started. Fetches of a
+     * URL fail with the exceptions set via addFailure(), in order, before succeeding.
+     */
+    @SuppressWarnings("serial")
+    private static class FakeFetcher extends BaseFetcher {
+        private long _fetchDuration;
+        private boolean _nonBlocking;
+        private Map<String, List<Long>> _startTimes;
+        private Map<String, List<BaseFetchException>> _failures;
+
+        public FakeFetcher(int maxThreads, FetcherPolicy fetcherPolicy, long fetchDuration, boolean nonBlocking) {
+            super(maxThreads, fetcherPolicy, ConfigUtils.BIXO_TEST_AGENT);
+            _fetchDuration = fetchDuration;
+            _nonBlocking = nonBlocking;
+            _startTimes = new HashMap<String, List<Long>>();
+            _failures = new HashMap<String, List<BaseFetchException>>();
+        }
+
+        public synchronized void addFailure(BaseFetchException e) {
+            List<BaseFetchException> failures = _failures.get(e.getUrl());
+            if (failures == null) {
+                failures = new ArrayList<BaseFetchException>();
+                _failures.put(e.getUrl(), failures);
+            }
+            
+            failures.add(e);
+        }
+        
+        public synchronized List<Long> getStartTimes(String url) {
+            List<Long> result = _startTimes.get(url);
+            return result == null ? new ArrayList<Long>() : new ArrayList<Long>(result);
+        }
+        
+        public long getStartTime(String url) {
+            return getStartTimes(url).get(0);
+        }
+
+        private synchronized BaseFetchException startFetch(String url) {
+            List<Long> startTimes = _startTimes.get(url);
+            if (startTimes == null) {
+                startTimes = new ArrayList<Long>();
+                _startTimes.put(url, startTimes);
+            }
+            
+            startTimes.add(System.currentTimeMillis());
+            
+            List<BaseFetchException> failures = _failures.get(url);
+            return (failures == null) || failures.isEmpty() ? null : failures.remove(0);
+        }
+        
+        @Override
+        public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
+            BaseFetchException failure = startFetch(scoredUrl.getUrl());
+
+            try {
+                Thread.sleep(_fetchDuration);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+            
+            return new FetchedDatum(scoredUrl);
+        }
+
+        @Override
+        public void get(final ScoredUrlDatum scoredUrl, final boolean keepAlive, final IFetchCallback callback) {
+            if (!_nonBlocking) {
+                super.get(scoredUrl, keepAlive, callback);
+                return;
+            }
+
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        callback.fetched(get(scoredUrl));
+                    } catch (BaseFetchException e) {
+                        callback.failed(e);
+                    }
+                }
+            }).start();
+        }
+
+        @Override
+        public boolean isNonBlocking() {
+            return _nonBlocking;
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    private static FetchSetDatum makeFetchSet(String ref, boolean lastList, String... urls) {
+        List<ScoredUrlDatum> scoredUrls = new ArrayList<ScoredUrlDatum>();
+        for (String url : urls) {
+            scoredUrls.add(new ScoredUrlDatum(url));
+        }
+
+        FetchSetDatum result = new FetchSetDatum(scoredUrls, 0, 0, ref.hashCode(), ref);
+        result.setLastList(lastList);
+        return result;
+    }
+
+    private static FetchSetDatum makeFetchSet(String ref, String... urls) {
+        return makeFetchSet(ref, true, urls);
+    }
+    
+    private static HttpFetchException makeRetryLater(String url, int httpStatus, String retryAfter) {
+        HttpHeaders headers = new HttpHeaders();
+        if (retryAfter != null) {
+            headers.add(HttpHeaderNames.RETRY_AFTER, retryAfter);
+        }
+        
+        return new HttpFetchException(url, "Retry later", httpStatus, headers);
+    }
+    
+    private static HadoopFlowProcess makeFlowProcess() {
+        HadoopFlowProcess result = Mockito.mock(HadoopFlowProcess.class);
+        Mockito.when(result.getJobConf()).thenReturn(new JobConf());
+        return result;
+    }
+    
+    /**
+     * @return total of all increments of <counter> for <process>.
+     */
+    private static int getCounter(HadoopFlowProcess process, Enum<?> counter) {
+        ArgumentCaptor<Integer> amounts = ArgumentCaptor.forClass(Integer.class);
+        Mockito.verify(process, Mockito.atLeast(0)).increment(Mockito.eq(counter), amounts.capture());
+        
+        int result = 0;
+        for (Integer amount : amounts.getAllValues()) {
+            result += amount;
+        }
+        
+        return result;
+    }
+    
+    private static Map<String, String> fetch(BaseFetcher fetcher, FetchSetDatum... fetchSets) {
+        return fetch(fetcher, makeFlowProcess(), fetchSets);
+    }
+    
+    /**
+     * Run <fetchSets> through a FetchBuffer that uses <fetcher>, and return the status
+     * of each URL that it emitted.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> fetch(BaseFetcher fetcher, HadoopFlowProcess fp, FetchSetDatum... fetchSets) {
+        FetchBuffer op = new FetchBuffer(fetcher);
+
+        OperationCall<NullContext> oc = Mockito.mock(OperationCall.class);
+        BufferCall<NullContext> bc = Mockito.mock(BufferCall.class);
+        TupleEntryCollector collector = Mockito.mock(TupleEntryCollector.class);
+
+        List<TupleEntry> values = new ArrayList<TupleEntry>();
+        int numUrls = 0;
+        for (FetchSetDatum fetchSet : fetchSets) {
+            values.add(fetchSet.getTupleEntry());
+            numUrls += fetchSet.getNumUrls();
+        }
+
+        Mockito.when(bc.getArgumentsIterator()).thenReturn(values.iterator());
+        Mockito.when(bc.getOutputCollector()).thenReturn(collector);
+
+        op.prepare(fp, oc);
+        op.operate(fp, bc);
+        op.cleanup(fp, oc);
+
+        ArgumentCaptor<Tuple> results = ArgumentCaptor.forClass(Tuple.class);
+        Mockito.verify(collector, Mockito.times(numUrls)).add(results.capture());
+
+        Map<String, String> result = new HashMap<String, String>();
+        for (Tuple tuple : results.getAllValues()) {
+            FetchedDatum datum = new FetchedDatum(tuple);
+            Object status = tuple.getObject(FetchedDatum.FIELDS.size());
+            result.put(datum.getUrl(), (status instanceof HttpFetchException) ? "" + ((HttpFetchException)status).getHttpStatus() : status.toString());
+        }
+
+        return result;
+    }
+
+    @Test
+    public void testWaitingForFetchPermit() throws Exception {
+        // Only one request can be in flight, and the first set takes a lot longer than the
+        // request timeout. The second set has to wait for it, versus being skipped.
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setRequestTimeout(100);
+        FakeFetcher fetcher = new FakeFetcher(1, policy, 2000, true);
+
+        Map<String, String> statuses = fetch(fetcher, makeFetchSet("domain1.com", "http://domain1.com/"),
+                        makeFetchSet("domain2.com", "http://domain2.com/"));
+
+        assertEquals(UrlStatus.FETCHED.toString(), statuses.get("http://domain1.com/"));
+        assertEquals(UrlStatus.FETCHED.toString(), statuses.get("http://domain2.com/"));
+    }
+
+    @Test
+    public void testSkippingOnceCrawlEnds() throws Exception {
+        // Here the crawl ends while the second set is waiting, so it gets skipped.
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setCrawlEndTime(System.currentTimeMillis() + 1000);
+        FakeFetcher fetcher = new FakeFetcher(1, policy, 3000, true);
+
+        Map<String, String> statuses = fetch(fetcher, makeFetchSet("domain1.com", "http://domain1.com/"),
+                        makeFetchSet("domain2.com", "http://domain2.com/"));
+
+        assertEquals(UrlStatus.FETCHED.toString(), statuses.get("http://domain1.com/"));
+        assertEquals(UrlStatus.SKIPPED_TIME_LIMIT.toString(), statuses.get("http://domain2.com/"));
+    }
+
+    @Test
+    public void testPacingNonBlockingFetches() throws Exception {
+        FetcherPolicy policy = new FetcherPolicy();
+        FakeFetcher fetcher = new FakeFetcher(1, policy, 10, true);
+
+        String[] urls = new String[] {"http://domain1.com/page1", "http://domain1.com/page2", "http://domain1.com/page3"};
+        Map<String, String> statuses = fetch(fetcher, makeFetchSet("domain1.com", urls));
+
+        for (int i = 0; i < urls.length; i++) {
+            assertEquals(UrlStatus.FETCHED.toString(), statuses.get(urls[i]));
+
+            if (i > 0) {
+                long interval = fetcher.getStartTime(urls[i]) - fetcher.getStartTime(urls[i - 1]);
+                assertTrue("Fetched too soon after previous page: " + interval, interval >= 900);
+            }
+        }
+    }
+
+    @Test
+    public void testWakingUpWhenRefFinishes() throws Exception {
+        // The second set for the ref can't be fetched until the first one is done, at
+        // which point it should be fetched right away, versus when we'd next poll.
+        FetcherPolicy policy = new FetcherPolicy();
+        FakeFetcher fetcher = new FakeFetcher(2, policy, 1500, false);
+
+        HadoopFlowProcess fp = makeFlowProcess();
+        long startTime = System.currentTimeMillis();
+        Map<String, String> statuses = fetch(fetcher, fp, makeFetchSet("domain1.com", false, "http://domain1.com/page1"),
+                        makeFetchSet("domain1.com", true, "http://domain1.com/page2"));
+        long fetchTime = System.currentTimeMillis() - startTime;
+
+        assertEquals(UrlStatus.FETCHED.toString(), statuses.get("http://domain1.com/page1"));
+        assertEquals(UrlStatus.FETCHED.toString(), statuses.get("http://domain1.com/page2"));
+
+        long waitTime = fetcher.getStartTime("http://domain1.com/page2") - fetcher.getStartTime("http://domain1.com/page1");
+        assertTrue("Waited too long for ref: " + waitTime, (waitTime >= 1500) && (waitTime < 1800));
+
+        // We were idle while waiting for the first set, and then for the second set to finish.
+        int idleTime = getCounter(fp, FetchCounters.FETCHER_IDLE_TIME);
+        assertTrue("Idle time too short: " + idleTime, idleTime >= 2800);
+        assertTrue("Idle time too long: " + idleTime, idleTime <= fetchTime);
+    }
+
+    @Test
+    public void testWakingUpWhenSetIsQueued() throws Exception {
+        // The server tells us to retry right away, so the set that gets handed back to
+        // us should be fetched again without waiting until we'd next poll.
+        FetcherPolicy policy = new FetcherPolicy();
+        FakeFetcher fetcher = new FakeFetcher(2, policy, 100, false);
+        fetcher.addFailure(makeRetryLater("http://domain1.com/", HttpFetchException.SC_TOO_MANY_REQUESTS, "0"));
+
+        Map<String, String> statuses = fetch(fetcher, makeFetchSet("domain1.com", "http://domain1.com/"),
+                        makeFetchSet("domain2.com", false, "http://domain2.com/page1"));
+
+        assertEquals(UrlStatus.FETCHED.toString(), statuses.get("http://domain1.com/"));
+
+        List<Long> startTimes = fetcher.getStartTimes("http://domain1.com/");
+        assertEquals(2, startTimes.size());
+        long waitTime = startTimes.get(1) - startTimes.get(0);
+        assertTrue("Waited too long to retry: " + waitTime, waitTime < 500);
+    }
+
+    @Test
+    public void testNotIdleWithWorkAvailable() throws Exception {
+        // Every set is ready to go, and fetching is instant, so we shouldn't spend any
+        // real time waiting.
+        FetcherPolicy policy = new FetcherPolicy();
+        FakeFetcher fetcher = new FakeFetcher(10, policy, 0, false);
+
+        List<FetchSetDatum> fetchSets = new ArrayList<FetchSetDatum>();
+        for (int i = 0; i < 10; i++) {
+            fetchSets.add(makeFetchSet("domain" + i + ".com", "http://domain" + i + ".com/"));
+        }
+
+        HadoopFlowProcess fp = makeFlowProcess();
+        Map<String, String> statuses = fetch(fetcher, fp, fetchSets.toArray(new FetchSetDatum[fetchSets.size()]));
+        for (String status : statuses.values()) {
+            assertEquals(UrlStatus.FETCHED.toString(), status);
+        }
+
+        int idleTime = getCounter(fp, FetchCounters.FETCHER_IDLE_TIME);
+        assertTrue("Idle time too long: " + idleTime, idleTime < 200);
+    }
+
+    @Test
+    public void testRetryingLater() throws Exception {
+        // The server backs us off while fetching the second page of the first set, so it
+        // and the third page get handed back to us. Neither they nor the next set for the
+        // same ref should be fetched until the retry time.
+        FetcherPolicy policy = new FetcherPolicy();
+        FakeFetcher fetcher = new FakeFetcher(2, policy, 10, false);
+        fetcher.addFailure(makeRetryLater("http://domain1.com/page2", HttpStatus.SC_SERVICE_UNAVAILABLE, "2"));
+
+        HadoopFlowProcess fp = makeFlowProcess();
+        Map<String, String> statuses = fetch(fetcher, fp,
+                        makeFetchSet("domain1.com", false, "http://domain1.com/page1", "http://domain1.com/page2", "http://domain1.com/page3"),
+                        makeFetchSet("domain1.com", true, "http://domain1.com/page4"));
+
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(UrlStatus.FETCHED.toString(), statuses.get("http://domain1.com/page" + i));
+        }
+
+        assertEquals(1, fetcher.getStartTimes("http://domain1.com/page1").size());
+        assertEquals(2, fetcher.getStartTimes("http://domain1.com/page2").size());
+        assertEquals(1, fetcher.getStartTimes("http://domain1.com/page3").size());
+        assertEquals(1, fetcher.getStartTimes("http://domain1.com/page4").size());
+
+        long retryTime = fetcher.getStartTimes("http://domain1.com/page2").get(0) + 2000;
+        assertTrue(fetcher.getStartTimes("http://domain1.com/page2").get(1) >= retryTime);
+        assertTrue(fetcher.getStartTime("http://domain1.com/page3") >= retryTime);
+        assertTrue(fetcher.getStartTime("http://domain1.com/page4") >= retryTime);
+
+        assertEquals(1, getCounter(fp, FetchCounters.HOSTS_BACKED_OFF));
+        assertEquals(2, getCounter(fp, FetchCounters.URLS_REQUEUED));
+    }
+
+    @Test
+    public void testMaxBackoffsPerRef() throws Exception {
+        // After being backed off three times, we give up and fail the URL.
+        FetcherPolicy policy = new FetcherPolicy();
+        FakeFetcher fetcher = new FakeFetcher(1, policy, 10, false);
+        for (int i = 0; i < 4; i++) {
+            fetcher.addFailure(makeRetryLater("http://domain1.com/", HttpFetchException.SC_TOO_MANY_REQUESTS, "0"));
+        }
+
+        HadoopFlowProcess fp = makeFlowProcess();
+        Map<String, String> statuses = fetch(fetcher, fp, makeFetchSet("domain1.com", "http://domain1.com/"));
+
+        assertEquals("" + HttpFetchException.SC_TOO_MANY_REQUESTS, statuses.get("http://domain1.com/"));
+        assertEquals(4, fetcher.getStartTimes("http://domain1.com/").size());
+        assertEquals(3, getCounter(fp, FetchCounters.HOSTS_BACKED_OFF));
+        assertEquals(1, getCounter(fp, FetchCounters.URLS_FAILED));
+    }
+
+    @Test
+    public void testMaxRetryDelay() throws Exception {
+        // The server wants us to wait longer than we're willing to, so the URLs fail.
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMaxRetryDelay(1000);
+        FakeFetcher fetcher = new FakeFetcher(1, policy, 10, false);
+        fetcher.addFailure(makeRetryLater("http://domain1.com/page1", HttpStatus.SC_SERVICE_UNAVAILABLE, "5"));
+
+        HadoopFlowProcess fp = makeFlowProcess();
+        Map<String, String> statuses = fetch(fetcher, fp, makeFetchSet("domain1.com", "http://domain1.com/page1", "http://domain1.com/page2"));
+
+        // We still go on to fetch the rest of the set.
+        assertEquals("" + HttpStatus.SC_SERVICE_UNAVAILABLE, statuses.get("http://domain1.com/page1"));
+        assertEquals(UrlStatus.FETCHED.toString(), statuses.get("http://domain1.com/page2"));
+        assertEquals(1, fetcher.getStartTimes("http://domain1.com/page1").size());
+        assertEquals(0, getCounter(fp, FetchCounters.HOSTS_BACKED_OFF));
+    }
+
+    @Test
+    public void testNoRetries() throws Exception {
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMaxRetryDelay(FetcherPolicy.NO_RETRY_DELAY);
+        FakeFetcher fetcher = new FakeFetcher(1, policy, 10, false);
+        fetcher.addFailure(makeRetryLater("http://domain1.com/", HttpStatus.SC_SERVICE_UNAVAILABLE, "0"));
+
+        Map<String, String> statuses = fetch(fetcher, makeFetchSet("domain1.com", "http://domain1.com/"));
+
+        assertEquals("" + HttpStatus.SC_SERVICE_UNAVAILABLE, statuses.get("http://domain1.com/"));
+        assertEquals(1, fetcher.getStartTimes("http://domain1.com/").size());
+    }
+
+    @Test
+    public void testRetryAfterCrawlEnds() throws Exception {
+        // We'd be willing to wait, but the crawl will be over by then.
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setCrawlEndTime(System.currentTimeMillis() + 5000);
+        FakeFetcher fetcher = new FakeFetcher(1, policy, 10, false);
+        fetcher.addFailure(makeRetryLater("http://domain1.com/", HttpFetchException.SC_TOO_MANY_REQUESTS, "10"));
+
+        HadoopFlowProcess fp = makeFlowProcess();
+        Map<String, String> statuses = fetch(fetcher, fp, makeFetchSet("domain1.com", "http://domain1.com/"));
+
+        assertEquals("" + HttpFetchException.SC_TOO_MANY_REQUESTS, statuses.get("http://domain1.com/"));
+        assertEquals(1, fetcher.getStartTimes("http://domain1.com/").size());
+        assertEquals(0, getCounter(fp, FetchCounters.HOSTS_BACKED_OFF));
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import bixo.config.ParserPolicy;
+import bixo.datum.FetchedDatum;
+import bixo.datum.ParsedDatum;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+
+public class ParseRunnerTest {
+
+    @SuppressWarnings("serial")
+    private static class FailingParser extends BaseParser {
+        private Exception _exception;
+        
+        public FailingParser(Exception exception) {
+            super(new ParserPolicy());
+            _exception = exception;
+        }
+
+        @Override
+        public ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception {
+            throw _exception;
+        }
+    }
+    
+    @Test
+    public void testParsing() throws Exception {
+        LoggingFlowProcess process = Mockito.mock(LoggingFlowProcess.class);
+        
+        assertNotNull(ParseRunner.parse(new FakeParser(), new FetchedDatum("http://domain.com/", null), process));
+        Mockito.verify(process).increment(ParserCounters.DOCUMENTS_PARSED, 1);
+        Mockito.verify(process, Mockito.never()).increment(Mockito.eq(ParserCounters.DOCUMENTS_FAILED), Mockito.anyInt());
+        Mockito.verify(process).increment(Mockito.eq(ParserCounters.PARSE_TIME), Mockito.anyInt());
+    }
+    
+    @Test
+    public void testTimeout() throws Exception {
+        LoggingFlowProcess process = Mockito.mock(LoggingFlowProcess.class);
+        
+        assertNull(ParseRunner.parse(new FailingParser(new TimeoutException()), new FetchedDatum("http://domain.com/", null), process));
+        Mockito.verify(process, Mockito.never()).increment(Mockito.eq(ParserCounters.DOCUMENTS_PARSED), Mockito.anyInt());
+        Mockito.verify(process).increment(ParserCounters.DOCUMENTS_TIMED_OUT, 1);
+        Mockito.verify(process).increment(ParserCounters.DOCUMENTS_FAILED, 1);
+        Mockito.verify(process).increment(Mockito.eq(ParserCounters.PARSE_TIME), Mockito.anyInt());
+    }
+    
+    @Test
+    public void testFailure() throws Exception {
+        LoggingFlowProcess process = Mockito.mock(LoggingFlowProcess.class);
+        
+        assertNull(ParseRunner.parse(new FailingParser(new RuntimeException("bad document")), new FetchedDatum("http://domain.com/", null), process));
+        Mockito.verify(process, Mockito.never()).increment(Mockito.eq(ParserCounters.DOCUMENTS_TIMED_OUT), Mockito.anyInt());
+        Mockito.verify(process).increment(ParserCounters.DOCUMENTS_FAILED, 1);
+        Mockito.verify(process).increment(Mockito.eq(ParserCounters.PARSE_TIME), Mockito.anyInt());
+    }
+}
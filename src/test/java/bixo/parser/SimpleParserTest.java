@@ -26,12 +26,18 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.ParserDecorator;
 import org.apache.tika.sax.BodyContentHandler;
 import org.apache.tika.sax.XHTMLContentHandler;
 import org.ccil.cowan.tagsoup.Parser;
@@ -43,6 +49,8 @@ import org.dom4j.io.SAXReader;
 import org.dom4j.io.SAXWriter;
 import org.hsqldb.lib.StringInputStream;
 import org.junit.Test;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
 
 import bixo.config.ParserPolicy;
 import bixo.datum.ContentBytes;
@@ -55,6 +63,36 @@ import bixo.fetcher.HttpHeaderNames;
 
 public class SimpleParserTest {
 
+    /**
+     * Parser that hangs on any document with "slow" in the URL.
+     */
+    @SuppressWarnings("serial")
+    private static class SlowParser extends SimpleParser {
+        
+        public SlowParser(ParserPolicy policy) {
+            super(policy);
+        }
+        
+        @Override
+        public org.apache.tika.parser.Parser getTikaParser() {
+            return new ParserDecorator(new AutoDetectParser()) {
+                
+                @Override
+                public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context) throws IOException, SAXException, TikaException {
+                    if (metadata.get(Metadata.RESOURCE_NAME_KEY).contains("slow")) {
+                        try {
+                            Thread.sleep(Long.MAX_VALUE);
+                        } catch (InterruptedException e) {
+                            throw new TikaException("Interrupted");
+                        }
+                    }
+                    
+                    super.parse(stream, handler, metadata, context);
+                }
+            };
+        }
+    }
+
 	@Test
 	public void testRelativeLinkWithBaseUrl() throws Exception {
 		// Read in test data from test/resources
@@ -553,6 +591,98 @@ public class SimpleParserTest {
         return fetchedDatum;
     }
     
+    @Test
+    public void testConcurrentParsing() throws Exception {
+        final SimpleParser parser = new SimpleParser();
+        parser.setMaxWorkers(4);
+        
+        final int numThreads = 8;
+        final int docsPerThread = 25;
+        final AtomicInteger numGood = new AtomicInteger();
+        
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int threadId = i;
+            threads[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < docsPerThread; j++) {
+                        String title = "Title " + threadId + "-" + j;
+                        try {
+                            ParsedDatum parsedDatum = parser.parse(makeHtmlDatum("http://domain.com/page.html", title));
+                            if (title.equals(parsedDatum.getTitle()) && parsedDatum.getParsedText().contains("Body " + title)) {
+                                numGood.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            // Leave it counted as bad
+                        }
+                    }
+                }
+            });
+            
+            threads[i].start();
+        }
+        
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        // Every document should get its own content, even with extractors being reused.
+        Assert.assertEquals(numThreads * docsPerThread, numGood.get());
+    }
+    
+    @Test
+    public void testTimeoutReplacesWorker() throws Exception {
+        SimpleParser parser = new SlowParser(new ParserPolicy(100));
+        parser.setMaxWorkers(1);
+        
+        try {
+            parser.parse(makeHtmlDatum("http://domain.com/slow.html", "Slow"));
+            Assert.fail("Should have timed out");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        
+        // Even with only one worker, we should be able to keep parsing, as the stuck
+        // worker gets replaced.
+        for (int i = 0; i < 3; i++) {
+            ParsedDatum parsedDatum = parser.parse(makeHtmlDatum("http://domain.com/fast.html", "Fast " + i));
+            Assert.assertEquals("Fast " + i, parsedDatum.getTitle());
+        }
+    }
+    
+    @Test
+    public void testTurningOffLanguageDetection() throws Exception {
+        // With one worker, the same worker gets used after we turn off language detection.
+        SimpleParser parser = new SimpleParser();
+        parser.setMaxWorkers(1);
+        
+        String url = "http://domain.com/page.html";
+        String contentType = "text/html; charset=utf-8";
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+        headers.add(HttpHeaderNames.CONTENT_LANGUAGE, "en");
+        ContentBytes content = new ContentBytes("<html><head><title>English</title></head><body><p>Body</p></body></html>".getBytes("utf-8"));
+        FetchedDatum fetchedDatum = new FetchedDatum(url, url, System.currentTimeMillis(), headers, content, contentType, 0);
+        Assert.assertEquals("en", parser.parse(fetchedDatum).getLanguage());
+        
+        parser.setExtractLanguage(false);
+        Assert.assertEquals("", parser.parse(fetchedDatum).getLanguage());
+        
+        parser.setExtractLanguage(true);
+        Assert.assertEquals("en", parser.parse(fetchedDatum).getLanguage());
+    }
+    
+    private FetchedDatum makeHtmlDatum(String url, String title) throws IOException {
+        String html = String.format("<html><head><title>%s</title></head><body><p>Body %s</p></body></html>", title, title);
+        String contentType = "text/html; charset=utf-8";
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+        ContentBytes content = new ContentBytes(html.getBytes("utf-8"));
+        return new FetchedDatum(url, url, System.currentTimeMillis(), headers, content, contentType, 0);
+    }
+    
     private void compareTermsInStrings(String expected, String actual) {
         String[] expectedTerms = expected.split("[ \\n\\r\\t\\n]+");
         // Trim of leading returns so split() doesn't give us an empty term
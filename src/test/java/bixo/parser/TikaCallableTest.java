@@ -127,4 +127,21 @@ public class TikaCallableTest {
             Assert.fail("Should have worked without a timeout");
         }
     }
+    
+    @Test
+    public void testResettingProfilingHandler() throws Exception {
+        TikaCallable.LanguageProfilingHandler handler = new TikaCallable.LanguageProfilingHandler();
+        
+        char[] german = ("Dies ist ein einfaches Dokument, mit dem wir pr\u00fcfen, wie gut die Sprache einer Seite erkannt werden kann, "
+            + "wenn der Server uns nicht sagt, welche es ist.").toCharArray();
+        handler.characters(german, 0, german.length);
+        Assert.assertEquals("de", handler.getLanguage().getLanguage());
+        
+        // Without the reset, the German text would still win.
+        handler.reset();
+        char[] english = ("This is a simple document that we use to check how well the language of a page can be detected, "
+            + "when the server does not tell us what it is.").toCharArray();
+        handler.characters(english, 0, english.length);
+        Assert.assertEquals("en", handler.getLanguage().getLanguage());
+    }
 }
@@ -39,6 +39,7 @@ import bixo.config.FetcherPolicy;
 import bixo.config.FetcherPolicy.RedirectMode;
 import bixo.datum.FetchedDatum;
 import bixo.datum.HttpHeaders;
+import bixo.datum.ParsedDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.datum.StatusDatum;
 import bixo.datum.UrlDatum;
@@ -58,7 +59,9 @@ import bixo.fetcher.simulation.TestWebServer;
 import bixo.operations.BaseGroupGenerator;
 import bixo.operations.BaseScoreGenerator;
 import bixo.operations.FixedScoreGenerator;
+import bixo.parser.SimpleParser;
 import bixo.robots.BaseRobotsParser;
+import bixo.robots.RobotUtils;
 import bixo.robots.SimpleRobotRulesParser;
 import bixo.utils.ConfigUtils;
 import bixo.utils.GroupingKey;
@@ -220,6 +223,59 @@ public class FetchPipeLRTest extends CascadingTestCase {
         Assert.assertEquals(numPages, totalEntries);
     }
     
+    @Test
+    public void testFetchAndParse() throws Exception {
+        final int numPages = 10;
+        final int port = 8089;
+        
+        Lfs in = makeInputData("localhost:" + port, numPages, new Payload());
+
+        Pipe pipe = new Pipe("urlSource");
+        BaseScoreGenerator scorer = new FixedScoreGenerator();
+        BaseFetcher fetcher = new SimpleHttpFetcher(ConfigUtils.BIXO_TEST_AGENT);
+        BaseFetcher robotsFetcher = RobotUtils.createFetcher(fetcher);
+        BaseFetchJobPolicy fetchJobPolicy = new DefaultFetchJobPolicy(fetcher.getFetcherPolicy());
+        FetchPipe fetchPipe = new FetchPipe(pipe, scorer, fetcher, robotsFetcher, new SimpleRobotRulesParser(), fetchJobPolicy, 1,
+                        new SimpleParser(), 2);
+        
+        String outputPath = "build/test/FetchPipeTest/testFetchAndParse";
+        Tap status = new Lfs(new SequenceFile(StatusDatum.FIELDS), outputPath + "/status", true);
+        Tap parsed = new Lfs(new SequenceFile(ParsedDatum.FIELDS), outputPath + "/parsed", true);
+
+        FlowConnector flowConnector = new FlowConnector();
+        Flow flow = flowConnector.connect(in, FetchPipe.makeSinkMap(status, null, parsed), fetchPipe);
+        TestWebServer webServer = null;
+        
+        try {
+            webServer = new TestWebServer(new NoRobotsHtmlResponseHandler(), port);
+            flow.complete();
+        } finally {
+            webServer.stop();
+        }
+        
+        // Verify we got one parse result for every page, with the title from the page.
+        Lfs validate = new Lfs(new SequenceFile(ParsedDatum.FIELDS), outputPath + "/parsed");
+        TupleEntryIterator tupleEntryIterator = validate.openForRead(new JobConf());
+        
+        int totalEntries = 0;
+        boolean[] parsedPages = new boolean[numPages];
+        while (tupleEntryIterator.hasNext()) {
+            ParsedDatum datum = new ParsedDatum(tupleEntryIterator.next());
+            totalEntries += 1;
+            
+            String url = datum.getUrl();
+            Assert.assertTrue(url.contains("/" + datum.getTitle()));
+            
+            int idOffset = url.indexOf(".html") - 1;
+            int pageId = Integer.parseInt(url.substring(idOffset, idOffset + 1));
+            Assert.assertFalse(parsedPages[pageId]);
+            parsedPages[pageId] = true;
+        }
+        
+        Assert.assertEquals(numPages, totalEntries);
+        tupleEntryIterator.close();
+    }
+    
     @Test
     public void testRedirectException() throws Exception {
         // System.setProperty("bixo.root.level", "TRACE");
@@ -677,7 +733,6 @@ public class FetchPipeLRTest extends CascadingTestCase {
         }
     }
     
-    @SuppressWarnings("unused")
     private static class NoRobotsHtmlResponseHandler extends AbstractHandler {
 
         @Override
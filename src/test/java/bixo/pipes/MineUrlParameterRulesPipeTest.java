@@ -0,0 +1,177 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.pipes;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.StatusDatum;
+import bixo.datum.UrlStatus;
+import bixo.urls.SimpleUrlNormalizer;
+import cascading.CascadingTestCase;
+import cascading.flow.Flow;
+import cascading.flow.FlowConnector;
+import cascading.pipe.Pipe;
+import cascading.scheme.SequenceFile;
+import cascading.tap.Lfs;
+import cascading.tap.Tap;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
+import cascading.tuple.TupleEntryIterator;
+
+import com.bixolabs.cascading.Payload;
+
+public class MineUrlParameterRulesPipeTest extends CascadingTestCase {
+
+    private static FetchedDatum makeFetchedDatum(String url, String content) {
+        return new FetchedDatum(url, url, System.currentTimeMillis(), new HttpHeaders(), new ContentBytes(content.getBytes()), "text/html", 0);
+    }
+    
+    @Test
+    public void testMiningRules() throws Exception {
+        Lfs statusIn = new Lfs(new SequenceFile(StatusDatum.FIELDS), "build/test/MineUrlParameterRulesPipeTest/status", true);
+        Lfs contentIn = new Lfs(new SequenceFile(FetchedDatum.FIELDS), "build/test/MineUrlParameterRulesPipeTest/content", true);
+        Lfs out = new Lfs(new SequenceFile(MineUrlParameterRulesPipe.RULE_FIELDS), "build/test/MineUrlParameterRulesPipeTest/out", true);
+
+        // The ref parameter never changes the content, but the id parameter does.
+        TupleEntryCollector write = contentIn.openForWrite(new JobConf());
+        write.add(makeFetchedDatum("http://www.domain.com/page?id=1&ref=a", "page 1").getTuple());
+        write.add(makeFetchedDatum("http://www.domain.com/page?id=1&ref=b", "page 1").getTuple());
+        write.add(makeFetchedDatum("http://www.domain.com/page?id=2&ref=c", "page 2").getTuple());
+        write.add(makeFetchedDatum("http://www.domain.com/page?id=2&ref=d", "page 2").getTuple());
+        write.add(makeFetchedDatum("http://www.domain.com/page?id=1", "page 1").getTuple());
+        write.add(makeFetchedDatum("http://www.domain.com/page?id=2", "page 2").getTuple());
+        
+        // Only one value for the sessid parameter, so no evidence either way.
+        write.add(makeFetchedDatum("http://www.domain.com/other?sessid=x", "other").getTuple());
+        
+        write.add(makeFetchedDatum("http://www.domain.com/list?sort=up", "list").getTuple());
+        write.add(makeFetchedDatum("http://www.domain.com/list?sort=down", "list").getTuple());
+        write.close();
+        
+        // The sort parameter looks safe based on the content, but a different value
+        // causes a 404.
+        write = statusIn.openForWrite(new JobConf());
+        write.add(new StatusDatum("http://www.domain.com/list?sort=bogus", UrlStatus.HTTP_NOT_FOUND, new Payload()).getTuple());
+        write.close();
+        
+        Pipe statusPipe = new Pipe("status");
+        Pipe contentPipe = new Pipe("content");
+        MineUrlParameterRulesPipe miner = new MineUrlParameterRulesPipe(statusPipe, contentPipe, new SimpleUrlNormalizer(), 2);
+        
+        Map<String, Tap> sources = new HashMap<String, Tap>();
+        sources.put(statusPipe.getName(), statusIn);
+        sources.put(contentPipe.getName(), contentIn);
+        
+        FlowConnector flowConnector = new FlowConnector();
+        Flow flow = flowConnector.connect(sources, out, miner);
+        flow.complete();
+        
+        validateLength(flow, 1);
+        
+        TupleEntryIterator iter = flow.openSink();
+        TupleEntry entry = iter.next();
+        assertEquals("www.domain.com", entry.getString(MineUrlParameterRulesPipe.HOST_FN));
+        assertEquals("ref", entry.getString(MineUrlParameterRulesPipe.PARAMETER_FN));
+        assertEquals(2, entry.getInteger(MineUrlParameterRulesPipe.NUM_SAME_FN));
+        assertEquals(0, entry.getInteger(MineUrlParameterRulesPipe.NUM_DIFFERENT_FN));
+        iter.close();
+    }
+    
+    @Test
+    public void testNormalizingContent() throws Exception {
+        String url = "http://www.domain.com/page?id=1&sessid=a8f5f167f44f4964e6c998dee827110c&ref=home";
+        String content = "<html><head><link rel=\"canonical\" href=\"" + url.replace("&", "&amp;") + "\"></head>\n"
+                        + "<body>page 1 of 10, ref=home\n"
+                        + "<a href=\"/next?sessid=a8f5f167f44f4964e6c998dee827110c\">next</a>\n"
+                        + "generated 2012-10-01 12:34:56.789 (1349094896789)</body></html>";
+        
+        FetchedDatum datum = makeFetchedDatum(url, content);
+        assertEquals("<html><head><link rel=\"canonical\" href=\"\"></head> <body>page 1 of 10, ref= "
+                        + "<a href=\"/next?sessid=\">next</a> generated ()</body></html>",
+                        MineUrlParameterRulesPipe.normalizeContent(datum));
+        
+        // We don't touch content that isn't text.
+        datum = new FetchedDatum(url, url, System.currentTimeMillis(), new HttpHeaders(), new ContentBytes(content.getBytes()), "image/png", 0);
+        assertNull(MineUrlParameterRulesPipe.normalizeContent(datum));
+    }
+    
+    @Test
+    public void testIgnoringNoise() throws Exception {
+        Lfs statusIn = new Lfs(new SequenceFile(StatusDatum.FIELDS), "build/test/MineUrlParameterRulesPipeTest/noise/status", true);
+        Lfs contentIn = new Lfs(new SequenceFile(FetchedDatum.FIELDS), "build/test/MineUrlParameterRulesPipeTest/noise/content", true);
+        Lfs out = new Lfs(new SequenceFile(MineUrlParameterRulesPipe.RULE_FIELDS), "build/test/MineUrlParameterRulesPipeTest/noise/out", true);
+
+        // The sessid and ref parameters don't change the page, other than the page
+        // echoing its URL, the time it was generated, and links with the session ID.
+        TupleEntryCollector write = contentIn.openForWrite(new JobConf());
+        write.add(makeFetchedDatum("http://www.domain.com/page?id=1&sessid=0f3a9c2b7d1e4f6a8b5c&ref=main",
+                        "<link href=\"http://www.domain.com/page?id=1&amp;sessid=0f3a9c2b7d1e4f6a8b5c&amp;ref=main\">"
+                        + "page 1 <a href=\"/next?sessid=0f3a9c2b7d1e4f6a8b5c\">next</a> at 12:00:01 (1349092801)").getTuple());
+        write.add(makeFetchedDatum("http://www.domain.com/page?id=1&sessid=9e8d7c6b5a4f3e2d1c0b&ref=side",
+                        "<link href=\"http://www.domain.com/page?id=1&amp;sessid=9e8d7c6b5a4f3e2d1c0b&amp;ref=side\">"
+                        + "page 1 <a href=\"/next?sessid=9e8d7c6b5a4f3e2d1c0b\">next</a> at 12:00:02 (1349092802)").getTuple());
+        write.add(makeFetchedDatum("http://www.domain.com/page?id=1&sessid=1a2b3c4d5e6f7a8b9c0d&ref=side",
+                        "<link href=\"http://www.domain.com/page?id=1&amp;sessid=1a2b3c4d5e6f7a8b9c0d&amp;ref=side\">"
+                        + "page 1 <a href=\"/next?sessid=1a2b3c4d5e6f7a8b9c0d\">next</a> at 12:00:03 (1349092803)").getTuple());
+        write.add(makeFetchedDatum("http://www.domain.com/page?id=1&sessid=1a2b3c4d5e6f7a8b9c0d&ref=main",
+                        "<link href=\"http://www.domain.com/page?id=1&amp;sessid=1a2b3c4d5e6f7a8b9c0d&amp;ref=main\">"
+                        + "page 1 <a href=\"/next?sessid=1a2b3c4d5e6f7a8b9c0d\">next</a> at 12:00:04 (1349092804)").getTuple());
+        write.add(makeFetchedDatum("http://www.domain.com/page?id=1&sessid=0f3a9c2b7d1e4f6a8b5c&ref=side",
+                        "<link href=\"http://www.domain.com/page?id=1&amp;sessid=0f3a9c2b7d1e4f6a8b5c&amp;ref=side\">"
+                        + "page 1 <a href=\"/next?sessid=0f3a9c2b7d1e4f6a8b5c\">next</a> at 12:00:05 (1349092805)").getTuple());
+        write.close();
+        
+        write = statusIn.openForWrite(new JobConf());
+        write.close();
+        
+        Pipe statusPipe = new Pipe("status");
+        Pipe contentPipe = new Pipe("content");
+        MineUrlParameterRulesPipe miner = new MineUrlParameterRulesPipe(statusPipe, contentPipe, new SimpleUrlNormalizer(), 2);
+        
+        Map<String, Tap> sources = new HashMap<String, Tap>();
+        sources.put(statusPipe.getName(), statusIn);
+        sources.put(contentPipe.getName(), contentIn);
+        
+        FlowConnector flowConnector = new FlowConnector();
+        Flow flow = flowConnector.connect(sources, out, miner);
+        flow.complete();
+        
+        validateLength(flow, 2);
+        
+        Set<String> parameters = new HashSet<String>();
+        TupleEntryIterator iter = flow.openSink();
+        while (iter.hasNext()) {
+            TupleEntry entry = iter.next();
+            parameters.add(entry.getString(MineUrlParameterRulesPipe.PARAMETER_FN));
+            assertEquals(2, entry.getInteger(MineUrlParameterRulesPipe.NUM_SAME_FN));
+        }
+        
+        iter.close();
+        
+        assertTrue(parameters.contains("sessid"));
+        assertTrue(parameters.contains("ref"));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.pipes;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import bixo.datum.UrlDatum;
+import bixo.utils.SeenUrlsStore;
+import cascading.CascadingTestCase;
+import cascading.flow.Flow;
+import cascading.flow.FlowConnector;
+import cascading.pipe.Pipe;
+import cascading.scheme.SequenceFile;
+import cascading.tap.Lfs;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
+import cascading.tuple.TupleEntryIterator;
+
+@SuppressWarnings("deprecation")
+public class SeenUrlsPipeTest extends CascadingTestCase {
+
+    private static final String BASE_DIR = "build/test/SeenUrlsPipeTest/";
+    
+    private static final int NUM_PARTITIONS = 4;
+    
+    private SeenUrlsStore makeStore(String seenInputPath, String seenOutputPath) {
+        return new SeenUrlsStore(seenInputPath, seenOutputPath, NUM_PARTITIONS, 1000);
+    }
+    
+    private Flow runLoop(String inputPath, SeenUrlsStore store, String outputPath, String... urls) throws Exception {
+        Lfs in = new Lfs(new SequenceFile(UrlDatum.FIELDS), inputPath, true);
+        TupleEntryCollector write = in.openForWrite(new JobConf());
+        for (String url : urls) {
+            write.add(new UrlDatum(url).getTuple());
+        }
+        
+        write.close();
+        
+        SeenUrlsPipe seenUrlsPipe = new SeenUrlsPipe(new Pipe("urls"), store);
+        Lfs out = new Lfs(new SequenceFile(UrlDatum.FIELDS), outputPath, true);
+        
+        Flow flow = new FlowConnector().connect(in, out, seenUrlsPipe);
+        flow.complete();
+        return flow;
+    }
+    
+    private Set<String> getUrls(Flow flow) throws Exception {
+        Set<String> result = new HashSet<String>();
+        TupleEntryIterator iter = flow.openSink();
+        while (iter.hasNext()) {
+            TupleEntry entry = iter.next();
+            result.add(new UrlDatum(entry).getUrl());
+        }
+        
+        iter.close();
+        return result;
+    }
+    
+    @Test
+    public void testRemovingSeenUrls() throws Exception {
+        FileUtils.deleteDirectory(new File(BASE_DIR));
+        
+        // First loop has nothing saved, so we only lose the duplicate.
+        Flow flow = runLoop(BASE_DIR + "in1", makeStore(null, BASE_DIR + "seen1"), BASE_DIR + "out1",
+                        "http://domain.com/page1", "http://domain.com/page2", "http://domain.com/page1");
+        validateLength(flow, 2);
+        
+        // Second loop should only pass through the URLs that weren't in the first loop.
+        flow = runLoop(BASE_DIR + "in2", makeStore(BASE_DIR + "seen1", BASE_DIR + "seen2"), BASE_DIR + "out2",
+                        "http://domain.com/page1", "http://domain.com/page3", "http://domain.com/page4");
+        Set<String> urls = getUrls(flow);
+        assertEquals(2, urls.size());
+        assertTrue(urls.contains("http://domain.com/page3"));
+        assertTrue(urls.contains("http://domain.com/page4"));
+        
+        // The third loop gets every partition from the second one, including the ones
+        // that were carried forward from the first loop.
+        flow = runLoop(BASE_DIR + "in3", makeStore(BASE_DIR + "seen2", BASE_DIR + "seen3"), BASE_DIR + "out3",
+                        "http://domain.com/page1", "http://domain.com/page2", "http://domain.com/page3",
+                        "http://domain.com/page5");
+        urls = getUrls(flow);
+        assertEquals(1, urls.size());
+        assertTrue(urls.contains("http://domain.com/page5"));
+    }
+    
+    @Test
+    public void testLimitedFilterMemory() throws Exception {
+        FileUtils.deleteDirectory(new File(BASE_DIR));
+        
+        runLoop(BASE_DIR + "in1", makeStore(null, BASE_DIR + "seen1"), BASE_DIR + "out1",
+                        "http://domain.com/page1", "http://domain.com/page2", "http://domain.com/page3");
+        
+        // With no room for filters on the map side, seen URLs still get removed when
+        // they're added to the filter for their partition.
+        SeenUrlsStore store = makeStore(BASE_DIR + "seen1", BASE_DIR + "seen2");
+        store.setMaxLoadedBytes(0);
+        Flow flow = runLoop(BASE_DIR + "in2", store, BASE_DIR + "out2", "http://domain.com/page1", "http://domain.com/page4");
+        
+        Iterator<String> urls = getUrls(flow).iterator();
+        assertEquals("http://domain.com/page4", urls.next());
+        assertFalse(urls.hasNext());
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.robots;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import bixo.config.FetcherPolicy;
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.BaseFetchException;
+import bixo.fetcher.BaseFetcher;
+import bixo.robots.RobotRulesFetcher.RobotRulesCallback;
+import bixo.utils.ConfigUtils;
+
+public class RobotRulesFetcherTest {
+
+    private static final String ROBOTS_TXT = "User-agent: *\nDisallow: /private/\n";
+    
+    /**
+     * Fetcher that waits until the test lets it return each robots.txt file, and
+     * keeps track of how many fetches are in progress at the same time.
+     */
+    @SuppressWarnings("serial")
+    private static class BlockingFetcher extends BaseFetcher {
+        private Semaphore _started = new Semaphore(0);
+        private Semaphore _release = new Semaphore(0);
+        private AtomicInteger _numFetches = new AtomicInteger();
+        private AtomicInteger _numActive = new AtomicInteger();
+        private AtomicInteger _maxActive = new AtomicInteger();
+        
+        public BlockingFetcher() {
+            super(10, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        }
+        
+        @Override
+        public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
+            _numFetches.incrementAndGet();
+            int numActive = _numActive.incrementAndGet();
+            synchronized (_maxActive) {
+                _maxActive.set(Math.max(_maxActive.get(), numActive));
+            }
+            
+            _started.release();
+            
+            try {
+                _release.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                _numActive.decrementAndGet();
+            }
+            
+            String url = scoredUrl.getUrl();
+            return new FetchedDatum(url, url, System.currentTimeMillis(), new HttpHeaders(),
+                            new ContentBytes(ROBOTS_TXT.getBytes()), "text/plain", 0);
+        }
+
+        @Override
+        public void abort() {
+        }
+        
+        public void waitForStart() throws InterruptedException {
+            assertTrue("Fetch didn't start", _started.tryAcquire(5, TimeUnit.SECONDS));
+        }
+        
+        public void release(int numFetches) {
+            _release.release(numFetches);
+        }
+    }
+    
+    private static class SavingCallback implements RobotRulesCallback {
+        private volatile BaseRobotRules _rules;
+        private AtomicInteger _numCalls = new AtomicInteger();
+        
+        @Override
+        public void onRobotRules(BaseRobotRules rules) {
+            _rules = rules;
+            _numCalls.incrementAndGet();
+        }
+        
+        public BaseRobotRules getRules() {
+            return _rules;
+        }
+        
+        public int getNumCalls() {
+            return _numCalls.get();
+        }
+    }
+    
+    private static Thread startRequest(final RobotRulesFetcher fetcher, final String robotsUrl, final String hostAddress, final RobotRulesCallback callback) {
+        Thread result = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                try {
+                    fetcher.getRobotRules(new URL(robotsUrl), hostAddress, callback);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        
+        result.start();
+        return result;
+    }
+    
+    @Test
+    public void testLimitingFetchesPerIp() throws Exception {
+        BlockingFetcher fetcher = new BlockingFetcher();
+        RobotRulesFetcher robotsFetcher = new RobotRulesFetcher(fetcher, new SimpleRobotRulesParser(), null, 1);
+        
+        SavingCallback callback1 = new SavingCallback();
+        Thread t1 = startRequest(robotsFetcher, "http://sub1.domain.com/robots.txt", "1.2.3.4", callback1);
+        fetcher.waitForStart();
+
+        // Same IP address, so this gets queued, and we return right away.
+        SavingCallback callback2 = new SavingCallback();
+        robotsFetcher.getRobotRules(new URL("http://sub2.domain.com/robots.txt"), "1.2.3.4", callback2);
+        assertEquals(0, callback2.getNumCalls());
+        assertEquals(1, robotsFetcher.getNumQueued());
+        assertEquals(1, robotsFetcher.getNumDelayed());
+        
+        // Different IP address, so this fetch can start right away.
+        SavingCallback callback3 = new SavingCallback();
+        Thread t3 = startRequest(robotsFetcher, "http://www.other.com/robots.txt", "5.6.7.8", callback3);
+        fetcher.waitForStart();
+        assertEquals(2, fetcher._maxActive.get());
+        
+        // The first thread should handle the queued request, once its own fetch is done.
+        fetcher.release(3);
+        t1.join(5000);
+        t3.join(5000);
+        
+        assertEquals(1, callback1.getNumCalls());
+        assertEquals(1, callback2.getNumCalls());
+        assertEquals(1, callback3.getNumCalls());
+        assertEquals(3, fetcher._numFetches.get());
+        assertEquals(0, robotsFetcher.getNumQueued());
+    }
+    
+    @Test
+    public void testTerminateDefersQueuedRequests() throws Exception {
+        BlockingFetcher fetcher = new BlockingFetcher();
+        RobotRulesFetcher robotsFetcher = new RobotRulesFetcher(fetcher, new SimpleRobotRulesParser(), null, 1);
+        
+        SavingCallback callback1 = new SavingCallback();
+        Thread t1 = startRequest(robotsFetcher, "http://sub1.domain.com/robots.txt", "1.2.3.4", callback1);
+        fetcher.waitForStart();
+        
+        SavingCallback callback2 = new SavingCallback();
+        robotsFetcher.getRobotRules(new URL("http://sub2.domain.com/robots.txt"), "1.2.3.4", callback2);
+        
+        robotsFetcher.terminate();
+        assertEquals(1, callback2.getNumCalls());
+        assertTrue(callback2.getRules().isDeferVisits());
+        
+        // Requests after termination also get deferred.
+        SavingCallback callback3 = new SavingCallback();
+        robotsFetcher.getRobotRules(new URL("http://www.other.com/robots.txt"), "5.6.7.8", callback3);
+        assertTrue(callback3.getRules().isDeferVisits());
+        
+        fetcher.release(1);
+        t1.join(5000);
+        assertEquals(1, callback1.getNumCalls());
+        assertFalse(callback1.getRules().isDeferVisits());
+        assertEquals(1, fetcher._numFetches.get());
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.robots;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.http.HttpStatus;
+import org.junit.Test;
+
+public class RobotRulesStoreTest {
+
+    private static final String ROBOTS_TXT = "User-agent: *\r\n"
+        + "Crawl-delay: 10\r\n"
+        + "Disallow: /private/\r\n"
+        + "Allow: /private/public.html\r\n"
+        + "Sitemap: http://www.domain.com/sitemap.xml\r\n";
+    
+    private static BaseRobotRules parse(String content) {
+        return new SimpleRobotRulesParser().parseContent("http://www.domain.com/robots.txt", content.getBytes(), "text/plain", "bixo");
+    }
+    
+    @Test
+    public void testSerializingRules() throws Exception {
+        SimpleRobotRules rules = (SimpleRobotRules)parse(ROBOTS_TXT);
+        
+        DataOutputBuffer out = new DataOutputBuffer();
+        rules.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        SimpleRobotRules copy = new SimpleRobotRules();
+        copy.readFields(in);
+        
+        assertEquals(rules.getMode(), copy.getMode());
+        assertEquals(rules.getCrawlDelay(), copy.getCrawlDelay());
+        assertEquals(rules.getSitemaps(), copy.getSitemaps());
+        assertFalse(copy.isAllowed("http://www.domain.com/private/index.html"));
+        assertTrue(copy.isAllowed("http://www.domain.com/index.html"));
+    }
+    
+    @Test
+    public void testMakeKey() throws Exception {
+        assertEquals("http://www.domain.com", RobotRulesStore.makeKey(new URL("http://WWW.Domain.com/robots.txt")));
+        assertEquals("https://www.domain.com:8443", RobotRulesStore.makeKey(new URL("https://www.domain.com:8443/robots.txt")));
+    }
+    
+    @Test
+    public void testStaleAndCacheable() throws Exception {
+        RobotRulesStore store = new RobotRulesStore(null, null, 1000L);
+        long now = System.currentTimeMillis();
+        
+        store.put("http://www.domain.com", new CachedRobotRules(now, HttpStatus.SC_OK, parse(ROBOTS_TXT), null, "\"abc\""));
+        CachedRobotRules cached = store.get("http://www.domain.com");
+        assertNotNull(cached);
+        assertEquals("\"abc\"", cached.getETag());
+        assertTrue(cached.hasValidators());
+        assertFalse(store.isStale(cached, now + 999));
+        assertTrue(store.isStale(cached, now + 1000));
+        
+        // Server errors mean we defer, and we don't want to remember that.
+        BaseRobotRules deferred = new SimpleRobotRulesParser().failedFetch(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        store.put("http://www.other.com", new CachedRobotRules(now, HttpStatus.SC_SERVICE_UNAVAILABLE, deferred));
+        assertNull(store.get("http://www.other.com"));
+        
+        // But a missing robots.txt is fine.
+        BaseRobotRules missing = new SimpleRobotRulesParser().failedFetch(HttpStatus.SC_NOT_FOUND);
+        store.put("http://www.other.com", new CachedRobotRules(now, HttpStatus.SC_NOT_FOUND, missing));
+        assertTrue(store.get("http://www.other.com").getRules().isAllowAll());
+    }
+    
+    @Test
+    public void testSavingAndLoading() throws Exception {
+        File baseDir = new File("build/test/RobotRulesStoreTest/testSavingAndLoading");
+        FileUtils.deleteDirectory(baseDir);
+        String firstDir = new File(baseDir, "loop-1").getAbsolutePath();
+        String secondDir = new File(baseDir, "loop-2").getAbsolutePath();
+        
+        Configuration conf = new Configuration();
+        long now = System.currentTimeMillis();
+        
+        RobotRulesStore store = new RobotRulesStore(null, firstDir);
+        store.open(conf);
+        store.put("http://www.domain.com", new CachedRobotRules(now, HttpStatus.SC_OK, parse(ROBOTS_TXT), "Mon, 01 Oct 2012 00:00:00 GMT", null));
+        store.close(conf);
+        
+        store = new RobotRulesStore(firstDir, secondDir);
+        store.open(conf);
+        CachedRobotRules cached = store.get("http://www.domain.com");
+        assertEquals(now, cached.getFetchTime());
+        assertEquals("Mon, 01 Oct 2012 00:00:00 GMT", cached.getLastModified());
+        assertEquals(10 * 1000L, cached.getRules().getCrawlDelay());
+        assertFalse(cached.getRules().isAllowed("http://www.domain.com/private/index.html"));
+        store.close(conf);
+        
+        // Entries get carried forward to the next loop.
+        store = new RobotRulesStore(secondDir, null);
+        store.open(conf);
+        assertNotNull(store.get("http://www.domain.com"));
+        assertNull(store.get("http://www.other.com"));
+        store.close(conf);
+        
+        // Nothing but the committed output is left behind.
+        assertTrue(new File(firstDir, "part-00000").isDirectory());
+        assertEquals(0, new File(firstDir, "_temporary").list().length);
+    }
+    
+    @Test
+    public void testCarryingForwardPartitions() throws Exception {
+        File baseDir = new File("build/test/RobotRulesStoreTest/testCarryingForwardPartitions");
+        FileUtils.deleteDirectory(baseDir);
+        String firstDir = new File(baseDir, "loop-1").getAbsolutePath();
+        String secondDir = new File(baseDir, "loop-2").getAbsolutePath();
+        String thirdDir = new File(baseDir, "loop-3").getAbsolutePath();
+        long now = System.currentTimeMillis();
+        
+        // Two tasks, each of which saves what it used.
+        save(null, firstDir, 0, 2, "http://www.a.com", now - 1000L);
+        save(null, firstDir, 1, 2, "http://www.b.com", now);
+        
+        // In the next loop, the second task refetches www.a.com, but doesn't use www.b.com
+        save(firstDir, secondDir, 0, 2, null, 0);
+        save(firstDir, secondDir, 1, 2, "http://www.a.com", now);
+        
+        // www.a.com was carried forward by both tasks, and the newest entry wins.
+        RobotRulesStore store = new RobotRulesStore(secondDir, thirdDir);
+        store.open(conf(0, 1));
+        assertEquals(now, store.get("http://www.a.com").getFetchTime());
+        assertEquals(now, store.get("http://www.b.com").getFetchTime());
+        store.close(conf(0, 1));
+        
+        // And with a single task, it carries forward both partitions.
+        store = new RobotRulesStore(thirdDir, null);
+        store.open(conf(0, 1));
+        assertNotNull(store.get("http://www.a.com"));
+        assertNotNull(store.get("http://www.b.com"));
+        store.close(conf(0, 1));
+    }
+    
+    @Test
+    public void testDroppingOldEntries() throws Exception {
+        File baseDir = new File("build/test/RobotRulesStoreTest/testDroppingOldEntries");
+        FileUtils.deleteDirectory(baseDir);
+        String firstDir = new File(baseDir, "loop-1").getAbsolutePath();
+        String secondDir = new File(baseDir, "loop-2").getAbsolutePath();
+        
+        save(null, firstDir, 0, 1, "http://www.domain.com", System.currentTimeMillis() - (8 * RobotRulesStore.DEFAULT_MAX_AGE));
+        save(firstDir, secondDir, 0, 1, null, 0);
+        
+        RobotRulesStore store = new RobotRulesStore(secondDir, null);
+        store.open(conf(0, 1));
+        assertNull(store.get("http://www.domain.com"));
+        store.close(conf(0, 1));
+    }
+    
+    @Test
+    public void testCommittingOnce() throws Exception {
+        File baseDir = new File("build/test/RobotRulesStoreTest/testCommittingOnce");
+        FileUtils.deleteDirectory(baseDir);
+        String outputDir = new File(baseDir, "loop-1").getAbsolutePath();
+        long now = System.currentTimeMillis();
+        
+        Configuration conf = conf(0, 1);
+        conf.set("mapred.task.id", "attempt_201210010000_0001_r_000000_0");
+        RobotRulesStore store = new RobotRulesStore(null, outputDir);
+        store.open(conf);
+        store.put("http://www.a.com", new CachedRobotRules(now, HttpStatus.SC_OK, parse(ROBOTS_TXT)));
+        store.close(conf);
+        
+        // A speculative attempt of the same task doesn't clobber the first one's output.
+        conf.set("mapred.task.id", "attempt_201210010000_0001_r_000000_1");
+        store = new RobotRulesStore(null, outputDir);
+        store.open(conf);
+        store.put("http://www.b.com", new CachedRobotRules(now, HttpStatus.SC_OK, parse(ROBOTS_TXT)));
+        store.close(conf);
+        
+        assertEquals(0, new File(outputDir, "_temporary").list().length);
+        
+        // A partial file from a failed attempt gets ignored.
+        File failedDir = new File(outputDir, "_temporary/attempt_201210010000_0001_r_000001_0/part-00001");
+        failedDir.mkdirs();
+        new File(failedDir, "data").createNewFile();
+        
+        store = new RobotRulesStore(outputDir, null);
+        store.open(conf);
+        assertNotNull(store.get("http://www.a.com"));
+        assertNull(store.get("http://www.b.com"));
+        store.close(conf);
+    }
+    
+    private static Configuration conf(int partition, int numPartitions) {
+        Configuration conf = new Configuration();
+        conf.setInt("mapred.task.partition", partition);
+        conf.setInt("mapred.reduce.tasks", numPartitions);
+        return conf;
+    }
+    
+    private static void save(String inputDir, String outputDir, int partition, int numPartitions, String key, long fetchTime) throws Exception {
+        Configuration conf = conf(partition, numPartitions);
+        RobotRulesStore store = new RobotRulesStore(inputDir, outputDir);
+        store.open(conf);
+        if (key != null) {
+            store.put(key, new CachedRobotRules(fetchTime, HttpStatus.SC_OK, parse(ROBOTS_TXT)));
+        }
+        store.close(conf);
+    }
+}
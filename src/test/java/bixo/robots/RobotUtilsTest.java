@@ -28,6 +28,7 @@ import junit.framework.Assert;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.mortbay.jetty.HttpException;
+import org.mortbay.jetty.Request;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.handler.AbstractHandler;
 
@@ -67,6 +68,33 @@ public class RobotUtilsTest {
         }
     }
 
+    private static class ConditionalRobotsResponseHandler extends AbstractHandler {
+        private static final String ETAG = "\"robots-v1\"";
+        
+        private int _numFull = 0;
+        private int _numNotModified = 0;
+        
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            if (ETAG.equals(request.getHeader("If-None-Match"))) {
+                _numNotModified += 1;
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                ((Request)request).setHandled(true);
+                return;
+            }
+            
+            _numFull += 1;
+            byte[] bytes = "User-agent: *\r\nDisallow: /private/\r\n".getBytes("UTF-8");
+            response.setContentLength(bytes.length);
+            response.setContentType("text/plain");
+            response.setHeader("ETag", ETAG);
+            response.setStatus(200);
+            
+            OutputStream os = response.getOutputStream();
+            os.write(bytes);
+        }
+    }
+
     /**
      * Verify that when the web server has a circular redirect bug for robots.txt, we
      * treat it like "no robots".
@@ -105,6 +133,39 @@ public class RobotUtilsTest {
         }
     }
     
+    @Test
+    public void testConditionalFetchWithStore() throws Exception {
+        BaseFetcher fetcher = RobotUtils.createFetcher(ConfigUtils.BIXO_TEST_AGENT, 1);
+        BaseRobotsParser parser = new SimpleRobotRulesParser();
+        URL robotsUrl = new URL("http://localhost:8089/robots.txt");
+        
+        SimulationWebServerForTests webServer = new SimulationWebServerForTests();
+        ConditionalRobotsResponseHandler handler = new ConditionalRobotsResponseHandler();
+        Server server = webServer.startServer(handler, 8089);
+        
+        try {
+            RobotRulesStore store = new RobotRulesStore(null, null);
+            BaseRobotRules rules = RobotUtils.getRobotRules(fetcher, parser, robotsUrl, store);
+            Assert.assertFalse(rules.isAllowed("http://localhost:8089/private/page.html"));
+            
+            // Rules are fresh, so no fetch.
+            rules = RobotUtils.getRobotRules(fetcher, parser, robotsUrl, store);
+            Assert.assertFalse(rules.isAllowed("http://localhost:8089/private/page.html"));
+            Assert.assertEquals(1, handler._numFull);
+            Assert.assertEquals(0, handler._numNotModified);
+            
+            // With a zero max age, rules are always stale, so we do a conditional GET.
+            store = new RobotRulesStore(null, null, 0);
+            RobotUtils.getRobotRules(fetcher, parser, robotsUrl, store);
+            rules = RobotUtils.getRobotRules(fetcher, parser, robotsUrl, store);
+            Assert.assertFalse(rules.isAllowed("http://localhost:8089/private/page.html"));
+            Assert.assertEquals(2, handler._numFull);
+            Assert.assertEquals(1, handler._numNotModified);
+        } finally {
+            server.stop();
+        }
+    }
+    
     @Test
     public void testMatchAgainstEmailAddress() throws Exception {
         // The "crawler@domain.com" email address shouldn't trigger a match against the
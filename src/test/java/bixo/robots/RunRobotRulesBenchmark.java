@@ -0,0 +1,230 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.robots;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Micro-benchmark for checking URLs against robot rules. For each robots.txt file, it
+ * compares the old approach (create a URL, decode the path, then scan the rules in order
+ * with startsWith) against the compiled rules, both via isAllowed(url) and via
+ * isAllowedPath(path) for when the path has already been extracted.
+ * 
+ * By default it uses the robots.txt files in the test resources, plus a generated file
+ * with lots of rules (like you'd see from a big news or e-commerce site). You can also
+ * pass in paths to real-world robots.txt files.
+ * 
+ * Usage: RunRobotRulesBenchmark [robots.txt file...]
+ */
+public class RunRobotRulesBenchmark {
+
+    private static final String ROBOT_NAME = "bixobot";
+    private static final int NUM_URLS = 10000;
+    private static final int NUM_ITERATIONS = 50;
+    private static final int NUM_GENERATED_RULES = 2000;
+    
+    private static final String[] RESOURCE_FILES = {
+        "/robots/many-user-agents.txt",
+        "/robots/twitter.com-robots.txt",
+        "/robots/extended-standard-robots.txt",
+        "/robots/www.flot.com-robots.txt",
+    };
+    
+    private static class Rule {
+        private String _prefix;
+        private boolean _allow;
+        
+        public Rule(String prefix, boolean allow) {
+            _prefix = prefix;
+            _allow = allow;
+        }
+    }
+    
+    // Extract the rules (in order) from the serialized form of the rules.
+    private static List<Rule> getRules(SimpleRobotRules rules) throws Exception {
+        DataOutputBuffer out = new DataOutputBuffer();
+        rules.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        
+        in.readByte();
+        WritableUtils.readVLong(in);
+        in.readBoolean();
+        int numSitemaps = WritableUtils.readVInt(in);
+        for (int i = 0; i < numSitemaps; i++) {
+            Text.readString(in);
+        }
+        
+        List<Rule> result = new ArrayList<Rule>();
+        int numRules = WritableUtils.readVInt(in);
+        for (int i = 0; i < numRules; i++) {
+            String prefix = Text.readString(in);
+            result.add(new Rule(prefix, in.readBoolean()));
+        }
+        
+        return result;
+    }
+    
+    // What SimpleRobotRules used to do.
+    private static boolean isAllowedLinearScan(List<Rule> rules, String url) {
+        String path;
+        try {
+            path = new URL(url).getPath();
+            if ((path == null) || (path.equals(""))) {
+                path = "/";
+            } else {
+                path = URLDecoder.decode(path, "UTF-8").toLowerCase();
+            }
+        } catch (Exception e) {
+            path = "/";
+        }
+        
+        if (path.equals("/robots.txt")) {
+            return true;
+        }
+        
+        for (Rule rule : rules) {
+            if (path.startsWith(rule._prefix)) {
+                return rule._allow;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static String makeGeneratedRobots(Random rand) {
+        StringBuilder result = new StringBuilder("User-agent: *\r\n");
+        for (int i = 0; i < NUM_GENERATED_RULES; i++) {
+            String directive = rand.nextInt(4) == 0 ? "Allow" : "Disallow";
+            result.append(String.format("%s: /section-%d/page-%d/\r\n", directive, rand.nextInt(100), i));
+        }
+        
+        return result.toString();
+    }
+    
+    private static List<String> makeUrls(List<Rule> rules, Random rand) {
+        List<String> result = new ArrayList<String>(NUM_URLS);
+        for (int i = 0; i < NUM_URLS; i++) {
+            String path;
+            if (!rules.isEmpty() && rand.nextBoolean()) {
+                // Something that (probably) matches a rule.
+                path = rules.get(rand.nextInt(rules.size()))._prefix.replace("*", "x").replace("$", "");
+                path = path + "item-" + rand.nextInt(1000) + ".html";
+            } else {
+                path = String.format("/section-%d/article-%d.html", rand.nextInt(100), rand.nextInt(100000));
+            }
+            
+            if (!path.startsWith("/")) {
+                path = "/" + path;
+            }
+            
+            if (rand.nextInt(4) == 0) {
+                path = path + "?id=" + rand.nextInt(1000);
+            }
+            
+            result.add("http://www.domain.com" + path);
+        }
+        
+        return result;
+    }
+    
+    private static void runBenchmark(String name, String content) throws Exception {
+        SimpleRobotRulesParser parser = new SimpleRobotRulesParser();
+        BaseRobotRules baseRules = parser.parseContent("http://www.domain.com/robots.txt", content.getBytes("UTF-8"), "text/plain", ROBOT_NAME);
+        if (!(baseRules instanceof SimpleRobotRules)) {
+            return;
+        }
+        
+        SimpleRobotRules rules = (SimpleRobotRules)baseRules;
+        List<Rule> ruleList = getRules(rules);
+        Random rand = new Random(1L);
+        List<String> urls = makeUrls(ruleList, rand);
+        List<String> paths = new ArrayList<String>(urls.size());
+        for (String url : urls) {
+            paths.add(SimpleRobotRules.getPath(url));
+        }
+        
+        // Warm up all of the code paths before timing.
+        int numAllowed = 0;
+        for (String url : urls) {
+            numAllowed += isAllowedLinearScan(ruleList, url) ? 1 : 0;
+            numAllowed += rules.isAllowed(url) ? 1 : 0;
+        }
+        
+        long startTime = System.nanoTime();
+        for (int i = 0; i < NUM_ITERATIONS; i++) {
+            for (String url : urls) {
+                numAllowed += isAllowedLinearScan(ruleList, url) ? 1 : 0;
+            }
+        }
+        long scanTime = System.nanoTime() - startTime;
+        
+        startTime = System.nanoTime();
+        for (int i = 0; i < NUM_ITERATIONS; i++) {
+            for (String url : urls) {
+                numAllowed += rules.isAllowed(url) ? 1 : 0;
+            }
+        }
+        long urlTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < NUM_ITERATIONS; i++) {
+            for (String path : paths) {
+                numAllowed += rules.isAllowedPath(path) ? 1 : 0;
+            }
+        }
+        long pathTime = System.nanoTime() - startTime;
+
+        long numChecks = (long)NUM_ITERATIONS * urls.size();
+        System.out.println(String.format("%s (%d rules, %d allowed)", name, ruleList.size(), numAllowed));
+        System.out.println(String.format("  Linear scan: %dns/url", scanTime / numChecks));
+        System.out.println(String.format("  Compiled, isAllowed(url): %dns/url", urlTime / numChecks));
+        System.out.println(String.format("  Compiled, isAllowedPath(path): %dns/url", pathTime / numChecks));
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            for (String filename : args) {
+                runBenchmark(filename, FileUtils.readFileToString(new File(filename), "UTF-8"));
+            }
+        } else {
+            for (String resource : RESOURCE_FILES) {
+                InputStream is = RunRobotRulesBenchmark.class.getResourceAsStream(resource);
+                try {
+                    runBenchmark(resource, IOUtils.toString(is, "UTF-8"));
+                } finally {
+                    is.close();
+                }
+            }
+            
+            runBenchmark("generated", makeGeneratedRobots(new Random(1L)));
+        }
+    }
+}
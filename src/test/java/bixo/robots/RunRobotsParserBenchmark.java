@@ -0,0 +1,204 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.robots;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.StringTokenizer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Micro-benchmark for parsing robots.txt files. For each file in the corpus it reports
+ * the time per parse and the throughput of SimpleRobotRulesParser, along with the time
+ * it takes just to decode the content into a string and split it into trimmed, lower-cased
+ * lines (which is what the parser used to do before any per-line work).
+ * 
+ * The corpus is the robots.txt files in the test resources, plus generated files for the
+ * cases we care about: a big file with lots of agents and rules (with our agent near the
+ * end), the same file wrapped in HTML, a UTF-16 version, and a file where our agent's block
+ * is followed by megabytes of junk. You can also pass in paths to real-world files.
+ * 
+ * Usage: RunRobotsParserBenchmark [robots.txt file...]
+ */
+public class RunRobotsParserBenchmark {
+
+    private static final String ROBOT_NAME = "bixobot";
+    private static final long TARGET_BENCHMARK_NANOS = 1000L * 1000L * 1000L;
+    
+    private static final String[] RESOURCE_FILES = {
+        "/robots/many-user-agents.txt",
+        "/robots/twitter.com-robots.txt",
+        "/robots/extended-standard-robots.txt",
+        "/robots/www.flot.com-robots.txt",
+        "/robots/robots-with-bom.txt",
+        "/robots/directive-typos-robots.txt",
+        "/robots/format-errors-robots.txt",
+        "/robots/sitemap-robots.txt",
+    };
+    
+    private static class CorpusEntry {
+        private String _name;
+        private byte[] _content;
+        private String _contentType;
+        
+        public CorpusEntry(String name, byte[] content, String contentType) {
+            _name = name;
+            _content = content;
+            _contentType = contentType;
+        }
+    }
+    
+    private static String makeManyAgents(Random rand, int numAgents, int rulesPerAgent) {
+        StringBuilder result = new StringBuilder("# Generated robots.txt file\r\n\r\n");
+        for (int i = 0; i < numAgents; i++) {
+            // Put our agent near the end, so we have to get through most of the file.
+            String agent = (i == numAgents - 2) ? ROBOT_NAME : "otherbot-" + i;
+            result.append("User-agent: " + agent + "\r\n");
+            for (int j = 0; j < rulesPerAgent; j++) {
+                String directive = rand.nextInt(4) == 0 ? "Allow" : "Disallow";
+                result.append(String.format("%s: /section-%d/page-%d/    # rule %d\r\n", directive, rand.nextInt(100), j, j));
+            }
+            
+            result.append("Crawl-delay: " + rand.nextInt(5) + "\r\n\r\n");
+        }
+        
+        result.append("Sitemap: http://www.domain.com/sitemap.xml\r\n");
+        return result.toString();
+    }
+    
+    private static String makeHtmlWrapped(String robotsTxt) {
+        return "<html><head><title>robots.txt</title></head>\n<body>\n"
+            + robotsTxt.replaceAll("\r\n", "<br>\r\n")
+            + "</body>\n</html>\n";
+    }
+    
+    private static String makeJunkAfterBlock(Random rand, int numBytes) {
+        StringBuilder result = new StringBuilder();
+        result.append("User-agent: " + ROBOT_NAME + "\nDisallow: /private/\n\nUser-agent: *\n");
+        
+        while (result.length() < numBytes) {
+            result.append("<!-- junk ");
+            for (int i = 0; i < 10; i++) {
+                result.append(Long.toHexString(rand.nextLong()));
+            }
+            
+            result.append(" -->\n");
+        }
+        
+        return result.toString();
+    }
+    
+    private static List<CorpusEntry> makeCorpus(String[] args) throws Exception {
+        List<CorpusEntry> result = new ArrayList<CorpusEntry>();
+        if (args.length > 0) {
+            for (String filename : args) {
+                result.add(new CorpusEntry(filename, FileUtils.readFileToByteArray(new File(filename)), "text/plain"));
+            }
+            
+            return result;
+        }
+        
+        for (String resource : RESOURCE_FILES) {
+            InputStream is = RunRobotsParserBenchmark.class.getResourceAsStream(resource);
+            try {
+                result.add(new CorpusEntry(resource, IOUtils.toByteArray(is), "text/plain"));
+            } finally {
+                is.close();
+            }
+        }
+        
+        Random rand = new Random(1L);
+        String manyAgents = makeManyAgents(rand, 100, 50);
+        result.add(new CorpusEntry("generated: many agents", manyAgents.getBytes("UTF-8"), "text/plain"));
+        result.add(new CorpusEntry("generated: html wrapped", makeHtmlWrapped(manyAgents).getBytes("UTF-8"), "text/html"));
+        result.add(new CorpusEntry("generated: utf-16", ("﻿" + manyAgents).getBytes("UTF-16LE"), "text/plain"));
+        result.add(new CorpusEntry("generated: junk after block", makeJunkAfterBlock(rand, 2 * 1024 * 1024).getBytes("UTF-8"), "text/plain"));
+        
+        return result;
+    }
+    
+    // What SimpleRobotRulesParser used to do before tokenizing each line.
+    private static int splitLines(byte[] content) throws Exception {
+        String contentAsStr = new String(content, "us-ascii");
+        StringTokenizer lineParser = new StringTokenizer(contentAsStr, "\n\r\u0085  ");
+        int result = 0;
+        while (lineParser.hasMoreTokens()) {
+            String line = lineParser.nextToken();
+            int hashPos = line.indexOf("#");
+            if (hashPos >= 0) {
+                line = line.substring(0, hashPos);
+            }
+            
+            result += line.trim().toLowerCase().length();
+        }
+        
+        return result;
+    }
+    
+    private static int getNumIterations(CorpusEntry entry, SimpleRobotRulesParser parser) {
+        long startTime = System.nanoTime();
+        int numIterations = 0;
+        while (System.nanoTime() - startTime < TARGET_BENCHMARK_NANOS / 10) {
+            parser.parseContent("http://www.domain.com/robots.txt", entry._content, entry._contentType, ROBOT_NAME);
+            numIterations += 1;
+        }
+        
+        return Math.max(1, numIterations * 10);
+    }
+    
+    private static void runBenchmark(CorpusEntry entry) throws Exception {
+        SimpleRobotRulesParser parser = new SimpleRobotRulesParser();
+        
+        // Warms up the code, and figures out how many iterations to run.
+        int numIterations = getNumIterations(entry, parser);
+        
+        long startTime = System.nanoTime();
+        int total = 0;
+        for (int i = 0; i < numIterations; i++) {
+            BaseRobotRules rules = parser.parseContent("http://www.domain.com/robots.txt", entry._content, entry._contentType, ROBOT_NAME);
+            total += rules.isAllowed("http://www.domain.com/private/page.html") ? 1 : 0;
+        }
+        long parseTime = System.nanoTime() - startTime;
+        
+        startTime = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            total += splitLines(entry._content);
+        }
+        long splitTime = System.nanoTime() - startTime;
+        
+        double mbParsed = (double)entry._content.length * numIterations / (1024.0 * 1024.0);
+        System.out.println(String.format("%s (%d bytes, %d)", entry._name, entry._content.length, total));
+        System.out.println(String.format("  Parse: %dus/file, %.1fMB/sec", parseTime / numIterations / 1000, mbParsed / (parseTime / 1e9)));
+        System.out.println(String.format("  Decode and split lines: %dus/file", splitTime / numIterations / 1000));
+    }
+    
+    public static void main(String[] args) throws Exception {
+        // Don't measure the time spent logging warnings about bad files.
+        Logger.getLogger(SimpleRobotRulesParser.class).setLevel(Level.ERROR);
+        
+        for (CorpusEntry entry : makeCorpus(args)) {
+            runBenchmark(entry);
+        }
+    }
+}
@@ -33,6 +33,7 @@ import junit.framework.Assert;
 import org.junit.Test;
 
 import bixo.config.BaseFetchJobPolicy;
+import bixo.urls.ParsedUrl;
 
 
 public class SimpleRobotRulesParserTest {
@@ -53,8 +54,7 @@ public class SimpleRobotRulesParserTest {
         assertTrue(rules.isAllowed("http://www.domain.com/anypage.html"));
     }
     
-    // TODO - reenable this test when wildcards (the '*' in the disallow) are supported.
-    // @Test
+    @Test
     public void testQueryParamInDisallow() throws Exception {
         final String simpleRobotsTxt = "User-agent: *" + CRLF
         + "Disallow: /index.cfm?fuseaction=sitesearch.results*";
@@ -63,6 +63,70 @@ public class SimpleRobotRulesParserTest {
         assertFalse(rules.isAllowed("http://searchservice.domain.com/index.cfm?fuseaction=sitesearch.results&type=People&qry=california&pg=2"));
     }
     
+    @Test
+    public void testWildcards() throws Exception {
+        final String simpleRobotsTxt = "User-agent: *" + CRLF
+        + "Disallow: /*.php$" + CRLF
+        + "Disallow: /private*/secret" + CRLF
+        + "Disallow: /*?sessionid=" + CRLF;
+        
+        BaseRobotRules rules = createRobotRules("Any-darn-crawler", simpleRobotsTxt.getBytes());
+        assertFalse(rules.isAllowed("http://www.domain.com/index.php"));
+        assertFalse(rules.isAllowed("http://www.domain.com/dir/index.php"));
+        assertTrue(rules.isAllowed("http://www.domain.com/index.php?page=1"));
+        assertTrue(rules.isAllowed("http://www.domain.com/index.php5"));
+        
+        assertFalse(rules.isAllowed("http://www.domain.com/private/secret"));
+        assertFalse(rules.isAllowed("http://www.domain.com/private-stuff/secret/page.html"));
+        assertTrue(rules.isAllowed("http://www.domain.com/private/public"));
+        
+        assertFalse(rules.isAllowed("http://www.domain.com/page.html?sessionid=1234"));
+        assertTrue(rules.isAllowed("http://www.domain.com/page.html?id=1234"));
+    }
+    
+    @Test
+    public void testLongestMatch() throws Exception {
+        // Order doesn't matter - the longest (most specific) rule wins.
+        final String simpleRobotsTxt = "User-agent: *" + CRLF
+        + "Disallow: /" + CRLF
+        + "Allow: /public/" + CRLF
+        + "Disallow: /public/private/" + CRLF
+        + "Allow: /*.html$" + CRLF
+        + "Disallow: /page" + CRLF
+        + "Allow: /page" + CRLF;
+        
+        BaseRobotRules rules = createRobotRules("Any-darn-crawler", simpleRobotsTxt.getBytes());
+        assertFalse(rules.isAllowed("http://www.domain.com/"));
+        assertFalse(rules.isAllowed("http://www.domain.com/other/stuff"));
+        assertTrue(rules.isAllowed("http://www.domain.com/public/stuff"));
+        assertFalse(rules.isAllowed("http://www.domain.com/public/private/stuff"));
+        
+        // "/*.html$" is longer than "/public/", but shorter than "/public/private/"
+        assertTrue(rules.isAllowed("http://www.domain.com/other/stuff.html"));
+        assertFalse(rules.isAllowed("http://www.domain.com/public/private/stuff.html"));
+        
+        // Allow wins when rules are the same length.
+        assertTrue(rules.isAllowed("http://www.domain.com/page"));
+    }
+    
+    @Test
+    public void testAlreadyExtractedPath() throws Exception {
+        final String simpleRobotsTxt = "User-agent: *" + CRLF
+        + "Disallow: /Private/" + CRLF;
+        
+        SimpleRobotRules rules = (SimpleRobotRules)createRobotRules("Any-darn-crawler", simpleRobotsTxt.getBytes());
+        String path = SimpleRobotRules.getPath("http://www.domain.com/PRIVATE/%7Euser/page.html#anchor");
+        assertEquals("/private/~user/page.html", path);
+        assertFalse(rules.isAllowedPath(path));
+        assertTrue(rules.isAllowedPath(SimpleRobotRules.getPath("http://www.domain.com?private")));
+        assertEquals("/", SimpleRobotRules.getPath("not a url"));
+        
+        ParsedUrl url = ParsedUrl.parse("http://www.domain.com/PRIVATE/%7Euser/page.html#anchor");
+        assertEquals(path, SimpleRobotRules.getPath(url));
+        assertFalse(rules.isAllowed(url));
+        assertTrue(rules.isAllowed(ParsedUrl.parse("http://www.domain.com?private")));
+    }
+    
     @Test
     public void testCommentedOutLines() throws MalformedURLException {
         final String simpleRobotsTxt =  "#user-agent: testAgent" + LF
@@ -648,6 +712,71 @@ public class SimpleRobotRulesParserTest {
         assertFalse("Disallow match against *", rules.isAllowed("http://www.domain.com/profile"));
     }
     
+    @Test
+    public void testRobotsWithUtf16BOM() throws Exception {
+        final String robotsTxt = "\uFEFFUser-agent: *" + CRLF
+        + "Disallow: /profile" + CRLF;
+
+        BaseRobotRules rules = createRobotRules("foobot", robotsTxt.getBytes("UTF-16LE"));
+        assertFalse(rules.isAllowed("http://www.domain.com/profile"));
+        assertTrue(rules.isAllowed("http://www.domain.com/index.html"));
+
+        rules = createRobotRules("foobot", robotsTxt.getBytes("UTF-16BE"));
+        assertFalse(rules.isAllowed("http://www.domain.com/profile"));
+    }
+    
+    @Test
+    public void testCharsetFromContentType() throws Exception {
+        final String robotsTxt = "User-agent: *" + CRLF
+        + "Disallow: /caf\u00E9" + CRLF;
+
+        SimpleRobotRulesParser robotParser = new SimpleRobotRulesParser();
+        BaseRobotRules rules = robotParser.parseContent(FAKE_ROBOTS_URL, robotsTxt.getBytes("ISO-8859-1"), 
+                        "text/plain; charset=ISO-8859-1", "foobot");
+        assertFalse(rules.isAllowed("http://www.domain.com/caf%C3%A9"));
+        assertTrue(rules.isAllowed("http://www.domain.com/cafe"));
+        
+        // With no charset, we assume UTF-8
+        rules = createRobotRules("foobot", robotsTxt.getBytes("UTF-8"));
+        assertFalse(rules.isAllowed("http://www.domain.com/caf%C3%A9"));
+    }
+    
+    @Test
+    public void testMaxParseBytes() throws Exception {
+        final String robotsTxt = "User-agent: *" + CRLF
+        + "Disallow: /first" + CRLF
+        + "Disallow: /second" + CRLF;
+
+        SimpleRobotRulesParser robotParser = new SimpleRobotRulesParser();
+        
+        // Limit falls in the middle of the second disallow line, which we should ignore (versus
+        // treating it as "Disallow: /sec").
+        robotParser.setMaxParseBytes(robotsTxt.indexOf("/second") + 4);
+        BaseRobotRules rules = robotParser.parseContent(FAKE_ROBOTS_URL, robotsTxt.getBytes(), "text/plain", "foobot");
+        assertFalse(rules.isAllowed("http://www.domain.com/first"));
+        assertTrue(rules.isAllowed("http://www.domain.com/second"));
+        assertTrue(rules.isAllowed("http://www.domain.com/secret"));
+    }
+    
+    @Test
+    public void testJunkAfterAgentBlock() throws Exception {
+        StringBuilder robotsTxt = new StringBuilder("User-agent: foobot" + CRLF
+        + "Disallow: /foo" + CRLF
+        + CRLF
+        + "User-agent: *" + CRLF);
+        
+        for (int i = 0; i < 10000; i++) {
+            robotsTxt.append("junk line " + i + CRLF);
+        }
+        
+        SimpleRobotRulesParser robotParser = new SimpleRobotRulesParser();
+        BaseRobotRules rules = robotParser.parseContent(FAKE_ROBOTS_URL, robotsTxt.toString().getBytes(), "text/plain", "foobot");
+        assertFalse(rules.isAllowed("http://www.domain.com/foo"));
+        
+        // We should have stopped once we got to the next user-agent line.
+        assertEquals(0, robotParser.getNumWarnings());
+    }
+    
     @Test
     public void testFloatingPointCrawlDelay() throws MalformedURLException {
         final String robotsTxt = "User-agent: *" + CR +
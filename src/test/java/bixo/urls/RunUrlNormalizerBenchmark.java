@@ -0,0 +1,307 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.urls;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+import bixo.utils.StringUtils;
+
+/**
+ * Micro-benchmark that compares SimpleUrlNormalizer against the previous
+ * implementation, which used regular expressions and java.net.URL, on a file
+ * of URLs (by default the sample-urls.txt test resource). It also checks that
+ * both produce the same results.
+ * 
+ * Usage: RunUrlNormalizerBenchmark [url file] [iterations]
+ */
+public class RunUrlNormalizerBenchmark {
+
+    /**
+     * The normalize() code from before we switched to hand-written parsing.
+     */
+    @SuppressWarnings("serial")
+    private static class LegacyUrlNormalizer extends BaseUrlNormalizer {
+        private static final String RESERVED_QUERY_CHARS = "%&;=:?#";
+        private static final String RESERVED_PATH_CHARS = "%/?#";
+        private static final String HEX_CODES = "0123456789abcdefABCDEF";
+        
+        private static final Pattern RELATIVE_PATH_PATTERN = Pattern.compile("(/[^/]*[^/.]{1}[^/]*/\\.\\./|^(/\\.\\./)+)");
+        private static final Pattern DEFAULT_PAGE_PATTERN = Pattern.compile("/((?i)index|default)\\.((?i)js[pf]{1}?[afx]?|cgi|cfm|asp[x]?|[psx]?htm[l]?|php[3456]?)(\\?|&|#|$)");
+        private static final Pattern JSESSION_ID_PATTERN = Pattern.compile("(?:;jsessionid=.*?)(\\?|&|#|$)");
+        private static final Pattern SESSION_ID_PATTERN = Pattern.compile("(\\?|&)(?:(?i)sid|phpsessid|sessionid|session_id|bv_sessionid|jsessionid|-session|session|session_key)=.*?(&|#|$)");
+        private static final Pattern OTHER_IGNORED_QUERY_PARAMETERS_PATTERN = Pattern.compile("(\\?|&)(?:(?i)width|format|country|height|src|user|username|uname|return_url|returnurl|sort|sort_by|sortby|sort_direction|sort_key|order_by|orderby|sortorder|collate)=.*?(&|#|$)");
+        
+        private String encodeCodePoint(int codepoint) {
+            try {
+                int[] codepoints = { codepoint };
+                byte[] bytes = new String(codepoints, 0, 1).getBytes("UTF-8");
+                
+                StringBuilder result = new StringBuilder();
+                for (byte value : bytes) {
+                    result.append(String.format("%%%02x", value));
+                }
+                
+                return result.toString();
+            } catch (UnsupportedEncodingException e) {
+                return "";
+            }
+        }
+        
+        private String encodeUrlComponent(String component, String reservedChars) {
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < component.length(); ) {
+                int codePoint = component.codePointAt(i);
+                if (codePoint == 0x0020) {
+                    result.append('+');
+                } else if (codePoint >= 0x007F) {
+                    result.append(encodeCodePoint(codePoint));
+                } else if ((codePoint < 0x0020) || (reservedChars.indexOf((char)codePoint) != -1)) {
+                    result.append(String.format("%%%02x", codePoint));
+                } else {
+                    result.append((char)codePoint);
+                }
+                
+                i += Character.charCount(codePoint);
+            }
+            
+            return result.toString();
+        }
+        
+        private String decodeUrl(String url) {
+            int offset = 0;
+            while ((offset = url.indexOf('%', offset)) != -1) {
+                offset += 1;
+                boolean needsEscaping = false;
+                if (offset > (url.length() - 2)) {
+                    needsEscaping = true;
+                } else if ((HEX_CODES.indexOf(url.charAt(offset)) == -1) || (HEX_CODES.indexOf(url.charAt(offset + 1)) == -1)) {
+                    needsEscaping = true;
+                }
+                
+                if (needsEscaping) {
+                    url = url.substring(0, offset) + "25" + url.substring(offset);
+                    offset += 1;
+                }
+            }
+            
+            try {
+                return URLDecoder.decode(url, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                return url;
+            }
+        }
+        
+        private String normalizePath(String path) {
+            Matcher matcher = RELATIVE_PATH_PATTERN.matcher(path);
+            while (matcher.find()) {
+                path = path.substring(0, matcher.start()) + "/" + path.substring(matcher.end());
+                matcher = RELATIVE_PATH_PATTERN.matcher(path);
+            }
+            
+            matcher = DEFAULT_PAGE_PATTERN.matcher(path);
+            if (matcher.find()) {
+                path = path.substring(0, matcher.start()) + "/" + matcher.group(3) + path.substring(matcher.end());
+            }
+            
+            String[] pathParts = path.split("/");
+            
+            StringBuilder newPath = new StringBuilder();
+            for (String pathPart : pathParts) {
+                if (pathPart.length() > 0) {
+                    newPath.append('/');
+                    newPath.append(encodeUrlComponent(decodeUrl(pathPart), RESERVED_PATH_CHARS));
+                }
+            }
+            
+            if (newPath.length() == 0) {
+                return "/";
+            }
+
+            if (path.endsWith("/") && (newPath.charAt(newPath.length() - 1) != '/')) {
+                newPath.append('/');
+            }
+            
+            return newPath.toString();
+        }
+        
+        private String normalizeQuery(String query) {
+            if (query == null) {
+                return "";
+            }
+
+            StringBuilder newQuery = new StringBuilder();
+            String[] queryParts = query.split("&");
+            for (String queryPart : queryParts) {
+                if (queryPart.length() == 0) {
+                    continue;
+                }
+                
+                String[] keyValues = StringUtils.splitOnChar(queryPart, '=');
+                if (keyValues.length == 1) {
+                    newQuery.append(encodeUrlComponent(decodeUrl(keyValues[0]), RESERVED_QUERY_CHARS));
+                    if (queryPart.endsWith("=")) {
+                        newQuery.append("=");
+                    }
+                } else {
+                    for (String kvPart : keyValues) {
+                        newQuery.append(encodeUrlComponent(decodeUrl(kvPart), RESERVED_QUERY_CHARS));
+                        newQuery.append('=');
+                    }
+
+                    newQuery.setLength(newQuery.length() - 1);
+                }
+
+                newQuery.append('&');
+            }
+
+            if ((newQuery.length() > 0) && (newQuery.charAt(newQuery.length() - 1) == '&')) {
+                newQuery.setLength(newQuery.length() - 1);
+            }
+            
+            return newQuery.toString();
+        }
+
+        @Override
+        public String normalize(String url) {
+            String result = url.trim();
+            
+            if (result.indexOf("://") == -1) {
+                result = "http://" + result;
+            }
+            
+            Matcher matcher = JSESSION_ID_PATTERN.matcher(result);
+            if (matcher.find()) {
+                result = result.substring(0, matcher.start()) + matcher.group(1) + result.substring(matcher.end());
+            }
+            
+            matcher = SESSION_ID_PATTERN.matcher(result);
+            if (matcher.find()) {
+                result = result.substring(0, matcher.start()) + matcher.group(1) + matcher.group(2) + result.substring(matcher.end());
+            }
+            
+            matcher = OTHER_IGNORED_QUERY_PARAMETERS_PATTERN.matcher(result);
+            if (matcher.find()) {
+                result = result.substring(0, matcher.start()) + matcher.group(1) + matcher.group(2) + result.substring(matcher.end());
+            }
+            
+            URL testUrl;
+            
+            try {
+                String decodedUrl = result.replace("+", "%20");
+                testUrl = new URL(decodedUrl);
+                url = testUrl.toExternalForm();
+            } catch (MalformedURLException e) {
+                return result;
+            }
+            
+            String protocol = testUrl.getProtocol().toLowerCase();
+            if (!protocol.equals("http") && !protocol.equals("https")) {
+                return result;
+            }
+            
+            String hostname = testUrl.getHost().toLowerCase();
+            if (hostname.endsWith(".")) {
+                hostname = hostname.substring(0, hostname.length() - 1);
+            }
+            
+            int port = testUrl.getPort();
+            if (port == testUrl.getDefaultPort()) {
+                port = -1;
+            }
+            
+            String path = normalizePath(testUrl.getPath());
+            String query = normalizeQuery(testUrl.getQuery());
+            if (query.length() > 0) {
+                query = "?" + query;
+            }
+            
+            try {
+                testUrl = new URL(protocol, hostname, port, path + query);
+            } catch (MalformedURLException e) {
+                return result;
+            }
+            
+            return testUrl.toExternalForm();
+        }
+    }
+
+    private static long runBenchmark(BaseUrlNormalizer normalizer, List<String> urls, int iterations) {
+        long startTime = System.nanoTime();
+        int totalLength = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (String url : urls) {
+                totalLength += normalizer.normalize(url).length();
+            }
+        }
+
+        long result = (System.nanoTime() - startTime) / 1000000L;
+        if (totalLength == 0) {
+            System.out.println("Impossible!");
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws IOException {
+        InputStream is;
+        if (args.length > 0) {
+            is = new FileInputStream(args[0]);
+        } else {
+            is = RunUrlNormalizerBenchmark.class.getResourceAsStream("/sample-urls.txt");
+        }
+
+        List<String> urls = IOUtils.readLines(is, "UTF-8");
+        is.close();
+
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        BaseUrlNormalizer legacyNormalizer = new LegacyUrlNormalizer();
+        BaseUrlNormalizer normalizer = new SimpleUrlNormalizer();
+        
+        int numDifferent = 0;
+        for (String url : urls) {
+            if (!legacyNormalizer.normalize(url).equals(normalizer.normalize(url))) {
+                System.out.println("Different result for " + url);
+                numDifferent += 1;
+            }
+        }
+
+        // Warm up both code paths before timing.
+        runBenchmark(legacyNormalizer, urls, Math.max(1, iterations / 10));
+        runBenchmark(normalizer, urls, Math.max(1, iterations / 10));
+
+        long legacyTime = runBenchmark(legacyNormalizer, urls, iterations);
+        long newTime = runBenchmark(normalizer, urls, iterations);
+
+        long numUrls = (long)urls.size() * iterations;
+        System.out.println(String.format("%d URLs, %d iterations, %d with different results", urls.size(), iterations, numDifferent));
+        System.out.println(String.format("Legacy normalizer: %dms (%d URLs/second)", legacyTime, (numUrls * 1000L) / Math.max(1, legacyTime)));
+        System.out.println(String.format("Single-pass normalizer: %dms (%d URLs/second)", newTime, (numUrls * 1000L) / Math.max(1, newTime)));
+    }
+}
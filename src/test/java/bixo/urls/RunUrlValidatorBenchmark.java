@@ -0,0 +1,164 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.urls;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+import bixo.robots.SimpleRobotRules;
+import bixo.utils.UrlUtils;
+
+/**
+ * Micro-benchmark that compares validating a URL, getting its protocol and domain
+ * (for grouping), and getting its path (for robots rules) using one ParsedUrl, against
+ * the previous code, which used a regex, java.net.URL and java.net.URI. It also checks
+ * that both produce the same results.
+ * 
+ * Usage: RunUrlValidatorBenchmark [url file] [iterations]
+ */
+public class RunUrlValidatorBenchmark {
+
+    private static final Pattern HTTP_PATTERN = Pattern.compile("^(http|https):");
+
+    private static boolean isValidLegacy(String urlString) {
+        if (!HTTP_PATTERN.matcher(urlString).find()) {
+            return false;
+        }
+
+        try {
+            URL url = new URL(urlString);
+            String hostname = url.getHost();
+            if ((hostname == null) || (hostname.length() == 0)) {
+                return false;
+            }
+            
+            URI uri = new URI(urlString);
+            hostname = uri.getHost();
+            if ((hostname == null) || (hostname.length() == 0)) {
+                return false;
+            }
+            
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+    
+    private static String makeProtocolAndDomainLegacy(String urlAsString) throws MalformedURLException {
+        URL url = new URL(urlAsString);
+        StringBuilder result = new StringBuilder(url.getProtocol());
+        result.append("://");
+        
+        String host = url.getHost();
+        if (host.length() == 0) {
+            throw new MalformedURLException("URL without a domain: " + urlAsString);
+        }
+        
+        result.append(host);
+        int port = url.getPort();
+        if ((port != -1) && (port != url.getDefaultPort())) {
+            result.append(':');
+            result.append(port);
+        }
+        
+        return result.toString();
+    }
+    
+    private static String processLegacy(String url) throws MalformedURLException {
+        if (!isValidLegacy(url)) {
+            return null;
+        }
+        
+        return makeProtocolAndDomainLegacy(url) + SimpleRobotRules.getPath(url);
+    }
+    
+    private static String process(BaseUrlValidator validator, String url) throws MalformedURLException {
+        ParsedUrl parsedUrl = ParsedUrl.parse(url);
+        if ((parsedUrl == null) || !validator.isValid(parsedUrl)) {
+            return null;
+        }
+        
+        return UrlUtils.makeProtocolAndDomain(parsedUrl) + SimpleRobotRules.getPath(parsedUrl);
+    }
+    
+    private static long runBenchmark(List<String> urls, int iterations, boolean useLegacy) throws MalformedURLException {
+        BaseUrlValidator validator = new SimpleUrlValidator();
+        long startTime = System.nanoTime();
+        int numValid = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (String url : urls) {
+                String result = useLegacy ? processLegacy(url) : process(validator, url);
+                if (result != null) {
+                    numValid += 1;
+                }
+            }
+        }
+
+        long result = (System.nanoTime() - startTime) / 1000000L;
+        if (numValid == 0) {
+            System.out.println("No valid URLs!");
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws IOException {
+        InputStream is;
+        if (args.length > 0) {
+            is = new FileInputStream(args[0]);
+        } else {
+            is = RunUrlValidatorBenchmark.class.getResourceAsStream("/sample-urls.txt");
+        }
+
+        List<String> urls = IOUtils.readLines(is, "UTF-8");
+        is.close();
+
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        BaseUrlValidator validator = new SimpleUrlValidator();
+        int numDifferent = 0;
+        for (String url : urls) {
+            String legacyResult = processLegacy(url);
+            String result = process(validator, url);
+            if ((legacyResult == null) ? (result != null) : !legacyResult.equals(result)) {
+                System.out.println("Different result for " + url);
+                numDifferent += 1;
+            }
+        }
+
+        // Warm up both code paths before timing.
+        runBenchmark(urls, Math.max(1, iterations / 10), true);
+        runBenchmark(urls, Math.max(1, iterations / 10), false);
+
+        long legacyTime = runBenchmark(urls, iterations, true);
+        long newTime = runBenchmark(urls, iterations, false);
+
+        long numUrls = (long)urls.size() * iterations;
+        System.out.println(String.format("%d URLs, %d iterations, %d with different results", urls.size(), iterations, numDifferent));
+        System.out.println(String.format("Regex + URL + URI: %dms (%d URLs/second)", legacyTime, (numUrls * 1000L) / Math.max(1, legacyTime)));
+        System.out.println(String.format("ParsedUrl: %dms (%d URLs/second)", newTime, (numUrls * 1000L) / Math.max(1, newTime)));
+    }
+}
@@ -50,4 +50,35 @@ public class SimpleUrlValidatorTest {
         Assert.assertEquals(false, _validator.isValid("ttp://www.thehealthcareblog.com/the_health_care_blog/2009/07/healthcare-reform-lessons-from-mayo-clinic.html"));
    }
     
+    @Test
+    public void testUrlAndUriRules() {
+        // java.net.URI is picky about the characters in the URL.
+        Assert.assertEquals(true, _validator.isValid("http://foo.com/a%20b?q=[x]#top"));
+        Assert.assertEquals(false, _validator.isValid("http://foo.com/a b"));
+        Assert.assertEquals(false, _validator.isValid("http://foo.com/a|b"));
+        Assert.assertEquals(false, _validator.isValid("http://foo.com/a%2"));
+        Assert.assertEquals(false, _validator.isValid("http://foo.com/a%zz"));
+        Assert.assertEquals(false, _validator.isValid("http://foo.com/#a#b"));
+        Assert.assertEquals(false, _validator.isValid("http://foo.com/ "));
+        
+        // And about the host.
+        Assert.assertEquals(true, _validator.isValid("http://127.0.0.1:8080/"));
+        Assert.assertEquals(true, _validator.isValid("http://[::1]/"));
+        Assert.assertEquals(true, _validator.isValid("http://user:pw@foo.com/"));
+        Assert.assertEquals(false, _validator.isValid("http://foo_bar.com/"));
+        Assert.assertEquals(false, _validator.isValid("http://foo.1com/"));
+        Assert.assertEquals(false, _validator.isValid("http:///path"));
+        Assert.assertEquals(false, _validator.isValid("http://foo.com:80x/"));
+        
+        // Non-ASCII characters are OK in the path.
+        Assert.assertEquals(true, _validator.isValid("http://foo.com/caf\u00e9"));
+        Assert.assertEquals(false, _validator.isValid("HTTP://foo.com/"));
+    }
+    
+    @Test
+    public void testParsedUrls() {
+        Assert.assertEquals(true, _validator.isValid(ParsedUrl.parse("http://foo.com/")));
+        Assert.assertEquals(false, _validator.isValid(ParsedUrl.parse("ftp://foo.com/")));
+    }
+    
 }
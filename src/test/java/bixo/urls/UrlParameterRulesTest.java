@@ -0,0 +1,125 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.urls;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class UrlParameterRulesTest {
+
+    private static UrlParameterRules load(String rules) throws IOException {
+        return UrlParameterRules.load(new ByteArrayInputStream(rules.getBytes("UTF-8")));
+    }
+    
+    @Test
+    public void testLoading() throws Exception {
+        UrlParameterRules rules = load("# Comment line\n\nwww.domain.com -sessid -ref sort # trailing comment\ndomain.org\t-utm_source\n");
+        assertEquals(2, rules.getNumHosts());
+        assertTrue(rules.isDroppedParameter("www.domain.com", "sessid"));
+        assertTrue(rules.isDroppedParameter("www.domain.com", "ref"));
+        assertFalse(rules.isDroppedParameter("www.domain.com", "utm_source"));
+        assertTrue(rules.isSortParameters("www.domain.com"));
+        assertTrue(rules.isDroppedParameter("domain.org", "utm_source"));
+        assertFalse(rules.isSortParameters("domain.org"));
+    }
+    
+    @Test
+    public void testDroppingParameters() throws Exception {
+        UrlParameterRules rules = load("www.domain.com -sessid -ref\n");
+        
+        assertEquals("http://www.domain.com/page?id=1", rules.apply("http://www.domain.com/page?id=1&sessid=abc&ref=x"));
+        assertEquals("http://www.domain.com/page?id=1", rules.apply("http://www.domain.com/page?ref&id=1"));
+        assertEquals("http://www.domain.com/page", rules.apply("http://www.domain.com/page?sessid=abc"));
+        assertEquals("http://www.domain.com:8080/page?id=1", rules.apply("http://www.domain.com:8080/page?id=1&ref=x"));
+        assertEquals("http://www.domain.com/page?id=1#top", rules.apply("http://www.domain.com/page?id=1&ref=x#top"));
+        
+        // Names have to match exactly.
+        assertEquals("http://www.domain.com/page?sessid2=abc", rules.apply("http://www.domain.com/page?sessid2=abc"));
+        
+        // Nothing to do means we get back the same string.
+        String url = "http://www.domain.com/page?id=1";
+        assertSame(url, rules.apply(url));
+        url = "http://www.other.com/page?ref=x";
+        assertSame(url, rules.apply(url));
+        url = "http://www.domain.com/page";
+        assertSame(url, rules.apply(url));
+    }
+    
+    @Test
+    public void testSubdomains() throws Exception {
+        UrlParameterRules rules = load("domain.com -ref\nwww.domain.com -sessid\n");
+        
+        assertEquals("http://blog.domain.com/?id=1", rules.apply("http://blog.domain.com/?id=1&ref=x"));
+        assertEquals("http://a.b.domain.com/?id=1", rules.apply("http://a.b.domain.com/?id=1&ref=x"));
+        assertEquals("http://DOMAIN.COM/?id=1", rules.apply("http://DOMAIN.COM/?id=1&ref=x"));
+
+        // Most specific rule wins.
+        assertEquals("http://www.domain.com/?id=1&ref=x", rules.apply("http://www.domain.com/?id=1&sessid=y&ref=x"));
+        
+        // Not a subdomain.
+        assertEquals("http://otherdomain.com/?ref=x", rules.apply("http://otherdomain.com/?ref=x"));
+    }
+    
+    @Test
+    public void testSortingParameters() throws Exception {
+        UrlParameterRules rules = load("www.domain.com -ref sort\n");
+        
+        assertEquals("http://www.domain.com/page?a=2&b=1&c", rules.apply("http://www.domain.com/page?c&b=1&ref=x&a=2"));
+        
+        // Parameters with the same name keep their order.
+        assertEquals("http://www.domain.com/page?a=2&a=1&b=1", rules.apply("http://www.domain.com/page?b=1&a=2&a=1"));
+        
+        // Name is only what's before the '='.
+        assertEquals("http://www.domain.com/page?a=z&ab=a", rules.apply("http://www.domain.com/page?ab=a&a=z"));
+        
+        String url = "http://www.domain.com/page?a=1&b=2";
+        assertSame(url, rules.apply(url));
+    }
+    
+    @Test
+    public void testSavingAndLoading() throws Exception {
+        UrlParameterRules rules = new UrlParameterRules();
+        rules.addDroppedParameter("www.domain.com", "sessid");
+        rules.addDroppedParameter("www.domain.com", "ref");
+        rules.setSortParameters("www.domain.com", true);
+        rules.addDroppedParameter("domain.org", "utm_source");
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        rules.save(bytes);
+        String text = new String(bytes.toByteArray(), "UTF-8");
+        assertEquals("domain.org -utm_source\nwww.domain.com -ref -sessid sort\n", text);
+        
+        UrlParameterRules loaded = load(text);
+        assertEquals(2, loaded.getNumHosts());
+        assertTrue(loaded.isDroppedParameter("www.domain.com", "ref"));
+        assertTrue(loaded.isSortParameters("www.domain.com"));
+        assertTrue(loaded.isDroppedParameter("domain.org", "utm_source"));
+    }
+    
+    @Test
+    public void testRuleBasedNormalizer() throws Exception {
+        BaseUrlNormalizer normalizer = new RuleBasedUrlNormalizer(load("domain.com -ref sort\n"));
+        
+        assertEquals("http://www.domain.com/page?a=1&b=2", normalizer.normalize("HTTP://WWW.Domain.COM/page?b=2&ref=x&a=1"));
+        assertEquals("http://www.other.com/page?b=2&a=1", normalizer.normalize("http://www.other.com/page?b=2&a=1"));
+    }
+}
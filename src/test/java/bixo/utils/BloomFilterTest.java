@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+    @Test
+    public void testAddingAndFinding() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        int numAdded = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.add(SeenUrlsStore.fingerprint("http://www.domain.com/page-" + i))) {
+                numAdded += 1;
+            }
+        }
+        
+        // A few adds will be false positives, and so won't change the filter.
+        assertEquals(numAdded, filter.getNumEntries());
+        assertTrue(numAdded > 9800);
+        
+        // No false negatives.
+        for (int i = 0; i < 10000; i++) {
+            long fingerprint = SeenUrlsStore.fingerprint("http://www.domain.com/page-" + i);
+            assertTrue(filter.mightContain(fingerprint));
+            assertFalse(filter.add(fingerprint));
+        }
+        
+        // Roughly the false positive rate we asked for.
+        int numFalsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain(SeenUrlsStore.fingerprint("http://www.other.com/page-" + i))) {
+                numFalsePositives += 1;
+            }
+        }
+        
+        assertTrue("Too many false positives: " + numFalsePositives, numFalsePositives < 2000);
+    }
+    
+    @Test
+    public void testSerialization() throws Exception {
+        BloomFilter filter = new BloomFilter(1000, 0.001);
+        filter.add(SeenUrlsStore.fingerprint("http://www.domain.com/"));
+        
+        DataOutputBuffer out = new DataOutputBuffer();
+        filter.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        BloomFilter copy = new BloomFilter();
+        copy.readFields(in);
+        
+        assertEquals(filter.getNumBits(), copy.getNumBits());
+        assertEquals(filter.getNumHashes(), copy.getNumHashes());
+        assertEquals(1, copy.getNumEntries());
+        assertTrue(copy.mightContain(SeenUrlsStore.fingerprint("http://www.domain.com/")));
+        assertFalse(copy.mightContain(SeenUrlsStore.fingerprint("http://www.domain.com/page")));
+    }
+    
+    @Test
+    public void testUnion() {
+        BloomFilter filter1 = new BloomFilter(1000, 0.001);
+        BloomFilter filter2 = new BloomFilter(1000, 0.001);
+        filter1.add(SeenUrlsStore.fingerprint("http://www.domain1.com/"));
+        filter2.add(SeenUrlsStore.fingerprint("http://www.domain2.com/"));
+        
+        filter1.union(filter2);
+        assertTrue(filter1.mightContain(SeenUrlsStore.fingerprint("http://www.domain1.com/")));
+        assertTrue(filter1.mightContain(SeenUrlsStore.fingerprint("http://www.domain2.com/")));
+        
+        try {
+            filter1.union(new BloomFilter(100000, 0.001));
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CachingDnsResolverTest {
+
+    @SuppressWarnings("serial")
+    private static class CountingResolver extends BaseDnsResolver {
+        private AtomicInteger _numLookups = new AtomicInteger();
+        
+        @Override
+        public InetAddress[] resolve(String hostname) throws UnknownHostException {
+            _numLookups.incrementAndGet();
+            
+            if (hostname.startsWith("bad")) {
+                throw new UnknownHostException(hostname);
+            }
+            
+            return new InetAddress[] { InetAddress.getByAddress(hostname, new byte[] {10, 0, 0, 1}) };
+        }
+        
+        public int getNumLookups() {
+            return _numLookups.get();
+        }
+    }
+    
+    @Test
+    public void testCachingGoodHost() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingDnsResolver resolver = new CachingDnsResolver(counter);
+        
+        assertEquals("10.0.0.1", resolver.resolve("www.domain.com")[0].getHostAddress());
+        assertEquals("10.0.0.1", resolver.resolve("WWW.domain.com")[0].getHostAddress());
+        assertEquals(1, counter.getNumLookups());
+        assertEquals(1, resolver.getHits());
+        assertEquals(1, resolver.getMisses());
+    }
+    
+    @Test
+    public void testNegativeCaching() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingDnsResolver resolver = new CachingDnsResolver(counter);
+        
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("bad.domain.com");
+                fail("Should have thrown exception");
+            } catch (UnknownHostException e) {
+                // Valid
+            }
+        }
+        
+        assertEquals(1, counter.getNumLookups());
+        assertEquals(1, resolver.getNegativeHits());
+    }
+    
+    @Test
+    public void testExpiration() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingDnsResolver resolver = new CachingDnsResolver(counter, 10, 50, 0);
+        
+        resolver.resolve("www.domain.com");
+        assertTrue(resolver.isCached("www.domain.com"));
+        Thread.sleep(100);
+        assertFalse(resolver.isCached("www.domain.com"));
+        resolver.resolve("www.domain.com");
+        assertEquals(2, counter.getNumLookups());
+
+        // Negative TTL of 0 means we don't cache failures.
+        try {
+            resolver.resolve("bad.domain.com");
+            fail("Should have thrown exception");
+        } catch (UnknownHostException e) {
+            // Valid
+        }
+        
+        assertFalse(resolver.isCached("bad.domain.com"));
+    }
+    
+    @Test
+    public void testLruEviction() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingDnsResolver resolver = new CachingDnsResolver(counter, 2, CachingDnsResolver.DEFAULT_TTL, CachingDnsResolver.DEFAULT_NEGATIVE_TTL);
+        
+        resolver.resolve("host1.com");
+        resolver.resolve("host2.com");
+        
+        // Touch host1, so host2 is the least recently used entry.
+        resolver.resolve("host1.com");
+        resolver.resolve("host3.com");
+        
+        assertEquals(2, resolver.size());
+        assertTrue(resolver.isCached("host1.com"));
+        assertFalse(resolver.isCached("host2.com"));
+        assertTrue(resolver.isCached("host3.com"));
+    }
+    
+    @Test
+    public void testPrefetch() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingDnsResolver resolver = new CachingDnsResolver(counter);
+        
+        resolver.prefetch(Arrays.asList("host1.com", "host2.com", "bad.com"));
+        
+        long endTime = System.currentTimeMillis() + 5000;
+        while ((resolver.size() < 3) && (System.currentTimeMillis() < endTime)) {
+            Thread.sleep(10);
+        }
+        
+        assertEquals(3, resolver.size());
+        assertEquals(3, counter.getNumLookups());
+        
+        resolver.resolve("host1.com");
+        resolver.prefetch("host2.com");
+        assertEquals(3, counter.getNumLookups());
+        assertEquals(0, resolver.getMisses());
+    }
+    
+    @Test
+    public void testDomainInfoUsesResolver() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingDnsResolver resolver = new CachingDnsResolver(counter);
+        
+        DomainInfo di = new DomainInfo("http://www.domain.com", resolver);
+        assertEquals("10.0.0.1", di.getHostAddress());
+        new DomainInfo("http://www.domain.com:8080", resolver);
+        assertEquals(1, counter.getNumLookups());
+    }
+}
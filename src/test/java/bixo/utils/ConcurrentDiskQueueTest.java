@@ -0,0 +1,282 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ConcurrentDiskQueueTest {
+
+    @Test
+    public void testFifoWithSpilling() throws Exception {
+        ConcurrentDiskQueue<Integer> queue = new ConcurrentDiskQueue<Integer>(2, 3, 6, Integer.MAX_VALUE, null);
+        
+        for (int i = 0; i < 20; i++) {
+            assertTrue(queue.offer(i));
+        }
+        
+        assertEquals(20, queue.size());
+        assertTrue(queue.getDiskSize() > 0);
+        assertTrue(queue.getNumSegments() > 1);
+        
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, queue.poll().intValue());
+        }
+        
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getNumSegments());
+    }
+    
+    @Test
+    public void testInterleavedReadsAndWrites() throws Exception {
+        ConcurrentDiskQueue<Integer> queue = new ConcurrentDiskQueue<Integer>(5, 5, 20, Integer.MAX_VALUE, null);
+        int readIndex = 0;
+        int writeIndex = 0;
+        int maxSegments = 0;
+        
+        Random rand = new Random(137);
+        for (int i = 0; i < 10000; i++) {
+            if ((rand.nextInt(10) < 4) && (readIndex < writeIndex)) {
+                assertEquals(readIndex, queue.poll().intValue());
+                readIndex += 1;
+            } else {
+                assertTrue(queue.offer(writeIndex));
+                writeIndex += 1;
+            }
+            
+            maxSegments = Math.max(maxSegments, queue.getNumSegments());
+        }
+        
+        while (readIndex < writeIndex) {
+            assertEquals(readIndex, queue.poll().intValue());
+            readIndex += 1;
+        }
+        
+        assertNull(queue.poll());
+        
+        // Segments get deleted as they're drained, so we should never have had
+        // (much) more than the number of elements on disk / segment size.
+        assertEquals(0, queue.getNumSegments());
+        assertTrue(maxSegments <= (writeIndex / 20) + 1);
+    }
+    
+    @Test
+    public void testBoundedSize() throws Exception {
+        ConcurrentDiskQueue<Integer> queue = new ConcurrentDiskQueue<Integer>(2, 2, 2, 5, null);
+        
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(i));
+        }
+        
+        assertEquals(0, queue.remainingCapacity());
+        assertFalse(queue.offer(5));
+        assertFalse(queue.offer(5, 10, TimeUnit.MILLISECONDS));
+        
+        assertEquals(0, queue.take().intValue());
+        assertTrue(queue.offer(5, 10, TimeUnit.MILLISECONDS));
+        
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(5, queue.drainTo(drained));
+        assertEquals(5, drained.size());
+        assertEquals(1, drained.get(0).intValue());
+        assertEquals(5, drained.get(4).intValue());
+    }
+    
+    @Test
+    public void testClosing() throws Exception {
+        ConcurrentDiskQueue<Integer> queue = new ConcurrentDiskQueue<Integer>(1, 1, 1, Integer.MAX_VALUE, null);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(i));
+        }
+        
+        assertTrue(queue.getNumSegments() > 0);
+        queue.close();
+        
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getNumSegments());
+        assertFalse(queue.offer(1));
+    }
+    
+    @Test
+    public void testPollTimeout() throws Exception {
+        ConcurrentDiskQueue<Integer> queue = new ConcurrentDiskQueue<Integer>(10);
+        
+        long startTime = System.currentTimeMillis();
+        assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - startTime >= 40);
+    }
+    
+    @Test
+    public void testIterator() throws Exception {
+        ConcurrentDiskQueue<Integer> queue = new ConcurrentDiskQueue<Integer>(2, 3, 6, Integer.MAX_VALUE, null);
+        
+        for (int i = 0; i < 20; i++) {
+            assertTrue(queue.offer(i));
+        }
+        
+        // Take a few, so we're partway through the first segment.
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, queue.poll().intValue());
+        }
+        
+        assertTrue(queue.getNumSegments() > 1);
+        
+        int expected = 5;
+        for (Integer value : queue) {
+            assertEquals(expected, value.intValue());
+            expected += 1;
+        }
+        
+        assertEquals(20, expected);
+        assertEquals(15, queue.size());
+        assertTrue(queue.contains(19));
+        assertFalse(queue.contains(4));
+    }
+    
+    @Test
+    public void testIteratorIsWeaklyConsistent() throws Exception {
+        ConcurrentDiskQueue<Integer> queue = new ConcurrentDiskQueue<Integer>(2, 3, 6, Integer.MAX_VALUE, null);
+        
+        for (int i = 0; i < 20; i++) {
+            assertTrue(queue.offer(i));
+        }
+        
+        Iterator<Integer> iter = queue.iterator();
+        assertEquals(0, iter.next().intValue());
+        
+        // Drain the queue (which deletes all of the segments) and add more.
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, queue.poll().intValue());
+        }
+        
+        assertEquals(0, queue.getNumSegments());
+        assertTrue(queue.offer(100));
+        
+        // We can get back elements that were taken but were still in memory when we
+        // were created, but not the ones in deleted segments, or what was added later.
+        int lastValue = 0;
+        while (iter.hasNext()) {
+            int value = iter.next();
+            assertTrue(value > lastValue);
+            assertTrue(value < 20);
+            lastValue = value;
+        }
+        
+        try {
+            queue.iterator().remove();
+            fail("Should have thrown exception");
+        } catch (UnsupportedOperationException e) {
+            // valid
+        }
+    }
+    
+    @Test
+    public void testInvalidSizes() throws Exception {
+        try {
+            new ConcurrentDiskQueue<Integer>(1, 0, 10, 10, null);
+            fail("Should have thrown exception");
+        } catch (Exception e) {
+            // valid
+        }
+        
+        try {
+            new ConcurrentDiskQueue<Integer>(1, 10, 5, 10, null);
+            fail("Should have thrown exception");
+        } catch (Exception e) {
+            // valid
+        }
+    }
+    
+    @Test
+    public void testProducersAndConsumers() throws Exception {
+        final int numProducers = 4;
+        final int numPerProducer = 5000;
+        final ConcurrentDiskQueue<Integer> queue = new ConcurrentDiskQueue<Integer>(50, 50, 500, 2000, null);
+        final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int p = 0; p < numProducers; p++) {
+            final int base = p * numPerProducer;
+            Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < numPerProducer; i++) {
+                            queue.put(base + i);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            
+            t.start();
+            producers.add(t);
+        }
+        
+        List<Thread> consumers = new ArrayList<Thread>();
+        for (int c = 0; c < 2; c++) {
+            Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        Integer value;
+                        while ((value = queue.poll(1, TimeUnit.SECONDS)) != null) {
+                            results.add(value);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            
+            t.start();
+            consumers.add(t);
+        }
+        
+        for (Thread t : producers) {
+            t.join();
+        }
+        
+        for (Thread t : consumers) {
+            t.join();
+        }
+        
+        assertEquals(numProducers * numPerProducer, results.size());
+        Collections.sort(results);
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).intValue());
+        }
+        
+        assertEquals(0, queue.getNumSegments());
+    }
+}
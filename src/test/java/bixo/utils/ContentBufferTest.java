@@ -0,0 +1,100 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ContentBufferTest {
+
+    @Test
+    public void testReadingAndGrowing() throws Exception {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)i;
+        }
+        
+        ContentBuffer buffer = new ContentBuffer(10);
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        while (buffer.read(in, 100) != -1) {
+            assertTrue(buffer.getLength() <= data.length);
+        }
+        
+        assertEquals(data.length, buffer.getLength());
+        assertTrue(buffer.getCapacity() >= data.length);
+        
+        byte[] content = buffer.toByteArray();
+        assertEquals(data.length, content.length);
+        assertTrue(Arrays.equals(data, content));
+        
+        buffer.reset();
+        assertEquals(0, buffer.getLength());
+        assertEquals(0, buffer.toByteArray().length);
+    }
+    
+    @Test
+    public void testReadLimit() throws Exception {
+        ContentBuffer buffer = new ContentBuffer(100);
+        ByteArrayInputStream in = new ByteArrayInputStream(new byte[50]);
+        assertEquals(0, buffer.read(in, 0));
+        assertEquals(20, buffer.read(in, 20));
+        assertEquals(30, buffer.read(in, 100));
+        assertEquals(-1, buffer.read(in, 100));
+        assertEquals(50, buffer.getLength());
+    }
+    
+    @Test
+    public void testPooling() throws Exception {
+        ContentBuffer buffer = ContentBuffer.acquire();
+        buffer.read(new ByteArrayInputStream(new byte[10]), 10);
+        ContentBuffer.release(buffer);
+        
+        // The next acquire() gets back the same (empty) buffer.
+        ContentBuffer buffer2 = ContentBuffer.acquire();
+        assertSame(buffer, buffer2);
+        assertEquals(0, buffer2.getLength());
+        
+        // But not if it grew too big.
+        ByteArrayInputStream in = new ByteArrayInputStream(new byte[ContentBuffer.MAX_POOLED_SIZE + 1]);
+        while (buffer2.read(in, Integer.MAX_VALUE) != -1) {
+            // Keep reading
+        }
+        
+        ContentBuffer.release(buffer2);
+        assertNotSame(buffer2, ContentBuffer.acquire());
+    }
+    
+    @Test
+    public void testPoolIsBounded() throws Exception {
+        List<ContentBuffer> buffers = new ArrayList<ContentBuffer>();
+        for (int i = 0; i < ContentBuffer.MAX_POOLED_BUFFERS + 10; i++) {
+            buffers.add(ContentBuffer.acquire());
+        }
+        
+        for (ContentBuffer buffer : buffers) {
+            ContentBuffer.release(buffer);
+        }
+        
+        assertEquals(ContentBuffer.MAX_POOLED_BUFFERS, ContentBuffer.getNumPooled());
+    }
+}
@@ -17,6 +17,7 @@
 package bixo.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -31,6 +32,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Test;
 
 import bixo.datum.FetchSetDatum;
+import bixo.datum.FetchSetDatumCodec;
 import bixo.datum.ScoredUrlDatum;
 import bixo.datum.UrlStatus;
 
@@ -60,6 +62,14 @@ public class DiskQueueTest {
         }
     }
     
+    private static class FirstCharKeyer implements DiskQueue.PriorityKeyer<String> {
+
+        @Override
+        public Object getKey(String element) {
+            return element.substring(0, 1);
+        }
+    }
+    
     private static class FetchSetComparator implements Comparator<FetchSetDatum> {
         
         @Override
@@ -298,5 +308,163 @@ public class DiskQueueTest {
         DiskQueue<AtomicInteger> queue = new DiskQueue<AtomicInteger>(3, new AtomicIntegerComparator());
         assertEquals(null, queue.peek());
     }
+
+    @Test
+    public void testKeyedPriorities() throws Exception {
+        DiskQueue<String> queue = new DiskQueue<String>(10, new StringComparator(), new FirstCharKeyer());
+        
+        assertTrue(queue.offer("a1"));
+        assertTrue(queue.offer("b1"));
+        assertTrue(queue.offer("a2"));
+        assertTrue(queue.offer("c1"));
+        assertEquals("a1", queue.peek());
+        
+        // Push all of the "a" entries to the end.
+        queue.setPriority("a", 10);
+        assertEquals("b1", queue.peek());
+        
+        // New entries for a key use the current priority of that key.
+        queue.setPriority("c", 5);
+        assertTrue(queue.offer("c0"));
+        
+        assertEquals("b1", queue.poll());
+        assertEquals("c0", queue.poll());
+        assertEquals("c1", queue.poll());
+        assertEquals("a1", queue.poll());
+        assertEquals("a2", queue.poll());
+        assertNull(queue.poll());
+    }
     
+    @Test
+    public void testKeyedPrioritiesWithSpilling() throws Exception {
+        DiskQueue<String> queue = new DiskQueue<String>(2, new StringComparator(), new FirstCharKeyer());
+        queue.setPriority("a", 10);
+        
+        assertTrue(queue.offer("a1"));
+        assertTrue(queue.offer("a2"));
+        assertTrue(queue.offer("b1"));
+        assertTrue(queue.offer("b2"));
+        
+        assertEquals("a1", queue.poll());
+        
+        // Entries loaded from disk get the priority of their key
+        assertEquals("b1", queue.poll());
+        assertEquals("b2", queue.poll());
+        assertEquals("a2", queue.poll());
+        assertNull(queue.poll());
+    }
+    
+    @Test
+    public void testPriorityForgottenWhenKeyEmpty() throws Exception {
+        DiskQueue<String> queue = new DiskQueue<String>(2, new StringComparator(), new FirstCharKeyer());
+        queue.setPriority("a", 10);
+        
+        assertTrue(queue.offer("a1"));
+        assertTrue(queue.offer("b1"));
+        assertTrue(queue.offer("a2"));
+        
+        // a2 is on disk, so the priority for "a" has to stick around.
+        assertEquals("b1", queue.poll());
+        assertEquals("a1", queue.poll());
+        assertTrue(queue.containsKey("a"));
+        assertEquals("a2", queue.poll());
+        assertFalse(queue.containsKey("a"));
+        
+        // Now that all of the "a" entries are gone, new ones get the default priority.
+        assertTrue(queue.offer("b2"));
+        assertTrue(queue.offer("a3"));
+        assertEquals("a3", queue.poll());
+        assertEquals("b2", queue.poll());
+        assertNull(queue.poll());
+    }
+    
+    @Test
+    public void testKeyedHeapOrdering() throws Exception {
+        DiskQueue<Integer> queue = new DiskQueue<Integer>(1000, new IntegerComparator(), new DiskQueue.PriorityKeyer<Integer>() {
+
+            @Override
+            public Object getKey(Integer element) {
+                return element % 10;
+            }
+        });
+        
+        Random rand = new Random(137);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(queue.offer(rand.nextInt(10000)));
+        }
+        
+        // Move keys around, and make sure everything still comes out in (priority, value) order.
+        long priorities[] = new long[10];
+        for (int i = 0; i < 100; i++) {
+            int key = rand.nextInt(10);
+            priorities[key] = rand.nextInt(5);
+            queue.setPriority(key, priorities[key]);
+        }
+        
+        long lastPriority = Long.MIN_VALUE;
+        int lastValue = Integer.MIN_VALUE;
+        int count = 0;
+        Integer value;
+        while ((value = queue.poll()) != null) {
+            long priority = priorities[value % 10];
+            assertTrue(priority >= lastPriority);
+            if (priority == lastPriority) {
+                assertTrue(value >= lastValue);
+            }
+            
+            lastPriority = priority;
+            lastValue = value;
+            count += 1;
+        }
+        
+        assertEquals(1000, count);
+    }
+    
+    @Test
+    public void testSetPriorityWithoutKeyer() throws Exception {
+        DiskQueue<String> queue = new DiskQueue<String>(1, new StringComparator());
+        
+        try {
+            queue.setPriority("a", 1);
+            fail("Should have thrown exception");
+        } catch (IllegalStateException e) {
+            // valid
+        }
+    }
+
+    @Test
+    public void testSpillingWithCodec() throws Exception {
+        final int numElements = 100;
+        DiskQueue<FetchSetDatum> queue = new DiskQueue<FetchSetDatum>(numElements/10, new FetchSetComparator());
+        queue.setCodec(new FetchSetDatumCodec());
+        
+        FetchSetDatum datums[] = new FetchSetDatum[numElements];
+        for (int i = 0; i < numElements; i++) {
+            List<ScoredUrlDatum> scoredUrls = new ArrayList<ScoredUrlDatum>();
+            for (int j = 0; j < 5; j++) {
+                String url = String.format("http://domain-%03d.com/page-%d.html", i, j);
+                scoredUrls.add(new ScoredUrlDatum(url, "domain-" + i, UrlStatus.UNFETCHED, 1.0));
+            }
+            
+            datums[i] = new FetchSetDatum(scoredUrls, 1000L + i, 30000, i, "domain-" + i);
+            assertTrue(queue.offer(datums[i]));
+        }
+        
+        try {
+            queue.setCodec(null);
+            fail("Should have thrown exception");
+        } catch (IllegalStateException e) {
+            // valid
+        }
+        
+        for (int i = 0; i < numElements; i++) {
+            FetchSetDatum datum = queue.poll();
+            assertNotNull(datum);
+            assertEquals(datums[i].getTuple(), datum.getTuple());
+            assertEquals(5, datum.getUrls().size());
+            assertEquals(datums[i].getUrls().get(3).getUrl(), datum.getUrls().get(3).getUrl());
+        }
+        
+        assertNull(queue.poll());
+    }
 }
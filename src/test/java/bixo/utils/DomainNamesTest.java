@@ -94,6 +94,45 @@ public class DomainNamesTest extends TestCase {
     public final void testItalianDomains() {
         assertEquals("xxx.com.it", DomainNames.getPLD("xxx.com.it"));
         assertEquals("xxx.com.it", DomainNames.getPLD("www.xxx.com.it"));
+        
+        // Italy also allows direct registration, and has 2nd-level TLDs like co.it
+        assertEquals("xxx.it", DomainNames.getPLD("www.xxx.it"));
+        assertEquals("xxx.co.it", DomainNames.getPLD("www.xxx.co.it"));
+    }
+    
+    public final void testWildcardAndExceptionRules() {
+        // *.kawasaki.jp, but !city.kawasaki.jp
+        assertEquals("xxx.yyy.kawasaki.jp", DomainNames.getPLD("www.xxx.yyy.kawasaki.jp"));
+        assertEquals("city.kawasaki.jp", DomainNames.getPLD("www.city.kawasaki.jp"));
+        
+        // *.ck, but !www.ck
+        assertEquals("xxx.yyy.ck", DomainNames.getPLD("www.xxx.yyy.ck"));
+        assertEquals("www.ck", DomainNames.getPLD("www.ck"));
+    }
+    
+    public final void testPublicSuffixes() {
+        assertEquals("co.uk", DomainNames.getPLD("co.uk"));
+        assertEquals("com", DomainNames.getPLD("com"));
+        assertEquals(0, DomainNames.getPLDStart("co.uk"));
+        
+        // Unknown TLDs are treated as public suffixes.
+        assertEquals("xxx.zzzz", DomainNames.getPLD("www.xxx.zzzz"));
+    }
+    
+    public final void testCaseAndTrailingDot() {
+        assertEquals("XXX.Co.UK", DomainNames.getPLD("WWW.XXX.Co.UK"));
+        assertEquals("xxx.co.uk.", DomainNames.getPLD("www.xxx.co.uk."));
+    }
+    
+    public final void testInternationalizedRules() {
+        assertEquals("xxx.\u00e5krehamn.no", DomainNames.getPLD("www.xxx.\u00e5krehamn.no"));
+        assertEquals("xxx.xn--krehamn-dxa.no", DomainNames.getPLD("www.xxx.xn--krehamn-dxa.no"));
+    }
+    
+    public final void testGetPLDStart() {
+        assertEquals(4, DomainNames.getPLDStart(new StringBuilder("www.xxx.co.jp")));
+        assertEquals(0, DomainNames.getPLDStart("1.2.3.4"));
+        assertEquals(0, DomainNames.getPLDStart("xxx.com"));
     }
     
     public final void testSafeGetHost() {
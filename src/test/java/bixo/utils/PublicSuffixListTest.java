@@ -0,0 +1,72 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PublicSuffixListTest {
+
+    @Test
+    public void testRules() throws Exception {
+        PublicSuffixList list = new PublicSuffixList(Arrays.asList("// comment", "", "uk", "co.uk", "*.ck", "!www.ck", "com.it some comment"));
+        assertEquals(5, list.getNumRules());
+        
+        assertEquals(4, list.getRegistrableDomainStart("www.xxx.co.uk"));
+        assertEquals(-1, list.getRegistrableDomainStart("co.uk"));
+        assertEquals(4, list.getRegistrableDomainStart("www.xxx.com.it"));
+        
+        // Wildcard, and exception to it.
+        assertEquals(4, list.getRegistrableDomainStart("www.xxx.yyy.ck"));
+        assertEquals(0, list.getRegistrableDomainStart("www.ck"));
+        
+        // Unknown TLDs are public suffixes too.
+        assertEquals(4, list.getRegistrableDomainStart("www.xxx.zzz"));
+    }
+    
+    @Test
+    public void testOverrides() throws Exception {
+        PublicSuffixList upstream = PublicSuffixList.load(PublicSuffixList.class.getResourceAsStream(PublicSuffixList.DEFAULT_LIST_RESOURCE));
+        PublicSuffixList overrides = PublicSuffixList.load(PublicSuffixList.class.getResourceAsStream(PublicSuffixList.DEFAULT_OVERRIDES_RESOURCE));
+        PublicSuffixList list = PublicSuffixList.loadDefault();
+        
+        assertEquals(upstream.getNumRules() + overrides.getNumRules(), list.getNumRules());
+        
+        // The upstream list doesn't have com.it, net.it or org.it, but our overrides do.
+        for (String suffix : new String[] { "com.it", "net.it", "org.it" }) {
+            String hostname = "www.xxx." + suffix;
+            assertEquals(8, upstream.getRegistrableDomainStart(hostname));
+            assertEquals(4, overrides.getRegistrableDomainStart(hostname));
+            assertEquals(4, list.getRegistrableDomainStart(hostname));
+        }
+        
+        // Override rules can be wildcards and exceptions too.
+        assertEquals(8, upstream.getRegistrableDomainStart("www.xxx.ch.cr"));
+        assertEquals(0, list.getRegistrableDomainStart("xxx.ch.cr"));
+        assertEquals(4, upstream.getRegistrableDomainStart("www.xxx.com.to"));
+        assertEquals(8, list.getRegistrableDomainStart("www.xxx.com.to"));
+        assertEquals(4, list.getRegistrableDomainStart("www.xxx.gov.to"));
+        
+        // And the rest of the upstream list is still there.
+        assertEquals(4, list.getRegistrableDomainStart("www.xxx.co.it"));
+        assertEquals(4, list.getRegistrableDomainStart("www.xxx.co.uk"));
+        assertEquals(4, list.getRegistrableDomainStart("www.xxx.blogspot.com"));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import bixo.datum.FetchSetDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+
+/**
+ * Micro-benchmark that compares the DiskQueue linear-scan memory tier (with a
+ * comparator that looks up mutable per-ref state, like FetchBuffer used to do)
+ * against the keyed heap tier, where ref state changes are pushed in via
+ * setPriority().
+ *
+ * The workload mimics FetchBuffer: fill the queue with fetch sets spread over
+ * many refs, then repeatedly take the head, make its ref active, and finish
+ * some earlier ref with a new pending fetch time.
+ *
+ * Usage: RunDiskQueueBenchmark [num fetch sets] [num refs] [iterations]
+ */
+public class RunDiskQueueBenchmark {
+
+    private static final long ACTIVE = Long.MAX_VALUE;
+
+    private static class StateComparator implements Comparator<FetchSetDatum> {
+
+        private Map<String, Long> _refState;
+
+        public StateComparator(Map<String, Long> refState) {
+            _refState = refState;
+        }
+
+        private long getFetchTime(String ref) {
+            Long result = _refState.get(ref);
+            return result == null ? 0 : result;
+        }
+
+        @Override
+        public int compare(FetchSetDatum o1, FetchSetDatum o2) {
+            long o1FetchTime = getFetchTime(o1.getGroupingRef());
+            long o2FetchTime = getFetchTime(o2.getGroupingRef());
+
+            if (o1FetchTime < o2FetchTime) {
+                return -1;
+            } else if (o1FetchTime > o2FetchTime) {
+                return 1;
+            } else {
+                return o2.getNumUrls() - o1.getNumUrls();
+            }
+        }
+    }
+
+    private static class SizeComparator implements Comparator<FetchSetDatum> {
+
+        @Override
+        public int compare(FetchSetDatum o1, FetchSetDatum o2) {
+            return o2.getNumUrls() - o1.getNumUrls();
+        }
+    }
+
+    private static class RefKeyer implements DiskQueue.PriorityKeyer<FetchSetDatum> {
+
+        @Override
+        public Object getKey(FetchSetDatum element) {
+            return element.getGroupingRef();
+        }
+    }
+
+    private static List<FetchSetDatum> makeFetchSets(int numSets, int numRefs) {
+        Random rand = new Random(1L);
+        List<FetchSetDatum> result = new ArrayList<FetchSetDatum>(numSets);
+        for (int i = 0; i < numSets; i++) {
+            String ref = "ref-" + rand.nextInt(numRefs);
+            List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+            int numUrls = 1 + rand.nextInt(5);
+            for (int j = 0; j < numUrls; j++) {
+                urls.add(new ScoredUrlDatum("http://" + ref + ".com/page-" + i + "-" + j, ref, UrlStatus.UNFETCHED, 1.0));
+            }
+
+            result.add(new FetchSetDatum(urls, 0, 1000, ref.hashCode(), ref));
+        }
+
+        return result;
+    }
+
+    private static long runBenchmark(List<FetchSetDatum> sets, int iterations, boolean useHeap) {
+        Map<String, Long> refState = new HashMap<String, Long>();
+        DiskQueue<FetchSetDatum> queue;
+        if (useHeap) {
+            queue = new DiskQueue<FetchSetDatum>(sets.size(), new SizeComparator(), new RefKeyer());
+        } else {
+            queue = new DiskQueue<FetchSetDatum>(sets.size(), new StateComparator(refState));
+        }
+
+        for (FetchSetDatum set : sets) {
+            queue.offer(set);
+        }
+
+        List<String> activeRefs = new ArrayList<String>();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            FetchSetDatum head = queue.poll();
+            String ref = head.getGroupingRef();
+
+            refState.put(ref, ACTIVE);
+            if (useHeap) {
+                queue.setPriority(ref, ACTIVE);
+            }
+            activeRefs.add(ref);
+
+            // Finish the oldest active ref, so it's pending again.
+            if (activeRefs.size() > 10) {
+                String finishedRef = activeRefs.remove(0);
+                long nextFetchTime = i + 1000L;
+                refState.put(finishedRef, nextFetchTime);
+                if (useHeap) {
+                    queue.setPriority(finishedRef, nextFetchTime);
+                }
+            }
+
+            // Put the set back, so the queue size stays constant.
+            queue.offer(head);
+        }
+
+        return (System.nanoTime() - startTime) / 1000000L;
+    }
+
+    public static void main(String[] args) {
+        int numSets = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int numRefs = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        List<FetchSetDatum> sets = makeFetchSets(numSets, numRefs);
+
+        // Warm up both code paths before timing.
+        runBenchmark(sets, iterations / 10, false);
+        runBenchmark(sets, iterations / 10, true);
+
+        long scanTime = runBenchmark(sets, iterations, false);
+        long heapTime = runBenchmark(sets, iterations, true);
+
+        System.out.println(String.format("%d fetch sets, %d refs, %d iterations", numSets, numRefs, iterations));
+        System.out.println(String.format("Linear scan queue: %dms", scanTime));
+        System.out.println(String.format("Keyed heap queue: %dms", heapTime));
+    }
+}
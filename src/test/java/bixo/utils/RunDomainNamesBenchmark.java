@@ -0,0 +1,228 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Micro-benchmark that compares DomainNames.getPLD (public suffix list trie)
+ * against the previous implementation, which used hand-maintained lists of
+ * country code and global TLDs, and split/lower-cased the hostname each time.
+ * 
+ * Hostnames are generated from a mix of suffixes, with zero to three labels in
+ * front of the PLD, and some mixed case.
+ * 
+ * Usage: RunDomainNamesBenchmark [num hosts] [iterations]
+ */
+public class RunDomainNamesBenchmark {
+
+    private static final String[] SUFFIXES = {
+        "com", "com", "com", "com", "net", "org", "de", "co.uk", "org.uk", "jp", "co.jp",
+        "ne.jp", "fr", "it", "co.it", "com.au", "com.br", "ru", "nl", "info", "biz",
+        "ch", "com.cn", "tokyo.jp", "com.ar", "com.mx", "edu", "gov", "ac.uk", "cr"
+    };
+
+    private static final String[] SUBDOMAINS = {
+        "www", "www2", "blog", "shop", "mail", "news", "m", "en", "static", "images"
+    };
+
+    /**
+     * The getPLD code (and its TLD lists) from before we switched to the public
+     * suffix list.
+     */
+    private static class LegacyDomainNames {
+        private static final String CC_TLDS =
+            "ac ad ae af ag ai al am an ao aq ar as at au aw ax az ba bb bd be bf bg bh bi " +
+            "bj bl bm bn bo br bs bt bv bw by bz ca cc cd cf cg ch ci ck cl cm cn co cr cu " +
+            "cv cx cy cz de dj dk dm do dz ec ee eg eh er es et eu fi fj fk fm fo fr ga gb " +
+            "gd ge gf gg gh gi gl gm gn gp gq gr gs gt gu gw gy hk hm hn hr ht hu id ie il " +
+            "im in io iq ir is it je jm jo jp ke kg kh ki km kn kp kr kw ky kz la lb lc li " +
+            "lk lr ls lt lu lv ly ma mc md me mf mg mh mk ml mm mn mo mp mq mr ms mt mu mv " +
+            "mw mx my mz na nc ne nf ng ni nl no np nr nu nz om pa pe pf pg ph pk pl pm pn " +
+            "pr ps pt pw py qa re ro rs ru rw sa sb sc sd se sg sh si sj sk sl sm sn so sr " +
+            "st su sv sy sz tc td tf tg th tj tk tl tm tn to tp tr tt tv tw tz ua ug uk um " +
+            "us uy uz va vc ve vg vi vn vu wf ws ye yt yu za zm zw";
+
+        private static final String CC_ALWAYS_TLDS =
+            "am ao aq as ax bf bg bh bi bj bw by bz cc cd cf cg ch ci cl cm cv cx cz de dj " +
+            "dk eu fi fm fo ga gd gf gl gm gq gs gw gy hm ie io km kn la li lt lu md mh mp " +
+            "mq mr ms mu na nc ne ng nl nu sh si sk sl sm sn sr st su sz tc td tf tg tk tl " +
+            "tm tn to tv va vc vg vu ws";
+
+        private static final String CC_NEVER_TLDS =
+            "bd bn bt ck cr cy do eg er et fj fk gh gn gt gu jm ke kh kw lb lr ml mm mt mv " +
+            "my mz ni np om pa pe pg pw py qa sa sb sv sy th tr tz uy ve ye yu zm zw";
+
+        private static final String G_TLDS = 
+            "aero arpa asia biz cat com coop edu gov info int jobs mil mobi museum name net " +
+            "org pro tel";
+
+        private static final Set<String> ccTLDs = new HashSet<String>(Arrays.asList(CC_TLDS.split(" ")));
+        private static final Set<String> ccAlwaysTLDs = new HashSet<String>(Arrays.asList(CC_ALWAYS_TLDS.split(" ")));
+        private static final Set<String> ccNeverTLDs = new HashSet<String>(Arrays.asList(CC_NEVER_TLDS.split(" ")));
+        private static final Set<String> gTLDs = new HashSet<String>(Arrays.asList(G_TLDS.split(" ")));
+
+        private static final Pattern IPV4_ADDRESS_PATTERN = Pattern.compile("(?:\\d{1,3}\\.){3}\\d{1,3}");
+
+        public static String getPLD(String hostname) {
+            if (hostname.startsWith("[") && hostname.endsWith("]")) {
+                return hostname;
+            }
+
+            String[] subNames = hostname.split("\\.");
+            int numPieces = subNames.length;
+            if (numPieces <= 2) {
+                return hostname;
+            }
+
+            if ((numPieces == 4) && (IPV4_ADDRESS_PATTERN.matcher(hostname).matches())) {
+                return hostname;
+            }
+
+            int firstHostPiece = 0;
+            if (ccTLDs.contains(subNames[numPieces - 1].toLowerCase())) {
+                if (ccNeverTLDs.contains(subNames[numPieces - 1].toLowerCase())) {
+                    firstHostPiece = numPieces - 3;
+                } else if (ccAlwaysTLDs.contains(subNames[numPieces - 1].toLowerCase())) {
+                    firstHostPiece = numPieces - 2;
+                } else if (subNames[numPieces - 2].length() <= 2) {
+                    firstHostPiece = numPieces - 3;
+                } else if (gTLDs.contains(subNames[numPieces - 2].toLowerCase())) {
+                    firstHostPiece = numPieces - 3;
+                } else {
+                    firstHostPiece = numPieces - 2;
+                }
+            } else if (gTLDs.contains(subNames[numPieces - 1].toLowerCase())) {
+                if (ccTLDs.contains(subNames[numPieces - 2].toLowerCase())) {
+                    firstHostPiece = numPieces - 3;
+                } else {
+                    firstHostPiece = numPieces - 2;
+                }
+            }
+
+            if (firstHostPiece == 0) {
+                return hostname;
+            } else {
+                StringBuilder result = new StringBuilder();
+                for (int i = firstHostPiece; i < numPieces; i++) {
+                    result.append(subNames[i]);
+                    result.append('.');
+                }
+
+                return result.deleteCharAt(result.length() - 1).toString();
+            }
+        }
+    }
+
+    private static String[] makeHosts(int numHosts) {
+        Random rand = new Random(1L);
+        String[] result = new String[numHosts];
+        StringBuilder host = new StringBuilder();
+        for (int i = 0; i < numHosts; i++) {
+            host.setLength(0);
+            int numSubdomains = rand.nextInt(4);
+            for (int j = 0; j < numSubdomains; j++) {
+                host.append(SUBDOMAINS[rand.nextInt(SUBDOMAINS.length)]);
+                host.append('.');
+            }
+
+            host.append("domain");
+            host.append(rand.nextInt(100000));
+            host.append('.');
+            host.append(SUFFIXES[rand.nextInt(SUFFIXES.length)]);
+
+            result[i] = (rand.nextInt(20) == 0) ? host.toString().toUpperCase() : host.toString();
+        }
+
+        return result;
+    }
+
+    private static long runLegacy(String[] hosts) {
+        long startTime = System.nanoTime();
+        int totalLength = 0;
+        for (String host : hosts) {
+            totalLength += LegacyDomainNames.getPLD(host).length();
+        }
+
+        long result = (System.nanoTime() - startTime) / 1000000L;
+        if (totalLength == 0) {
+            System.out.println("Impossible!");
+        }
+
+        return result;
+    }
+
+    private static long runSuffixList(String[] hosts, boolean offsetOnly) {
+        long startTime = System.nanoTime();
+        int totalLength = 0;
+        for (String host : hosts) {
+            if (offsetOnly) {
+                totalLength += host.length() - DomainNames.getPLDStart(host);
+            } else {
+                totalLength += DomainNames.getPLD(host).length();
+            }
+        }
+
+        long result = (System.nanoTime() - startTime) / 1000000L;
+        if (totalLength == 0) {
+            System.out.println("Impossible!");
+        }
+
+        return result;
+    }
+
+    public static void main(String[] args) {
+        int numHosts = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        long startTime = System.nanoTime();
+        DomainNames.getPLD("www.domain.com");
+        System.out.println(String.format("Loaded public suffix list in %dms", (System.nanoTime() - startTime) / 1000000L));
+
+        String[] hosts = makeHosts(numHosts);
+
+        int numDifferent = 0;
+        for (String host : hosts) {
+            if (!LegacyDomainNames.getPLD(host).equals(DomainNames.getPLD(host))) {
+                numDifferent += 1;
+            }
+        }
+
+        // Warm up all code paths before timing.
+        runLegacy(hosts);
+        runSuffixList(hosts, false);
+        runSuffixList(hosts, true);
+
+        long legacyTime = 0;
+        long pldTime = 0;
+        long offsetTime = 0;
+        for (int i = 0; i < iterations; i++) {
+            legacyTime += runLegacy(hosts);
+            pldTime += runSuffixList(hosts, false);
+            offsetTime += runSuffixList(hosts, true);
+        }
+
+        System.out.println(String.format("%d hosts, %d iterations, %d hosts with a different PLD", numHosts, iterations, numDifferent));
+        System.out.println(String.format("Legacy getPLD: %dms", legacyTime / iterations));
+        System.out.println(String.format("Suffix list getPLD: %dms", pldTime / iterations));
+        System.out.println(String.format("Suffix list getPLDStart: %dms", offsetTime / iterations));
+    }
+}
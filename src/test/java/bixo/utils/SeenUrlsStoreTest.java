@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+public class SeenUrlsStoreTest {
+
+    private static final String BASE_DIR = "build/test/SeenUrlsStoreTest/";
+    
+    @Test
+    public void testPartitions() {
+        SeenUrlsStore store = new SeenUrlsStore(null, null, 10, 1000);
+        Set<Integer> partitions = new HashSet<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            int partition = store.getPartition(SeenUrlsStore.fingerprint("http://www.domain.com/page-" + i));
+            assertTrue((partition >= 0) && (partition < 10));
+            partitions.add(partition);
+        }
+        
+        assertEquals(10, partitions.size());
+    }
+    
+    @Test
+    public void testSavingAndLoading() throws Exception {
+        File baseDir = new File(BASE_DIR);
+        FileUtils.deleteDirectory(baseDir);
+        Configuration conf = new Configuration();
+        
+        // First loop, with nothing to load.
+        SeenUrlsStore store = new SeenUrlsStore(null, BASE_DIR + "loop1", 4, 1000);
+        store.open(conf);
+        long fingerprint1 = SeenUrlsStore.fingerprint("http://www.domain.com/page1");
+        assertFalse(store.mightContain(fingerprint1));
+        
+        int partition1 = store.getPartition(fingerprint1);
+        BloomFilter filter = store.makeFilter();
+        filter.add(fingerprint1);
+        store.savePartition(conf, partition1, filter, "");
+        
+        // Second loop, where we update a different partition, and carry forward the rest.
+        store = new SeenUrlsStore(BASE_DIR + "loop1", BASE_DIR + "loop2", 4, 1000);
+        store.open(conf);
+        assertTrue(store.mightContain(fingerprint1));
+        
+        long fingerprint2 = fingerprint1;
+        for (int i = 0; store.getPartition(fingerprint2) == partition1; i++) {
+            fingerprint2 = SeenUrlsStore.fingerprint("http://www.domain.com/page2-" + i);
+        }
+        
+        int partition2 = store.getPartition(fingerprint2);
+        assertNull(store.loadPartition(conf, partition2));
+        filter = store.makeFilter();
+        filter.add(fingerprint2);
+        store.savePartition(conf, partition2, filter, "");
+        store.carryForward(conf, Collections.singleton(partition2));
+        
+        // Third loop should see both.
+        store = new SeenUrlsStore(BASE_DIR + "loop2", BASE_DIR + "loop3", 4, 1000);
+        store.open(conf);
+        assertTrue(store.mightContain(fingerprint1));
+        assertTrue(store.mightContain(fingerprint2));
+        assertFalse(store.mightContain(SeenUrlsStore.fingerprint("http://www.domain.com/page3")));
+    }
+    
+    @Test
+    public void testCombiningFiles() throws Exception {
+        File baseDir = new File(BASE_DIR);
+        FileUtils.deleteDirectory(baseDir);
+        Configuration conf = new Configuration();
+        
+        SeenUrlsStore store = new SeenUrlsStore(null, BASE_DIR + "combined", 1, 1000);
+        BloomFilter filter1 = store.makeFilter();
+        filter1.add(1L);
+        store.savePartition(conf, 0, filter1, "");
+        BloomFilter filter2 = store.makeFilter();
+        filter2.add(2L);
+        store.savePartition(conf, 0, filter2, "-1");
+        
+        store = new SeenUrlsStore(BASE_DIR + "combined", null, 1, 1000);
+        BloomFilter combined = store.loadPartition(conf, 0);
+        assertTrue(combined.mightContain(1L));
+        assertTrue(combined.mightContain(2L));
+        
+        // Can't change the number of partitions.
+        store = new SeenUrlsStore(BASE_DIR + "combined", null, 2, 1000);
+        try {
+            store.open(conf);
+            fail("Should have thrown exception");
+        } catch (java.io.IOException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testMaxLoadedBytes() throws Exception {
+        File baseDir = new File(BASE_DIR);
+        FileUtils.deleteDirectory(baseDir);
+        Configuration conf = new Configuration();
+        
+        SeenUrlsStore store = new SeenUrlsStore(null, BASE_DIR + "limited", 2, 1000);
+        long fingerprint0 = findFingerprint(store, 0);
+        long fingerprint1 = findFingerprint(store, 1);
+        
+        BloomFilter filter = store.makeFilter();
+        filter.add(fingerprint0);
+        store.savePartition(conf, 0, filter, "");
+        filter = store.makeFilter();
+        filter.add(fingerprint1);
+        store.savePartition(conf, 1, filter, "");
+        
+        long filterSize = new File(BASE_DIR + "limited/part-00000").length();
+        
+        // Only room for one of the two partitions, so whichever we need first gets loaded.
+        store = new SeenUrlsStore(BASE_DIR + "limited", null, 2, 1000);
+        store.setMaxLoadedBytes(filterSize);
+        store.open(conf);
+        assertTrue(store.mightContain(fingerprint1));
+        assertFalse(store.mightContain(fingerprint0));
+        assertEquals(1, store.getNumNotLoaded());
+        
+        // But the full filter is still there when it's loaded by partition.
+        assertTrue(store.loadPartition(conf, 0).mightContain(fingerprint0));
+    }
+    
+    private static long findFingerprint(SeenUrlsStore store, int partition) {
+        for (int i = 0; ; i++) {
+            long result = SeenUrlsStore.fingerprint("http://www.domain.com/page-" + i);
+            if (store.getPartition(result) == partition) {
+                return result;
+            }
+        }
+    }
+}
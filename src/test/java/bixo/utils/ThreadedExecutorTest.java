@@ -16,7 +16,14 @@
  */
 package bixo.utils;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import junit.framework.Assert;
 
@@ -169,4 +176,198 @@ public class ThreadedExecutorTest {
             Assert.fail("Termination was interrupted");
         }
     }
+
+    @Test
+    public void testVirtualThreadRejection() {
+        final long timeoutInMS = 4;
+        
+        // Falls back to platform threads on older JVMs, but behavior must be the same.
+        ThreadedExecutor executor = new ThreadedExecutor(1, timeoutInMS, true);
+        
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(timeoutInMS * 5);
+                    } catch (InterruptedException e) {
+                        // Terminate the run
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Assert.fail("Execution was rejected");
+        }
+        
+        try {
+            executor.execute(new Runnable() {
+                public void run() { }
+            });
+            Assert.fail("Should have failed");
+        } catch (RejectedExecutionException e) {
+            // Valid
+        }
+    }
+    
+    @Test
+    public void testVirtualThreadTermination() throws InterruptedException {
+        final long timeoutInMS = 50;
+        final int numThreads = 100;
+        
+        ThreadedExecutor executor = new ThreadedExecutor(numThreads, timeoutInMS, true);
+        for (int i = 0; i < numThreads; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(timeoutInMS * 10);
+                    } catch (InterruptedException e) {
+                        // Terminate the run
+                    }
+                }
+            });
+        }
+        
+        Assert.assertFalse(executor.terminate(timeoutInMS));
+    }
+    
+    @Test
+    public void testThreadPerTask() throws InterruptedException {
+        final long timeoutInMS = 100;
+        final int numThreads = 2;
+        final int numTasks = 10;
+        
+        // This is what we do with virtual threads, but using platform threads, since the
+        // JVM running the test might not have virtual threads.
+        ThreadedExecutor executor = new ThreadedExecutor(numThreads, timeoutInMS, Executors.defaultThreadFactory());
+        
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        for (int i = 0; i < numTasks; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    threads.add(Thread.currentThread());
+                    
+                    try {
+                        Thread.sleep(timeoutInMS / 4);
+                    } catch (InterruptedException e) {
+                        // Terminate the run
+                    }
+                }
+            });
+            
+            Assert.assertTrue(executor.getActiveCount() <= numThreads);
+        }
+        
+        Assert.assertTrue(executor.terminate(timeoutInMS));
+        Assert.assertEquals(0, executor.getActiveCount());
+        Assert.assertEquals(numTasks, threads.size());
+    }
+    
+    @Test
+    public void testThreadPerTaskRejection() throws InterruptedException {
+        final long timeoutInMS = 10;
+        
+        ThreadedExecutor executor = new ThreadedExecutor(1, timeoutInMS, Executors.defaultThreadFactory());
+        
+        final CountDownLatch finish = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    // Terminate the run
+                }
+            }
+        });
+        
+        Assert.assertEquals(1, executor.getActiveCount());
+        
+        try {
+            executor.execute(new Runnable() {
+                public void run() { }
+            });
+            Assert.fail("Should have failed");
+        } catch (RejectedExecutionException e) {
+            // Valid
+        }
+        
+        finish.countDown();
+        Assert.assertTrue(executor.terminate(timeoutInMS * 10));
+        
+        // Nothing gets run once we've terminated.
+        try {
+            executor.execute(new Runnable() {
+                public void run() { }
+            });
+            Assert.fail("Should have failed");
+        } catch (RejectedExecutionException e) {
+            // Valid
+        }
+    }
+    
+    @Test
+    public void testThreadPerTaskHardTermination() throws InterruptedException {
+        final long timeoutInMS = 50;
+        
+        ThreadedExecutor executor = new ThreadedExecutor(1, timeoutInMS, Executors.defaultThreadFactory());
+        
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(timeoutInMS * 100);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        
+        Assert.assertFalse(executor.terminate(timeoutInMS));
+        Assert.assertTrue(done.await(timeoutInMS * 10, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(interrupted.get());
+    }
+    
+    @Test
+    public void testAwaitingIdle() throws InterruptedException {
+        checkAwaitingIdle(new ThreadedExecutor(2, 10));
+    }
+    
+    @Test
+    public void testThreadPerTaskAwaitingIdle() throws InterruptedException {
+        checkAwaitingIdle(new ThreadedExecutor(2, 10, Executors.defaultThreadFactory()));
+    }
+    
+    private void checkAwaitingIdle(ThreadedExecutor executor) throws InterruptedException {
+        // Nothing running, so we don't wait.
+        Assert.assertTrue(executor.awaitIdle(0));
+        
+        final CountDownLatch finish = new CountDownLatch(1);
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        for (int i = 0; i < 2; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        finish.await();
+                        Thread.sleep(50);
+                        finished.set(true);
+                    } catch (InterruptedException e) {
+                        // Terminate the run
+                    }
+                }
+            });
+        }
+        
+        Assert.assertFalse(executor.awaitIdle(10));
+        
+        finish.countDown();
+        Assert.assertTrue(executor.awaitIdle(1000));
+        Assert.assertTrue(finished.get());
+        
+        // We can keep using it afterwards.
+        executor.execute(new Runnable() {
+            public void run() { }
+        });
+        Assert.assertTrue(executor.terminate(1000));
+    }
 }
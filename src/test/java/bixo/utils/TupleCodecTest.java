@@ -0,0 +1,125 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+
+import org.junit.Test;
+
+import cascading.tuple.Tuple;
+
+public class TupleCodecTest {
+
+    private static byte[] encode(Tuple tuple) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        TupleCodec.write(tuple, out);
+        out.close();
+        return bytes.toByteArray();
+    }
+    
+    private static Tuple decode(byte[] bytes) throws IOException {
+        return TupleCodec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+    
+    @Test
+    public void testSimpleValues() throws Exception {
+        Tuple tuple = new Tuple();
+        tuple.add("string");
+        tuple.add(10);
+        tuple.add(-1000000000000L);
+        tuple.add(1.5);
+        tuple.add(2.5f);
+        tuple.add(true);
+        tuple.add(false);
+        tuple.add((Object)null);
+        tuple.add("");
+        
+        assertEquals(tuple, decode(encode(tuple)));
+    }
+    
+    @Test
+    public void testNestedTuples() throws Exception {
+        Tuple inner = new Tuple();
+        inner.add("http://domain.com/page1.html");
+        inner.add("domain.com");
+        
+        Tuple tuple = new Tuple();
+        tuple.add(inner);
+        tuple.add(new Tuple());
+        tuple.add("domain.com");
+        
+        assertEquals(tuple, decode(encode(tuple)));
+    }
+    
+    @Test
+    public void testSerializedValues() throws Exception {
+        Tuple tuple = new Tuple();
+        tuple.add(new Date(1000L));
+        
+        assertEquals(tuple, decode(encode(tuple)));
+    }
+    
+    @Test
+    public void testStringEncoding() throws Exception {
+        Tuple tuple = new Tuple();
+        tuple.add("http://domain.com/page1.html");
+        tuple.add("http://domain.com/page2.html");
+        tuple.add("http://domain.com/page1.html");
+        tuple.add("http://other.com/");
+        tuple.add("𐀀abc");
+        tuple.add("𐀁abc");
+        tuple.add("café");
+        
+        assertEquals(tuple, decode(encode(tuple)));
+    }
+    
+    @Test
+    public void testCompactUrlLists() throws Exception {
+        Tuple tuple = new Tuple();
+        for (int i = 0; i < 100; i++) {
+            String url = String.format("http://www.domain.com/some/long/path/page-%03d.html", i);
+            
+            Tuple urlTuple = new Tuple();
+            urlTuple.add(url);
+            urlTuple.add("UNFETCHED");
+            urlTuple.add(1.0);
+            urlTuple.add("www.domain.com");
+            tuple.add(urlTuple);
+        }
+        
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(serialized);
+        oos.writeObject(tuple);
+        oos.close();
+        
+        // Shared prefixes and repeated strings mean we should be much smaller than
+        // what we'd get with Java serialization.
+        byte[] bytes = encode(tuple);
+        assertTrue("Encoded size was " + bytes.length, bytes.length < serialized.size() / 2);
+        assertEquals(tuple, decode(bytes));
+    }
+}
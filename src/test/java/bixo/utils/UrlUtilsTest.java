@@ -22,6 +22,8 @@ import java.net.URL;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import bixo.urls.ParsedUrl;
+
 public class UrlUtilsTest {
 
     @Test
@@ -114,6 +116,10 @@ public class UrlUtilsTest {
         assertEquals("http://domain.com", UrlUtils.makeProtocolAndDomain("http://domain.com:80/index.html"));
         assertEquals("http://domain.com:8080", UrlUtils.makeProtocolAndDomain("http://domain.com:8080/index.html"));
         assertEquals("https://domain.com", UrlUtils.makeProtocolAndDomain("https://domain.com/"));
+        assertEquals("https://domain.com:80", UrlUtils.makeProtocolAndDomain("HTTPS://domain.com:80/"));
+        assertEquals("http://127.0.0.1:8080", UrlUtils.makeProtocolAndDomain("http://127.0.0.1:8080/"));
+        assertEquals("http://domain.com", UrlUtils.makeProtocolAndDomain("http://user@domain.com/"));
+        assertEquals("http://domain.com", UrlUtils.makeProtocolAndDomain(ParsedUrl.parse("http://domain.com/index.html")));
         
         try {
             UrlUtils.makeProtocolAndDomain("mailto:name@domain.com");
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.hadoop.mapred.JobConf;
+
+import bixo.datum.FetchedDatum;
+import bixo.datum.StatusDatum;
+import bixo.pipes.MineUrlParameterRulesPipe;
+import bixo.urls.SimpleUrlNormalizer;
+import bixo.urls.UrlParameterRules;
+import cascading.flow.Flow;
+import cascading.flow.FlowConnector;
+import cascading.pipe.Pipe;
+import cascading.scheme.SequenceFile;
+import cascading.tap.Hfs;
+import cascading.tap.Lfs;
+import cascading.tap.Tap;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryIterator;
+
+import com.bixolabs.cascading.HadoopUtils;
+
+/**
+ * Run MineUrlParameterRulesPipe over the status and content output of a crawl, and
+ * write the resulting rules to a file that UrlParameterRules.load() can read.
+ */
+public class MineUrlParameterRulesTool {
+
+    private static void printUsageAndExit() {
+        System.err.println("Usage: MineUrlParameterRulesTool <status dir> <content dir> <rules file> [min same content]");
+        System.exit(-1);
+    }
+    
+    public static void main(String[] args) {
+        if ((args.length < 3) || (args.length > 4)) {
+            printUsageAndExit();
+        }
+        
+        try {
+            int minSameContent = MineUrlParameterRulesPipe.DEFAULT_MIN_SAME_CONTENT;
+            if (args.length == 4) {
+                minSameContent = Integer.parseInt(args[3]);
+            }
+            
+            Tap statusSource = new Hfs(new SequenceFile(StatusDatum.FIELDS), args[0]);
+            Tap contentSource = new Hfs(new SequenceFile(FetchedDatum.FIELDS), args[1]);
+            
+            File tempDir = File.createTempFile("MineUrlParameterRulesTool", "");
+            tempDir.delete();
+            Tap sinkTap = new Lfs(new SequenceFile(MineUrlParameterRulesPipe.RULE_FIELDS), tempDir.getAbsolutePath(), true);
+
+            Pipe statusPipe = new Pipe("status");
+            Pipe contentPipe = new Pipe("content");
+            MineUrlParameterRulesPipe miner = new MineUrlParameterRulesPipe(statusPipe, contentPipe, new SimpleUrlNormalizer(), minSameContent);
+            
+            Map<String, Tap> sources = new HashMap<String, Tap>();
+            sources.put(statusPipe.getName(), statusSource);
+            sources.put(contentPipe.getName(), contentSource);
+            
+            JobConf conf = HadoopUtils.getDefaultJobConf();
+            Properties props = HadoopUtils.getDefaultProperties(MineUrlParameterRulesTool.class, false, conf);
+            FlowConnector flowConnector = new FlowConnector(props);
+            Flow flow = flowConnector.connect(sources, sinkTap, miner);
+            flow.complete();
+            
+            UrlParameterRules rules = new UrlParameterRules();
+            TupleEntryIterator iter = flow.openSink();
+            while (iter.hasNext()) {
+                TupleEntry entry = iter.next();
+                String host = entry.getString(MineUrlParameterRulesPipe.HOST_FN);
+                String parameter = entry.getString(MineUrlParameterRulesPipe.PARAMETER_FN);
+                System.out.println(String.format("%s -%s (%d same, %d different)", host, parameter,
+                                entry.getInteger(MineUrlParameterRulesPipe.NUM_SAME_FN),
+                                entry.getInteger(MineUrlParameterRulesPipe.NUM_DIFFERENT_FN)));
+                rules.addDroppedParameter(host, parameter);
+            }
+            
+            iter.close();
+            
+            OutputStream os = new FileOutputStream(args[2]);
+            try {
+                rules.save(os);
+            } finally {
+                os.close();
+            }
+            
+            System.out.println(String.format("Wrote rules for %d hosts to %s", rules.getNumHosts(), args[2]));
+        } catch (Exception e) {
+            System.err.println("Exception running tool: " + e.getMessage());
+            e.printStackTrace(System.err);
+            System.exit(-1);
+        }
+    }
+}